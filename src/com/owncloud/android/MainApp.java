@@ -29,6 +29,7 @@ import android.os.Build;
 import android.os.Bundle;
 
 import com.owncloud.android.authentication.PassCodeManager;
+import com.owncloud.android.datamodel.StoragePathRepairJob;
 import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory.Policy;
@@ -74,6 +75,9 @@ public class MainApp extends Application {
 
         // initialise thumbnails cache on background thread
         new ThumbnailsCacheManager.InitDiskCacheTask().execute();
+
+        // bind local files that old versions left without local path
+        StoragePathRepairJob.startOnce(this);
         
         if (BuildConfig.DEBUG) {
 
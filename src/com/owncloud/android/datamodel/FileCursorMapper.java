@@ -0,0 +1,191 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+/**
+ * Maps rows of the table of files to {@link OCFile} instances.
+ *
+ * The indexes of the columns are looked up once per shape of cursor, that is, per list of
+ * column names, and reused for every later cursor with the same shape; mapping a row only
+ * reads values by index. Columns missing in the cursor keep the default values of
+ * {@link OCFile}.
+ *
+ * Rows are mapped as saved; no local copy is searched for the files without local path, see
+ * {@link StoragePathRepairJob}.
+ */
+public class FileCursorMapper {
+
+    /** Shapes kept; a few are used in practice, the cache is only reset if that grows */
+    private static final int MAX_SHAPES = 32;
+
+    private static final Map<List<String>, FileCursorMapper> sMappers =
+            new HashMap<List<String>, FileCursorMapper>();
+
+    private final int mId;
+    private final int mPath;
+    private final int mParent;
+    private final int mContentType;
+    private final int mStoragePath;
+    private final int mContentLength;
+    private final int mCreation;
+    private final int mModified;
+    private final int mModifiedAtLastSyncForData;
+    private final int mLastSyncDate;
+    private final int mLastSyncDateForData;
+    private final int mKeepInSync;
+    private final int mEtag;
+    private final int mEtagInServer;
+    private final int mShareByLink;
+    private final int mPublicLink;
+    private final int mPermissions;
+    private final int mRemoteId;
+    private final int mUpdateThumbnail;
+    private final int mIsDownloading;
+    private final int mSortName;
+    private final int mDescendantCount;
+
+
+    /**
+     * @return      Mapper for the rows of the cursor.
+     */
+    public static FileCursorMapper forCursor(Cursor c) {
+        String[] columns = c.getColumnNames();
+        List<String> shape = Arrays.asList(columns);
+        synchronized (sMappers) {
+            FileCursorMapper mapper = sMappers.get(shape);
+            if (mapper == null) {
+                if (sMappers.size() >= MAX_SHAPES) {
+                    sMappers.clear();
+                }
+                mapper = new FileCursorMapper(c);
+                sMappers.put(Arrays.asList(columns.clone()), mapper);
+            }
+            return mapper;
+        }
+    }
+
+
+    private FileCursorMapper(Cursor c) {
+        mId = c.getColumnIndex(ProviderTableMeta._ID);
+        mPath = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+        mParent = c.getColumnIndex(ProviderTableMeta.FILE_PARENT);
+        mContentType = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE);
+        mStoragePath = c.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+        mContentLength = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        mCreation = c.getColumnIndex(ProviderTableMeta.FILE_CREATION);
+        mModified = c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED);
+        mModifiedAtLastSyncForData =
+                c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA);
+        mLastSyncDate = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE);
+        mLastSyncDateForData = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA);
+        mKeepInSync = c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC);
+        mEtag = c.getColumnIndex(ProviderTableMeta.FILE_ETAG);
+        mEtagInServer = c.getColumnIndex(ProviderTableMeta.FILE_ETAG_IN_SERVER);
+        mShareByLink = c.getColumnIndex(ProviderTableMeta.FILE_SHARE_BY_LINK);
+        mPublicLink = c.getColumnIndex(ProviderTableMeta.FILE_PUBLIC_LINK);
+        mPermissions = c.getColumnIndex(ProviderTableMeta.FILE_PERMISSIONS);
+        mRemoteId = c.getColumnIndex(ProviderTableMeta.FILE_REMOTE_ID);
+        mUpdateThumbnail = c.getColumnIndex(ProviderTableMeta.FILE_UPDATE_THUMBNAIL);
+        mIsDownloading = c.getColumnIndex(ProviderTableMeta.FILE_IS_DOWNLOADING);
+        mSortName = c.getColumnIndex(ProviderTableMeta.FILE_SORT_NAME);
+        mDescendantCount = c.getColumnIndex(ProviderTableMeta.FILE_DESCENDANT_COUNT);
+    }
+
+
+    /**
+     * Maps the current row of a cursor with the shape of this mapper.
+     */
+    public OCFile map(Cursor c) {
+        OCFile file = new OCFile(c.getString(mPath));
+        file.setFileId(c.getLong(mId));
+        if (mParent >= 0) {
+            file.setParentId(c.getLong(mParent));
+        }
+        if (mContentType >= 0) {
+            file.setMimetype(c.getString(mContentType));
+        }
+        if (mStoragePath >= 0 && !file.isFolder()) {
+            file.setStoragePath(c.getString(mStoragePath));
+        }
+        if (mContentLength >= 0) {
+            file.setFileLength(c.getLong(mContentLength));
+        }
+        if (mCreation >= 0) {
+            file.setCreationTimestamp(c.getLong(mCreation));
+        }
+        if (mModified >= 0) {
+            file.setModificationTimestamp(c.getLong(mModified));
+        }
+        if (mModifiedAtLastSyncForData >= 0) {
+            file.setModificationTimestampAtLastSyncForData(
+                    c.getLong(mModifiedAtLastSyncForData));
+        }
+        if (mLastSyncDate >= 0) {
+            file.setLastSyncDateForProperties(c.getLong(mLastSyncDate));
+        }
+        if (mLastSyncDateForData >= 0) {
+            file.setLastSyncDateForData(c.getLong(mLastSyncDateForData));
+        }
+        if (mKeepInSync >= 0) {
+            file.setKeepInSync(c.getInt(mKeepInSync) == 1);
+        }
+        if (mEtag >= 0) {
+            file.setEtag(c.getString(mEtag));
+        }
+        if (mEtagInServer >= 0) {
+            file.setEtagInServer(c.getString(mEtagInServer));
+        }
+        if (mShareByLink >= 0) {
+            file.setShareByLink(c.getInt(mShareByLink) == 1);
+        }
+        if (mPublicLink >= 0) {
+            file.setPublicLink(c.getString(mPublicLink));
+        }
+        if (mPermissions >= 0) {
+            file.setPermissions(c.getString(mPermissions));
+        }
+        if (mRemoteId >= 0) {
+            file.setRemoteId(c.getString(mRemoteId));
+        }
+        if (mUpdateThumbnail >= 0) {
+            file.setNeedsUpdateThumbnail(c.getInt(mUpdateThumbnail) == 1);
+        }
+        if (mIsDownloading >= 0) {
+            file.setDownloading(c.getInt(mIsDownloading) == 1);
+        }
+        if (mSortName >= 0 && !c.isNull(mSortName)) {
+            file.setSortName(c.getString(mSortName));
+        }
+        if (mDescendantCount >= 0) {
+            file.setDescendantCount(c.getLong(mDescendantCount));
+        }
+        return file;
+    }
+
+}
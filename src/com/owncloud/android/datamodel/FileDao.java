@@ -0,0 +1,1138 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+import com.owncloud.android.utils.FileStorageUtils;
+
+/**
+ * Direct access to the table of files for the callers in the process of the app, skipping the
+ * URI dispatch, projection maps and cursor copies of {@link FileContentProvider}, which is kept
+ * for callers out of the process.
+ *
+ * Both share the same {@link FileContentProvider.DataBaseHelper}. Every access uses a constant
+ * SQL string, so the statement is compiled once per connection and then taken from the cache
+ * of prepared statements of SQLite; rows are mapped with {@link FileCursorMapper}, without
+ * looking up the index of every column.
+ *
+ * The size and descendant count of every ancestor of a written or removed file are updated
+ * with {@link FolderAggregates} in the same transaction, so that sorting by size and the storage
+ * used by a folder are read from its own row.
+ *
+ * Descendants of a folder are found in a single range of the index by account and path: their
+ * paths start with the path of the folder, and sort between it and {@link #getTreeEnd(String)},
+ * so moves and removals of whole trees are single SQL statements.
+ *
+ * Every write runs in a transaction. Observers of {@link ProviderTableMeta#CONTENT_URI} are
+ * notified once per written account when the outermost transaction of the calling thread ends,
+ * no matter how many rows were written, with the account in the parameter
+ * {@link #PARAM_ACCOUNT} of the notified URI; callers can group several writes with
+ * {@link #beginTransaction()} and {@link #endTransaction()}.
+ */
+public class FileDao {
+
+    private static FileDao sInstance = null;
+
+    /** Parameter of the notified URIs with the name of the account whose files were written */
+    public static final String PARAM_ACCOUNT = "account";
+
+    /** Columns read for every file */
+    private static final String FILE_COLUMNS =
+            ProviderTableMeta._ID + ", " +
+            ProviderTableMeta.FILE_PATH + ", " +
+            ProviderTableMeta.FILE_PARENT + ", " +
+            ProviderTableMeta.FILE_CONTENT_TYPE + ", " +
+            ProviderTableMeta.FILE_STORAGE_PATH + ", " +
+            ProviderTableMeta.FILE_CONTENT_LENGTH + ", " +
+            ProviderTableMeta.FILE_CREATION + ", " +
+            ProviderTableMeta.FILE_MODIFIED + ", " +
+            ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA + ", " +
+            ProviderTableMeta.FILE_LAST_SYNC_DATE + ", " +
+            ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA + ", " +
+            ProviderTableMeta.FILE_KEEP_IN_SYNC + ", " +
+            ProviderTableMeta.FILE_ETAG + ", " +
+            ProviderTableMeta.FILE_ETAG_IN_SERVER + ", " +
+            ProviderTableMeta.FILE_SHARE_BY_LINK + ", " +
+            ProviderTableMeta.FILE_PUBLIC_LINK + ", " +
+            ProviderTableMeta.FILE_PERMISSIONS + ", " +
+            ProviderTableMeta.FILE_REMOTE_ID + ", " +
+            ProviderTableMeta.FILE_UPDATE_THUMBNAIL + ", " +
+            ProviderTableMeta.FILE_IS_DOWNLOADING + ", " +
+            ProviderTableMeta.FILE_SORT_NAME + ", " +
+            ProviderTableMeta.FILE_DESCENDANT_COUNT;
+
+    private static final String OWNER_WHERE = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+
+    private static final String SELECT_FILES = "SELECT " + FILE_COLUMNS + " FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE ";
+
+    private static final String SQL_FILE_BY_PATH = SELECT_FILES +
+            ProviderTableMeta.FILE_PATH + "=? AND " + OWNER_WHERE;
+
+    private static final String SQL_FILE_BY_ID = SELECT_FILES +
+            ProviderTableMeta._ID + "=? AND " + OWNER_WHERE;
+
+    private static final String SQL_FILE_BY_LOCAL_PATH = SELECT_FILES +
+            ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " + OWNER_WHERE;
+
+    private static final String SQL_FOLDER_CONTENT = SELECT_FILES +
+            ProviderTableMeta.FILE_PARENT + "=?";
+
+    private static final String SQL_CHILDREN_SYNCED_BEFORE = SQL_FOLDER_CONTENT + " AND " +
+            ProviderTableMeta.FILE_LAST_SYNC_DATE + "<? AND " + ProviderTableMeta._ID +
+            ">? ORDER BY " + ProviderTableMeta._ID + " LIMIT ?";
+
+    private static final String SQL_ID_BY_PATH = "SELECT " + ProviderTableMeta._ID + " FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta.FILE_PATH +
+            "=? AND " + OWNER_WHERE;
+
+    private static final String SQL_COUNT_BY_ID = "SELECT COUNT(*) FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID + "=? AND " +
+            OWNER_WHERE;
+
+    private static final String SQL_CHILDREN = "SELECT " + ProviderTableMeta._ID + ", " +
+            ProviderTableMeta.FILE_PATH + " FROM " + ProviderTableMeta.FILE_TABLE_NAME +
+            " WHERE " + ProviderTableMeta.FILE_PARENT + "=? AND " + OWNER_WHERE;
+
+    private static final String SQL_PATH_BY_ID = "SELECT " + ProviderTableMeta.FILE_PATH +
+            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID +
+            "=? AND " + OWNER_WHERE;
+
+    /** A folder and all its descendants; arguments are account, folder path and tree end */
+    private static final String TREE_WHERE = OWNER_WHERE + " AND " +
+            ProviderTableMeta.FILE_PATH + ">=? AND " + ProviderTableMeta.FILE_PATH + "<?";
+
+    private static final String SQL_DOWNLOADED_IN_TREE = SELECT_FILES + TREE_WHERE + " AND " +
+            ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL";
+
+    private static final String SQL_DELETE_TREE = "DELETE FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + TREE_WHERE;
+
+    /**
+     * Replaces the start of the paths of the descendants of a folder, and of the local paths
+     * starting with the old local path of the folder. Arguments: new path, old path, old local
+     * path, new local path, account, tree end.
+     */
+    private static final String SQL_MOVE_DESCENDANTS = "UPDATE " +
+            ProviderTableMeta.FILE_TABLE_NAME + " SET " +
+            ProviderTableMeta.FILE_PATH + "=?1||SUBSTR(" + ProviderTableMeta.FILE_PATH +
+            ",LENGTH(?2)+1), " +
+            ProviderTableMeta.FILE_STORAGE_PATH + "=CASE WHEN SUBSTR(" +
+            ProviderTableMeta.FILE_STORAGE_PATH + ",1,LENGTH(?3))=?3 THEN ?4||SUBSTR(" +
+            ProviderTableMeta.FILE_STORAGE_PATH + ",LENGTH(?3)+1) ELSE " +
+            ProviderTableMeta.FILE_STORAGE_PATH + " END WHERE " +
+            ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?5 AND " + ProviderTableMeta.FILE_PATH +
+            ">?2 AND " + ProviderTableMeta.FILE_PATH + "<?6";
+
+    private static final String SQL_CLEAR_STORAGE_PATH = "UPDATE " +
+            ProviderTableMeta.FILE_TABLE_NAME + " SET " + ProviderTableMeta.FILE_STORAGE_PATH +
+            "=NULL WHERE " + ProviderTableMeta._ID + "=?";
+
+    private static final String SQL_DELETE_BY_ID = "DELETE FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID + "=? AND " +
+            OWNER_WHERE;
+
+    private static final String SQL_DELETE_BY_ID_AND_PATH = SQL_DELETE_BY_ID + " AND " +
+            ProviderTableMeta.FILE_PATH + "=?";
+
+    private static final String SQL_WITHOUT_STORAGE_PATH = "SELECT " + ProviderTableMeta._ID +
+            ", " + ProviderTableMeta.FILE_PATH + ", " + ProviderTableMeta.FILE_ACCOUNT_OWNER +
+            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID +
+            ">? AND " + ProviderTableMeta.FILE_STORAGE_PATH + " IS NULL AND (" +
+            ProviderTableMeta.FILE_CONTENT_TYPE + " IS NULL OR " +
+            ProviderTableMeta.FILE_CONTENT_TYPE + "<>'DIR') ORDER BY " + ProviderTableMeta._ID +
+            " LIMIT ?";
+
+    private static final String SQL_SET_STORAGE_PATH = "UPDATE " +
+            ProviderTableMeta.FILE_TABLE_NAME + " SET " + ProviderTableMeta.FILE_STORAGE_PATH +
+            "=?, " + ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA + "=? WHERE " +
+            ProviderTableMeta._ID + "=? AND " + ProviderTableMeta.FILE_STORAGE_PATH + " IS NULL";
+
+    /** Files checked by {@link #repairStoragePaths()} in every page */
+    private static final int REPAIR_PAGE_SIZE = 500;
+
+    private static final String ONLY_FOLDERS_WHERE = " AND " +
+            ProviderTableMeta.FILE_IS_FOLDER + "=1";
+
+    /** Folders are listed first in every sort order */
+    private static final String FOLDERS_FIRST = ProviderTableMeta.FILE_IS_FOLDER + " DESC";
+
+    /** Paths accepted by getFolderChildren(); SQLite binds up to 999 arguments */
+    public static final int MAX_PATHS = 500;
+
+
+    /**
+     * Receives files read from the database, one after the other.
+     */
+    public interface FileHandler {
+
+        /**
+         * @return      'false' to stop reading.
+         */
+        boolean onFile(OCFile file);
+    }
+
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mDbHelper;
+
+    /**
+     * Accounts written by the transaction in course in the thread; null stands for writes
+     * that may touch any account.
+     */
+    private final ThreadLocal<Set<String>> mChanged = new ThreadLocal<Set<String>>() {
+        @Override
+        protected Set<String> initialValue() {
+            return new HashSet<String>();
+        }
+    };
+
+
+    public static synchronized FileDao getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FileDao(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private FileDao(Context context) {
+        mContext = context;
+        mDbHelper = FileContentProvider.DataBaseHelper.getInstance(context);
+    }
+
+
+    /**
+     * Starts a transaction in the calling thread; transactions can be nested.
+     *
+     * Observers are not notified about the writes done in it until the outermost transaction
+     * ends.
+     */
+    public void beginTransaction() {
+        mDbHelper.getWritableDatabase().beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        mDbHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.endTransaction();
+        Set<String> changed = mChanged.get();
+        if (!db.inTransaction() && !changed.isEmpty()) {
+            ContentResolver resolver = mContext.getContentResolver();
+            if (changed.contains(null)) {
+                resolver.notifyChange(ProviderTableMeta.CONTENT_URI, null);
+            } else {
+                for (String accountName : changed) {
+                    resolver.notifyChange(ProviderTableMeta.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(PARAM_ACCOUNT, accountName).build(), null);
+                }
+            }
+            changed.clear();
+        }
+    }
+
+
+    public OCFile getFileByPath(String accountName, String path) {
+        return readFile(SQL_FILE_BY_PATH, accountName, path);
+    }
+
+    public OCFile getFileById(String accountName, long id) {
+        return readFile(SQL_FILE_BY_ID, accountName, String.valueOf(id));
+    }
+
+    public OCFile getFileByLocalPath(String accountName, String localPath) {
+        return readFile(SQL_FILE_BY_LOCAL_PATH, accountName, localPath);
+    }
+
+
+    /**
+     * @return      Id of the file with the given remote path, or null if there is none.
+     */
+    public Long getFileId(String accountName, String path) {
+        SQLiteStatement statement =
+                mDbHelper.getReadableDatabase().compileStatement(SQL_ID_BY_PATH);
+        try {
+            return findIdByPath(statement, path, accountName);
+        } finally {
+            statement.close();
+        }
+    }
+
+    public boolean fileExists(String accountName, long id) {
+        SQLiteStatement statement =
+                mDbHelper.getReadableDatabase().compileStatement(SQL_COUNT_BY_ID);
+        try {
+            statement.bindLong(1, id);
+            statement.bindString(2, accountName);
+            return statement.simpleQueryForLong() > 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+
+    /**
+     * @return      Files contained in the folder with the given id, unsorted.
+     */
+    public Vector<OCFile> getFolderContent(String accountName, long folderId) {
+        Vector<OCFile> files = new Vector<OCFile>();
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(SQL_FOLDER_CONTENT,
+                new String[] { String.valueOf(folderId) });
+        try {
+            files.ensureCapacity(c.getCount());
+            FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+            while (c.moveToNext()) {
+                files.add(mapper.map(c));
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
+
+    /**
+     * Reads the files contained in a folder in the order they are listed, handing them to
+     * handler while the query is read, so that the first ones can be shown before the rest are
+     * read.
+     *
+     * @param onlyFolders   When 'true', files that are not folders are skipped.
+     * @param sortOrder     One of FileStorageUtils.SORT_NAME, SORT_DATE or SORT_SIZE; folders
+     *                      are read first with any of them. Each order is read from an index,
+     *                      see {@link FileContentProvider#createSortIndexes(SQLiteDatabase)}.
+     */
+    public void readFolderContent(String accountName, long folderId, boolean onlyFolders,
+                                  int sortOrder, boolean ascending, FileHandler handler) {
+        String sql = SQL_FOLDER_CONTENT + (onlyFolders ? ONLY_FOLDERS_WHERE : "") +
+                " ORDER BY " + getOrderBy(sortOrder, ascending);
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(sql,
+                new String[] { String.valueOf(folderId) });
+        try {
+            FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+            while (c.moveToNext() && handler.onFile(mapper.map(c))) {
+                // handled
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String getOrderBy(int sortOrder, boolean ascending) {
+        String direction = ascending ? " ASC" : " DESC";
+        String key;
+        if (sortOrder == FileStorageUtils.SORT_DATE) {
+            key = ProviderTableMeta.FILE_MODIFIED + direction + ", " +
+                    ProviderTableMeta.FILE_SORT_NAME;
+        } else if (sortOrder == FileStorageUtils.SORT_SIZE) {
+            key = ProviderTableMeta.FILE_CONTENT_LENGTH + direction + ", " +
+                    ProviderTableMeta.FILE_SORT_NAME;
+        } else {
+            key = ProviderTableMeta.FILE_SORT_NAME + direction;
+        }
+        return FOLDERS_FIRST + ", " + key + ", " + ProviderTableMeta._ID;
+    }
+
+
+    /**
+     * @return      Path sorting right after the paths of all the descendants of a folder, in the
+     *              BINARY collation of SQLite: the path of the folder with its trailing
+     *              separator replaced by the next character.
+     */
+    public static String getTreeEnd(String folderPath) {
+        return folderPath.substring(0, folderPath.length() - 1) +
+                (char) (OCFile.PATH_SEPARATOR.charAt(0) + 1);
+    }
+
+
+    /**
+     * @return      Files with a local copy in a folder or at any depth below it, in a single
+     *              range of the index by path.
+     */
+    public List<OCFile> getDownloadedFilesInTree(String accountName, String folderPath) {
+        List<OCFile> files = new ArrayList<OCFile>();
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(SQL_DOWNLOADED_IN_TREE,
+                new String[] { accountName, folderPath, getTreeEnd(folderPath) });
+        try {
+            FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+            while (c.moveToNext()) {
+                files.add(mapper.map(c));
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
+
+    /**
+     * @param paths     Remote paths of children of the folder, at most {@link #MAX_PATHS}.
+     * @return          Children of the folder with the given id with any of the given paths,
+     *                  by path.
+     */
+    public Map<String, OCFile> getFolderChildren(String accountName, long folderId,
+                                                 Collection<String> paths) {
+        return readByPaths(SQL_FOLDER_CONTENT, String.valueOf(folderId), paths);
+    }
+
+
+    /**
+     * @param paths     Remote paths of files, at most {@link #MAX_PATHS}.
+     * @return          Files of the account with any of the given paths, by path.
+     */
+    public Map<String, OCFile> getFilesByPath(String accountName, Collection<String> paths) {
+        return readByPaths(SELECT_FILES + OWNER_WHERE, accountName, paths);
+    }
+
+
+    /**
+     * Reads the files matching a query with a single argument and with any of the given paths.
+     */
+    private Map<String, OCFile> readByPaths(String query, String arg, Collection<String> paths) {
+        Map<String, OCFile> files = new HashMap<String, OCFile>(paths.size());
+        if (paths.isEmpty()) {
+            return files;
+        }
+        String[] args = new String[paths.size() + 1];
+        StringBuilder sql = new StringBuilder(query)
+                .append(" AND ").append(ProviderTableMeta.FILE_PATH).append(" IN (");
+        args[0] = arg;
+        int i = 1;
+        for (String path : paths) {
+            sql.append((i > 1) ? ",?" : "?");
+            args[i++] = path;
+        }
+        sql.append(")");
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(sql.toString(), args);
+        try {
+            FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+            while (c.moveToNext()) {
+                OCFile file = mapper.map(c);
+                files.put(file.getRemotePath(), file);
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
+
+    /**
+     * Reads a page of the children of a folder synchronized before a given time; pages follow
+     * the order of the ids.
+     *
+     * @param syncTime  Time of synchronization; only files with an older last synchronization
+     *                  of properties are read.
+     * @param afterId   Only files with a greater id are read; 0 for the first page.
+     * @param limit     Maximum number of files to read.
+     */
+    public List<OCFile> getFolderChildrenSyncedBefore(String accountName, long folderId,
+                                                     long syncTime, long afterId, int limit) {
+        List<OCFile> files = new ArrayList<OCFile>();
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(SQL_CHILDREN_SYNCED_BEFORE,
+                new String[] { String.valueOf(folderId), String.valueOf(syncTime),
+                        String.valueOf(afterId), String.valueOf(limit) });
+        try {
+            FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+            while (c.moveToNext()) {
+                files.add(mapper.map(c));
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
+
+    /**
+     * Inserts or updates a file.
+     *
+     * @param values    Values of the columns to write; besides the id.
+     * @param id        Id of the file to update; if not positive, the file is inserted, unless
+     *                  there is a file with the same path already.
+     * @return          Id of the saved file.
+     */
+    public long saveFile(ContentValues values, long id) {
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        beginTransaction();
+        try {
+            if (id <= 0) {
+                // saved meanwhile by another thread?
+                Long existingId = getFileId(
+                        values.getAsString(ProviderTableMeta.FILE_ACCOUNT_OWNER),
+                        values.getAsString(ProviderTableMeta.FILE_PATH)
+                );
+                id = (existingId != null) ? existingId : -1;
+            }
+            id = writeFile(db, values, id, statements, aggregates);
+            aggregates.apply();
+            mChanged.get().add(values.getAsString(ProviderTableMeta.FILE_ACCOUNT_OWNER));
+            setTransactionSuccessful();
+
+        } finally {
+            endTransaction();
+            closeAll(statements);
+        }
+        return id;
+    }
+
+
+    /**
+     * Inserts or updates the list of files contained in a folder, removes the files that are not
+     * in the folder anymore and updates the metadata of the folder itself, all of it in a single
+     * transaction.
+     *
+     * Existing children are found with a single query by parent folder; files not found this way
+     * are looked up by path and id, and then updated or inserted with statements compiled once
+     * for every set of columns.
+     *
+     * @param folderValues      New values of the folder, or null to keep them; if they include
+     *                          the size, it is taken as reported by the server, and the
+     *                          changes of the children are not added to it.
+     * @param filesValues       Values of the children to save; an id is only used to find
+     *                          renamed files, and is removed from the values.
+     * @param removedFileIds    Ids of the files to remove, or null.
+     * @param removedFolderIds  Ids of the folders to remove with all their descendants, or null.
+     * @return                  Ids of the saved files, in the same order as 'filesValues'.
+     */
+    public long[] saveFolder(String accountName, long folderId, ContentValues folderValues,
+                             List<ContentValues> filesValues, long[] removedFileIds,
+                             long[] removedFolderIds) {
+
+        long[] fileIds;
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        beginTransaction();
+        try {
+            // 1. current children of the folder, in a single query
+            Map<String, Long> existingIds = new HashMap<String, Long>();
+            if (!filesValues.isEmpty()) {
+                Cursor c = db.rawQuery(SQL_CHILDREN,
+                        new String[] { String.valueOf(folderId), accountName });
+                try {
+                    while (c.moveToNext()) {
+                        existingIds.put(c.getString(1), c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            // 2. insert or update every child
+            fileIds = writeChildren(db, accountName, existingIds, filesValues, statements,
+                    aggregates);
+
+            // 3. remove files not in the folder anymore
+            if (removedFileIds != null) {
+                for (long id : removedFileIds) {
+                    deleteFile(db, id, accountName, aggregates);
+                }
+            }
+            if (removedFolderIds != null) {
+                for (long id : removedFolderIds) {
+                    deleteTree(db, id, accountName, aggregates);
+                }
+            }
+
+            // 4. metadata of the folder
+            if (folderValues != null) {
+                writeFile(db, folderValues, folderId, statements, aggregates);
+            }
+
+            // 5. size and descendant count of the folder and its ancestors
+            aggregates.apply();
+
+            mChanged.get().add(accountName);
+            setTransactionSuccessful();
+
+        } finally {
+            endTransaction();
+            closeAll(statements);
+        }
+        return fileIds;
+    }
+
+
+    /**
+     * Inserts or updates a part of the children of a folder in a single transaction, leaving
+     * the rest of children and the folder untouched.
+     *
+     * Every file is looked up by path, through the index; an id is only used to find renamed
+     * files, and is removed from the values.
+     *
+     * @return      Ids of the saved files, in the same order as 'filesValues'.
+     */
+    public long[] saveChildren(String accountName, List<ContentValues> filesValues) {
+        long[] fileIds;
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        beginTransaction();
+        try {
+            fileIds = writeChildren(db, accountName, null, filesValues, statements, aggregates);
+            aggregates.apply();
+            mChanged.get().add(accountName);
+            setTransactionSuccessful();
+
+        } finally {
+            endTransaction();
+            closeAll(statements);
+        }
+        return fileIds;
+    }
+
+
+    /**
+     * Applies a set of changes spread over the tree of files of an account, in a single
+     * transaction.
+     *
+     * Removed paths are deleted first, folders with all their descendants. Then every file in
+     * 'filesValues' is inserted or updated, looked up by path; the parent of every file is
+     * found by path too, so new folders must precede their contents, as they do when sorted by
+     * path. Files whose parent folder is not known are skipped.
+     *
+     * @param filesValues   Values of the files to save, sorted by path; ids are ignored, and
+     *                      removed from the values.
+     * @param removedPaths  Remote paths of the files to remove; folders may lack the trailing
+     *                      separator.
+     * @return              Ids of the saved files, in the same order as 'filesValues', or -1
+     *                      for the skipped ones.
+     */
+    public long[] saveTree(String accountName, List<ContentValues> filesValues,
+                           Collection<String> removedPaths) {
+        long[] fileIds = new long[filesValues.size()];
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        Map<String, Long> folderIds = new HashMap<String, Long>();
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement idByPath = db.compileStatement(SQL_ID_BY_PATH);
+        FolderAggregates aggregates = new FolderAggregates(db);
+        beginTransaction();
+        try {
+            // 1. removed files
+            for (String path : removedPaths) {
+                String folderPath = path.endsWith(OCFile.PATH_SEPARATOR) ? path :
+                        path + OCFile.PATH_SEPARATOR;
+                Long id = findIdByPath(idByPath, folderPath, accountName);
+                if (id != null) {
+                    deleteTree(db, id, accountName, aggregates);
+                } else {
+                    id = findIdByPath(idByPath, path, accountName);
+                    if (id != null) {
+                        deleteFile(db, id, accountName, aggregates);
+                    }
+                }
+            }
+
+            // 2. new and changed files, parents first
+            int i = 0;
+            for (ContentValues values : filesValues) {
+                String path = values.getAsString(ProviderTableMeta.FILE_PATH);
+                String parentPath = getParentPath(path);
+                Long parentId = folderIds.get(parentPath);
+                if (parentId == null) {
+                    parentId = findIdByPath(idByPath, parentPath, accountName);
+                }
+                if (parentId == null) {
+                    fileIds[i++] = -1;
+                    continue;
+                }
+                values.put(ProviderTableMeta.FILE_PARENT, parentId);
+                values.remove(ProviderTableMeta._ID);
+                Long id = findIdByPath(idByPath, path, accountName);
+                long savedId = writeFile(db, values, (id != null) ? id : -1, statements,
+                        aggregates);
+                if (path.endsWith(OCFile.PATH_SEPARATOR)) {
+                    folderIds.put(path, savedId);
+                }
+                fileIds[i++] = savedId;
+            }
+
+            // 3. size and descendant count of the ancestors of all of them
+            aggregates.apply();
+
+            mChanged.get().add(accountName);
+            setTransactionSuccessful();
+
+        } finally {
+            endTransaction();
+            idByPath.close();
+            closeAll(statements);
+        }
+        return fileIds;
+    }
+
+
+    /**
+     * Removes a file, if its id and remote path still match.
+     *
+     * @return      'true' if the file was removed.
+     */
+    public boolean removeFile(String accountName, long id, String remotePath) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        int count;
+        beginTransaction();
+        try {
+            long[] contribution = aggregates.readContribution(id);
+            count = execute(db, SQL_DELETE_BY_ID_AND_PATH, String.valueOf(id), accountName,
+                    remotePath);
+            if (count > 0) {
+                aggregates.onRemoved(id, contribution);
+                aggregates.apply();
+                mChanged.get().add(accountName);
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return count > 0;
+    }
+
+
+    /**
+     * Removes a folder and all its descendants.
+     *
+     * @return      'true' if the folder was removed.
+     */
+    public boolean removeFolder(String accountName, long id) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        int count;
+        beginTransaction();
+        try {
+            count = deleteTree(db, id, accountName, aggregates);
+            aggregates.apply();
+            if (count > 0) {
+                mChanged.get().add(accountName);
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return count > 0;
+    }
+
+
+    /**
+     * Moves a file, or a folder with all its descendants, in a single transaction; the paths of
+     * the descendants are rewritten with one statement over their range of paths.
+     *
+     * @param oldPath           Current remote path of the file.
+     * @param values            New values of the moved file itself, with its new path and
+     *                          parent; the size and descendant count move with it to the new
+     *                          ancestors.
+     * @param oldStoragePath    Local path of the file for the descendants' local paths starting
+     *                          with it to be moved to 'newStoragePath'.
+     */
+    public void moveTree(String accountName, long id, String oldPath, ContentValues values,
+                         String oldStoragePath, String newStoragePath) {
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FolderAggregates aggregates = new FolderAggregates(db);
+        beginTransaction();
+        try {
+            if (oldPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                execute(db, SQL_MOVE_DESCENDANTS,
+                        values.getAsString(ProviderTableMeta.FILE_PATH), oldPath,
+                        oldStoragePath, newStoragePath, accountName, getTreeEnd(oldPath));
+            }
+            writeFile(db, values, id, statements, aggregates);
+            aggregates.apply();
+            mChanged.get().add(accountName);
+            setTransactionSuccessful();
+
+        } finally {
+            endTransaction();
+            closeAll(statements);
+        }
+    }
+
+
+    /**
+     * Unbinds files from their local copies, in a single transaction.
+     */
+    public void clearStoragePaths(String accountName, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_CLEAR_STORAGE_PATH);
+        beginTransaction();
+        try {
+            for (long id : ids) {
+                update.bindLong(1, id);
+                update.executeUpdateDelete();
+            }
+            mChanged.get().add(accountName);
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+            update.close();
+        }
+    }
+
+
+    /**
+     * Deletes a file, taking its size and descendant count out of its ancestors.
+     *
+     * @return      Number of rows deleted.
+     */
+    private int deleteFile(SQLiteDatabase db, long id, String accountName,
+                           FolderAggregates aggregates) {
+        long[] contribution = aggregates.readContribution(id);
+        int count = execute(db, SQL_DELETE_BY_ID, String.valueOf(id), accountName);
+        if (count > 0) {
+            aggregates.onRemoved(id, contribution);
+        }
+        return count;
+    }
+
+
+    /**
+     * Deletes a folder with all its descendants, taking its size and descendant count out of its
+     * ancestors; the rows below it go with it, so their own aggregates don't need updates.
+     *
+     * @return      Number of rows deleted, or 0 if the folder itself was not deleted.
+     */
+    private int deleteTree(SQLiteDatabase db, long folderId, String accountName,
+                           FolderAggregates aggregates) {
+        long[] contribution = aggregates.readContribution(folderId);
+        int count = deleteFolder(db, folderId, accountName);
+        if (count > 0) {
+            aggregates.onRemoved(folderId, contribution);
+        }
+        return count;
+    }
+
+
+    /**
+     * Deletes a folder and all its descendants with a single statement over their range of
+     * paths.
+     *
+     * @return      Number of rows deleted, or 0 if the folder does not exist.
+     */
+    private int deleteFolder(SQLiteDatabase db, long folderId, String accountName) {
+        SQLiteStatement pathById = db.compileStatement(SQL_PATH_BY_ID);
+        String path;
+        try {
+            pathById.bindLong(1, folderId);
+            pathById.bindString(2, accountName);
+            path = pathById.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return 0;   // no row
+        } finally {
+            pathById.close();
+        }
+        if (!path.endsWith(OCFile.PATH_SEPARATOR)) {
+            return execute(db, SQL_DELETE_BY_ID, String.valueOf(folderId), accountName);
+        }
+        return execute(db, SQL_DELETE_TREE, accountName, path, getTreeEnd(path));
+    }
+
+
+    /**
+     * Binds the files without local path to the local copies found in their default location,
+     * as saved by older versions of the app.
+     *
+     * The files are read and looked for in the file system by pages, out of any transaction;
+     * only the files found are updated, a page at a time.
+     *
+     * @return      Number of files bound to a local copy.
+     */
+    public int repairStoragePaths() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int repaired = 0;
+        long afterId = 0;
+        List<Long> ids = new ArrayList<Long>();
+        List<File> localFiles = new ArrayList<File>();
+        while (true) {
+            int read = 0;
+            Cursor c = db.rawQuery(SQL_WITHOUT_STORAGE_PATH,
+                    new String[] { String.valueOf(afterId), String.valueOf(REPAIR_PAGE_SIZE) });
+            try {
+                while (c.moveToNext()) {
+                    read++;
+                    afterId = c.getLong(0);
+                    File localFile = new File(FileStorageUtils.getDefaultSavePathFor(
+                            c.getString(2), new OCFile(c.getString(1))));
+                    if (localFile.exists()) {
+                        ids.add(afterId);
+                        localFiles.add(localFile);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (read == 0) {
+                break;
+            }
+
+            if (!ids.isEmpty()) {
+                SQLiteStatement update = db.compileStatement(SQL_SET_STORAGE_PATH);
+                beginTransaction();
+                try {
+                    for (int i = 0; i < ids.size(); i++) {
+                        update.bindString(1, localFiles.get(i).getAbsolutePath());
+                        update.bindLong(2, localFiles.get(i).lastModified());
+                        update.bindLong(3, ids.get(i));
+                        repaired += update.executeUpdateDelete();
+                    }
+                    mChanged.get().add(null);
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                    update.close();
+                }
+                ids.clear();
+                localFiles.clear();
+            }
+        }
+        return repaired;
+    }
+
+
+    /**
+     * Inserts or updates every file in 'filesValues'.
+     *
+     * @param existingIds   Ids of files known to exist, by path, or null; files not found here
+     *                      are looked up by path and id.
+     * @return              Ids of the written files, in the same order as 'filesValues'.
+     */
+    private long[] writeChildren(SQLiteDatabase db, String accountName,
+                                 Map<String, Long> existingIds, List<ContentValues> filesValues,
+                                 Map<String, SQLiteStatement> statements,
+                                 FolderAggregates aggregates) {
+        long[] fileIds = new long[filesValues.size()];
+        SQLiteStatement idByPath = db.compileStatement(SQL_ID_BY_PATH);
+        SQLiteStatement countById = db.compileStatement(SQL_COUNT_BY_ID);
+        try {
+            int i = 0;
+            for (ContentValues values : filesValues) {
+                String path = values.getAsString(ProviderTableMeta.FILE_PATH);
+                Long id = (existingIds != null) ? existingIds.get(path) : null;
+                if (id == null) {
+                    id = findIdByPath(idByPath, path, accountName);
+                }
+                if (id == null) {
+                    // maybe renamed
+                    Long givenId = values.getAsLong(ProviderTableMeta._ID);
+                    if (givenId != null && givenId > 0) {
+                        countById.bindLong(1, givenId);
+                        countById.bindString(2, accountName);
+                        if (countById.simpleQueryForLong() > 0) {
+                            id = givenId;
+                        }
+                    }
+                }
+                values.remove(ProviderTableMeta._ID);
+                fileIds[i++] = writeFile(db, values, (id != null) ? id : -1, statements,
+                        aggregates);
+            }
+        } finally {
+            idByPath.close();
+            countById.close();
+        }
+        return fileIds;
+    }
+
+
+    /**
+     * @return      Remote path of the folder containing the given path, with the trailing
+     *              separator.
+     */
+    private static String getParentPath(String path) {
+        int end = path.endsWith(OCFile.PATH_SEPARATOR) ? path.length() - 1 : path.length();
+        return path.substring(0, path.lastIndexOf(OCFile.PATH_SEPARATOR, end - 1) + 1);
+    }
+
+
+    private OCFile readFile(String sql, String accountName, String value) {
+        Cursor c = mDbHelper.getReadableDatabase().rawQuery(sql,
+                new String[] { value, accountName });
+        try {
+            return c.moveToFirst() ? FileCursorMapper.forCursor(c).map(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+
+    /**
+     * Updates the file with the given id, or inserts a new one if the id is not positive.
+     *
+     * Changes of size or parent folder are recorded in 'aggregates', to be applied to the
+     * ancestors before the transaction finishes.
+     *
+     * @return      Id of the written file.
+     */
+    private long writeFile(SQLiteDatabase db, ContentValues values, long id,
+                           Map<String, SQLiteStatement> statements,
+                           FolderAggregates aggregates) {
+        FileSortKeys.putSortKeys(values);
+        if (id > 0) {
+            boolean aggregated = values.containsKey(ProviderTableMeta.FILE_PARENT) ||
+                    values.containsKey(ProviderTableMeta.FILE_CONTENT_LENGTH);
+            long[] before = aggregated ? aggregates.readContribution(id) : null;
+            SQLiteStatement update = getUpdateStatement(db, values, statements);
+            int index = bindValues(update, values);
+            update.bindLong(index, id);
+            if (update.executeUpdateDelete() > 0 && aggregated) {
+                aggregates.onWritten(id, before, values);
+            }
+            return id;
+
+        } else {
+            SQLiteStatement insert = getInsertStatement(db, values, statements);
+            bindValues(insert, values);
+            long newId = insert.executeInsert();
+            if (newId <= 0) {
+                throw new SQLException("ERROR inserting " +
+                        values.getAsString(ProviderTableMeta.FILE_PATH));
+            }
+            aggregates.onWritten(newId, null, values);
+            return newId;
+        }
+    }
+
+    private static Long findIdByPath(SQLiteStatement idByPath, String path, String accountName) {
+        idByPath.bindString(1, path);
+        idByPath.bindString(2, accountName);
+        try {
+            return idByPath.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;    // no row
+        }
+    }
+
+    private static int execute(SQLiteDatabase db, String sql, String... args) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(args);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Compiled UPDATE statement for the columns in 'values', reused for every set of values
+     * with the same columns. The id of the row to update is the last argument to bind.
+     */
+    private static SQLiteStatement getUpdateStatement(SQLiteDatabase db, ContentValues values,
+                                                      Map<String, SQLiteStatement> statements) {
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        String key = "UPDATE " + columns;
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ")
+                    .append(ProviderTableMeta.FILE_TABLE_NAME).append(" SET ");
+            String separator = "";
+            for (String column : columns) {
+                sql.append(separator).append(column).append("=?");
+                separator = ", ";
+            }
+            sql.append(" WHERE ").append(ProviderTableMeta._ID).append("=?");
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Compiled INSERT statement for the columns in 'values', reused for every set of values
+     * with the same columns.
+     */
+    private static SQLiteStatement getInsertStatement(SQLiteDatabase db, ContentValues values,
+                                                      Map<String, SQLiteStatement> statements) {
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        String key = "INSERT " + columns;
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                    .append(ProviderTableMeta.FILE_TABLE_NAME).append(" (");
+            StringBuilder params = new StringBuilder();
+            String separator = "";
+            for (String column : columns) {
+                sql.append(separator).append(column);
+                params.append(separator).append("?");
+                separator = ", ";
+            }
+            sql.append(") VALUES (").append(params).append(")");
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Binds 'values' to a statement got from {@link #getUpdateStatement} or
+     * {@link #getInsertStatement}, in the order of their columns.
+     *
+     * @return      Index of the next argument to bind in the statement.
+     */
+    private static int bindValues(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        int index = 1;
+        for (String column : new TreeSet<String>(values.keySet())) {
+            Object value = values.get(column);
+            if (value instanceof Boolean) {
+                value = ((Boolean) value) ? 1 : 0;
+            }
+            DatabaseUtils.bindObjectToProgram(statement, index++, value);
+        }
+        return index;
+    }
+
+    private static void closeAll(Map<String, SQLiteStatement> statements) {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import android.accounts.Account;
@@ -33,7 +34,6 @@ import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.content.OperationApplicationException;
@@ -54,10 +54,16 @@ public class FileDataStorageManager {
 
     public static final int ROOT_PARENT_ID = 0;
 
+    /** Files removed in every transaction by removeFolderChildrenSyncedBefore() */
+    private static final int REMOVAL_PAGE_SIZE = 500;
+
     private ContentResolver mContentResolver;
     private ContentProviderClient mContentProviderClient;
     private Account mAccount;
 
+    /** Direct access to the table of files; the provider is used for the rest */
+    private final FileDao mDao = FileDao.getInstance(MainApp.getAppContext());
+
     private static String TAG = FileDataStorageManager.class.getSimpleName();
 
     
@@ -97,52 +103,55 @@ public class FileDataStorageManager {
     public ContentProviderClient getContentProviderClient() {
         return mContentProviderClient;
     }
+
+    /**
+     * @return      In-memory cache of file metadata for the current account.
+     */
+    public FileMetadataCache getCache() {
+        return FileMetadataCache.getInstance(mAccount);
+    }
     
 
     public OCFile getFileByPath(String path) {
-        Cursor c = getCursorForValue(ProviderTableMeta.FILE_PATH, path);
-        OCFile file = null;
-        if (c.moveToFirst()) {
-            file = createFileInstance(c);
+        FileMetadataCache cache = getCache();
+        OCFile file = cache.getFileByPath(path);
+        if (file != null) {
+            return file;
         }
-        c.close();
+        int generation = cache.getGeneration();
+        file = mDao.getFileByPath(mAccount.name, path);
         if (file == null && OCFile.ROOT_PATH.equals(path)) {
             return createRootDir(); // root should always exist
         }
+        if (file != null) {
+            cache.putFile(file, generation);
+        }
         return file;
     }
 
 
     public OCFile getFileById(long id) {
-        Cursor c = getCursorForValue(ProviderTableMeta._ID, String.valueOf(id));
-        OCFile file = null;
-        if (c.moveToFirst()) {
-            file = createFileInstance(c);
-        }
-        c.close();
-        return file;
+        return mDao.getFileById(mAccount.name, id);
     }
 
     public OCFile getFileByLocalPath(String path) {
-        Cursor c = getCursorForValue(ProviderTableMeta.FILE_STORAGE_PATH, path);
-        OCFile file = null;
-        if (c.moveToFirst()) {
-            file = createFileInstance(c);
-        }
-        c.close();
-        return file;
+        return mDao.getFileByLocalPath(mAccount.name, path);
     }
 
     public boolean fileExists(long id) {
-        return fileExists(ProviderTableMeta._ID, String.valueOf(id));
+        return mDao.fileExists(mAccount.name, id);
     }
 
     public boolean fileExists(String path) {
-        return fileExists(ProviderTableMeta.FILE_PATH, path);
+        return mDao.getFileId(mAccount.name, path) != null;
     }
 
     
-    public Vector<OCFile> getFolderContent(OCFile f/*, boolean onlyOnDevice*/) {
+    /**
+     * @return      Files in the folder; they are not shared with the cache of metadata, and may
+     *              be modified.
+     */
+    public List<OCFile> getFolderContent(OCFile f/*, boolean onlyOnDevice*/) {
         if (f != null && f.isFolder() && f.getFileId() != -1) {
             // TODO Enable when "On Device" is recovered ?
             return getFolderContent(f.getFileId()/*, onlyOnDevice*/);
@@ -152,13 +161,28 @@ public class FileDataStorageManager {
         }
     }
     
+
+    /**
+     * Reads the content of a folder sorted in the database, handing every file to handler while
+     * the rest are read.
+     *
+     * @see FileDao#readFolderContent(String, long, boolean, int, boolean, FileDao.FileHandler)
+     */
+    public void readFolderContent(OCFile folder, boolean onlyFolders, int sortOrder,
+                                  boolean ascending, FileDao.FileHandler handler) {
+        if (folder != null && folder.isFolder() && folder.getFileId() != -1) {
+            mDao.readFolderContent(mAccount.name, folder.getFileId(), onlyFolders, sortOrder,
+                    ascending, handler);
+        }
+    }
+
     
     public Vector<OCFile> getFolderImages(OCFile folder/*, boolean onlyOnDevice*/) {
         Vector<OCFile> ret = new Vector<OCFile>(); 
         if (folder != null) {
             // TODO better implementation, filtering in the access to database instead of here
             // TODO Enable when "On Device" is recovered ?
-            Vector<OCFile> tmp = getFolderContent(folder/*, onlyOnDevice*/);
+            List<OCFile> tmp = getFolderContent(folder/*, onlyOnDevice*/);
             OCFile current = null; 
             for (int i=0; i<tmp.size(); i++) {
                 current = tmp.get(i);
@@ -179,7 +203,10 @@ public class FileDataStorageManager {
             file.getModificationTimestampAtLastSyncForData()
         );
         cv.put(ProviderTableMeta.FILE_CREATION, file.getCreationTimestamp());
-        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
+        if (!file.isFolder()) {
+            // size of folders is kept by FileDao
+            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
+        }
         cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, file.getMimetype());
         cv.put(ProviderTableMeta.FILE_NAME, file.getFileName());
         //if (file.getParentId() != DataStorageManager.ROOT_PARENT_ID)
@@ -192,6 +219,7 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
         cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
         cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
+        cv.put(ProviderTableMeta.FILE_ETAG_IN_SERVER, file.getEtagInServer());
         cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
         cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
         cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
@@ -199,11 +227,11 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
         cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
         
+        OCFile oldFile = null;
         boolean sameRemotePath = fileExists(file.getRemotePath());
         if (sameRemotePath ||
                 fileExists(file.getFileId())        ) {  // for renamed files
 
-            OCFile oldFile = null;
             if (sameRemotePath) {
                 oldFile = getFileByPath(file.getRemotePath());
                 file.setFileId(oldFile.getFileId());
@@ -212,48 +240,17 @@ public class FileDataStorageManager {
             }
 
             overriden = true;
-            if (getContentResolver() != null) {
-                getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv,
-                        ProviderTableMeta._ID + "=?",
-                        new String[] { String.valueOf(file.getFileId()) });
-            } else {
-                try {
-                    getContentProviderClient().update(ProviderTableMeta.CONTENT_URI,
-                            cv, ProviderTableMeta._ID + "=?",
-                            new String[] { String.valueOf(file.getFileId()) });
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG,
-                            "Fail to insert insert file to database "
-                                    + e.getMessage());
-                }
-            }
+            mDao.saveFile(cv, file.getFileId());
+
         } else {
-            Uri result_uri = null;
-            if (getContentResolver() != null) {
-                result_uri = getContentResolver().insert(
-                        ProviderTableMeta.CONTENT_URI_FILE, cv);
-            } else {
-                try {
-                    result_uri = getContentProviderClient().insert(
-                            ProviderTableMeta.CONTENT_URI_FILE, cv);
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG,
-                            "Fail to insert insert file to database "
-                                    + e.getMessage());
-                }
-            }
-            if (result_uri != null) {
-                long new_id = Long.parseLong(result_uri.getPathSegments()
-                        .get(1));
-                file.setFileId(new_id);
-            }            
+            file.setFileId(mDao.saveFile(cv, -1));
         }
 
-//        if (file.isFolder()) {
-//            updateFolderSize(file.getFileId());
-//        } else {
-//            updateFolderSize(file.getParentId());
-//        }
+        FileMetadataCache cache = getCache();
+        cache.invalidateFile(file);
+        if (oldFile != null && !oldFile.getRemotePath().equals(file.getRemotePath())) {
+            cache.invalidateFile(oldFile);  // renamed
+        }
         
         return overriden;
     }
@@ -276,90 +273,20 @@ public class FileDataStorageManager {
         Log_OC.d(TAG,  "Saving folder " + folder.getRemotePath() + " with " + updatedFiles.size() 
                 + " children and " + filesToRemove.size() + " files to remove");
 
-        ArrayList<ContentProviderOperation> operations = 
-                new ArrayList<ContentProviderOperation>(updatedFiles.size());
+        ArrayList<ContentValues> filesValues = new ArrayList<ContentValues>(updatedFiles.size());
 
-        // prepare operations to insert or update files to save in the given folder
+        // prepare values to insert or update files to save in the given folder; the provider
+        // decides if every file is new or not
         for (OCFile file : updatedFiles) {
-            ContentValues cv = new ContentValues();
-            cv.put(ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
-            cv.put(
-                ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, 
-                file.getModificationTimestampAtLastSyncForData()
-            );
-            cv.put(ProviderTableMeta.FILE_CREATION, file.getCreationTimestamp());
-            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
-            cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, file.getMimetype());
-            cv.put(ProviderTableMeta.FILE_NAME, file.getFileName());
-            //cv.put(ProviderTableMeta.FILE_PARENT, file.getParentId());
+            ContentValues cv = getFileValues(file);
             cv.put(ProviderTableMeta.FILE_PARENT, folder.getFileId());
-            cv.put(ProviderTableMeta.FILE_PATH, file.getRemotePath());
-            if (!file.isFolder()) {
-                cv.put(ProviderTableMeta.FILE_STORAGE_PATH, file.getStoragePath());
-            }
-            cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, mAccount.name);
-            cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
-            cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
-            cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
-            cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
-            cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
-            cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
-            cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
-            cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
-            cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
-            cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
-
-            boolean existsByPath = fileExists(file.getRemotePath());
-            if (existsByPath || fileExists(file.getFileId())) {
-                // updating an existing file
-                operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).
-                        withSelection(  ProviderTableMeta._ID + "=?", 
-                                new String[] { String.valueOf(file.getFileId()) })
-                                .build());
-
-            } else {
-                // adding a new file
-                operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).build());
-            }
+            filesValues.add(cv);
         }
         
-        // prepare operations to remove files in the given folder
-        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" + " AND " + 
-                ProviderTableMeta.FILE_PATH + "=?";
-        String [] whereArgs = null;
-        for (OCFile file : filesToRemove) {
-            if (file.getParentId() == folder.getFileId()) {
-                whereArgs = new String[]{mAccount.name, file.getRemotePath()};
-                //Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_FILE, "" + file.getFileId());
-                if (file.isFolder()) {
-                    operations.add(ContentProviderOperation.newDelete(
-                            ContentUris.withAppendedId(
-                                    ProviderTableMeta.CONTENT_URI_DIR, file.getFileId()
-                            )
-                    ).withSelection(where, whereArgs).build());
-                    
-                    File localFolder = 
-                            new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
-                    if (localFolder.exists()) {
-                        removeLocalFolder(localFolder);
-                    }
-                } else {
-                    operations.add(ContentProviderOperation.newDelete(
-                            ContentUris.withAppendedId(
-                                    ProviderTableMeta.CONTENT_URI_FILE, file.getFileId()
-                            )
-                    ).withSelection(where, whereArgs).build());
-                    
-                    if (file.isDown()) {
-                        String path = file.getStoragePath();
-                        new File(path).delete();
-                        triggerMediaScan(path); // notify MediaScanner about removed file
-                    }
-                }
-            }
-        }
+        // prepare ids of files to remove in the given folder
+        ArrayList<Long> removedFileIds = new ArrayList<Long>();
+        ArrayList<Long> removedFolderIds = new ArrayList<Long>();
+        prepareRemoval(folder, filesToRemove, removedFileIds, removedFolderIds);
         
         // update metadata of folder
         ContentValues cv = new ContentValues();
@@ -369,7 +296,10 @@ public class FileDataStorageManager {
             folder.getModificationTimestampAtLastSyncForData()
         );
         cv.put(ProviderTableMeta.FILE_CREATION, folder.getCreationTimestamp());
-        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);
+        if (folder.getFileLength() >= 0) {
+            // reported by the server; otherwise, added up from the children by FileDao
+            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, folder.getFileLength());
+        }
         cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, folder.getMimetype());
         cv.put(ProviderTableMeta.FILE_NAME, folder.getFileName());
         cv.put(ProviderTableMeta.FILE_PARENT, folder.getParentId());
@@ -383,88 +313,262 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, folder.getPublicLink());
         cv.put(ProviderTableMeta.FILE_PERMISSIONS, folder.getPermissions());
         cv.put(ProviderTableMeta.FILE_REMOTE_ID, folder.getRemoteId());
-        
-        operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                withValues(cv).
-                withSelection(  ProviderTableMeta._ID + "=?", 
-                        new String[] { String.valueOf(folder.getFileId()) })
-                        .build());
 
-        // apply operations in batch
-        ContentProviderResult[] results = null;
-        Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
-        try {
-            if (getContentResolver() != null) {
-                results = getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+        // save everything in a single transaction
+        long[] ids = mDao.saveFolder(mAccount.name, folder.getFileId(), cv, filesValues,
+                toArray(removedFileIds), toArray(removedFolderIds));
+
+        // update ids in file objects
+        Iterator<OCFile> filesIt = updatedFiles.iterator();
+        for (int i=0; i<ids.length && filesIt.hasNext(); i++) {
+            filesIt.next().setFileId(ids[i]);
+        }
 
+        // drop stale metadata from the cache
+        FileMetadataCache cache = getCache();
+        if (removedFolderIds.size() > 0) {
+            cache.clear();  // descendants of removed folders are gone too
+        } else {
+            cache.invalidateFile(folder);
+            cache.invalidateFolder(folder.getFileId());
+            for (OCFile file : updatedFiles) {
+                cache.invalidateFile(file);
+            }
+            for (OCFile file : filesToRemove) {
+                cache.invalidateFile(file);
+            }
+        }
+    }
+
+
+    /**
+     * Inserts or updates a part of the files contained in a folder, in a single transaction,
+     * leaving the rest of files and the folder itself untouched.
+     *
+     * Grants that the ids of the saved files are updated.
+     *
+     * @param folder        Folder containing the files.
+     * @param updatedFiles  Files to save.
+     */
+    public void saveFolderChildren(OCFile folder, List<OCFile> updatedFiles) {
+        ArrayList<ContentValues> filesValues = new ArrayList<ContentValues>(updatedFiles.size());
+        for (OCFile file : updatedFiles) {
+            ContentValues cv = getFileValues(file);
+            cv.put(ProviderTableMeta.FILE_PARENT, folder.getFileId());
+            filesValues.add(cv);
+        }
+        long[] ids = mDao.saveChildren(mAccount.name, filesValues);
+
+        FileMetadataCache cache = getCache();
+        cache.invalidateFolder(folder.getFileId());
+        for (int i = 0; i < ids.length; i++) {
+            OCFile file = updatedFiles.get(i);
+            file.setFileId(ids[i]);
+            cache.invalidateFile(file);
+        }
+    }
+
+
+    /**
+     * @param folder    Folder containing the files.
+     * @param paths     Remote paths of the files to read, at most {@link FileDao#MAX_PATHS}.
+     * @return          Files in the folder with any of the given paths, by path.
+     */
+    public Map<String, OCFile> getFolderChildren(OCFile folder, Collection<String> paths) {
+        return mDao.getFolderChildren(mAccount.name, folder.getFileId(), paths);
+    }
+
+
+    /**
+     * Removes the files contained in a folder that were not synchronized since the given time,
+     * with their local copies, a page at a time.
+     *
+     * @param folder    Folder containing the files.
+     * @param syncTime  Time of the synchronization in course; files saved by it are kept.
+     * @return          Number of files removed.
+     */
+    public int removeFolderChildrenSyncedBefore(OCFile folder, long syncTime) {
+        int removed = 0;
+        long afterId = 0;
+        List<OCFile> page;
+        ArrayList<Long> removedFileIds = new ArrayList<Long>();
+        ArrayList<Long> removedFolderIds = new ArrayList<Long>();
+        do {
+            page = mDao.getFolderChildrenSyncedBefore(mAccount.name, folder.getFileId(),
+                    syncTime, afterId, REMOVAL_PAGE_SIZE);
+            if (page.isEmpty()) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).getFileId();
+            prepareRemoval(folder, page, removedFileIds, removedFolderIds);
+            mDao.saveFolder(mAccount.name, folder.getFileId(), null,
+                    Collections.<ContentValues>emptyList(), toArray(removedFileIds),
+                    toArray(removedFolderIds));
+            removed += removedFileIds.size() + removedFolderIds.size();
+
+            FileMetadataCache cache = getCache();
+            if (removedFolderIds.size() > 0) {
+                cache.clear();  // descendants of removed folders are gone too
             } else {
-                results = getContentProviderClient().applyBatch(operations);
+                cache.invalidateFolder(folder.getFileId());
+                for (OCFile file : page) {
+                    cache.invalidateFile(file);
+                }
             }
+            removedFileIds.clear();
+            removedFolderIds.clear();
+
+        } while (page.size() == REMOVAL_PAGE_SIZE);
+        return removed;
+    }
 
-        } catch (OperationApplicationException e) {
-            Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
 
-        } catch (RemoteException e) {
-            Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
+    /**
+     * Saves a set of changes spread over the tree of files of the account, in a single
+     * transaction, and removes the local copies of the removed files.
+     *
+     * Grants that the ids of the saved files are updated; files whose parent folder is not 
+     * known are not saved, and keep their id.
+     *
+     * @param updatedFiles  New and changed files, sorted by path, so that new folders precede 
+     *                      their contents.
+     * @param removedPaths  Remote paths of the removed files; folders may lack the trailing
+     *                      separator.
+     * @return              Files in 'updatedFiles' not saved because their parent folder is not
+     *                      known.
+     */
+    public List<OCFile> saveTree(List<OCFile> updatedFiles, Collection<String> removedPaths) {
+        Log_OC.d(TAG, "Saving " + updatedFiles.size() + " changed files and " + 
+                removedPaths.size() + " removed files in " + mAccount.name);
+        
+        for (String path : removedPaths) {
+            OCFile file = getFileByPath(path.endsWith(OCFile.PATH_SEPARATOR) ? path : 
+                    path + OCFile.PATH_SEPARATOR);
+            if (file == null) {
+                file = getFileByPath(path);
+            }
+            if (file == null) {
+                continue;
+            }
+            if (file.isFolder()) {
+                File localFolder = 
+                        new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
+                if (localFolder.exists()) {
+                    removeLocalFolder(localFolder);
+                }
+            } else if (file.isDown()) {
+                String localPath = file.getStoragePath();
+                new File(localPath).delete();
+                triggerMediaScan(localPath); // notify MediaScanner about removed file
+            }
+        }
+        
+        ArrayList<ContentValues> filesValues = new ArrayList<ContentValues>(updatedFiles.size());
+        for (OCFile file : updatedFiles) {
+            filesValues.add(getFileValues(file));
+        }
+        long[] ids = mDao.saveTree(mAccount.name, filesValues, removedPaths);
+        List<OCFile> skippedFiles = new ArrayList<OCFile>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] > 0) {
+                updatedFiles.get(i).setFileId(ids[i]);
+            } else {
+                skippedFiles.add(updatedFiles.get(i));
+            }
+        }
+        getCache().clear();
+        return skippedFiles;
+    }
+
+
+    /**
+     * @param paths     Remote paths of the files to read, at most {@link FileDao#MAX_PATHS}.
+     * @return          Files in the account with any of the given paths, by path.
+     */
+    public Map<String, OCFile> getFilesByPath(Collection<String> paths) {
+        return mDao.getFilesByPath(mAccount.name, paths);
+    }
+
+
+    /**
+     * @return      Values to save a file, except its parent folder; the size of a folder is
+     *              only included if reported by the server.
+     */
+    private ContentValues getFileValues(OCFile file) {
+        ContentValues cv = new ContentValues();
+        if (file.getFileId() > 0) {
+            cv.put(ProviderTableMeta._ID, file.getFileId());
         }
+        cv.put(ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
+        cv.put(
+            ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, 
+            file.getModificationTimestampAtLastSyncForData()
+        );
+        cv.put(ProviderTableMeta.FILE_CREATION, file.getCreationTimestamp());
+        if (!file.isFolder() || file.getFileLength() >= 0) {
+            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
+        }
+        cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, file.getMimetype());
+        cv.put(ProviderTableMeta.FILE_NAME, file.getFileName());
+        cv.put(ProviderTableMeta.FILE_PATH, file.getRemotePath());
+        if (!file.isFolder()) {
+            cv.put(ProviderTableMeta.FILE_STORAGE_PATH, file.getStoragePath());
+        }
+        cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, mAccount.name);
+        cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
+        cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
+        cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
+        cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
+        cv.put(ProviderTableMeta.FILE_ETAG_IN_SERVER, file.getEtagInServer());
+        cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
+        cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
+        cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
+        cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
+        cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
+        cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
+        return cv;
+    }
 
-        // update new id in file objects for insertions
-        if (results != null) {
-            long newId;
-            Iterator<OCFile> filesIt = updatedFiles.iterator();
-            OCFile file = null;
-            for (int i=0; i<results.length; i++) {
-                if (filesIt.hasNext()) {
-                    file = filesIt.next();
+
+    /**
+     * Collects the ids of the files to remove from a folder, and removes their local copies.
+     *
+     * Files not contained in the folder are ignored.
+     */
+    private void prepareRemoval(OCFile folder, Collection<OCFile> filesToRemove,
+                                List<Long> removedFileIds, List<Long> removedFolderIds) {
+        for (OCFile file : filesToRemove) {
+            if (file.getParentId() == folder.getFileId()) {
+                if (file.isFolder()) {
+                    removedFolderIds.add(file.getFileId());
+                    
+                    File localFolder = 
+                            new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
+                    if (localFolder.exists()) {
+                        removeLocalFolder(localFolder);
+                    }
                 } else {
-                    file = null;
-                }
-                if (results[i].uri != null) {
-                    newId = Long.parseLong(results[i].uri.getPathSegments().get(1));
-                    //updatedFiles.get(i).setFileId(newId);
-                    if (file != null) {
-                        file.setFileId(newId);
+                    removedFileIds.add(file.getFileId());
+                    
+                    if (file.isDown()) {
+                        String path = file.getStoragePath();
+                        new File(path).delete();
+                        triggerMediaScan(path); // notify MediaScanner about removed file
                     }
                 }
             }
         }
-        
-        //updateFolderSize(folder.getFileId());
-        
     }
 
 
-//    /**
-//     * 
-//     * @param id
-//     */
-//    private void updateFolderSize(long id) {
-//        if (id > FileDataStorageManager.ROOT_PARENT_ID) {
-//            Log_OC.d(TAG, "Updating size of " + id);
-//            if (getContentResolver() != null) {
-//                getContentResolver().update(ProviderTableMeta.CONTENT_URI_DIR, 
-//                        new ContentValues(),    
-                            // won't be used, but cannot be null; crashes in KLP
-//                        ProviderTableMeta._ID + "=?",
-//                        new String[] { String.valueOf(id) });
-//            } else {
-//                try {
-//                    getContentProviderClient().update(ProviderTableMeta.CONTENT_URI_DIR, 
-//                            new ContentValues(),    
-                                // won't be used, but cannot be null; crashes in KLP
-//                            ProviderTableMeta._ID + "=?",
-//                            new String[] { String.valueOf(id) });
-//                    
-//                } catch (RemoteException e) {
-//                    Log_OC.e(
-//    TAG, "Exception in update of folder size through compatibility patch " + e.getMessage());
-//                }
-//            }
-//        } else {
-//            Log_OC.e(TAG,  "not updating size for folder " + id);
-//        }
-//    }
-    
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
 
     public boolean removeFile(OCFile file, boolean removeDBData, boolean removeLocalCopy) {
         boolean success = true;
@@ -474,24 +578,9 @@ public class FileDataStorageManager {
                 
             } else {
                 if (removeDBData) {
-                    Uri file_uri = ContentUris.withAppendedId(
-                        ProviderTableMeta.CONTENT_URI_FILE, 
-                        file.getFileId()
-                    );
-                    String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" + " AND " + 
-                            ProviderTableMeta.FILE_PATH + "=?";
-                    String [] whereArgs = new String[]{mAccount.name, file.getRemotePath()};
-                    int deleted = 0;
-                    if (getContentProviderClient() != null) {
-                        try {
-                            deleted = getContentProviderClient().delete(file_uri, where, whereArgs);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        deleted = getContentResolver().delete(file_uri, where, whereArgs);
-                    }
-                    success &= (deleted > 0); 
+                    success &= mDao.removeFile(mAccount.name, file.getFileId(),
+                            file.getRemotePath());
+                    getCache().invalidateFile(file);
                 }
                 String localPath = file.getStoragePath();
                 if (removeLocalCopy && file.isDown() && localPath != null && success) {
@@ -525,22 +614,9 @@ public class FileDataStorageManager {
     }
 
     private boolean removeFolderInDb(OCFile folder) {
-        Uri folder_uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, "" + 
-                folder.getFileId());   // URI for recursive deletion
-        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" + " AND " + 
-                ProviderTableMeta.FILE_PATH + "=?";
-        String [] whereArgs = new String[]{mAccount.name, folder.getRemotePath()};
-        int deleted = 0;
-        if (getContentProviderClient() != null) {
-            try {
-                deleted = getContentProviderClient().delete(folder_uri, where, whereArgs);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        } else {
-            deleted = getContentResolver().delete(folder_uri, where, whereArgs); 
-        }
-        return deleted > 0;
+        boolean deleted = mDao.removeFolder(mAccount.name, folder.getFileId());
+        getCache().clear();
+        return deleted;
     }
 
     private boolean removeLocalFolder(OCFile folder) {
@@ -548,27 +624,29 @@ public class FileDataStorageManager {
         String localFolderPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, folder);
         File localFolder = new File(localFolderPath);
         if (localFolder.exists()) {
-            // stage 1: remove the local files already registered in the files database
-            // TODO Enable when "On Device" is recovered ?
-            Vector<OCFile> files = getFolderContent(folder.getFileId()/*, false*/);
-            if (files != null) {
-                for (OCFile file : files) {
-                    if (file.isFolder()) {
-                        success &= removeLocalFolder(file);
+            // stage 1: remove the local files already registered in the files database, at
+            //          any depth, read in a single query
+            List<OCFile> removedFiles = new ArrayList<OCFile>();
+            List<Long> removedIds = new ArrayList<Long>();
+            for (OCFile file : mDao.getDownloadedFilesInTree(mAccount.name,
+                    folder.getRemotePath())) {
+                if (!file.isFolder() && file.isDown()) {
+                    File localFile = new File(file.getStoragePath());
+                    if (localFile.delete()) {
+                        // notify MediaScanner about removed file
+                        deleteFileInMediaScan(file.getStoragePath());
+                        removedFiles.add(file);
+                        removedIds.add(file.getFileId());
                     } else {
-                        if (file.isDown()) {
-                            File localFile = new File(file.getStoragePath());
-                            success &= localFile.delete();
-                            if (success) {
-                                // notify MediaScanner about removed file
-                                deleteFileInMediaScan(file.getStoragePath());
-                                file.setStoragePath(null);
-                                saveFile(file);
-                            }
-                        }
+                        success = false;
                     }
                 }
             }
+            mDao.clearStoragePaths(mAccount.name, removedIds);
+            FileMetadataCache cache = getCache();
+            for (OCFile file : removedFiles) {
+                cache.invalidateFile(file);
+            }
 
             // stage 2: remove the folder itself and any local file inside out of sync; 
             //          for instance, after clearing the app cache or reinstalling
@@ -597,8 +675,9 @@ public class FileDataStorageManager {
     
     /**
      * Updates database and file system for a file or folder that was moved to a different location.
+     *
+     * The paths of all the descendants are rewritten in the database with a single statement.
      * 
-     * TODO explore better (faster) implementations
      * TODO throw exceptions up !
      */
     public void moveLocalFile(OCFile file, String targetPath, String targetParentPath) {
@@ -610,100 +689,45 @@ public class FileDataStorageManager {
                 throw new IllegalStateException("Parent folder of the target path does not exist!!");
             }
             
-            /// 1. get all the descendants of the moved element in a single QUERY
-            Cursor c = null;
-            if (getContentProviderClient() != null) {
-                try {
-                    c = getContentProviderClient().query(
-                        ProviderTableMeta.CONTENT_URI, 
-                        null,
-                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
-                                ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                        new String[] { 
-                                mAccount.name, 
-                                file.getRemotePath() + "%"  
-                        }, 
-                        ProviderTableMeta.FILE_PATH + " ASC "
-                    );
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG, e.getMessage());
-                }
-                
-            } else {
-                c = getContentResolver().query(
-                    ProviderTableMeta.CONTENT_URI, 
-                    null,
-                    ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
-                            ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                    new String[] { 
-                            mAccount.name, 
-                            file.getRemotePath() + "%"  
-                    }, 
-                    ProviderTableMeta.FILE_PATH + " ASC "
-                );
-            }
-
-            /// 2. prepare a batch of update operations to change all the descendants
-            ArrayList<ContentProviderOperation> operations = 
-                    new ArrayList<ContentProviderOperation>(c.getCount());
+            /// 1. local copies of the moved files in their default location, to notify the
+            ///    media scanner about them
             String defaultSavePath = FileStorageUtils.getSavePath(mAccount.name);
+            String originalStoragePath = defaultSavePath + file.getRemotePath();
+            String targetStoragePath = defaultSavePath + targetPath;
             List<String> originalPathsToTriggerMediaScan = new ArrayList<String>();
             List<String> newPathsToTriggerMediaScan = new ArrayList<String>();
-            if (c.moveToFirst()) {
-                int lengthOfOldPath = file.getRemotePath().length();
-                int lengthOfOldStoragePath = defaultSavePath.length() + lengthOfOldPath;
-                do {
-                    ContentValues cv = new ContentValues(); // keep construction in the loop
-                    OCFile child = createFileInstance(c);
-                    cv.put(
-                        ProviderTableMeta.FILE_PATH, 
-                        targetPath + child.getRemotePath().substring(lengthOfOldPath)
-                    );
-                    if (child.getStoragePath() != null && 
-                            child.getStoragePath().startsWith(defaultSavePath)) {
-                        // update link to downloaded content - but local move is not done here!
-                        String targetLocalPath = defaultSavePath + targetPath + 
-                                child.getStoragePath().substring(lengthOfOldStoragePath);
-                        
-                        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, targetLocalPath);
-                        
-                        originalPathsToTriggerMediaScan.add(child.getStoragePath());
-                        newPathsToTriggerMediaScan.add(targetLocalPath);
-                        
-                    }
-                    if (child.getRemotePath().equals(file.getRemotePath())) {
-                        cv.put(
-                                ProviderTableMeta.FILE_PARENT,
-                                targetParent.getFileId()
-                            );
-                    }
-                    operations.add(
-                        ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            withSelection(  
-                                    ProviderTableMeta._ID + "=?", 
-                                    new String[] { String.valueOf(child.getFileId()) }
-                                    )
-                            .build());
-                    
-                } while (c.moveToNext());
+            List<OCFile> downloaded = file.isFolder() ?
+                    mDao.getDownloadedFilesInTree(mAccount.name, file.getRemotePath()) :
+                    Collections.singletonList(file);
+            for (OCFile child : downloaded) {
+                if (child.getStoragePath() != null &&
+                        child.getStoragePath().startsWith(originalStoragePath)) {
+                    originalPathsToTriggerMediaScan.add(child.getStoragePath());
+                    newPathsToTriggerMediaScan.add(targetStoragePath +
+                            child.getStoragePath().substring(originalStoragePath.length()));
+                }
             }
-            c.close();
 
-            /// 3. apply updates in batch
+            /// 2. move the file and its descendants in a single transaction
+            ContentValues cv = new ContentValues();
+            cv.put(ProviderTableMeta.FILE_PATH, targetPath);
+            cv.put(ProviderTableMeta.FILE_NAME, new OCFile(targetPath).getFileName());
+            cv.put(ProviderTableMeta.FILE_PARENT, targetParent.getFileId());
+            if (file.getStoragePath() != null &&
+                    file.getStoragePath().startsWith(originalStoragePath)) {
+                cv.put(ProviderTableMeta.FILE_STORAGE_PATH, targetStoragePath +
+                        file.getStoragePath().substring(originalStoragePath.length()));
+            }
             try {
-                if (getContentResolver() != null) {
-                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
-
-                } else {
-                    getContentProviderClient().applyBatch(operations);
-                }
+                mDao.moveTree(mAccount.name, file.getFileId(), file.getRemotePath(), cv,
+                        originalStoragePath, targetStoragePath);
 
             } catch (Exception e) {
                 Log_OC.e(TAG, "Fail to update " + file.getFileId() + " and descendants in database", e);
             }
+            getCache().clear();
 
-            /// 4. move in local file system 
+            /// 3. move in local file system 
             String originalLocalPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, file);
             String targetLocalPath = defaultSavePath + targetPath;
             File localFile = new File(originalLocalPath);
@@ -734,44 +758,23 @@ public class FileDataStorageManager {
     }
     
     
-    private Vector<OCFile> getFolderContent(long parentId/*, boolean onlyOnDevice*/) {
+    private List<OCFile> getFolderContent(long parentId/*, boolean onlyOnDevice*/) {
 
-        Vector<OCFile> ret = new Vector<OCFile>();
-
-        Uri req_uri = Uri.withAppendedPath(
-                ProviderTableMeta.CONTENT_URI_DIR,
-                String.valueOf(parentId));
-        Cursor c = null;
-
-        if (getContentProviderClient() != null) {
-            try {
-                c = getContentProviderClient().query(req_uri, null, 
-                        ProviderTableMeta.FILE_PARENT + "=?" ,
-                        new String[] { String.valueOf(parentId)}, null);
-            } catch (RemoteException e) {
-                Log_OC.e(TAG, e.getMessage());
-                return ret;
-            }
-        } else {
-            c = getContentResolver().query(req_uri, null, 
-                    ProviderTableMeta.FILE_PARENT + "=?" ,
-                    new String[] { String.valueOf(parentId)}, null);
-        }
-
-        if (c.moveToFirst()) {
-            do {
-                OCFile child = createFileInstance(c);
-                // TODO Enable when "On Device" is recovered ?
-                // if (child.isFolder() || !onlyOnDevice || onlyOnDevice && child.isDown()){
-                    ret.add(child);
-                // }
-            } while (c.moveToNext());
+        FileMetadataCache cache = getCache();
+        List<OCFile> cached = cache.getFolderContent(parentId);
+        if (cached != null) {
+            return cached;
         }
+        int generation = cache.getGeneration();
 
-        c.close();
+        // TODO Enable when "On Device" is recovered ?
+        // if (child.isFolder() || !onlyOnDevice || onlyOnDevice && child.isDown()){
+        Vector<OCFile> ret = mDao.getFolderContent(mAccount.name, parentId);
 
         Collections.sort(ret);
 
+        cache.putFolderContent(parentId, ret, generation);
+
         return ret;
     }
     
@@ -784,36 +787,6 @@ public class FileDataStorageManager {
         return file;
     }
 
-    private boolean fileExists(String cmp_key, String value) {
-        Cursor c;
-        if (getContentResolver() != null) {
-            c = getContentResolver()
-                    .query(ProviderTableMeta.CONTENT_URI,
-                            null,
-                            cmp_key + "=? AND "
-                                    + ProviderTableMeta.FILE_ACCOUNT_OWNER
-                                    + "=?",
-                                    new String[] { value, mAccount.name }, null);
-        } else {
-            try {
-                c = getContentProviderClient().query(
-                        ProviderTableMeta.CONTENT_URI,
-                        null,
-                        cmp_key + "=? AND "
-                                + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
-                                new String[] { value, mAccount.name }, null);
-            } catch (RemoteException e) {
-                Log_OC.e(TAG,
-                        "Couldn't determine file existance, assuming non existance: "
-                                + e.getMessage());
-                return false;
-            }
-        }
-        boolean retval = c.moveToFirst();
-        c.close();
-        return retval;
-    }
-
     private Cursor getCursorForValue(String key, String value) {
         Cursor c = null;
         if (getContentResolver() != null) {
@@ -842,56 +815,7 @@ public class FileDataStorageManager {
     
 
     private OCFile createFileInstance(Cursor c) {
-        OCFile file = null;
-        if (c != null) {
-            file = new OCFile(c.getString(c
-                    .getColumnIndex(ProviderTableMeta.FILE_PATH)));
-            file.setFileId(c.getLong(c.getColumnIndex(ProviderTableMeta._ID)));
-            file.setParentId(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_PARENT)));
-            file.setMimetype(c.getString(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE)));
-            if (!file.isFolder()) {
-                file.setStoragePath(c.getString(c
-                        .getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH)));
-                if (file.getStoragePath() == null) {
-                    // try to find existing file and bind it with current account; 
-                    // with the current update of SynchronizeFolderOperation, this won't be 
-                    // necessary anymore after a full synchronization of the account
-                    File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
-                    if (f.exists()) {
-                        file.setStoragePath(f.getAbsolutePath());
-                        file.setLastSyncDateForData(f.lastModified());
-                    }
-                }
-            }
-            file.setFileLength(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH)));
-            file.setCreationTimestamp(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CREATION)));
-            file.setModificationTimestamp(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_MODIFIED)));
-            file.setModificationTimestampAtLastSyncForData(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA)));
-            file.setLastSyncDateForProperties(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE)));
-            file.setLastSyncDateForData(c.getLong(c.
-                    getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA)));
-            file.setKeepInSync(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC)) == 1 ? true : false);
-            file.setEtag(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_ETAG)));
-            file.setShareByLink(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_SHARE_BY_LINK)) == 1 ? true : false);
-            file.setPublicLink(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_PUBLIC_LINK)));
-            file.setPermissions(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_PERMISSIONS)));
-            file.setRemoteId(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_REMOTE_ID)));
-            file.setNeedsUpdateThumbnail(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_UPDATE_THUMBNAIL)) == 1 ? true : false);
-            file.setDownloading(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_IS_DOWNLOADING)) == 1 ? true : false);
-                    
-        }
-        return file;
+        return (c != null) ? FileCursorMapper.forCursor(c).map(c) : null;
     }
     
     /**
@@ -1111,6 +1035,7 @@ public class FileDataStorageManager {
                 Log_OC.e(TAG, "Exception in cleanSharedFiles" + e.getMessage());
             }
         }
+        getCache().clear();
     }
 
     private void cleanSharedFilesInFolder(OCFile folder) {
@@ -1134,6 +1059,7 @@ public class FileDataStorageManager {
                 Log_OC.e(TAG, "Exception in cleanSharedFilesInFolder " + e.getMessage());
             }
         }
+        getCache().invalidateFolder(folder.getFileId());
     }
 
     private void cleanShares() {
@@ -1234,93 +1160,23 @@ public class FileDataStorageManager {
     public void updateSharedFiles(Collection<OCFile> sharedFiles) {
         cleanSharedFiles();
         
-        if (sharedFiles != null) {
-            ArrayList<ContentProviderOperation> operations = 
-                    new ArrayList<ContentProviderOperation>(sharedFiles.size());
-
-            // prepare operations to insert or update files to save in the given folder
+        if (sharedFiles != null && !sharedFiles.isEmpty()) {
+            // saved through FileDao, so that the sizes and descendant counts of the ancestors
+            // are kept
+            ArrayList<ContentValues> filesValues =
+                    new ArrayList<ContentValues>(sharedFiles.size());
             for (OCFile file : sharedFiles) {
-                ContentValues cv = new ContentValues();
-                cv.put(ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
-                cv.put(
-                    ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, 
-                    file.getModificationTimestampAtLastSyncForData()
-                );
-                cv.put(ProviderTableMeta.FILE_CREATION, file.getCreationTimestamp());
-                cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
-                cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, file.getMimetype());
-                cv.put(ProviderTableMeta.FILE_NAME, file.getFileName());
+                ContentValues cv = getFileValues(file);
                 cv.put(ProviderTableMeta.FILE_PARENT, file.getParentId());
-                cv.put(ProviderTableMeta.FILE_PATH, file.getRemotePath());
-                if (!file.isFolder()) {
-                    cv.put(ProviderTableMeta.FILE_STORAGE_PATH, file.getStoragePath());
-                }
-                cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, mAccount.name);
-                cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
-                cv.put(
-                    ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, 
-                    file.getLastSyncDateForData()
-                );
-                cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
-                cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
-                cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
-                cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
-                cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
-                cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
-                cv.put(
-                    ProviderTableMeta.FILE_UPDATE_THUMBNAIL, 
-                    file.needsUpdateThumbnail() ? 1 : 0
-                );
-                cv.put(
-                        ProviderTableMeta.FILE_IS_DOWNLOADING,
-                        file.isDownloading() ? 1 : 0
-                );
-
-                boolean existsByPath = fileExists(file.getRemotePath());
-                if (existsByPath || fileExists(file.getFileId())) {
-                    // updating an existing file
-                    operations.add(
-                            ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            withSelection(
-                                    ProviderTableMeta._ID + "=?", 
-                                    new String[] { String.valueOf(file.getFileId()) }
-                            ).build()
-                    );
-
-                } else {
-                    // adding a new file
-                    operations.add(
-                            ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            build()
-                    );
-                }
-            }
-            
-            // apply operations in batch
-            if (operations.size() > 0) {
-                @SuppressWarnings("unused")
-                ContentProviderResult[] results = null;
-                Log_OC.d(TAG, "Sending " + operations.size() + 
-                        " operations to FileContentProvider");
-                try {
-                    if (getContentResolver() != null) {
-                        results = getContentResolver().applyBatch(
-                                MainApp.getAuthority(), operations
-                        );
-    
-                    } else {
-                        results = getContentProviderClient().applyBatch(operations);
-                    }
-    
-                } catch (OperationApplicationException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
-    
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
+                if (file.isFolder()) {
+                    // the size read is the one kept by FileDao, not reported by the server
+                    cv.remove(ProviderTableMeta.FILE_CONTENT_LENGTH);
                 }
+                filesValues.add(cv);
             }
+            Log_OC.d(TAG, "Saving " + filesValues.size() + " shared files");
+            mDao.saveChildren(mAccount.name, filesValues);
+            getCache().clear();
         }
         
     } 
@@ -1448,7 +1304,7 @@ public class FileDataStorageManager {
             String [] whereArgs = new String[]{ "", mAccount.name };
 
             // TODO Enable when "On Device" is recovered ?
-            Vector<OCFile> files = getFolderContent(folder /*, false*/);
+            List<OCFile> files = getFolderContent(folder /*, false*/);
             
             for (OCFile file : files) {
                 whereArgs[0] = file.getRemotePath();
@@ -0,0 +1,275 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+/**
+ * In-memory cache of the metadata of files, one per account, in front of
+ * {@link FileDataStorageManager}.
+ *
+ * Keeps the content of folders, by folder id, and single files, by remote path, in size-bounded
+ * LRU caches, so that browsing back and forth in a tree doesn't rebuild the same {@link OCFile}
+ * instances from the database once and again.
+ *
+ * Entries are invalidated by {@link FileDataStorageManager} every time it writes, and the cache
+ * of an account is cleared when {@link FileDao} notifies a change in its files; changes notified
+ * by the files provider, which don't tell the account, clear the caches of all the accounts.
+ *
+ * Cached instances are never handed out: callers get copies of the content of folders and of
+ * single files, which they may modify without the changes being seen by other readers.
+ */
+public class FileMetadataCache {
+
+    private static final String TAG = FileMetadataCache.class.getSimpleName();
+
+    /** Maximum number of files kept in the cached contents of folders */
+    private static final int MAX_FOLDER_ENTRIES = 20000;
+
+    /** Maximum number of files cached by path */
+    private static final int MAX_FILES = 1000;
+
+    private static final Map<String, FileMetadataCache> sCaches =
+            new HashMap<String, FileMetadataCache>();
+
+    private static ContentObserver sObserver = null;
+
+
+    /**
+     * Returns the cache for the given account, creating it if needed.
+     *
+     * @param account       ownCloud account.
+     * @return              Cache of file metadata for the account.
+     */
+    public static synchronized FileMetadataCache getInstance(Account account) {
+        FileMetadataCache cache = sCaches.get(account.name);
+        if (cache == null) {
+            cache = new FileMetadataCache();
+            sCaches.put(account.name, cache);
+        }
+        if (sObserver == null) {
+            registerObserver();
+        }
+        return cache;
+    }
+
+
+    /**
+     * Clears the caches of all the accounts.
+     */
+    public static synchronized void clearAll() {
+        for (FileMetadataCache cache : sCaches.values()) {
+            cache.clear();
+        }
+    }
+
+
+    private static synchronized void clear(String accountName) {
+        FileMetadataCache cache = sCaches.get(accountName);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+
+    private static void registerObserver() {
+        Context context = MainApp.getAppContext();
+        if (context != null) {
+            sObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    clearAll();
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    String accountName = (uri != null) ?
+                            uri.getQueryParameter(FileDao.PARAM_ACCOUNT) : null;
+                    if (accountName != null) {
+                        clear(accountName);
+                    } else {
+                        clearAll();
+                    }
+                }
+            };
+            context.getContentResolver().registerContentObserver(
+                    ProviderTableMeta.CONTENT_URI, true, sObserver
+            );
+        }
+    }
+
+
+    private final LruCache<Long, List<OCFile>> mFolders =
+            new LruCache<Long, List<OCFile>>(MAX_FOLDER_ENTRIES) {
+        @Override
+        protected int sizeOf(Long key, List<OCFile> value) {
+            return value.size() + 1;
+        }
+    };
+
+    private final LruCache<String, OCFile> mFiles = new LruCache<String, OCFile>(MAX_FILES);
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Increased with every invalidation, so that data read from the database before it is not
+     * cached after it.
+     */
+    private int mGeneration = 0;
+
+
+    private FileMetadataCache() {
+    }
+
+
+    /**
+     * Returns the current generation of the cache. Must be got BEFORE reading from the database
+     * the data to pass to {@link #putFolderContent(long, List, int)} or
+     * {@link #putFile(OCFile, int)}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+
+    /**
+     * @param folderId      Id of a folder.
+     * @return              Copy of the cached content of the folder, or null if not cached.
+     */
+    public List<OCFile> getFolderContent(long folderId) {
+        List<OCFile> content = mFolders.get(folderId);
+        if (content == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        List<OCFile> copy = new ArrayList<OCFile>(content.size());
+        for (OCFile file : content) {
+            copy.add(new OCFile(file));
+        }
+        return copy;
+    }
+
+
+    /**
+     * Caches the content of a folder, unless the cache was invalidated after 'generation'.
+     */
+    public synchronized void putFolderContent(long folderId, List<OCFile> content,
+                                              int generation) {
+        if (generation == mGeneration) {
+            List<OCFile> copy = new ArrayList<OCFile>(content.size());
+            for (OCFile file : content) {
+                copy.add(new OCFile(file));
+            }
+            mFolders.put(folderId, Collections.unmodifiableList(copy));
+        }
+    }
+
+
+    /**
+     * @param path          Remote path of a file.
+     * @return              Copy of the cached file, or null if not cached.
+     */
+    public OCFile getFileByPath(String path) {
+        OCFile file = mFiles.get(path);
+        if (file == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return new OCFile(file);
+    }
+
+
+    /**
+     * Caches a file, unless the cache was invalidated after 'generation'.
+     */
+    public synchronized void putFile(OCFile file, int generation) {
+        if (generation == mGeneration) {
+            mFiles.put(file.getRemotePath(), new OCFile(file));
+        }
+    }
+
+
+    /**
+     * Removes from the cache the content of a folder.
+     */
+    public synchronized void invalidateFolder(long folderId) {
+        mGeneration++;
+        mFolders.remove(folderId);
+    }
+
+
+    /**
+     * Removes from the cache a file and the content of its parent folder.
+     */
+    public synchronized void invalidateFile(OCFile file) {
+        mGeneration++;
+        mFiles.remove(file.getRemotePath());
+        mFolders.remove(file.getParentId());
+    }
+
+
+    /**
+     * Removes everything from the cache.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mFolders.evictAll();
+        mFiles.evictAll();
+    }
+
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+
+    @Override
+    public String toString() {
+        long hits = mHits.get();
+        long misses = mMisses.get();
+        long total = hits + misses;
+        return TAG + "[hits=" + hits + ", misses=" + misses +
+                (total > 0 ? ", hit rate=" + (hits * 100 / total) + "%" : "") +
+                ", folders=" + mFolders.size() + ", files=" + mFiles.size() + "]";
+    }
+
+}
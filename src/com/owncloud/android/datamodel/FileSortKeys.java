@@ -0,0 +1,104 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+import android.content.ContentValues;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+/**
+ * Keys to sort files by name, saved with every file in the database so that listings are
+ * sorted by SQLite, and cached in {@link OCFile} for the sorts done in memory.
+ *
+ * Comparing keys with {@link String#compareTo(String)}, or the BINARY collation of SQLite,
+ * sorts names ignoring case and accents, and with numbers in natural order: 'file2' before
+ * 'file10', as {@link third_parties.daveKoeller.AlphanumComparator} did.
+ */
+public final class FileSortKeys {
+
+    /** Maximum length of number encoded in the keys; longer numbers are sorted as this */
+    private static final int MAX_DIGITS = 99;
+
+    private FileSortKeys() {
+    }
+
+
+    /**
+     * @return      Sort key of a file name.
+     */
+    public static String forName(String name) {
+        if (name == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(name.toLowerCase(Locale.ENGLISH),
+                Normalizer.Form.NFD);
+        int length = normalized.length();
+        StringBuilder key = new StringBuilder(length + 8);
+        int i = 0;
+        while (i < length) {
+            char c = normalized.charAt(i);
+            if (isDigit(c)) {
+                // numbers are prefixed with their length, so shorter numbers go first
+                int end = i + 1;
+                while (end < length && isDigit(normalized.charAt(end))) {
+                    end++;
+                }
+                int digits = Math.min(end - i, MAX_DIGITS);
+                if (digits < 10) {
+                    key.append('0');
+                }
+                key.append(digits).append(normalized, i, i + digits);
+                i = end;
+
+            } else {
+                if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                    key.append(c);
+                }
+                i++;
+            }
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * Adds the sort columns to the values of a file to write in the database, if the columns
+     * they depend on are written.
+     */
+    public static void putSortKeys(ContentValues values) {
+        if (values.containsKey(ProviderTableMeta.FILE_NAME)) {
+            values.put(ProviderTableMeta.FILE_SORT_NAME,
+                    forName(values.getAsString(ProviderTableMeta.FILE_NAME)));
+        }
+        if (values.containsKey(ProviderTableMeta.FILE_CONTENT_TYPE)) {
+            values.put(ProviderTableMeta.FILE_IS_FOLDER,
+                    "DIR".equals(values.getAsString(ProviderTableMeta.FILE_CONTENT_TYPE)) ? 1 : 0);
+        }
+    }
+
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
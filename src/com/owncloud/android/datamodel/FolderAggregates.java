@@ -0,0 +1,188 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+/**
+ * Changes to the size and number of descendants of folders caused by the writes of a
+ * transaction of {@link FileDao}, applied to all the ancestors of every changed folder when the
+ * transaction is about to finish.
+ *
+ * The size of a folder is the sum of the sizes of its children, unless it was reported by the
+ * server, and its descendant count is the number of files and folders below it at any depth;
+ * every file adds its size and 1 plus its descendant count to its parent folder. Deltas are
+ * merged by folder in memory, so a batch of any number of children walks up the tree once per
+ * changed folder.
+ */
+class FolderAggregates {
+
+    private static final String SQL_CONTRIBUTION = "SELECT " + ProviderTableMeta.FILE_PARENT +
+            ", IFNULL(" + ProviderTableMeta.FILE_CONTENT_LENGTH + ",0), IFNULL(" +
+            ProviderTableMeta.FILE_DESCENDANT_COUNT + ",0) FROM " +
+            ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID + "=?";
+
+    private static final String SQL_PARENT = "SELECT " + ProviderTableMeta.FILE_PARENT +
+            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " WHERE " + ProviderTableMeta._ID +
+            "=?";
+
+    private static final String SQL_ADD = "UPDATE " + ProviderTableMeta.FILE_TABLE_NAME +
+            " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + "=IFNULL(" +
+            ProviderTableMeta.FILE_CONTENT_LENGTH + ",0)+?, " +
+            ProviderTableMeta.FILE_DESCENDANT_COUNT + "=IFNULL(" +
+            ProviderTableMeta.FILE_DESCENDANT_COUNT + ",0)+? WHERE " + ProviderTableMeta._ID +
+            "=?";
+
+    private final SQLiteDatabase mDb;
+
+    /** Size and descendant count to add to every folder and its ancestors, by folder id */
+    private final Map<Long, long[]> mDeltas = new HashMap<Long, long[]>();
+
+    /** Folders whose size was written as reported by the server, with their children in it */
+    private final Set<Long> mReported = new HashSet<Long>();
+
+
+    FolderAggregates(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+
+    /**
+     * @return      What a file adds to its parent: {parent id, size, 1 + descendant count}, or
+     *              null if there is no file with the given id.
+     */
+    long[] readContribution(long id) {
+        Cursor c = mDb.rawQuery(SQL_CONTRIBUTION, new String[] { String.valueOf(id) });
+        try {
+            return c.moveToFirst() ? new long[] { c.getLong(0), c.getLong(1), 1 + c.getLong(2) } :
+                    null;
+        } finally {
+            c.close();
+        }
+    }
+
+
+    /**
+     * Takes the contribution of a removed file out of its ancestors.
+     *
+     * @param contribution  As read by {@link #readContribution(long)} before the removal.
+     */
+    void onRemoved(long id, long[] contribution) {
+        mDeltas.remove(id);
+        if (contribution != null) {
+            add(contribution[0], -contribution[1], -contribution[2]);
+        }
+    }
+
+
+    /**
+     * Moves the contribution of a file after writing new values on it.
+     *
+     * @param id        Id of the written file.
+     * @param before    Contribution read before the write, or null if the file is new.
+     */
+    void onWritten(long id, long[] before, ContentValues values) {
+        Long parent = values.getAsLong(ProviderTableMeta.FILE_PARENT);
+        Long length = values.getAsLong(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        if (before != null) {
+            add(before[0], -before[1], -before[2]);
+        }
+        add((parent != null) ? parent : (before != null ? before[0] : 0),
+                (length != null) ? length : (before != null ? before[1] : 0),
+                (before != null) ? before[2] : 1);
+
+        Integer isFolder = values.getAsInteger(ProviderTableMeta.FILE_IS_FOLDER);
+        if (length != null && isFolder != null && isFolder == 1) {
+            mReported.add(id);
+        }
+    }
+
+
+    /**
+     * Adds the deltas to every changed folder and all its ancestors. Sizes don't go into nor
+     * beyond a folder whose size was reported by the server in the same transaction; the
+     * reported size already counts them, and its own change was moved to its parent when it
+     * was written.
+     */
+    void apply() {
+        if (mDeltas.isEmpty()) {
+            return;
+        }
+        SQLiteStatement parentOf = mDb.compileStatement(SQL_PARENT);
+        SQLiteStatement addTo = mDb.compileStatement(SQL_ADD);
+        try {
+            for (Map.Entry<Long, long[]> entry : mDeltas.entrySet()) {
+                long id = entry.getKey();
+                long size = entry.getValue()[0];
+                long count = entry.getValue()[1];
+                while (id > 0) {
+                    if (mReported.contains(id)) {
+                        size = 0;
+                    }
+                    if (size == 0 && count == 0) {
+                        break;
+                    }
+                    addTo.bindLong(1, size);
+                    addTo.bindLong(2, count);
+                    addTo.bindLong(3, id);
+                    addTo.executeUpdateDelete();
+
+                    parentOf.bindLong(1, id);
+                    try {
+                        id = parentOf.simpleQueryForLong();
+                    } catch (SQLiteDoneException e) {
+                        break;  // removed in this transaction
+                    }
+                }
+            }
+        } finally {
+            parentOf.close();
+            addTo.close();
+            mDeltas.clear();
+            mReported.clear();
+        }
+    }
+
+
+    private void add(long folderId, long size, long count) {
+        if (folderId <= 0) {
+            return;
+        }
+        long[] delta = mDeltas.get(folderId);
+        if (delta == null) {
+            delta = new long[2];
+            mDeltas.put(folderId, delta);
+        }
+        delta[0] += size;
+        delta[1] += count;
+    }
+
+}
@@ -28,7 +28,6 @@ import com.owncloud.android.utils.FileStorageUtils;
 
 import java.io.File;
 
-import third_parties.daveKoeller.AlphanumComparator;
 public class OCFile implements Parcelable, Comparable<OCFile> {
 
     public static final Parcelable.Creator<OCFile> CREATOR = new Parcelable.Creator<OCFile>() {
@@ -46,6 +45,13 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     public static final String PATH_SEPARATOR = "/";
     public static final String ROOT_PATH = PATH_SEPARATOR;
 
+    /**
+     * Size of a folder whose size was not reported by the server; the library reads it as 0.
+     * The size of such folders is not saved, and is kept by {@link FileDao} adding up the sizes
+     * of their children.
+     */
+    public static final long UNKNOWN_LENGTH = -1;
+
     private static final String TAG = OCFile.class.getSimpleName();
 
     private long mId;
@@ -63,6 +69,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     private boolean mKeepInSync;
 
     private String mEtag;
+    private String mEtagInServer;
 
     private boolean mShareByLink;
     private String mPublicLink;
@@ -74,6 +81,12 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
 
     private boolean mIsDownloading;
 
+    /** Key to sort by name, see {@link FileSortKeys}; computed when first needed */
+    private String mSortName;
+
+    /** Number of files and folders below a folder, at any depth */
+    private long mDescendantCount;
+
 
     /**
      * Create new {@link OCFile} with given path.
@@ -91,6 +104,37 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mRemotePath = path;
     }
 
+    /**
+     * Create a copy of the given {@link OCFile}.
+     *
+     * @param file The file to copy.
+     */
+    public OCFile(OCFile file) {
+        mId = file.mId;
+        mParentId = file.mParentId;
+        mLength = file.mLength;
+        mCreationTimestamp = file.mCreationTimestamp;
+        mModifiedTimestamp = file.mModifiedTimestamp;
+        mModifiedTimestampAtLastSyncForData = file.mModifiedTimestampAtLastSyncForData;
+        mRemotePath = file.mRemotePath;
+        mSortName = file.mSortName;
+        mLocalPath = file.mLocalPath;
+        mMimeType = file.mMimeType;
+        mNeedsUpdating = file.mNeedsUpdating;
+        mKeepInSync = file.mKeepInSync;
+        mLastSyncDateForProperties = file.mLastSyncDateForProperties;
+        mLastSyncDateForData = file.mLastSyncDateForData;
+        mEtag = file.mEtag;
+        mEtagInServer = file.mEtagInServer;
+        mShareByLink = file.mShareByLink;
+        mPublicLink = file.mPublicLink;
+        mPermissions = file.mPermissions;
+        mRemoteId = file.mRemoteId;
+        mNeedsUpdateThumbnail = file.mNeedsUpdateThumbnail;
+        mIsDownloading = file.mIsDownloading;
+        mDescendantCount = file.mDescendantCount;
+    }
+
     /**
      * Reconstruct from parcel
      *
@@ -117,6 +161,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mRemoteId = source.readString();
         mNeedsUpdateThumbnail = source.readInt() == 0;
         mIsDownloading = source.readInt() == 0;
+        mEtagInServer = source.readString();
+        mDescendantCount = source.readLong();
 
     }
 
@@ -142,6 +188,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         dest.writeString(mRemoteId);
         dest.writeInt(mNeedsUpdateThumbnail ? 1 : 0);
         dest.writeInt(mIsDownloading ? 1 : 0);
+        dest.writeString(mEtagInServer);
+        dest.writeLong(mDescendantCount);
     }
 
     /**
@@ -300,6 +348,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
             if (isFolder()) {
                 mRemotePath += PATH_SEPARATOR;
             }
+            mSortName = null;
             Log_OC.d(TAG, "OCFile name changed to " + mRemotePath);
         }
     }
@@ -337,6 +386,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     private void resetData() {
         mId = -1;
         mRemotePath = null;
+        mSortName = null;
         mParentId = 0;
         mLocalPath = null;
         mMimeType = null;
@@ -349,12 +399,14 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mKeepInSync = false;
         mNeedsUpdating = false;
         mEtag = null;
+        mEtagInServer = null;
         mShareByLink = false;
         mPublicLink = null;
         mPermissions = null;
         mRemoteId = null;
         mNeedsUpdateThumbnail = false;
         mIsDownloading = false;
+        mDescendantCount = 0;
     }
 
     /**
@@ -457,16 +509,45 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         return ((Object) this).hashCode();
     }
 
+    /**
+     * @return      Key to sort the file by name, the same saved in the database.
+     */
+    public String getSortName() {
+        if (mSortName == null) {
+            mSortName = FileSortKeys.forName(getFileName());
+        }
+        return mSortName;
+    }
+
+    /**
+     * Sets the key to sort the file by name, as read from the database, to not compute it
+     * again.
+     */
+    public void setSortName(String sortName) {
+        mSortName = sortName;
+    }
+
+    /**
+     * @return      Number of files and folders below a folder, at any depth; 0 for files.
+     */
+    public long getDescendantCount() {
+        return mDescendantCount;
+    }
+
+    public void setDescendantCount(long descendantCount) {
+        mDescendantCount = descendantCount;
+    }
+
     @Override
     public int compareTo(OCFile another) {
-        if (isFolder() && another.isFolder()) {
-            return getRemotePath().toLowerCase().compareTo(another.getRemotePath().toLowerCase());
-        } else if (isFolder()) {
-            return -1;
-        } else if (another.isFolder()) {
-            return 1;
+        if (isFolder() != another.isFolder()) {
+            return isFolder() ? -1 : 1;
+        }
+        int result = getSortName().compareTo(another.getSortName());
+        if (result == 0) {
+            result = getRemotePath().compareTo(another.getRemotePath());
         }
-        return new AlphanumComparator().compare(this, another);
+        return result;
     }
 
     @Override
@@ -496,6 +577,32 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         this.mEtag = etag;
     }
 
+    /**
+     * Returns the ETag of the file in the server, as it was read in the last synchronization
+     * of its parent folder.
+     *
+     * Differently to {@link #getEtag()}, it's updated even though the contents of the file
+     * (or folder) were not synchronized. For folders, a value equal to {@link #getEtag()}
+     * means that the folder was synchronized with the latest version known of its contents.
+     *
+     * @return ETag of the file in the server, or null if unknown.
+     */
+    public String getEtagInServer() {
+        return mEtagInServer;
+    }
+
+    public void setEtagInServer(String etagInServer) {
+        this.mEtagInServer = etagInServer;
+    }
+
+    /**
+     * @return 'True' if the contents of the folder were synchronized for the version of the
+     * folder last seen in the server, according to the ETags.
+     */
+    public boolean isEtagInSyncWithServer() {
+        return (mEtag != null && mEtag.length() > 0 && mEtag.equalsIgnoreCase(mEtagInServer));
+    }
+
 
     public boolean isShareByLink() {
         return mShareByLink;
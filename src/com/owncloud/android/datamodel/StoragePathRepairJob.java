@@ -0,0 +1,87 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Binds the files saved without local path to the copies found in their default local path.
+ *
+ * Old versions of the app could leave downloaded files without local path in the database;
+ * these were searched for in the file system every time a file was read. Current sync
+ * operations bind them when the folder is refreshed, so the rest are repaired once, in the
+ * background, when the app starts.
+ */
+public class StoragePathRepairJob implements Runnable {
+
+    private static final String TAG = StoragePathRepairJob.class.getSimpleName();
+
+    private static final String PREF_REPAIRED = "storage_paths_repaired";
+
+    private static boolean sStarted = false;
+
+    private final Context mContext;
+
+
+    /**
+     * Starts the repair in a background thread, unless it was done before.
+     *
+     * It's postponed to the next start of the app if the external storage is not available.
+     */
+    public static synchronized void startOnce(Context context) {
+        if (sStarted) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        if (prefs.getBoolean(PREF_REPAIRED, false) ||
+                !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return;
+        }
+        sStarted = true;
+        new Thread(new StoragePathRepairJob(appContext), TAG).start();
+    }
+
+    private StoragePathRepairJob(Context context) {
+        mContext = context;
+    }
+
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            int repaired = FileDao.getInstance(mContext).repairStoragePaths();
+            Log_OC.d(TAG, "Local path repaired for " + repaired + " files");
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .putBoolean(PREF_REPAIRED, true).apply();
+
+        } catch (RuntimeException e) {
+            Log_OC.e(TAG, "Local paths could not be repaired, will retry in next start", e);
+        }
+    }
+
+}
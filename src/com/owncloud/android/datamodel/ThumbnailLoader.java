@@ -0,0 +1,483 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.R;
+import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.status.OwnCloudVersion;
+import com.owncloud.android.utils.BitmapUtils;
+
+/**
+ * Loads the thumbnails shown in lists of files into their {@link ImageView}s.
+ *
+ * Thumbnails are generated by a small pool of background threads taking the most recent request
+ * first, so that the cells visible after a fast scroll are served before the ones scrolled out
+ * of the screen. The number of pending requests is bounded; the oldest are dropped when it's
+ * exceeded. Requests for the same thumbnail are merged, and requests left without views to
+ * fill, because the views were recycled for other files, are cancelled.
+ *
+ * Must be called from the main thread.
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = ThumbnailLoader.class.getSimpleName();
+
+    /** Maximum number of requests waiting for a thread */
+    private static final int MAX_PENDING = 48;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String THUMBNAIL_PATH = "/index.php/apps/files/api/v1/thumbnail/";
+
+    private static ThumbnailLoader sInstance = null;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mThumbnailSize;
+
+    /** Requests pending or in progress, by key of the thumbnail */
+    private final Map<String, Request> mRequests = new HashMap<String, Request>();
+
+    /** Request each view is waiting for */
+    private final Map<ImageView, Request> mViews = new WeakHashMap<ImageView, Request>();
+
+    /** Clients used to download thumbnails, by account name; shared by the worker threads, and
+     *  dropped when their credentials are rejected or the accounts are updated */
+    private final Map<String, OwnCloudClient> mClients = new HashMap<String, OwnCloudClient>();
+
+
+    public static ThumbnailLoader getInstance() {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(MainApp.getAppContext());
+        }
+        return sInstance;
+    }
+
+
+    private ThumbnailLoader(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        Resources resources = context.getResources();
+        mThumbnailSize = Math.round(resources.getDimension(R.dimen.file_icon_size_grid));
+        int maxParallel = Math.max(resources.getInteger(R.integer.thumbnails_max_parallel), 1);
+        mExecutor = new ThreadPoolExecutor(
+                maxParallel,
+                maxParallel,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LifoQueue(MAX_PENDING),
+                new WorkerThreadFactory(),
+                new DropOldestPolicy()
+        );
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        AccountManager.get(context).addOnAccountsUpdatedListener(new OnAccountsUpdateListener() {
+            @Override
+            public void onAccountsUpdated(Account[] accounts) {
+                synchronized (mClients) {
+                    mClients.clear();
+                }
+            }
+        }, mHandler, false);
+    }
+
+
+    /**
+     * Shows in imageView the thumbnail of a file in an ownCloud account; a default image is
+     * shown until it's available.
+     */
+    public void load(OCFile file, ImageView imageView, FileDataStorageManager storageManager,
+                     Account account) {
+        load(String.valueOf(file.getRemoteId()), file, imageView, storageManager, account);
+    }
+
+    /**
+     * Shows in imageView the thumbnail of a local file; a default image is shown until it's
+     * available.
+     */
+    public void load(File file, ImageView imageView) {
+        load(String.valueOf(file.hashCode()), file, imageView, null, null);
+    }
+
+    /**
+     * Stops waiting for a thumbnail for imageView, because it's going to show something else.
+     */
+    public void cancel(ImageView imageView) {
+        Request request = mViews.get(imageView);
+        if (request != null) {
+            detach(imageView, request);
+        }
+    }
+
+
+    private void load(String key, Object file, ImageView imageView,
+                      FileDataStorageManager storageManager, Account account) {
+        boolean needsUpdate = (file instanceof OCFile && ((OCFile) file).needsUpdateThumbnail());
+        Bitmap cached = ThumbnailsCacheManager.getBitmapFromMemoryCache(key);
+        if (cached != null && !needsUpdate) {
+            cancel(imageView);
+            imageView.setImageBitmap(cached);
+            return;
+        }
+
+        Request current = mViews.get(imageView);
+        if (current != null) {
+            if (current.mKey.equals(key)) {
+                // the same thumbnail is on the way
+                return;
+            }
+            detach(imageView, current);
+        }
+        imageView.setImageBitmap((cached != null) ? cached : ThumbnailsCacheManager.mDefaultImg);
+
+        Request request = mRequests.get(key);
+        boolean isNew = (request == null);
+        if (isNew) {
+            request = new Request(key, file, storageManager, account);
+            mRequests.put(key, request);
+        }
+        request.mTargets.add(new WeakReference<ImageView>(imageView));
+        mViews.put(imageView, request);
+        if (isNew) {
+            mExecutor.execute(request);
+        }
+    }
+
+
+    private void detach(ImageView imageView, Request request) {
+        mViews.remove(imageView);
+        Iterator<WeakReference<ImageView>> it = request.mTargets.iterator();
+        while (it.hasNext()) {
+            ImageView target = it.next().get();
+            if (target == null || target == imageView) {
+                it.remove();
+            }
+        }
+        if (request.mTargets.isEmpty()) {
+            discard(request);
+        }
+    }
+
+    /**
+     * Forgets a request nobody waits for; it's not run if it did not start yet.
+     */
+    private void discard(Request request) {
+        request.mCancelled = true;
+        mExecutor.remove(request);
+        if (mRequests.get(request.mKey) == request) {
+            mRequests.remove(request.mKey);
+        }
+        for (WeakReference<ImageView> ref : request.mTargets) {
+            ImageView target = ref.get();
+            if (target != null && mViews.get(target) == request) {
+                mViews.remove(target);
+            }
+        }
+        request.mTargets.clear();
+    }
+
+    private void deliver(Request request, Bitmap thumbnail) {
+        if (mRequests.get(request.mKey) == request) {
+            mRequests.remove(request.mKey);
+        }
+        for (WeakReference<ImageView> ref : request.mTargets) {
+            ImageView target = ref.get();
+            if (target != null && mViews.get(target) == request) {
+                mViews.remove(target);
+                if (thumbnail != null) {
+                    target.setImageBitmap(thumbnail);
+                }
+            }
+        }
+        request.mTargets.clear();
+    }
+
+
+    private OwnCloudClient getClient(Account account) throws Exception {
+        synchronized (mClients) {
+            OwnCloudClient client = mClients.get(account.name);
+            if (client == null) {
+                OwnCloudAccount ocAccount = new OwnCloudAccount(account, mContext);
+                client = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        getClientFor(ocAccount, mContext);
+                mClients.put(account.name, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Drops the client of an account, if it's still the given one, so that the next download
+     * gets a new one with the current credentials.
+     */
+    private void removeClient(Account account, OwnCloudClient client) {
+        synchronized (mClients) {
+            if (mClients.get(account.name) == client) {
+                mClients.remove(account.name);
+            }
+        }
+    }
+
+
+    /**
+     * Generation of a thumbnail, for every view waiting for it.
+     */
+    private class Request implements Runnable {
+
+        private final String mKey;
+        private final Object mFile;
+        private final FileDataStorageManager mStorageManager;
+        private final Account mAccount;
+
+        /** Views waiting for the thumbnail; only accessed from the main thread */
+        private final List<WeakReference<ImageView>> mTargets =
+                new ArrayList<WeakReference<ImageView>>();
+
+        private volatile boolean mCancelled = false;
+
+        Request(String key, Object file, FileDataStorageManager storageManager,
+                Account account) {
+            mKey = key;
+            mFile = file;
+            mStorageManager = storageManager;
+            mAccount = account;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Bitmap thumbnail = null;
+            try {
+                if (mFile instanceof OCFile) {
+                    thumbnail = generate((OCFile) mFile);
+                } else if (mFile instanceof File) {
+                    thumbnail = generate((File) mFile);
+                }
+            } catch (Throwable t) {
+                // the app should never break due to a problem with thumbnails
+                Log_OC.e(TAG, "Generation of thumbnail for " + mFile + " failed", t);
+                if (t instanceof OutOfMemoryError) {
+                    System.gc();
+                }
+            }
+
+            final Bitmap result = thumbnail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Request.this, result);
+                }
+            });
+        }
+
+        private Bitmap getCachedThumbnail() {
+            Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(mKey);
+            if (thumbnail == null) {
+                thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(mKey);
+            }
+            return thumbnail;
+        }
+
+        private Bitmap generate(OCFile file) throws Exception {
+            Bitmap thumbnail = getCachedThumbnail();
+            if (thumbnail != null && !file.needsUpdateThumbnail()) {
+                return thumbnail;
+            }
+
+            if (file.isDown()) {
+                Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
+                        file.getStoragePath(), mThumbnailSize, mThumbnailSize);
+                if (bitmap != null) {
+                    thumbnail = addThumbnailToCache(bitmap, file.getStoragePath());
+                    file.setNeedsUpdateThumbnail(false);
+                    mStorageManager.saveFile(file);
+                }
+
+            } else if (!mCancelled) {
+                thumbnail = download(file);
+            }
+            return thumbnail;
+        }
+
+        private Bitmap generate(File file) {
+            Bitmap thumbnail = getCachedThumbnail();
+            if (thumbnail == null) {
+                Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
+                        file.getAbsolutePath(), mThumbnailSize, mThumbnailSize);
+                if (bitmap != null) {
+                    thumbnail = addThumbnailToCache(bitmap, file.getPath());
+                }
+            }
+            return thumbnail;
+        }
+
+        /**
+         * Gets the thumbnail of a file not available in the device from the server.
+         */
+        private Bitmap download(OCFile file) throws Exception {
+            OwnCloudVersion serverVersion = AccountUtils.getServerVersion(mAccount);
+            if (serverVersion == null || !serverVersion.supportsRemoteThumbnails()) {
+                Log_OC.d(TAG, "Server too old");
+                return null;
+            }
+            OwnCloudClient client = getClient(mAccount);
+            String uri = client.getBaseUri() + THUMBNAIL_PATH + mThumbnailSize + "/" +
+                    mThumbnailSize + Uri.encode(file.getRemotePath(), "/");
+            Log_OC.d(TAG, "URI: " + uri);
+            GetMethod get = new GetMethod(uri);
+            try {
+                int status = client.executeMethod(get);
+                if (status == HttpStatus.SC_OK) {
+                    InputStream inputStream = get.getResponseBodyAsStream();
+                    Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+                    Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, mThumbnailSize,
+                            mThumbnailSize);
+                    if (thumbnail != null) {
+                        ThumbnailsCacheManager.addBitmapToCache(mKey, thumbnail);
+                    }
+                    return thumbnail;
+                } else {
+                    if (status == HttpStatus.SC_UNAUTHORIZED) {
+                        removeClient(mAccount, client);
+                    }
+                    client.exhaustResponse(get.getResponseBodyAsStream());
+                    return null;
+                }
+            } finally {
+                get.releaseConnection();
+            }
+        }
+
+        /**
+         * Scales down an image, rotates it obeying its EXIF orientation and caches the result.
+         */
+        private Bitmap addThumbnailToCache(Bitmap bitmap, String path) {
+            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, mThumbnailSize,
+                    mThumbnailSize);
+            thumbnail = BitmapUtils.rotateImage(thumbnail, path);
+            ThumbnailsCacheManager.addBitmapToCache(mKey, thumbnail);
+            return thumbnail;
+        }
+    }
+
+
+    /**
+     * Bounded queue handing the most recent request first.
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        LifoQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+
+
+    /**
+     * Makes room for a new request, when the queue is full, dropping the oldest one; it's the
+     * least likely to be still visible.
+     */
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            BlockingQueue<Runnable> queue = executor.getQueue();
+            Runnable oldest = ((LifoQueue) queue).pollLast();
+            if (oldest instanceof Request) {
+                discard((Request) oldest);
+            }
+            if (!queue.offer(runnable)) {
+                discard((Request) runnable);
+            }
+        }
+    }
+
+
+    /**
+     * Creates the threads for the thumbnail workers, with background priority.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ThumbnailLoaderThread-" + mCount.getAndIncrement());
+        }
+    }
+
+}
@@ -22,38 +22,25 @@
 package com.owncloud.android.datamodel;
 
 import java.io.File;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
 
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
-
-import android.accounts.Account;
-import android.content.res.Resources;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.media.ThumbnailUtils;
-import android.net.Uri;
 import android.os.AsyncTask;
-import android.widget.ImageView;
+import android.util.LruCache;
 
 import com.owncloud.android.MainApp;
-import com.owncloud.android.R;
-import com.owncloud.android.authentication.AccountUtils;
-import com.owncloud.android.lib.common.OwnCloudAccount;
-import com.owncloud.android.lib.common.OwnCloudClient;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.ui.adapter.DiskLruImageCache;
-import com.owncloud.android.utils.BitmapUtils;
 import com.owncloud.android.utils.DisplayUtils;
 
 /**
  * Manager for concurrent access to thumbnails cache.
+ *
+ * Thumbnails are kept decoded in memory, in front of the disk cache; only the memory tier
+ * may be read from the main thread.
  */
 public class ThumbnailsCacheManager {
     
@@ -68,7 +55,11 @@ public class ThumbnailsCacheManager {
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
     private static final CompressFormat mCompressFormat = CompressFormat.JPEG;
     private static final int mCompressQuality = 70;
-    private static OwnCloudClient mClient = null;
+
+    /** Fraction of the memory class of the app used to keep decoded thumbnails */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+
+    private static final LruCache<String, Bitmap> mMemoryCache = createMemoryCache();
 
     public static Bitmap mDefaultImg = 
             BitmapFactory.decodeResource(
@@ -76,6 +67,21 @@ public class ThumbnailsCacheManager {
                     DisplayUtils.getFileTypeIconId("image/png", "default.png")
             );
 
+
+
+    private static LruCache<String, Bitmap> createMemoryCache() {
+        ActivityManager activityManager = (ActivityManager) MainApp.getAppContext().
+                getSystemService(Context.ACTIVITY_SERVICE);
+        int size = 1024 * 1024 * activityManager.getMemoryClass() / MEMORY_CACHE_DIVIDER;
+        Log_OC.d(TAG, "Memory cache of thumbnails: " + size + " bytes");
+        return new LruCache<String, Bitmap>(size) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
     
     public static class InitDiskCacheTask extends AsyncTask<File, Void, Void> {
 
@@ -113,6 +119,7 @@ public class ThumbnailsCacheManager {
     
     
     public static void addBitmapToCache(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
         synchronized (mThumbnailsDiskCacheLock) {
             if (mThumbnailCache != null) {
                 mThumbnailCache.put(key, bitmap);
@@ -121,7 +128,22 @@ public class ThumbnailsCacheManager {
     }
 
 
+    /**
+     * Safe to call from the main thread.
+     *
+     * @return      Thumbnail kept in memory for key, or null if none is.
+     */
+    public static Bitmap getBitmapFromMemoryCache(String key) {
+        return mMemoryCache.get(key);
+    }
+
+
+    /**
+     * Reads a thumbnail from the disk cache and keeps it in memory. Must not be called from
+     * the main thread.
+     */
     public static Bitmap getBitmapFromDiskCache(String key) {
+        DiskLruImageCache diskCache;
         synchronized (mThumbnailsDiskCacheLock) {
             // Wait while disk cache is started from background thread
             while (mThumbnailCacheStarting) {
@@ -131,251 +153,15 @@ public class ThumbnailsCacheManager {
                     Log_OC.e(TAG, "Wait in mThumbnailsDiskCacheLock was interrupted", e);
                 }
             }
-            if (mThumbnailCache != null) {
-                return mThumbnailCache.getBitmap(key);
-            }
+            diskCache = mThumbnailCache;
         }
-        return null;
-    }
-
-    public static class ThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> {
-        private final WeakReference<ImageView> mImageViewReference;
-        private static Account mAccount;
-        private Object mFile;
-        private FileDataStorageManager mStorageManager;
-
-
-        public ThumbnailGenerationTask(ImageView imageView, FileDataStorageManager storageManager,
-                                       Account account) {
-            // Use a WeakReference to ensure the ImageView can be garbage collected
-            mImageViewReference = new WeakReference<ImageView>(imageView);
-            if (storageManager == null)
-                throw new IllegalArgumentException("storageManager must not be NULL");
-            mStorageManager = storageManager;
-            mAccount = account;
-        }
-
-        public ThumbnailGenerationTask(ImageView imageView) {
-            // Use a WeakReference to ensure the ImageView can be garbage collected
-            mImageViewReference = new WeakReference<ImageView>(imageView);
-        }
-
-        @Override
-        protected Bitmap doInBackground(Object... params) {
-            Bitmap thumbnail = null;
-
-            try {
-                if (mAccount != null) {
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mAccount,
-                            MainApp.getAppContext());
-                    mClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, MainApp.getAppContext());
-                }
-
-                mFile = params[0];
-                
-                if (mFile instanceof OCFile) {
-                    thumbnail = doOCFileInBackground();
-                }  else if (mFile instanceof File) {
-                    thumbnail = doFileInBackground();
-                //} else {  do nothing
-                }
-
-                }catch(Throwable t){
-                    // the app should never break due to a problem with thumbnails
-                    Log_OC.e(TAG, "Generation of thumbnail for " + mFile + " failed", t);
-                    if (t instanceof OutOfMemoryError) {
-                        System.gc();
-                    }
-                }
-
-            return thumbnail;
-        }
-
-        protected void onPostExecute(Bitmap bitmap){
-            if (isCancelled()) {
-                bitmap = null;
-            }
-
+        Bitmap bitmap = null;
+        if (diskCache != null) {
+            bitmap = diskCache.getBitmap(key);
             if (bitmap != null) {
-                final ImageView imageView = mImageViewReference.get();
-                final ThumbnailGenerationTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-                if (this == bitmapWorkerTask) {
-                    String tagId = "";
-                    if (mFile instanceof OCFile){
-                        tagId = String.valueOf(((OCFile)mFile).getFileId());
-                    } else if (mFile instanceof File){
-                        tagId = String.valueOf(mFile.hashCode());
-                    }
-                    if (String.valueOf(imageView.getTag()).equals(tagId)) {
-                        imageView.setImageBitmap(bitmap);
-                    }
-                }
-            }
-        }
-
-        /**
-         * Add thumbnail to cache
-         * @param imageKey: thumb key
-         * @param bitmap:   image for extracting thumbnail
-         * @param path:     image path
-         * @param px:       thumbnail dp
-         * @return Bitmap
-         */
-        private Bitmap addThumbnailToCache(String imageKey, Bitmap bitmap, String path, int px){
-
-            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
-
-            // Rotate image, obeying exif tag
-            thumbnail = BitmapUtils.rotateImage(thumbnail,path);
-
-            // Add thumbnail to cache
-            addBitmapToCache(imageKey, thumbnail);
-
-            return thumbnail;
-        }
-
-        /**
-         * Converts size of file icon from dp to pixel
-         * @return int
-         */
-        private int getThumbnailDimension(){
-            // Converts dp to pixel
-            Resources r = MainApp.getAppContext().getResources();
-            return Math.round(r.getDimension(R.dimen.file_icon_size_grid));
-        }
-
-        private Bitmap doOCFileInBackground() {
-            OCFile file = (OCFile)mFile;
-
-            final String imageKey = String.valueOf(file.getRemoteId());
-
-            // Check disk cache in background thread
-            Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
-
-            // Not found in disk cache
-            if (thumbnail == null || file.needsUpdateThumbnail()) {
-
-                int px = getThumbnailDimension();
-
-                if (file.isDown()) {
-                    Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
-                            file.getStoragePath(), px, px);
-
-                    if (bitmap != null) {
-                        thumbnail = addThumbnailToCache(imageKey, bitmap, file.getStoragePath(), px);
-
-                        file.setNeedsUpdateThumbnail(false);
-                        mStorageManager.saveFile(file);
-                    }
-
-                } else {
-                    // Download thumbnail from server
-                    OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(mAccount);
-                    if (mClient != null && serverOCVersion != null) {
-                        if (serverOCVersion.supportsRemoteThumbnails()) {
-                            try {
-                                String uri = mClient.getBaseUri() + "" +
-                                        "/index.php/apps/files/api/v1/thumbnail/" +
-                                        px + "/" + px + Uri.encode(file.getRemotePath(), "/");
-                                Log_OC.d("Thumbnail", "URI: " + uri);
-                                GetMethod get = new GetMethod(uri);
-                                int status = mClient.executeMethod(get);
-                                if (status == HttpStatus.SC_OK) {
-//                                    byte[] bytes = get.getResponseBody();
-//                                    Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0,
-//                                            bytes.length);
-                                    InputStream inputStream = get.getResponseBodyAsStream();
-                                    Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                                    thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
-
-                                    // Add thumbnail to cache
-                                    if (thumbnail != null) {
-                                        addBitmapToCache(imageKey, thumbnail);
-                                    }
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        } else {
-                            Log_OC.d(TAG, "Server too old");
-                        }
-                    }
-                }
+                mMemoryCache.put(key, bitmap);
             }
-
-            return thumbnail;
-
-        }
-
-        private Bitmap doFileInBackground() {
-            File file = (File)mFile;
-
-            final String imageKey = String.valueOf(file.hashCode());
-
-            // Check disk cache in background thread
-            Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
-
-            // Not found in disk cache
-            if (thumbnail == null) {
-
-                int px = getThumbnailDimension();
-
-                Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
-                        file.getAbsolutePath(), px, px);
-
-                if (bitmap != null) {
-                    thumbnail = addThumbnailToCache(imageKey, bitmap, file.getPath(), px);
-                }
-            }
-            return thumbnail;
-        }
-
-    }
-
-    public static boolean cancelPotentialWork(Object file, ImageView imageView) {
-        final ThumbnailGenerationTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-        if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.mFile;
-            // If bitmapData is not yet set or it differs from the new data
-            if (bitmapData == null || bitmapData != file) {
-                // Cancel previous task
-                bitmapWorkerTask.cancel(true);
-            } else {
-                // The same work is already in progress
-                return false;
-            }
-        }
-        // No task associated with the ImageView, or an existing task was cancelled
-        return true;
-    }
-
-    public static ThumbnailGenerationTask getBitmapWorkerTask(ImageView imageView) {
-        if (imageView != null) {
-            final Drawable drawable = imageView.getDrawable();
-            if (drawable instanceof AsyncDrawable) {
-                final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
-            }
-        }
-        return null;
-    }
-
-    public static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<ThumbnailGenerationTask> bitmapWorkerTaskReference;
-
-        public AsyncDrawable(
-                Resources res, Bitmap bitmap, ThumbnailGenerationTask bitmapWorkerTask
-        ) {
-
-            super(res, bitmap);
-            bitmapWorkerTaskReference =
-                    new WeakReference<ThumbnailGenerationTask>(bitmapWorkerTask);
-        }
-
-        public ThumbnailGenerationTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
         }
+        return bitmap;
     }
 }
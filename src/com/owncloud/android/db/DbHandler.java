@@ -20,6 +20,8 @@
  */
 package com.owncloud.android.db;
 
+import java.util.List;
+
 import com.owncloud.android.MainApp;
 import com.owncloud.android.lib.common.utils.Log_OC;
 
@@ -31,26 +33,95 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 /**
  * Custom database helper for ownCloud
+ *
+ * All the instances in the process share a single connection, so that writes from the transfer
+ * services and their operations are serialized by SQLite instead of failing with
+ * {@link android.database.sqlite.SQLiteDatabaseLockedException}.
  */
 public class DbHandler {
+
+    private static DbHandler sInstance = null;
+
+    /** Connection shared by all the instances; open while the process lives */
+    private static SQLiteDatabase sDB = null;
+
     private SQLiteDatabase mDB;
-    private OpenerHelper mHelper;
     private final String mDatabaseName;
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 6;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
 
+    private static final String TABLE_CHUNKED_UPLOAD = "chunked_upload";
+
+    public static final String CHUNKED_UPLOAD_ID = "_id";
+    public static final String CHUNKED_UPLOAD_ACCOUNT = "account";
+    public static final String CHUNKED_UPLOAD_LOCAL_PATH = "local_path";
+    public static final String CHUNKED_UPLOAD_REMOTE_PATH = "remote_path";
+    public static final String CHUNKED_UPLOAD_TARGET_REMOTE_PATH = "target_remote_path";
+    public static final String CHUNKED_UPLOAD_TRANSFER_ID = "transfer_id";
+    public static final String CHUNKED_UPLOAD_CHUNK_SIZE = "chunk_size";
+    public static final String CHUNKED_UPLOAD_CHUNKS_CONFIRMED = "chunks_confirmed";
+    public static final String CHUNKED_UPLOAD_LOCAL_SIZE = "local_size";
+    public static final String CHUNKED_UPLOAD_LOCAL_MODIFIED = "local_modified";
+
+    private static final String TABLE_PARTIAL_DOWNLOAD = "partial_download";
+
+    private static final String PARTIAL_DOWNLOAD_ACCOUNT = "account";
+    private static final String PARTIAL_DOWNLOAD_REMOTE_PATH = "remote_path";
+    private static final String PARTIAL_DOWNLOAD_ETAG = "etag";
+
+    private static final String TABLE_TRANSFER = "transfer";
+
+    public static final String TRANSFER_ID = "_id";
+    public static final String TRANSFER_TYPE = "type";
+    public static final String TRANSFER_ACCOUNT = "account";
+    public static final String TRANSFER_LOCAL_PATH = "local_path";
+    public static final String TRANSFER_REMOTE_PATH = "remote_path";
+    public static final String TRANSFER_MIME_TYPE = "mime_type";
+    public static final String TRANSFER_STATE = "state";
+    public static final String TRANSFER_ATTEMPTS = "attempts";
+    public static final String TRANSFER_BYTES_DONE = "bytes_done";
+    public static final String TRANSFER_BYTES_TOTAL = "bytes_total";
+    public static final String TRANSFER_FORCE_OVERWRITE = "force_overwrite";
+    public static final String TRANSFER_INSTANT = "instant";
+    public static final String TRANSFER_LOCAL_BEHAVIOUR = "local_behaviour";
+    public static final String TRANSFER_UPDATED = "updated";
+
+    public static final int TRANSFER_TYPE_UPLOAD = 0;
+    public static final int TRANSFER_TYPE_DOWNLOAD = 1;
+
+    public static final int TRANSFER_STATE_QUEUED = 0;
+    public static final int TRANSFER_STATE_RUNNING = 1;
+    public static final int TRANSFER_STATE_DONE = 2;
+    public static final int TRANSFER_STATE_FAILED = 3;
+
+    private static final String TRANSFER_KEY_SELECTION = TRANSFER_TYPE + "=? AND " +
+            TRANSFER_ACCOUNT + "=? AND " + TRANSFER_REMOTE_PATH + "=?";
+
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
 
+    public static synchronized DbHandler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DbHandler(context);
+        }
+        return sInstance;
+    }
+
     public DbHandler(Context context) {
         mDatabaseName = MainApp.getDBName();
-        mHelper = new OpenerHelper(context);
-        mDB = mHelper.getWritableDatabase();
+        synchronized (DbHandler.class) {
+            if (sDB == null) {
+                sDB = new OpenerHelper(context.getApplicationContext()).getWritableDatabase();
+            }
+            mDB = sDB;
+        }
     }
 
+    /**
+     * Does nothing; the connection is shared with the rest of instances in the process.
+     */
     public void close() {
-        mDB.close();
     }
 
     public boolean putFileForLater(String filepath, String account, String message) {
@@ -97,6 +168,269 @@ public class DbHandler {
 
     }
 
+    /**
+     * Returns the state of an interrupted chunked upload.
+     *
+     * @param account       Name of the ownCloud account the file is uploaded to.
+     * @param localPath     Full path to the local file uploaded.
+     * @param remotePath    Remote path requested for the upload.
+     * @return              Cursor with the state of the upload, empty if none was saved.
+     */
+    public Cursor getChunkedUpload(String account, String localPath, String remotePath) {
+        return mDB.query(TABLE_CHUNKED_UPLOAD, null,
+                CHUNKED_UPLOAD_ACCOUNT + "=? AND " + CHUNKED_UPLOAD_LOCAL_PATH + "=? AND " +
+                        CHUNKED_UPLOAD_REMOTE_PATH + "=?",
+                new String[] { account, localPath, remotePath }, null, null, null);
+    }
+
+    /**
+     * Saves the state of a chunked upload starting, with no chunk confirmed yet.
+     *
+     * @return  Id of the saved upload, or -1 if it could not be saved.
+     */
+    public long putChunkedUpload(String account, String localPath, String remotePath,
+                                 String targetRemotePath, String transferId, long chunkSize,
+                                 long localSize, long localModified) {
+        ContentValues cv = new ContentValues();
+        cv.put(CHUNKED_UPLOAD_ACCOUNT, account);
+        cv.put(CHUNKED_UPLOAD_LOCAL_PATH, localPath);
+        cv.put(CHUNKED_UPLOAD_REMOTE_PATH, remotePath);
+        cv.put(CHUNKED_UPLOAD_TARGET_REMOTE_PATH, targetRemotePath);
+        cv.put(CHUNKED_UPLOAD_TRANSFER_ID, transferId);
+        cv.put(CHUNKED_UPLOAD_CHUNK_SIZE, chunkSize);
+        cv.put(CHUNKED_UPLOAD_CHUNKS_CONFIRMED, 0);
+        cv.put(CHUNKED_UPLOAD_LOCAL_SIZE, localSize);
+        cv.put(CHUNKED_UPLOAD_LOCAL_MODIFIED, localModified);
+        long result = mDB.insert(TABLE_CHUNKED_UPLOAD, null, cv);
+        Log_OC.d(TABLE_CHUNKED_UPLOAD, "putChunkedUpload returns with: " + result + " for file: " + localPath);
+        return result;
+    }
+
+    /**
+     * Updates the number of chunks of an upload confirmed by the server, counting from the first.
+     */
+    public int updateChunksConfirmed(long id, long chunksConfirmed) {
+        ContentValues cv = new ContentValues();
+        cv.put(CHUNKED_UPLOAD_CHUNKS_CONFIRMED, chunksConfirmed);
+        return mDB.update(TABLE_CHUNKED_UPLOAD, cv, CHUNKED_UPLOAD_ID + "=?",
+                new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * @return true when the state of the upload was removed
+     */
+    public boolean removeChunkedUpload(long id) {
+        long result = mDB.delete(TABLE_CHUNKED_UPLOAD, CHUNKED_UPLOAD_ID + "=?",
+                new String[] { String.valueOf(id) });
+        Log_OC.d(TABLE_CHUNKED_UPLOAD, "delete returns with: " + result + " for upload: " + id);
+        return result != 0;
+    }
+
+    /**
+     * @param account       Name of the ownCloud account the file is downloaded from.
+     * @param remotePath    Remote path of the file downloaded.
+     * @return              ETag of the remote file the partially downloaded local file belongs
+     *                      to, or null if unknown.
+     */
+    public String getPartialDownloadEtag(String account, String remotePath) {
+        String etag = null;
+        Cursor c = mDB.query(TABLE_PARTIAL_DOWNLOAD, new String[] { PARTIAL_DOWNLOAD_ETAG },
+                PARTIAL_DOWNLOAD_ACCOUNT + "=? AND " + PARTIAL_DOWNLOAD_REMOTE_PATH + "=?",
+                new String[] { account, remotePath }, null, null, null);
+        if (c.moveToFirst()) {
+            etag = c.getString(0);
+        }
+        c.close();
+        return etag;
+    }
+
+    /**
+     * Saves the ETag of the remote file a partially downloaded local file belongs to.
+     */
+    public void putPartialDownload(String account, String remotePath, String etag) {
+        ContentValues cv = new ContentValues();
+        cv.put(PARTIAL_DOWNLOAD_ETAG, etag);
+        String[] whereArgs = new String[] { account, remotePath };
+        int updated = mDB.update(TABLE_PARTIAL_DOWNLOAD, cv,
+                PARTIAL_DOWNLOAD_ACCOUNT + "=? AND " + PARTIAL_DOWNLOAD_REMOTE_PATH + "=?",
+                whereArgs);
+        if (updated == 0) {
+            cv.put(PARTIAL_DOWNLOAD_ACCOUNT, account);
+            cv.put(PARTIAL_DOWNLOAD_REMOTE_PATH, remotePath);
+            mDB.insert(TABLE_PARTIAL_DOWNLOAD, null, cv);
+        }
+    }
+
+    public boolean removePartialDownload(String account, String remotePath) {
+        long result = mDB.delete(TABLE_PARTIAL_DOWNLOAD,
+                PARTIAL_DOWNLOAD_ACCOUNT + "=? AND " + PARTIAL_DOWNLOAD_REMOTE_PATH + "=?",
+                new String[] { account, remotePath });
+        return result != 0;
+    }
+
+    /**
+     * Saves transfers in the journal, all of them in a single transaction.
+     *
+     * A transfer already in the journal for the same type, account and remote path is replaced.
+     *
+     * @param transfers     Values of the transfers, with at least type, account, remote path
+     *                      and state.
+     * @return              Row ids of the transfers saved, in the same order.
+     */
+    public long[] putTransfers(List<ContentValues> transfers) {
+        long[] ids = new long[transfers.size()];
+        mDB.beginTransaction();
+        try {
+            int i = 0;
+            for (ContentValues cv : transfers) {
+                cv.put(TRANSFER_UPDATED, System.currentTimeMillis());
+                ids[i++] = mDB.insertWithOnConflict(TABLE_TRANSFER, null, cv,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+        Log_OC.d(TABLE_TRANSFER, "putTransfers saved " + transfers.size() + " transfers");
+        return ids;
+    }
+
+    /**
+     * Updates a transfer in the journal.
+     *
+     * @return      Number of transfers updated.
+     */
+    public int updateTransfer(int type, String account, String remotePath, ContentValues cv) {
+        cv.put(TRANSFER_UPDATED, System.currentTimeMillis());
+        return mDB.update(TABLE_TRANSFER, cv, TRANSFER_KEY_SELECTION,
+                new String[] { String.valueOf(type), account, remotePath });
+    }
+
+    /**
+     * Sets a transfer in the journal as running, and counts a new attempt.
+     */
+    public void startTransfer(int type, String account, String remotePath) {
+        mDB.execSQL("UPDATE " + TABLE_TRANSFER + " SET " +
+                TRANSFER_STATE + "=" + TRANSFER_STATE_RUNNING + ", " +
+                TRANSFER_ATTEMPTS + "=" + TRANSFER_ATTEMPTS + "+1, " +
+                TRANSFER_UPDATED + "=" + System.currentTimeMillis() +
+                " WHERE " + TRANSFER_KEY_SELECTION,
+                new Object[] { type, account, remotePath });
+    }
+
+    /**
+     * Removes transfers from the journal.
+     *
+     * @param remotePath    Remote path of the transfer to remove; if null, all the transfers
+     *                      of the account are removed; if a folder, ended in '/', the transfers
+     *                      of all its descendants are removed.
+     * @return              Number of transfers removed.
+     */
+    public int removeTransfers(int type, String account, String remotePath) {
+        if (remotePath == null) {
+            return mDB.delete(TABLE_TRANSFER, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=?",
+                    new String[] { String.valueOf(type), account });
+        }
+        if (remotePath.endsWith("/")) {
+            return mDB.delete(TABLE_TRANSFER, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT +
+                            "=? AND substr(" + TRANSFER_REMOTE_PATH + ", 1, ?)=?",
+                    new String[] { String.valueOf(type), account,
+                            String.valueOf(remotePath.length()), remotePath });
+        }
+        return mDB.delete(TABLE_TRANSFER, TRANSFER_KEY_SELECTION,
+                new String[] { String.valueOf(type), account, remotePath });
+    }
+
+    /**
+     * @return      Cursor with the transfers queued or running, in the order they were saved.
+     */
+    public Cursor getUnfinishedTransfers(int type) {
+        return mDB.query(TABLE_TRANSFER, null,
+                TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + " IN (" +
+                        TRANSFER_STATE_QUEUED + ", " + TRANSFER_STATE_RUNNING + ")",
+                new String[] { String.valueOf(type) }, null, null, TRANSFER_ID);
+    }
+
+    /**
+     * Returns a page of the queued transfers of an account, in the order they were saved.
+     *
+     * @param afterId       Only transfers with a row id greater than this are returned.
+     * @param lastId        Only transfers with a row id up to this are returned.
+     * @param limit         Maximum number of transfers returned.
+     */
+    public Cursor getQueuedTransfers(int type, String account, long afterId, long lastId,
+                                     int limit) {
+        return mDB.query(TABLE_TRANSFER, null,
+                TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND " +
+                        TRANSFER_STATE + "=" + TRANSFER_STATE_QUEUED + " AND " +
+                        TRANSFER_ID + ">? AND " + TRANSFER_ID + "<=?",
+                new String[] { String.valueOf(type), account, String.valueOf(afterId),
+                        String.valueOf(lastId) },
+                null, null, TRANSFER_ID, String.valueOf(limit));
+    }
+
+    /**
+     * @return      Cursor with the account and the row id of its last queued transfer, for
+     *              every account with queued transfers.
+     */
+    public Cursor getQueuedTransferAccounts(int type) {
+        return mDB.query(TABLE_TRANSFER,
+                new String[] { TRANSFER_ACCOUNT, "MAX(" + TRANSFER_ID + ")" },
+                TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + "=" + TRANSFER_STATE_QUEUED,
+                new String[] { String.valueOf(type) }, TRANSFER_ACCOUNT, null, null);
+    }
+
+    /**
+     * Sets back as queued the transfers left running, as when the process was killed.
+     *
+     * @return      Number of transfers updated.
+     */
+    public int resetRunningTransfers(int type) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_QUEUED);
+        return mDB.update(TABLE_TRANSFER, cv,
+                TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + "=" + TRANSFER_STATE_RUNNING,
+                new String[] { String.valueOf(type) });
+    }
+
+    /**
+     * Sets as failed a single transfer, by row id.
+     */
+    public void failTransfer(long id) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_FAILED);
+        cv.put(TRANSFER_UPDATED, System.currentTimeMillis());
+        mDB.update(TABLE_TRANSFER, cv, TRANSFER_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Sets as failed the transfers queued or running that were already started a given number
+     * of times.
+     *
+     * @return      Number of transfers updated.
+     */
+    public int failExhaustedTransfers(int type, int maxAttempts) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_FAILED);
+        cv.put(TRANSFER_UPDATED, System.currentTimeMillis());
+        return mDB.update(TABLE_TRANSFER, cv,
+                TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + " IN (" + TRANSFER_STATE_QUEUED +
+                        ", " + TRANSFER_STATE_RUNNING + ") AND " + TRANSFER_ATTEMPTS + ">=?",
+                new String[] { String.valueOf(type), String.valueOf(maxAttempts) });
+    }
+
+    /**
+     * Removes from the journal the transfers done or failed.
+     *
+     * @return      Number of transfers removed.
+     */
+    public int removeFinishedTransfers(int type) {
+        return mDB.delete(TABLE_TRANSFER,
+                TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + " IN (" +
+                        TRANSFER_STATE_DONE + ", " + TRANSFER_STATE_FAILED + ")",
+                new String[] { String.valueOf(type) });
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -106,6 +440,9 @@ public class DbHandler {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
                     + " account TEXT,attempt INTEGER,message TEXT);");
+            createChunkedUploadTable(db);
+            createPartialDownloadTable(db);
+            createTransferTable(db);
         }
 
         @Override
@@ -113,7 +450,61 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                createChunkedUploadTable(db);
+            }
+            if (oldVersion < 5) {
+                createPartialDownloadTable(db);
+            }
+            if (oldVersion < 6) {
+                createTransferTable(db);
+            }
+        }
+
+        private void createChunkedUploadTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CHUNKED_UPLOAD + " ("
+                    + CHUNKED_UPLOAD_ID + " INTEGER PRIMARY KEY, "
+                    + CHUNKED_UPLOAD_ACCOUNT + " TEXT, "
+                    + CHUNKED_UPLOAD_LOCAL_PATH + " TEXT, "
+                    + CHUNKED_UPLOAD_REMOTE_PATH + " TEXT, "
+                    + CHUNKED_UPLOAD_TARGET_REMOTE_PATH + " TEXT, "
+                    + CHUNKED_UPLOAD_TRANSFER_ID + " TEXT, "
+                    + CHUNKED_UPLOAD_CHUNK_SIZE + " INTEGER, "
+                    + CHUNKED_UPLOAD_CHUNKS_CONFIRMED + " INTEGER, "
+                    + CHUNKED_UPLOAD_LOCAL_SIZE + " INTEGER, "
+                    + CHUNKED_UPLOAD_LOCAL_MODIFIED + " INTEGER);");
+        }
+
+        private void createPartialDownloadTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_PARTIAL_DOWNLOAD + " ("
+                    + " _id INTEGER PRIMARY KEY, "
+                    + PARTIAL_DOWNLOAD_ACCOUNT + " TEXT, "
+                    + PARTIAL_DOWNLOAD_REMOTE_PATH + " TEXT, "
+                    + PARTIAL_DOWNLOAD_ETAG + " TEXT);");
+        }
+
+        private void createTransferTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_TRANSFER + " ("
+                    + TRANSFER_ID + " INTEGER PRIMARY KEY, "
+                    + TRANSFER_TYPE + " INTEGER, "
+                    + TRANSFER_ACCOUNT + " TEXT, "
+                    + TRANSFER_LOCAL_PATH + " TEXT, "
+                    + TRANSFER_REMOTE_PATH + " TEXT, "
+                    + TRANSFER_MIME_TYPE + " TEXT, "
+                    + TRANSFER_STATE + " INTEGER, "
+                    + TRANSFER_ATTEMPTS + " INTEGER DEFAULT 0, "
+                    + TRANSFER_BYTES_DONE + " INTEGER DEFAULT 0, "
+                    + TRANSFER_BYTES_TOTAL + " INTEGER DEFAULT 0, "
+                    + TRANSFER_FORCE_OVERWRITE + " INTEGER DEFAULT 0, "
+                    + TRANSFER_INSTANT + " INTEGER DEFAULT 0, "
+                    + TRANSFER_LOCAL_BEHAVIOUR + " INTEGER DEFAULT 0, "
+                    + TRANSFER_UPDATED + " INTEGER);");
+            db.execSQL("CREATE UNIQUE INDEX " + TABLE_TRANSFER + "_key ON " + TABLE_TRANSFER
+                    + " (" + TRANSFER_TYPE + ", " + TRANSFER_ACCOUNT + ", " + TRANSFER_REMOTE_PATH
+                    + ");");
         }
         
         @Override
@@ -121,6 +512,9 @@ public class DbHandler {
             //downgrading is the exception, so deleting and re-creating is acceptable.
             //otherwise exception will be thrown (cannot downgrade) and oc app will crash.
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_INSTANT_UPLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHUNKED_UPLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_PARTIAL_DOWNLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRANSFER + ";");
             onCreate(db);
         }
     }
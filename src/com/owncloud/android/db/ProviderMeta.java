@@ -31,7 +31,7 @@ import com.owncloud.android.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 10;
+    public static final int DB_VERSION = 14;
 
     private ProviderMeta() {
     }
@@ -51,6 +51,16 @@ public class ProviderMeta {
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.owncloud.file";
         public static final String CONTENT_TYPE_ITEM = "vnd.android.cursor.item/vnd.owncloud.file";
 
+        // Methods and extras for ContentProvider#call
+        public static final String METHOD_SAVE_FOLDER = "save_folder";
+        public static final String EXTRA_ACCOUNT_NAME = "account_name";
+        public static final String EXTRA_FOLDER_ID = "folder_id";
+        public static final String EXTRA_FOLDER_VALUES = "folder_values";
+        public static final String EXTRA_FILES_VALUES = "files_values";
+        public static final String EXTRA_REMOVED_FILE_IDS = "removed_file_ids";
+        public static final String EXTRA_REMOVED_FOLDER_IDS = "removed_folder_ids";
+        public static final String EXTRA_FILE_IDS = "file_ids";
+
         // Columns of filelist table
         public static final String FILE_PARENT = "parent";
         public static final String FILE_NAME = "filename";
@@ -66,15 +76,28 @@ public class ProviderMeta {
         public static final String FILE_LAST_SYNC_DATE_FOR_DATA = "last_sync_date_for_data";
         public static final String FILE_KEEP_IN_SYNC = "keep_in_sync";
         public static final String FILE_ETAG = "etag";
+        public static final String FILE_ETAG_IN_SERVER = "etag_in_server";
         public static final String FILE_SHARE_BY_LINK = "share_by_link";
         public static final String FILE_PUBLIC_LINK = "public_link";
         public static final String FILE_PERMISSIONS = "permissions";
         public static final String FILE_REMOTE_ID = "remote_id";
         public static final String FILE_UPDATE_THUMBNAIL = "update_thumbnail";
         public static final String FILE_IS_DOWNLOADING= "is_downloading";
+        public static final String FILE_SORT_NAME = "sort_name";
+        public static final String FILE_IS_FOLDER = "is_folder";
+        public static final String FILE_DESCENDANT_COUNT = "descendant_count";
 
         public static final String FILE_DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
+
+        // Indexes of filelist table
+        public static final String FILE_ACCOUNT_PATH_INDEX = "filelist_owner_path_idx";
+        public static final String FILE_PARENT_INDEX = "filelist_parent_idx";
+        public static final String FILE_ACCOUNT_STORAGE_PATH_INDEX = "filelist_owner_media_path_idx";
+        public static final String FILE_KEEP_IN_SYNC_INDEX = "filelist_keep_in_sync_idx";
+        public static final String FILE_PARENT_NAME_INDEX = "filelist_parent_name_idx";
+        public static final String FILE_PARENT_MODIFIED_INDEX = "filelist_parent_modified_idx";
+        public static final String FILE_PARENT_SIZE_INDEX = "filelist_parent_size_idx";
         
         // Columns of ocshares table
         public static final String OCSHARES_FILE_SOURCE = "file_source";
@@ -94,6 +117,9 @@ public class ProviderMeta {
         
         public static final String OCSHARES_DEFAULT_SORT_ORDER = OCSHARES_FILE_SOURCE 
                 + " collate nocase asc";
+
+        // Indexes of ocshares table
+        public static final String OCSHARES_ACCOUNT_PATH_INDEX = "ocshares_owner_path_idx";
         
 
     }
@@ -22,11 +22,18 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
@@ -34,6 +41,7 @@ import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.DbHandler;
 
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudAccount;
@@ -44,7 +52,6 @@ import com.owncloud.android.notifications.NotificationDelayer;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.operations.DownloadFileOperation;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
@@ -59,19 +66,16 @@ import android.accounts.OnAccountsUpdateListener;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
 
-public class FileDownloader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+public class FileDownloader extends Service implements OnAccountsUpdateListener {
 
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
@@ -86,20 +90,43 @@ public class FileDownloader extends Service
 
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private ExecutorService mExecutor;
+    private int mMaxParallelDownloadsPerAccount;
 
     private IndexedForest<DownloadFileOperation> mPendingDownloads = new IndexedForest<DownloadFileOperation>();
 
-    private DownloadFileOperation mCurrentDownload = null;
+    /**
+     * Keys of the downloads waiting for a free worker, per account name, in the order they
+     * were requested.
+     *
+     * Also used as lock for {@link #mRunningDownloads}, {@link #mScheduledDownloads} and
+     * {@link #mLastStartId}.
+     */
+    private final Map<String, ArrayDeque<String>> mQueuedDownloads =
+            new LinkedHashMap<String, ArrayDeque<String>>();
+
+    /** Number of downloads being performed by a worker, per account name */
+    private final Map<String, Integer> mRunningDownloads = new HashMap<String, Integer>();
+
+    /** Number of downloads queued or running */
+    private int mScheduledDownloads = 0;
+
+    private int mLastStartId;
+
+    /** Durable copy of the queue, to resume the downloads after the process is killed */
+    private TransferJournal mJournal;
+    private boolean mJournalLoaded = false;
+
+    /** Downloads being performed by a worker, by download key */
+    private final ConcurrentMap<String, DownloadFileOperation> mCurrentDownloads =
+            new ConcurrentHashMap<String, DownloadFileOperation>();
+
+    /** Progress of the downloads in course, published a few times per second */
+    private TransferProgressAggregator<DownloadFileOperation> mProgress;
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
 
 
     public static String getDownloadAddedMessage() {
@@ -118,12 +145,20 @@ public class FileDownloader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        int maxParallelDownloads = Math.max(
+                getResources().getInteger(R.integer.downloads_max_parallel), 1
+        );
+        mMaxParallelDownloadsPerAccount = Math.max(
+                getResources().getInteger(R.integer.downloads_max_parallel_per_account), 1
+        );
+        mExecutor = Executors.newFixedThreadPool(
+                maxParallelDownloads,
+                new WorkerThreadFactory()
+        );
+        mJournal = TransferJournal.getInstance(this, DbHandler.TRANSFER_TYPE_DOWNLOAD);
         mBinder = new FileDownloaderBinder();
+        mProgress = new TransferProgressAggregator<DownloadFileOperation>(new Handler(),
+                new DownloadProgressPublisher());
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -138,10 +173,9 @@ public class FileDownloader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        mProgress.stop();
+        mExecutor.shutdownNow();
+        mExecutor = null;
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -161,11 +195,24 @@ public class FileDownloader extends Service
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
 
+        if (!mJournalLoaded) {
+            mJournalLoaded = true;
+            synchronized (mQueuedDownloads) {
+                mLastStartId = Math.max(mLastStartId, startId);
+                mScheduledDownloads++;
+            }
+            mExecutor.execute(new JournalTask(startId));
+        }
+        if (intent == null) {
+            // restarted by the system after being killed; only journaled downloads to perform
+            return ignoreCommand(startId);
+        }
+
         if (!intent.hasExtra(EXTRA_ACCOUNT) ||
                 !intent.hasExtra(EXTRA_FILE)
                 ) {
             Log_OC.e(TAG, "Not enough information provided in intent");
-            return START_NOT_STICKY;
+            return ignoreCommand(startId);
         } else {
             final Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
             final OCFile file = intent.getParcelableExtra(EXTRA_FILE);
@@ -175,48 +222,119 @@ public class FileDownloader extends Service
                     "Received request to download file"
             );*/
 
-            AbstractList<String> requestedDownloads = new Vector<String>();
             try {
-                DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
-                newDownload.addDatatransferProgressListener(this);
-                newDownload.addDatatransferProgressListener((FileDownloaderBinder) mBinder);
-                Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
-                        account, file.getRemotePath(), newDownload
-                );
-                String downloadKey = putResult.first;
-                requestedDownloads.add(downloadKey);
-                    /*Log_OC.v(
-                        "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
-                        "Download on " + file.getRemotePath() + " added to queue"
-                    );*/
-
-                // Store file on db with state 'downloading'
-                    /*
-                    TODO - check if helps with UI responsiveness,
-                    letting only folders use FileDownloaderBinder to check
-                    FileDataStorageManager storageManager =
-                    new FileDataStorageManager(account, getContentResolver());
-                    file.setDownloading(true);
-                    storageManager.saveFile(file);
-                    */
-
-                sendBroadcastNewDownload(newDownload, putResult.second);
+                addDownload(account, file, startId, true);
 
             } catch (IllegalArgumentException e) {
                 Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
-                return START_NOT_STICKY;
+                return ignoreCommand(startId);
             }
+        }
+
+        return START_STICKY;
+    }
 
-            if (requestedDownloads.size() > 0) {
-                Message msg = mServiceHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = requestedDownloads;
-                mServiceHandler.sendMessage(msg);
+
+    /**
+     * Called for a command that added no download; stops the service if no download is left.
+     */
+    private int ignoreCommand(int startId) {
+        synchronized (mQueuedDownloads) {
+            mLastStartId = Math.max(mLastStartId, startId);
+            if (mScheduledDownloads == 0) {
+                Log_OC.d(TAG, "Stopping command with id " + startId);
+                stopSelf(startId);
             }
-            //}
         }
+        return START_STICKY;
+    }
+
+
+    /**
+     * Creates the download operation for a file and queues it.
+     *
+     * @param journal       When 'true', the download is saved in the journal.
+     */
+    private void addDownload(Account account, OCFile file, int startId, boolean journal) {
+        DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
+        newDownload.addDatatransferProgressListener(
+                new DownloadProgressListener(newDownload)
+        );
+        Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
+                account, file.getRemotePath(), newDownload
+        );
+        String downloadKey = putResult.first;
+            /*Log_OC.v(
+                "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
+                "Download on " + file.getRemotePath() + " added to queue"
+            );*/
+
+        // Store file on db with state 'downloading'
+            /*
+            TODO - check if helps with UI responsiveness,
+            letting only folders use FileDownloaderBinder to check
+            FileDataStorageManager storageManager =
+            new FileDataStorageManager(account, getContentResolver());
+            file.setDownloading(true);
+            storageManager.saveFile(file);
+            */
+        if (journal) {
+            mJournal.admit(account.name, file.getStoragePath(), file.getRemotePath(),
+                    file.getMimetype(), file.getFileLength(), false, false, 0);
+            mJournal.saveAdmitted();
+        }
+
+        sendBroadcastNewDownload(newDownload, putResult.second);
+
+        enqueueDownload(account, downloadKey, startId);
+    }
 
-        return START_NOT_STICKY;
+
+    /**
+     * Queues again the downloads left unfinished in the journal by a previous run of the
+     * service, as when the process was killed.
+     *
+     * Run by a worker.
+     */
+    private void resumeJournaledDownloads(int startId) {
+        List<ContentValues> transfers = mJournal.load();
+        if (transfers.isEmpty()) {
+            return;
+        }
+        Log_OC.i(TAG, "Resuming " + transfers.size() + " downloads from the journal");
+
+        Map<String, FileDataStorageManager> storageManagers =
+                new HashMap<String, FileDataStorageManager>();
+        for (ContentValues transfer : transfers) {
+            String accountName = transfer.getAsString(DbHandler.TRANSFER_ACCOUNT);
+            String remotePath = transfer.getAsString(DbHandler.TRANSFER_REMOTE_PATH);
+            if (!storageManagers.containsKey(accountName)) {
+                Account account = new Account(accountName, MainApp.getAccountType());
+                if (AccountUtils.exists(account, getApplicationContext())) {
+                    storageManagers.put(accountName,
+                            new FileDataStorageManager(account, getContentResolver()));
+                } else {
+                    storageManagers.put(accountName, null);
+                    mJournal.remove(accountName, null);
+                }
+            }
+            FileDataStorageManager storageManager = storageManagers.get(accountName);
+            if (storageManager == null) {
+                continue;   // account removed
+            }
+            OCFile file = storageManager.getFileByPath(remotePath);
+            if (file == null || file.isFolder()) {
+                // removed since queued
+                mJournal.remove(accountName, remotePath);
+                continue;
+            }
+            try {
+                addDownload(storageManager.getAccount(), file, startId, false);
+            } catch (IllegalArgumentException e) {
+                Log_OC.e(TAG, "Download of " + remotePath + " could not be resumed", e);
+                mJournal.remove(accountName, remotePath);
+            }
+        }
     }
 
 
@@ -243,11 +361,8 @@ public class FileDownloader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-         //review the current download and cancel it if its account doesn't exist
-        if (mCurrentDownload != null &&
-                !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-            mCurrentDownload.cancel();
-        }
+        //review the current downloads and cancel them if their account doesn't exist
+        cancelCurrentDownloadsWithoutAccount();
         // The rest of downloads are cancelled when they try to start
     }
 
@@ -257,15 +372,17 @@ public class FileDownloader extends Service
      * <p/>
      * It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of downloads from a
          * {@link FileDownloaderBinder}
          * instance.
+         *
+         * Concurrent, since progress is reported from several worker threads.
          */
         private Map<Long, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<Long, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<Long, OnDatatransferProgressListener>();
 
 
         /**
@@ -283,18 +400,20 @@ public class FileDownloader extends Service
                     "Removing download of " + file.getRemotePath());*/
             Pair<DownloadFileOperation, String> removeResult =
                     mPendingDownloads.remove(account, file.getRemotePath());
+            mJournal.remove(account.name, file.getRemotePath());
             DownloadFileOperation download = removeResult.first;
             if (download != null) {
                 /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
                         "Canceling returned download of " + file.getRemotePath());*/
                 download.cancel();
             } else {
-                if (mCurrentDownload != null && mCurrentAccount != null &&
-                        mCurrentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
-                     "Canceling current sync as descendant: " + mCurrentDownload.getRemotePath());*/
-                    mCurrentDownload.cancel();
+                for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                    if (current.getRemotePath().startsWith(file.getRemotePath()) &&
+                            account.name.equals(current.getAccount().name)) {
+                        /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
+                         "Canceling current download as descendant: " + current.getRemotePath());*/
+                        current.cancel();
+                    }
                 }
             }
         }
@@ -307,10 +426,9 @@ public class FileDownloader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentDownload != null) {
-                Log_OC.d(TAG, "Current Download Account= " + mCurrentDownload.getAccount().name);
-                if (mCurrentDownload.getAccount().name.equals(account.name)) {
-                    mCurrentDownload.cancel();
+            for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                if (current.getAccount().name.equals(account.name)) {
+                    current.cancel();
                 }
             }
             // Cancel pending downloads
@@ -372,13 +490,16 @@ public class FileDownloader extends Service
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
-            //String key = buildKey(mCurrentDownload.getAccount(),
-            // mCurrentDownload.getFile().getRemotePath());
+        /**
+         * Notifies the progress of a download to the listener bound for its file, if any.
+         *
+         * Called from the worker thread performing the download.
+         */
+        private void onTransferProgress(DownloadFileOperation download, long progressRate,
+                                        long totalTransferredSoFar, long totalToTransfer,
+                                        String fileName) {
             OnDatatransferProgressListener boundListener =
-                    mBoundListeners.get(mCurrentDownload.getFile().getFileId());
+                    mBoundListeners.get(download.getFile().getFileId());
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
                         totalToTransfer, fileName);
@@ -386,13 +507,10 @@ public class FileDownloader extends Service
         }
 
         /**
-         * Review downloads and cancel it if its account doesn't exist
+         * Review current downloads and cancel them if their account doesn't exist
          */
         public void checkAccountOfCurrentDownload() {
-            if (mCurrentDownload != null &&
-                    !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-                mCurrentDownload.cancel();
-            }
+            cancelCurrentDownloadsWithoutAccount();
             // The rest of downloads are cancelled when they try to start
         }
 
@@ -400,35 +518,211 @@ public class FileDownloader extends Service
 
 
     /**
-     * Download worker. Performs the pending downloads in the order they were requested.
-     * <p/>
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}.
+     * Listener for the progress of a single download; only hands the counters to
+     * {@link #mProgress}, in the worker thread performing the download.
+     *
+     * One instance per download, since several of them are transferred at the same time.
+     */
+    private class DownloadProgressListener implements OnDatatransferProgressListener {
+
+        private final DownloadFileOperation mDownload;
+
+        public DownloadProgressListener(DownloadFileOperation download) {
+            mDownload = download;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String filePath) {
+            mProgress.progress(mDownload, progressRate, totalTransferredSoFar, totalToTransfer,
+                    filePath);
+        }
+    }
+
+
+    /**
+     * Publishes the progress sampled by {@link #mProgress}, in the main thread: updates the
+     * status notification, the journal and the listeners bound in the
+     * {@link FileDownloaderBinder}.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a
-        // possible memory leak
-        FileDownloader mService;
+    private class DownloadProgressPublisher
+            implements TransferProgressAggregator.Publisher<DownloadFileOperation> {
+
+        @Override
+        public int getUnfinishedTransfers() {
+            synchronized (mQueuedDownloads) {
+                return mScheduledDownloads;
+            }
+        }
+
+        @Override
+        public void publishProgress(TransferProgressAggregator.Sample sample) {
+            notifyDownloadProgress(sample);
+        }
 
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        @Override
+        public void publishTransferProgress(DownloadFileOperation download, long progressRate,
+                                            long bytesDone, long bytesTotal, String fileName) {
+            FileDownloaderBinder binder = (FileDownloaderBinder) mBinder;
+            if (binder == null) {
+                return;
+            }
+            mJournal.setProgress(download.getAccount().name, download.getRemotePath(),
+                    bytesDone, bytesTotal);
+            binder.onTransferProgress(download, progressRate, bytesDone, bytesTotal, fileName);
         }
+    }
+
+
+    /**
+     * Creates the threads for the download workers, with background priority.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    mService.downloadFile(next);
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FileDownloaderThread-" + mCount.getAndIncrement());
+        }
+    }
+
+
+    /**
+     * Download worker task. Performs a pending download and then lets the next one start.
+     */
+    private class DownloadTask implements Runnable {
+
+        private final String mAccountName;
+        private final String mDownloadKey;
+
+        public DownloadTask(String accountName, String downloadKey) {
+            mAccountName = accountName;
+            mDownloadKey = downloadKey;
+        }
+
+        @Override
+        public void run() {
+            try {
+                downloadFile(mDownloadKey);
+            } finally {
+                onDownloadFinished(mAccountName);
+            }
+        }
+    }
+
+
+    /**
+     * Worker task queueing again the downloads left unfinished in the journal. Counts as a
+     * scheduled download until it finishes, so that the service is not stopped meanwhile.
+     */
+    private class JournalTask implements Runnable {
+
+        private final int mStartId;
+
+        public JournalTask(int startId) {
+            mStartId = startId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                resumeJournaledDownloads(mStartId);
+            } catch (Exception e) {
+                Log_OC.e(TAG, "Unexpected exception while reading the journal of downloads", e);
+            } finally {
+                synchronized (mQueuedDownloads) {
+                    mScheduledDownloads--;
+                    stopIfIdle();
                 }
             }
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
+        }
+    }
+
+
+    /**
+     * Adds a download to the queue of its account, and starts it if the account has not reached
+     * its limit of parallel downloads.
+     *
+     * @param account       ownCloud account where the file to download is stored.
+     * @param downloadKey   Key to access the download to perform, contained in mPendingDownloads
+     * @param startId       Id of the command that requested the download.
+     */
+    private void enqueueDownload(Account account, String downloadKey, int startId) {
+        synchronized (mQueuedDownloads) {
+            mLastStartId = Math.max(mLastStartId, startId);
+            ArrayDeque<String> queue = mQueuedDownloads.get(account.name);
+            if (queue == null) {
+                queue = new ArrayDeque<String>();
+                mQueuedDownloads.put(account.name, queue);
+            }
+            queue.add(downloadKey);
+            mScheduledDownloads++;
+            startQueuedDownloads();
+        }
+    }
+
+
+    /**
+     * Called by a worker when a download finished; starts the next queued downloads, or stops the
+     * service if nothing else is left to do.
+     *
+     * @param accountName   Name of the account of the finished download.
+     */
+    private void onDownloadFinished(String accountName) {
+        synchronized (mQueuedDownloads) {
+            mRunningDownloads.put(accountName, mRunningDownloads.get(accountName) - 1);
+            mScheduledDownloads--;
+            startQueuedDownloads();
+            stopIfIdle();
+        }
+    }
+
+
+    /**
+     * Stops the service if nothing else is left to do.
+     *
+     * Caller must hold the lock on {@link #mQueuedDownloads}.
+     */
+    private void stopIfIdle() {
+        if (mScheduledDownloads == 0) {
+            Log_OC.d(TAG, "Stopping after command with id " + mLastStartId);
+            stopSelf(mLastStartId);
+        }
+    }
+
+
+    /**
+     * Hands queued downloads to the workers, in the order they were requested, while their
+     * accounts are below the limit of parallel downloads.
+     *
+     * Caller must hold the lock on {@link #mQueuedDownloads}.
+     */
+    private void startQueuedDownloads() {
+        if (mExecutor == null) {
+            return; // service destroyed
+        }
+        Iterator<Map.Entry<String, ArrayDeque<String>>> it = mQueuedDownloads.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<String>> entry = it.next();
+            String accountName = entry.getKey();
+            ArrayDeque<String> queue = entry.getValue();
+            Integer running = mRunningDownloads.get(accountName);
+            int count = (running == null) ? 0 : running;
+            while (count < mMaxParallelDownloadsPerAccount && !queue.isEmpty()) {
+                mExecutor.execute(new DownloadTask(accountName, queue.poll()));
+                count++;
+            }
+            mRunningDownloads.put(accountName, count);
+            if (queue.isEmpty()) {
+                it.remove();
+            }
         }
     }
 
@@ -436,76 +730,107 @@ public class FileDownloader extends Service
     /**
      * Core download method: requests a file to download and stores it.
      *
+     * Run by several workers at the same time, for different files.
+     *
      * @param downloadKey Key to access the download to perform, contained in mPendingDownloads
      */
     private void downloadFile(String downloadKey) {
 
         /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
                 "Getting download of " + downloadKey);*/
-        mCurrentDownload = mPendingDownloads.get(downloadKey);
+        DownloadFileOperation download = mPendingDownloads.get(downloadKey);
 
-        if (mCurrentDownload != null) {
+        if (download != null) {
             // Detect if the account exists
-            if (AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().name + " exists");
-                notifyDownloadStart(mCurrentDownload);
-
-                RemoteOperationResult downloadResult = null;
-                try {
-                    /// prepare client object to send the request to the ownCloud server
-                    if (mCurrentAccount == null ||
-                            !mCurrentAccount.equals(mCurrentDownload.getAccount())) {
-                        mCurrentAccount = mCurrentDownload.getAccount();
-                        mStorageManager = new FileDataStorageManager(
-                                mCurrentAccount,
-                                getContentResolver()
-                        );
-                    }   // else, reuse storage manager from previous operation
-
-                    // always get client from client manager, to get fresh credentials in case
-                    // of update
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mCurrentAccount, this);
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-
-
-                    /// perform the download
-                    /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
-                        "Executing download of " + mCurrentDownload.getRemotePath());*/
-                    downloadResult = mCurrentDownload.execute(mDownloadClient);
-                    if (downloadResult.isSuccess()) {
-                        saveDownloadedFile();
-                    }
+            if (!AccountUtils.exists(download.getAccount(), getApplicationContext())) {
+                // Cancel the transfer
+                Log_OC.d(TAG, "Account " + download.getAccount().toString() +
+                        " doesn't exist");
+                cancelDownloadsForAccount(download.getAccount());
+                return;
+            }
+            if (mCurrentDownloads.putIfAbsent(downloadKey, download) != null) {
+                // requested twice, and already in progress in other worker
+                return;
+            }
+            Log_OC.d(TAG, "Account " + download.getAccount().name + " exists");
+            notifyDownloadStart(download);
+            mProgress.started(download, new File(download.getSavePath()).getName(),
+                    download.getSize());
+            download.getMetrics().started();
+
+            Account account = download.getAccount();
+            mJournal.setRunning(account.name, download.getRemotePath());
+            RemoteOperationResult downloadResult = null;
+            try {
+                FileDataStorageManager storageManager = new FileDataStorageManager(
+                        account,
+                        getContentResolver()
+                );
 
-                } catch (AccountsException e) {
-                    Log_OC.e(TAG, "Error while trying to get authorization for "
-                            + mCurrentAccount.name, e);
-                    downloadResult = new RemoteOperationResult(e);
-                } catch (IOException e) {
-                    Log_OC.e(TAG, "Error while trying to get authorization for "
-                            + mCurrentAccount.name, e);
-                    downloadResult = new RemoteOperationResult(e);
+                // always get client from client manager, to get fresh credentials in case
+                // of update
+                OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                OwnCloudClient downloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        getClientFor(ocAccount, this);
 
-                } finally {
+
+                /// perform the download
                 /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
-                        "Removing payload " + mCurrentDownload.getRemotePath());*/
+                    "Executing download of " + download.getRemotePath());*/
+                downloadResult = download.execute(downloadClient);
+                if (downloadResult.isSuccess()) {
+                    saveDownloadedFile(download, storageManager);
+                }
 
-                    Pair<DownloadFileOperation, String> removeResult =
-                            mPendingDownloads.removePayload(mCurrentAccount,
-                                    mCurrentDownload.getRemotePath());
+            } catch (AccountsException e) {
+                Log_OC.e(TAG, "Error while trying to get authorization for "
+                        + account.name, e);
+                downloadResult = new RemoteOperationResult(e);
+            } catch (IOException e) {
+                Log_OC.e(TAG, "Error while trying to get authorization for "
+                        + account.name, e);
+                downloadResult = new RemoteOperationResult(e);
+
+            } finally {
+                mCurrentDownloads.remove(downloadKey);
+                mProgress.finished(download);
+                download.getMetrics().finished(downloadResult);
+
+                if (downloadResult == null ||
+                        downloadResult.getCode() == ResultCode.CANCELLED) {
+                    mJournal.remove(account.name, download.getRemotePath());
+                } else {
+                    mJournal.setFinished(account.name, download.getRemotePath(),
+                            downloadResult.isSuccess());
+                }
+
+                /// notify result
+                notifyDownloadResult(download, downloadResult);
 
-                    /// notify result
-                    notifyDownloadResult(mCurrentDownload, downloadResult);
+                // removal and broadcast together, so that broadcasts from parallel workers
+                // arrive in the same order the tree of downloads was modified
+                synchronized (mPendingDownloads) {
+                    /*Log_OC.v(   "NOW " + TAG + ", thread " + Thread.currentThread().getName(),
+                            "Removing payload " + download.getRemotePath());*/
+                    Pair<DownloadFileOperation, String> removeResult =
+                            mPendingDownloads.removePayload(account, download.getRemotePath());
 
-                    sendBroadcastDownloadFinished(mCurrentDownload, downloadResult,
+                    sendBroadcastDownloadFinished(download, downloadResult,
                             removeResult.second);
                 }
-            } else {
-                // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().toString() +
-                        " doesn't exist");
-                cancelDownloadsForAccount(mCurrentDownload.getAccount());
+            }
+        }
+    }
 
+
+    /**
+     * Cancels the downloads in progress whose account doesn't exist anymore.
+     */
+    private void cancelCurrentDownloadsWithoutAccount() {
+        for (DownloadFileOperation current : mCurrentDownloads.values()) {
+            if (!AccountUtils.exists(current.getAccount(), getApplicationContext())) {
+                current.cancel();
             }
         }
     }
@@ -514,41 +839,48 @@ public class FileDownloader extends Service
     /**
      * Updates the OC File after a successful download.
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download,
+                                    FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        // file.setEtag(mCurrentDownload.getEtag());    // TODO Etag, where available
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
-        mStorageManager.triggerMediaScan(file.getStoragePath());
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        // file.setEtag(download.getEtag());    // TODO Etag, where available
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        storageManager.saveFile(file);
+        storageManager.triggerMediaScan(file.getStoragePath());
     }
 
     /**
      * Update the OC File after a unsuccessful download
      */
-    private void updateUnsuccessfulDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void updateUnsuccessfulDownloadedFile(DownloadFileOperation download,
+                                                  FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         file.setDownloading(false);
-        mStorageManager.saveFile(file);
+        storageManager.saveFile(file);
     }
 
 
     /**
      * Creates a status notification to show the download progress
      *
+     * With several downloads in progress, a single notification is shown for all of them,
+     * created when the first one starts.
+     *
      * @param download Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
+    private synchronized void notifyDownloadStart(DownloadFileOperation download) {
+        if (mNotificationBuilder != null) {
+            return;
+        }
         /// create status notification with a progress bar
-        mLastPercent = 0;
         mNotificationBuilder =
                 NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
         mNotificationBuilder
@@ -582,20 +914,18 @@ public class FileDownloader extends Service
 
 
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Updates the progress bar in the status notification with the aggregated progress of the
+     * downloads in course.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
-        }
-        mLastPercent = percent;
+    private synchronized void notifyDownloadProgress(TransferProgressAggregator.Sample sample) {
+        if (mNotificationBuilder == null || mCurrentDownloads.isEmpty()) {
+            return;
+        }
+        mNotificationBuilder.setProgress(100, sample.getPercent(), sample.mIndeterminate);
+        mNotificationBuilder.setContentText(sample.getText(getResources(),
+                R.string.downloader_download_in_progress_content,
+                R.string.downloader_download_in_progress_batch));
+        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
     }
 
 
@@ -605,10 +935,18 @@ public class FileDownloader extends Service
      * @param downloadResult Result of the download operation.
      * @param download       Finished download operation
      */
-    private void notifyDownloadResult(DownloadFileOperation download,
+    private synchronized void notifyDownloadResult(DownloadFileOperation download,
                                       RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+        if (mCurrentDownloads.isEmpty()) {
+            mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+            mNotificationBuilder = null;
+        }
         if (!downloadResult.isCancelled()) {
+            // separate builder, the one for progress may still be in use by other downloads
+            NotificationCompat.Builder builder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            builder.setSmallIcon(R.drawable.notification_icon);
+
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker :
                     R.string.downloader_download_failed_ticker;
 
@@ -619,7 +957,7 @@ public class FileDownloader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.downloader_download_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            builder
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -639,7 +977,7 @@ public class FileDownloader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                builder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), updateAccountCredentials,
                                 PendingIntent.FLAG_ONE_SHOT));
@@ -647,16 +985,16 @@ public class FileDownloader extends Service
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent showDetailsIntent = new Intent();
-                mNotificationBuilder
+                builder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(
+            builder.setContentText(
                     ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download,
                             getResources())
             );
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            mNotificationManager.notify(tickerId, builder.build());
 
             // Remove success notification
             if (downloadResult.isSuccess()) {
@@ -719,5 +1057,6 @@ public class FileDownloader extends Service
     private void cancelDownloadsForAccount(Account account) {
         // Cancel pending downloads
         mPendingDownloads.remove(account);
+        mJournal.remove(account.name, null);
     }
 }
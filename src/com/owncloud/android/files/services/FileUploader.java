@@ -22,13 +22,18 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -37,17 +42,16 @@ import android.accounts.OnAccountsUpdateListener;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.webkit.MimeTypeMap;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
@@ -63,7 +67,6 @@ import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.status.OwnCloudVersion;
@@ -78,8 +81,7 @@ import com.owncloud.android.utils.ErrorMessageAdapter;
 import com.owncloud.android.utils.UriUtils;
 
 
-public class FileUploader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+public class FileUploader extends Service implements OnAccountsUpdateListener {
 
     private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
@@ -104,25 +106,55 @@ public class FileUploader extends Service
     public static final int LOCAL_BEHAVIOUR_MOVE = 1;
     public static final int LOCAL_BEHAVIOUR_FORGET = 2;
 
+    public static final String KEY_MANIFEST_AFTER_ID = "MANIFEST_AFTER_ID";
+    public static final String KEY_MANIFEST_LAST_ID = "MANIFEST_LAST_ID";
+
     public static final int UPLOAD_SINGLE_FILE = 0;
     public static final int UPLOAD_MULTIPLE_FILES = 1;
+    public static final int UPLOAD_MANIFEST = 2;
+
+    /** Number of uploads of a manifest read from the journal at once */
+    private static final int MANIFEST_PAGE_SIZE = 50;
+
+    /** Number of locks shared by all the remote folders; a power of 2 */
+    private static final int FOLDER_LOCK_STRIPES = 16;
 
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private ExecutorService mExecutor;
 
     private ConcurrentMap<String, UploadFileOperation> mPendingUploads =
             new ConcurrentHashMap<String, UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+
+    /** Order in which the pending uploads are handed to the workers */
+    private final UploadQueue mUploadQueue = new UploadQueue();
+
+    /** Uploads being performed by a worker, by upload key */
+    private final ConcurrentMap<String, UploadFileOperation> mCurrentUploads =
+            new ConcurrentHashMap<String, UploadFileOperation>();
+
+    /** Durable copy of the queue, to resume the uploads after the process is killed */
+    private TransferJournal mJournal;
+    private boolean mJournalLoaded = false;
+
+    /** Progress of the uploads in course, published a few times per second */
+    private TransferProgressAggregator<String> mProgress;
+
+    /**
+     * Locks to check and create the remote folders one upload at a time; every folder is
+     * guarded by the lock selected by the hash of its path, so that the set of locks doesn't
+     * grow with the number of folders.
+     */
+    private final Object[] mFolderLocks = new Object[FOLDER_LOCK_STRIPES];
+    {
+        for (int i = 0; i < FOLDER_LOCK_STRIPES; i++) {
+            mFolderLocks[i] = new Object();
+        }
+    }
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
 
     private static final String MIME_TYPE_PDF = "application/pdf";
     private static final String FILE_EXTENSION_PDF = ".pdf";
@@ -166,12 +198,14 @@ public class FileUploader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        int maxParallelUploads = Math.max(
+                getResources().getInteger(R.integer.uploads_max_parallel), 1
+        );
+        mExecutor = Executors.newFixedThreadPool(maxParallelUploads, new WorkerThreadFactory());
+        mJournal = TransferJournal.getInstance(this, DbHandler.TRANSFER_TYPE_UPLOAD);
         mBinder = new FileUploaderBinder();
+        mProgress = new TransferProgressAggregator<String>(new Handler(),
+                new UploadProgressPublisher());
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -185,10 +219,9 @@ public class FileUploader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service" );
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        mProgress.stop();
+        mExecutor.shutdownNow();
+        mExecutor = null;
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -209,19 +242,41 @@ public class FileUploader extends Service
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
 
+        if (!mJournalLoaded) {
+            mJournalLoaded = true;
+            mUploadQueue.addTask(startId);
+            mExecutor.execute(new JournalTask(startId));
+        }
+        if (intent == null) {
+            // restarted by the system after being killed; only journaled uploads to perform
+            return ignoreCommand(startId);
+        }
+
+        if (intent.getIntExtra(KEY_UPLOAD_TYPE, -1) == UPLOAD_MANIFEST) {
+            Account account = intent.getParcelableExtra(KEY_ACCOUNT);
+            long lastId = intent.getLongExtra(KEY_MANIFEST_LAST_ID, -1);
+            if (account == null || lastId < 0) {
+                Log_OC.e(TAG, "Not enough information provided in intent");
+                return ignoreCommand(startId);
+            }
+            addManifest(account.name, intent.getLongExtra(KEY_MANIFEST_AFTER_ID, 0), lastId,
+                    startId);
+            return Service.START_STICKY;
+        }
+
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
                 || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
-            return Service.START_NOT_STICKY;
+            return ignoreCommand(startId);
         }
         int uploadType = intent.getIntExtra(KEY_UPLOAD_TYPE, -1);
         if (uploadType == -1) {
             Log_OC.e(TAG, "Incorrect upload type provided");
-            return Service.START_NOT_STICKY;
+            return ignoreCommand(startId);
         }
         Account account = intent.getParcelableExtra(KEY_ACCOUNT);
         if (!AccountUtils.exists(account, getApplicationContext())) {
-            return Service.START_NOT_STICKY;
+            return ignoreCommand(startId);
         }
 
         String[] localPaths = null, remotePaths = null, mimeTypes = null;
@@ -263,20 +318,20 @@ public class FileUploader extends Service
 
         if (intent.hasExtra(KEY_FILE) && files == null) {
             Log_OC.e(TAG, "Incorrect array for OCFiles provided in upload intent");
-            return Service.START_NOT_STICKY;
+            return ignoreCommand(startId);
 
         } else if (!intent.hasExtra(KEY_FILE)) {
             if (localPaths == null) {
                 Log_OC.e(TAG, "Incorrect array for local paths provided in upload intent");
-                return Service.START_NOT_STICKY;
+                return ignoreCommand(startId);
             }
             if (remotePaths == null) {
                 Log_OC.e(TAG, "Incorrect array for remote paths provided in upload intent");
-                return Service.START_NOT_STICKY;
+                return ignoreCommand(startId);
             }
             if (localPaths.length != remotePaths.length) {
                 Log_OC.e(TAG, "Different number of remote paths and local paths!");
-                return Service.START_NOT_STICKY;
+                return ignoreCommand(startId);
             }
 
             files = new OCFile[localPaths.length];
@@ -285,56 +340,197 @@ public class FileUploader extends Service
                         ((mimeTypes != null) ? mimeTypes[i] : null), storageManager);
                 if (files[i] == null) {
                     // TODO @andomaex add failure Notification
-                    return Service.START_NOT_STICKY;
+                    return ignoreCommand(startId);
                 }
             }
         }
 
-        OwnCloudVersion ocv = AccountUtils.getServerVersion(account);
-
-        boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
-        AbstractList<String> requestedUploads = new Vector<String>();
-        String uploadKey = null;
-        UploadFileOperation newUpload = null;
         try {
-            for (int i = 0; i < files.length; i++) {
-                uploadKey = buildRemoteName(account, files[i].getRemotePath());
-                newUpload = new UploadFileOperation(account, files[i], chunked, isInstant,
-                        forceOverwrite, localAction,
-                        getApplicationContext());
-                if (isInstant) {
-                    newUpload.setRemoteFolderToBeCreated();
-                }
-                // Grants that the file only upload once time
-                mPendingUploads.putIfAbsent(uploadKey, newUpload);
-
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder)mBinder);
-                requestedUploads.add(uploadKey);
-            }
+            enqueueUploads(account, files, forceOverwrite, isInstant, localAction, startId, true);
 
         } catch (IllegalArgumentException e) {
             Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
-            return START_NOT_STICKY;
+            return ignoreCommand(startId);
 
         } catch (IllegalStateException e) {
             Log_OC.e(TAG, "Bad information provided in intent: " + e.getMessage());
-            return START_NOT_STICKY;
+            return ignoreCommand(startId);
 
         } catch (Exception e) {
             Log_OC.e(TAG, "Unexpected exception while processing upload intent", e);
-            return START_NOT_STICKY;
+            return ignoreCommand(startId);
 
         }
 
-        if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
-        }
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
-        return Service.START_NOT_STICKY;
+        return Service.START_STICKY;
+    }
+
+
+    /**
+     * Called for a command that added no upload; stops the service if no upload is left.
+     */
+    private int ignoreCommand(int startId) {
+        if (mUploadQueue.ignore(startId)) {
+            Log_OC.d(TAG, "Stopping command with id " + startId);
+            stopSelf(startId);
+        }
+        return Service.START_STICKY;
+    }
+
+
+    /**
+     * Creates the upload operations for a set of files and hands them to the workers.
+     *
+     * @param journal       When 'true', the new uploads are saved in the journal, all of them
+     *                      in a single transaction.
+     */
+    private void enqueueUploads(Account account, OCFile[] files, boolean forceOverwrite,
+                                boolean isInstant, int localAction, int startId,
+                                boolean journal) {
+        OwnCloudVersion ocv = AccountUtils.getServerVersion(account);
+
+        boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
+        ArrayDeque<String> requestedUploads = new ArrayDeque<String>();
+        String uploadKey = null;
+        UploadFileOperation newUpload = null;
+        for (int i = 0; i < files.length; i++) {
+            uploadKey = buildRemoteName(account, files[i].getRemotePath());
+            newUpload = newUploadOperation(account, files[i], chunked, isInstant,
+                    forceOverwrite, localAction);
+            // Grants that the file only upload once time
+            if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null && journal) {
+                mJournal.admit(account.name, files[i].getStoragePath(),
+                        files[i].getRemotePath(), files[i].getMimetype(),
+                        files[i].getFileLength(), forceOverwrite, isInstant, localAction);
+            }
+            requestedUploads.add(uploadKey);
+        }
+        mJournal.saveAdmitted();
+
+        queueUploads(account.name, requestedUploads, isInstant, startId);
+    }
+
+
+    private UploadFileOperation newUploadOperation(Account account, OCFile file, boolean chunked,
+                                                   boolean isInstant, boolean forceOverwrite,
+                                                   int localAction) {
+        UploadFileOperation newUpload = new UploadFileOperation(account, file, chunked,
+                isInstant, forceOverwrite, localAction, getApplicationContext());
+        if (isInstant) {
+            newUpload.setRemoteFolderToBeCreated();
+        }
+        newUpload.addDatatransferProgressListener(
+                new UploadProgressListener(buildRemoteName(account, file))
+        );
+        return newUpload;
+    }
+
+
+    /**
+     * Hands pending uploads to the workers, one task per upload.
+     */
+    private void queueUploads(String accountName, ArrayDeque<String> uploadKeys,
+                              boolean isInstant, int startId) {
+        if (uploadKeys.size() > 0) {
+            mUploadQueue.add(accountName, uploadKeys, isInstant, startId);
+            for (int i = 0; i < uploadKeys.size(); i++) {
+                mExecutor.execute(new UploadTask());
+            }
+        }
+    }
+
+
+    /**
+     * Queues the uploads saved in the journal for an account in a range of rows, as done by
+     * {@link UploadManifest} or by a previous run of the service.
+     *
+     * The uploads are read and their operations created a page at a time, when the workers are
+     * about to run out of pending uploads.
+     */
+    private void addManifest(String accountName, long afterId, long lastId, int startId) {
+        if (mUploadQueue.addManifest(accountName, afterId, lastId, startId)) {
+            mExecutor.execute(new ManifestTask());
+        }
+    }
+
+
+    /**
+     * Creates the operations for the next page of uploads of every manifest, and hands them to
+     * the workers.
+     *
+     * Run by a worker.
+     */
+    private void readManifests() {
+        for (Manifest manifest : mUploadQueue.getManifests()) {
+            Account account = new Account(manifest.mAccountName, MainApp.getAccountType());
+            if (!AccountUtils.exists(account, getApplicationContext())) {
+                cancelUploadForAccount(account.name);
+                continue;
+            }
+            List<ContentValues> transfers;
+            try {
+                transfers = mJournal.readQueued(account.name, manifest.mAfterId,
+                        manifest.mLastId, MANIFEST_PAGE_SIZE);
+            } catch (IllegalStateException e) {
+                // left in the journal for the next start of the service
+                Log_OC.e(TAG, "Manifest of uploads of " + account.name + " could not be read", e);
+                mUploadQueue.removeManifest(account.name);
+                continue;
+            }
+            boolean chunked = chunkedUploadIsSupported(AccountUtils.getServerVersion(account));
+            ArrayDeque<String> instantUploads = new ArrayDeque<String>();
+            ArrayDeque<String> regularUploads = new ArrayDeque<String>();
+            long readUpTo = manifest.mAfterId;
+            for (ContentValues transfer : transfers) {
+                readUpTo = transfer.getAsLong(DbHandler.TRANSFER_ID);
+                boolean isInstant = transfer.getAsInteger(DbHandler.TRANSFER_INSTANT) != 0;
+                String journalRemotePath = transfer.getAsString(DbHandler.TRANSFER_REMOTE_PATH);
+                try {
+                    OCFile file = obtainNewOCFileToUpload(
+                            journalRemotePath,
+                            transfer.getAsString(DbHandler.TRANSFER_LOCAL_PATH),
+                            transfer.getAsString(DbHandler.TRANSFER_MIME_TYPE),
+                            null);
+                    String uploadKey = buildRemoteName(account, file);
+                    UploadFileOperation newUpload = newUploadOperation(account, file, chunked,
+                            isInstant,
+                            transfer.getAsInteger(DbHandler.TRANSFER_FORCE_OVERWRITE) != 0,
+                            transfer.getAsInteger(DbHandler.TRANSFER_LOCAL_BEHAVIOUR));
+                    // the remote path of the file may have been changed; the journal keeps the
+                    // requested one
+                    newUpload.setJournalRemotePath(journalRemotePath);
+                    if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null) {
+                        (isInstant ? instantUploads : regularUploads).add(uploadKey);
+                    }
+
+                } catch (RuntimeException e) {
+                    // a bad row must not stop the rest of the manifest from being read
+                    Log_OC.e(TAG, "Upload of " + journalRemotePath + " in the journal could " +
+                            "not be resumed", e);
+                    mJournal.setFailed(readUpTo);
+                }
+            }
+            mUploadQueue.advanceManifest(manifest, readUpTo,
+                    transfers.size() < MANIFEST_PAGE_SIZE);
+            queueUploads(account.name, instantUploads, true, manifest.mStartId);
+            queueUploads(account.name, regularUploads, false, manifest.mStartId);
+        }
+    }
+
+
+    /**
+     * Queues again the uploads left unfinished in the journal by a previous run of the service,
+     * as when the process was killed.
+     *
+     * Run by a worker.
+     */
+    private void resumeJournaledUploads(int startId) {
+        Map<String, Long> accounts = mJournal.loadQueuedAccounts();
+        for (Map.Entry<String, Long> account : accounts.entrySet()) {
+            Log_OC.i(TAG, "Resuming uploads of " + account.getKey() + " from the journal");
+            addManifest(account.getKey(), 0, account.getValue(), startId);
+        }
     }
 
     /**
@@ -360,11 +556,8 @@ public class FileUploader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-        // Review current upload, and cancel it if its account doen't exist
-        if (mCurrentUpload != null &&
-                !AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-            mCurrentUpload.cancel();
-        }
+        // Review current uploads, and cancel them if their account doen't exist
+        cancelCurrentUploadsWithoutAccount();
         // The rest of uploads are cancelled when they try to start
     }
 
@@ -374,14 +567,16 @@ public class FileUploader extends Service
      *
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of uploads from a
          * {@link FileUploaderBinder} instance
+         *
+         * Concurrent, since progress is reported from several worker threads.
          */
         private Map<String, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<String, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<String, OnDatatransferProgressListener>();
 
         /**
          * Cancels a pending or current upload of a remote file.
@@ -396,7 +591,10 @@ public class FileUploader extends Service
             }
             if (upload != null) {
                 upload.cancel();
+                mJournal.remove(account.name, upload.getJournalRemotePath());
             }
+            // also when not read yet from a manifest
+            mJournal.remove(account.name, file.getRemotePath());
         }
 
         /**
@@ -407,10 +605,9 @@ public class FileUploader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentUpload != null) {
-                Log_OC.d(TAG, "Current Upload Account= " + mCurrentUpload.getAccount().name);
-                if (mCurrentUpload.getAccount().name.equals(account.name)) {
-                    mCurrentUpload.cancel();
+            for (UploadFileOperation current : mCurrentUploads.values()) {
+                if (current.getAccount().name.equals(account.name)) {
+                    current.cancel();
                 }
             }
             // Cancel pending uploads
@@ -484,10 +681,15 @@ public class FileUploader extends Service
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
+        /**
+         * Notifies the progress of an upload to the listener bound for its file, if any.
+         *
+         * Called from the worker thread performing the upload.
+         */
+        private void onTransferProgress(UploadFileOperation upload, long progressRate,
+                                        long totalTransferredSoFar, long totalToTransfer,
+                                        String fileName) {
+            String key = buildRemoteName(upload.getAccount(), upload.getFile());
             OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
@@ -496,98 +698,459 @@ public class FileUploader extends Service
         }
 
         /**
-         * Review uploads and cancel it if its account doesn't exist
+         * Review current uploads and cancel them if their account doesn't exist
          */
         public void checkAccountOfCurrentUpload() {
-            if (mCurrentUpload != null &&
-                    !AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-                mCurrentUpload.cancel();
-            }
+            cancelCurrentUploadsWithoutAccount();
             // The rest of uploads are cancelled when they try to start
         }
     }
 
+
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
+     * Decides the order in which pending uploads are performed.
+     *
+     * Keeps a queue of upload keys per account, and serves the accounts in round-robin, so that
+     * an account with thousands of pending uploads doesn't delay the uploads of other accounts.
+     * Instant uploads go in a separate lane, served before any other upload.
      *
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Also tracks the number of uploads not finished yet, to stop the service when there are
+     * none left, and the manifests of uploads in the journal not read yet, to read the next
+     * page when the pending uploads run low.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private class UploadQueue {
+
+        private final Map<String, ArrayDeque<String>> mInstantUploads =
+                new LinkedHashMap<String, ArrayDeque<String>>();
+
+        private final Map<String, ArrayDeque<String>> mRegularUploads =
+                new LinkedHashMap<String, ArrayDeque<String>>();
+
+        /** Manifests with uploads not read yet, by account name */
+        private final Map<String, Manifest> mManifests = new LinkedHashMap<String, Manifest>();
+
+        private int mUnfinishedUploads = 0;
+        private int mQueuedUploads = 0;
+        private boolean mManifestTaskScheduled = false;
+        private int mLastStartId;
+
+        /**
+         * Adds upload keys at the end of the queue of an account.
+         */
+        public synchronized void add(String accountName, Iterable<String> uploadKeys,
+                                     boolean isInstant, int startId) {
+            Map<String, ArrayDeque<String>> lane = isInstant ? mInstantUploads : mRegularUploads;
+            ArrayDeque<String> queue = lane.get(accountName);
+            if (queue == null) {
+                queue = new ArrayDeque<String>();
+                lane.put(accountName, queue);
+            }
+            for (String uploadKey : uploadKeys) {
+                queue.add(uploadKey);
+                mUnfinishedUploads++;
+                mQueuedUploads++;
+            }
+            mLastStartId = Math.max(mLastStartId, startId);
+        }
+
+        /**
+         * Counts a task other than an upload, as a {@link JournalTask}, as an unfinished upload
+         * until it finishes.
+         */
+        public synchronized void addTask(int startId) {
+            mUnfinishedUploads++;
+            mLastStartId = Math.max(mLastStartId, startId);
+        }
+
+        /**
+         * Called for a command that added no upload.
+         *
+         * @return      'true' if there is no upload unfinished.
+         */
+        public synchronized boolean ignore(int startId) {
+            mLastStartId = Math.max(mLastStartId, startId);
+            return isEmpty();
+        }
+
+        /**
+         * Adds a range of rows of the journal to the manifest of an account.
+         *
+         * @return      'true' if a {@link ManifestTask} must be run to read the manifest; it
+         *              counts as an unfinished upload until it finishes.
+         */
+        public synchronized boolean addManifest(String accountName, long afterId, long lastId,
+                                                int startId) {
+            Manifest manifest = mManifests.get(accountName);
+            if (manifest == null) {
+                mManifests.put(accountName, new Manifest(accountName, afterId, lastId, startId));
+            } else {
+                manifest.mAfterId = Math.min(manifest.mAfterId, afterId);
+                manifest.mLastId = Math.max(manifest.mLastId, lastId);
+                manifest.mStartId = startId;
+            }
+            mLastStartId = Math.max(mLastStartId, startId);
+            return needsManifestTask();
+        }
+
+        /**
+         * @return      Copies of the manifests not read completely.
+         */
+        public synchronized List<Manifest> getManifests() {
+            List<Manifest> manifests = new ArrayList<Manifest>(mManifests.size());
+            for (Manifest manifest : mManifests.values()) {
+                manifests.add(new Manifest(manifest.mAccountName, manifest.mAfterId,
+                        manifest.mLastId, manifest.mStartId));
+            }
+            return manifests;
+        }
+
+        /**
+         * Called when a page of a manifest was read.
+         *
+         * @param read          Copy of the manifest read, as returned by {@link #getManifests()}.
+         * @param readUpTo      Row id of the last upload read.
+         * @param exhausted     'true' if no upload was left to read in the manifest.
+         */
+        public synchronized void advanceManifest(Manifest read, long readUpTo,
+                                                 boolean exhausted) {
+            Manifest manifest = mManifests.get(read.mAccountName);
+            if (manifest == null) {
+                return;     // cancelled meanwhile
+            }
+            if (exhausted && manifest.mLastId <= read.mLastId) {
+                mManifests.remove(read.mAccountName);
+            } else {
+                manifest.mAfterId = Math.max(manifest.mAfterId, readUpTo);
+            }
+        }
+
+        public synchronized void removeManifest(String accountName) {
+            mManifests.remove(accountName);
+        }
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        /**
+         * Called when a {@link ManifestTask} ends, before {@link #finished()}.
+         */
+        public synchronized void manifestTaskDone() {
+            mManifestTaskScheduled = false;
         }
 
+        /**
+         * @return      'true' if a {@link ManifestTask} must be run because the pending uploads
+         *              run low and there are manifests left to read; it counts as an unfinished
+         *              upload until it finishes.
+         */
+        public synchronized boolean needsManifestTask() {
+            if (mManifestTaskScheduled || mManifests.isEmpty() ||
+                    mQueuedUploads >= MANIFEST_PAGE_SIZE / 2) {
+                return false;
+            }
+            mManifestTaskScheduled = true;
+            mUnfinishedUploads++;
+            return true;
+        }
+
+        /**
+         * @return      Key of the next upload to perform, or null if there is none.
+         */
+        public synchronized String next() {
+            String next = next(mInstantUploads);
+            if (next == null) {
+                next = next(mRegularUploads);
+            }
+            if (next != null) {
+                mQueuedUploads--;
+            }
+            return next;
+        }
+
+        /**
+         * Takes the first upload of the first account in a lane, and moves the account to the
+         * end of the lane.
+         */
+        private String next(Map<String, ArrayDeque<String>> lane) {
+            Iterator<Map.Entry<String, ArrayDeque<String>>> it = lane.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, ArrayDeque<String>> first = it.next();
+            it.remove();
+            String next = first.getValue().poll();
+            if (!first.getValue().isEmpty()) {
+                lane.put(first.getKey(), first.getValue());
+            }
+            return next;
+        }
+
+        /**
+         * @return      Number of uploads queued and not taken by a worker yet.
+         */
+        public synchronized int getQueuedUploads() {
+            return mQueuedUploads;
+        }
+
+        /**
+         * @return      'true' if there is no upload unfinished.
+         */
+        public synchronized boolean isEmpty() {
+            return mUnfinishedUploads == 0 && mManifests.isEmpty();
+        }
+
+        /**
+         * Called when an upload obtained from {@link #next()} or a {@link ManifestTask}
+         * finishes.
+         *
+         * @return      Id of the last command received, if no upload is left; -1 otherwise.
+         */
+        public synchronized int finished() {
+            mUnfinishedUploads--;
+            return isEmpty() ? mLastStartId : -1;
+        }
+    }
+
+
+    /**
+     * Range of rows of the journal with uploads of an account to read, as added with
+     * {@link UploadManifest}.
+     */
+    private static class Manifest {
+
+        final String mAccountName;
+
+        /** Row id of the last upload read */
+        long mAfterId;
+
+        /** Row id of the last upload in the manifest */
+        long mLastId;
+
+        int mStartId;
+
+        Manifest(String accountName, long afterId, long lastId, int startId) {
+            mAccountName = accountName;
+            mAfterId = afterId;
+            mLastId = lastId;
+            mStartId = startId;
+        }
+    }
+
+
+    /**
+     * Listener for the progress of a single upload; only hands the counters to
+     * {@link #mProgress}, in the worker thread performing the upload.
+     *
+     * One instance per upload, since several of them are transferred at the same time.
+     */
+    private class UploadProgressListener implements OnDatatransferProgressListener {
+
+        private final String mUploadKey;
+
+        /**
+         * @param uploadKey     Key of the upload to listen.
+         */
+        public UploadProgressListener(String uploadKey) {
+            mUploadKey = uploadKey;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String filePath) {
+            mProgress.progress(mUploadKey, progressRate, totalTransferredSoFar, totalToTransfer,
+                    filePath);
+        }
+    }
+
+
+    /**
+     * Publishes the progress sampled by {@link #mProgress}, in the main thread: updates the
+     * status notification, the journal and the listeners bound in the
+     * {@link FileUploaderBinder}.
+     */
+    private class UploadProgressPublisher
+            implements TransferProgressAggregator.Publisher<String> {
+
+        @Override
+        public int getUnfinishedTransfers() {
+            return mUploadQueue.getQueuedUploads() + mCurrentUploads.size();
+        }
+
+        @Override
+        public void publishProgress(TransferProgressAggregator.Sample sample) {
+            notifyUploadProgress(sample);
+        }
+
+        @Override
+        public void publishTransferProgress(String uploadKey, long progressRate, long bytesDone,
+                                            long bytesTotal, String fileName) {
+            UploadFileOperation upload = mCurrentUploads.get(uploadKey);
+            FileUploaderBinder binder = (FileUploaderBinder) mBinder;
+            if (upload == null || binder == null) {
+                return;
+            }
+            mJournal.setProgress(upload.getAccount().name, upload.getJournalRemotePath(),
+                    bytesDone, bytesTotal);
+            binder.onTransferProgress(upload, progressRate, bytesDone, bytesTotal, fileName);
+        }
+    }
+
+
+    /**
+     * Creates the threads for the upload workers, with background priority.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FileUploaderThread-" + mCount.getAndIncrement());
+        }
+    }
+
+
+    /**
+     * Upload worker task. Performs the next upload decided by {@link #mUploadQueue}, not
+     * necessarily the one requested when the task was created.
+     */
+    private class UploadTask implements Runnable {
+
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
+        public void run() {
+            String uploadKey = mUploadQueue.next();
+            try {
+                if (uploadKey != null) {
+                    uploadFile(uploadKey);
                 }
+            } finally {
+                onTaskFinished();
+            }
+        }
+    }
+
+
+    /**
+     * Worker task queueing again the uploads left unfinished in the journal.
+     */
+    private class JournalTask implements Runnable {
+
+        private final int mStartId;
+
+        public JournalTask(int startId) {
+            mStartId = startId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                resumeJournaledUploads(mStartId);
+            } catch (Exception e) {
+                Log_OC.e(TAG, "Unexpected exception while reading the journal of uploads", e);
+            } finally {
+                onTaskFinished();
+            }
+        }
+    }
+
+
+    /**
+     * Worker task reading the next page of the manifests of uploads.
+     */
+    private class ManifestTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                readManifests();
+            } catch (Exception e) {
+                Log_OC.e(TAG, "Unexpected exception while reading manifests of uploads", e);
+            } finally {
+                mUploadQueue.manifestTaskDone();
+                onTaskFinished();
             }
-            Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
+
+    /**
+     * Reads more uploads from the manifests when the pending ones run low, and stops the
+     * service when nothing is left.
+     */
+    private void onTaskFinished() {
+        if (mUploadQueue.needsManifestTask()) {
+            mExecutor.execute(new ManifestTask());
+        }
+        int startId = mUploadQueue.finished();
+        if (startId >= 0) {
+            Log_OC.d(TAG, "Stopping command after id " + startId);
+            stopSelf(startId);
+        }
+    }
+
+
     /**
      * Core upload method: sends the file(s) to upload
      *
+     * Run by several workers at the same time, for different files.
+     *
      * @param uploadKey Key to access the upload to perform, contained in
      *            mPendingUploads
      */
     public void uploadFile(String uploadKey) {
 
+        UploadFileOperation upload;
         synchronized (mPendingUploads) {
-            mCurrentUpload = mPendingUploads.get(uploadKey);
+            upload = mPendingUploads.get(uploadKey);
         }
 
-        if (mCurrentUpload != null) {
+        if (upload != null) {
 
             // Detect if the account exists
-            if (AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentUpload.getAccount().name + " exists");
+            if (AccountUtils.exists(upload.getAccount(), getApplicationContext())) {
+                if (mCurrentUploads.putIfAbsent(uploadKey, upload) != null) {
+                    // requested twice, and already in progress in other worker
+                    return;
+                }
+                Log_OC.d(TAG, "Account " + upload.getAccount().name + " exists");
 
-                notifyUploadStart(mCurrentUpload);
+                Account account = upload.getAccount();
+                String journalRemotePath = upload.getJournalRemotePath();
+                mJournal.setRunning(account.name, journalRemotePath);
+
+                notifyUploadStart(upload);
+                mProgress.started(uploadKey, upload.getFileName(),
+                        upload.getFile().getFileLength());
+                upload.getMetrics().started();
 
                 RemoteOperationResult uploadResult = null, grantResult;
 
                 try {
                     /// prepare client object to send requests to the ownCloud server
-                    if (mUploadClient == null ||
-                            !mLastAccount.equals(mCurrentUpload.getAccount())) {
-                        mLastAccount = mCurrentUpload.getAccount();
-                        mStorageManager =
-                                new FileDataStorageManager(mLastAccount, getContentResolver());
-                        OwnCloudAccount ocAccount = new OwnCloudAccount(mLastAccount, this);
-                        mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                                getClientFor(ocAccount, this);
-                    }
+                    FileDataStorageManager storageManager =
+                            new FileDataStorageManager(account, getContentResolver());
+                    OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                    OwnCloudClient uploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                            getClientFor(ocAccount, this);
 
                     /// check the existence of the parent folder for the file to upload
-                    String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
+                    String remoteParentPath = new File(upload.getRemotePath()).getParent();
                     remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                             remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                    grantResult = grantFolderExistence(remoteParentPath);
+                    grantResult = grantFolderExistence(
+                            remoteParentPath, upload, uploadClient, storageManager
+                    );
 
                     /// perform the upload
                     if (grantResult.isSuccess()) {
-                        OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                        mCurrentUpload.getFile().setParentId(parent.getFileId());
-                        uploadResult = mCurrentUpload.execute(mUploadClient);
+                        OCFile parent = storageManager.getFileByPath(remoteParentPath);
+                        upload.getFile().setParentId(parent.getFileId());
+                        uploadResult = upload.execute(uploadClient);
                         if (uploadResult.isSuccess()) {
-                            saveUploadedFile();
+                            saveUploadedFile(upload, uploadClient, storageManager);
                         }
                     } else {
                         uploadResult = grantResult;
@@ -595,12 +1158,12 @@ public class FileUploader extends Service
 
                 } catch (AccountsException e) {
                     Log_OC.e(TAG, "Error while trying to get autorization for " +
-                            mLastAccount.name, e);
+                            account.name, e);
                     uploadResult = new RemoteOperationResult(e);
 
                 } catch (IOException e) {
                     Log_OC.e(TAG, "Error while trying to get autorization for " +
-                            mLastAccount.name, e);
+                            account.name, e);
                     uploadResult = new RemoteOperationResult(e);
 
                 } finally {
@@ -608,29 +1171,45 @@ public class FileUploader extends Service
                         mPendingUploads.remove(uploadKey);
                         Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
                     }
-                    if (uploadResult != null && uploadResult.isException()) {
-                        // enforce the creation of a new client object for next uploads;
-                        // this grant that a new socket will be created in the future if
-                        // the current exception is due to an abrupt lose of network connection
-                        mUploadClient = null;
-                    }
+                    mCurrentUploads.remove(uploadKey);
+                    mProgress.finished(uploadKey);
+                }
+
+                upload.getMetrics().finished(uploadResult);
+                if (uploadResult.getCode() == ResultCode.CANCELLED) {
+                    mJournal.remove(account.name, journalRemotePath);
+                } else {
+                    mJournal.setFinished(account.name, journalRemotePath,
+                            uploadResult.isSuccess());
                 }
 
                 /// notify result
-                notifyUploadResult(uploadResult, mCurrentUpload);
-                sendFinalBroadcast(mCurrentUpload, uploadResult);
+                notifyUploadResult(uploadResult, upload);
+                sendFinalBroadcast(upload, uploadResult);
 
             } else {
                 // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentUpload.getAccount().toString() +
+                Log_OC.d(TAG, "Account " + upload.getAccount().toString() +
                         " doesn't exist");
-                cancelUploadForAccount(mCurrentUpload.getAccount().name);
+                cancelUploadForAccount(upload.getAccount().name);
 
             }
         }
 
     }
 
+
+    /**
+     * Cancels the uploads in progress whose account doesn't exist anymore.
+     */
+    private void cancelCurrentUploadsWithoutAccount() {
+        for (UploadFileOperation current : mCurrentUploads.values()) {
+            if (!AccountUtils.exists(current.getAccount(), getApplicationContext())) {
+                current.cancel();
+            }
+        }
+    }
+
     /**
      * Checks the existence of the folder where the current file will be uploaded both
      * in the remote server and in the local database.
@@ -638,46 +1217,59 @@ public class FileUploader extends Service
      * If the upload is set to enforce the creation of the folder, the method tries to
      * create it both remote and locally.
      *
+     *  Uploads in parallel to the same folder wait for each other here, so that the folder is
+     *  not created twice.
+     *
      *  @param  pathToGrant     Full remote path whose existence will be granted.
+     *  @param  upload          Upload operation waiting for the folder.
+     *  @param  client          Client to access the ownCloud server.
+     *  @param  storageManager  Access to the local database.
      *  @return  An {@link OCFile} instance corresponding to the folder where the file
      *  will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
-        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND &&
-                mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
-        }
-        if (result.isSuccess()) {
-            OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
-            if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
+    private RemoteOperationResult grantFolderExistence(String pathToGrant,
+                                                       UploadFileOperation upload,
+                                                       OwnCloudClient client,
+                                                       FileDataStorageManager storageManager) {
+        String lockKey = buildRemoteName(upload.getAccount(), pathToGrant);
+        Object lock = mFolderLocks[lockKey.hashCode() & (FOLDER_LOCK_STRIPES - 1)];
+        synchronized (lock) {
+            RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
+            RemoteOperationResult result = operation.execute(client);
+            if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND &&
+                    upload.isRemoteFolderToBeCreated()) {
+                SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                result = syncOp.execute(client, storageManager);
             }
-            if (parentDir != null) {
-                result = new RemoteOperationResult(ResultCode.OK);
-            } else {
-                result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+            if (result.isSuccess()) {
+                OCFile parentDir = storageManager.getFileByPath(pathToGrant);
+                if (parentDir == null) {
+                    parentDir = createLocalFolder(pathToGrant, storageManager);
+                }
+                if (parentDir != null) {
+                    result = new RemoteOperationResult(ResultCode.OK);
+                } else {
+                    result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+                }
             }
+            return result;
         }
-        return result;
     }
 
 
-    private OCFile createLocalFolder(String remotePath) {
+    private OCFile createLocalFolder(String remotePath, FileDataStorageManager storageManager) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                 parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(parentPath, storageManager);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -693,10 +1285,11 @@ public class FileUploader extends Service
      *
      * TODO refactor this ugly thing
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, OwnCloudClient client,
+                                  FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
         if (file.fileExists()) {
-            file = mStorageManager.getFileById(file.getFileId());
+            file = storageManager.getFileById(file.getFileId());
         }
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
@@ -704,8 +1297,8 @@ public class FileUploader extends Service
         // new PROPFIND to keep data consistent with server 
         // in theory, should return the same we already have
         ReadRemoteFileOperation operation =
-                new ReadRemoteFileOperation(mCurrentUpload.getRemotePath());
-        RemoteOperationResult result = operation.execute(mUploadClient);
+                new ReadRemoteFileOperation(upload.getRemotePath());
+        RemoteOperationResult result = operation.execute(client);
         if (result.isSuccess()) {
             updateOCFile(file, (RemoteFile) result.getData().get(0));
             file.setLastSyncDateForProperties(syncDate);
@@ -713,18 +1306,18 @@ public class FileUploader extends Service
 
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
+                storageManager.saveFile(oldFile);
 
             } // else: it was just an automatic renaming due to a name
             // coincidence; nothing else is needed, the storagePath is right
-            // in the instance returned by mCurrentUpload.getFile()
+            // in the instance returned by upload.getFile()
         }
         file.setNeedsUpdateThumbnail(true);
-        mStorageManager.saveFile(file);
+        storageManager.saveFile(file);
     }
 
     private void updateOCFile(OCFile file, RemoteFile remoteFile) {
@@ -754,7 +1347,8 @@ public class FileUploader extends Service
             mimeType = "application/octet-stream";
         }
 
-        if (isPdfFileFromContentProviderWithoutExtension(localPath, mimeType)){
+        if (isPdfFileFromContentProviderWithoutExtension(localPath, mimeType) &&
+                !remotePath.endsWith(FILE_EXTENSION_PDF)) {
             remotePath += FILE_EXTENSION_PDF;
         }
 
@@ -780,11 +1374,16 @@ public class FileUploader extends Service
     /**
      * Creates a status notification to show the upload progress
      *
+     * With several uploads in progress, a single notification is shown for all of them, created
+     * when the first one starts.
+     *
      * @param upload Upload operation starting.
      */
-    private void notifyUploadStart(UploadFileOperation upload) {
+    private synchronized void notifyUploadStart(UploadFileOperation upload) {
+        if (mNotificationBuilder != null) {
+            return;
+        }
         // / create status notification with a progress bar
-        mLastPercent = 0;
         mNotificationBuilder =
                 NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
         mNotificationBuilder
@@ -809,21 +1408,18 @@ public class FileUploader extends Service
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Updates the progress bar in the status notification with the aggregated progress of the
+     * uploads in course.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(
-                    filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+    private synchronized void notifyUploadProgress(TransferProgressAggregator.Sample sample) {
+        if (mNotificationBuilder == null || mCurrentUploads.isEmpty()) {
+            return;
         }
-        mLastPercent = percent;
+        mNotificationBuilder.setProgress(100, sample.getPercent(), sample.mIndeterminate);
+        mNotificationBuilder.setContentText(sample.getText(getResources(),
+                R.string.uploader_upload_in_progress_content,
+                R.string.uploader_upload_in_progress_batch));
+        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
     }
 
     /**
@@ -832,14 +1428,23 @@ public class FileUploader extends Service
      * @param uploadResult Result of the upload operation.
      * @param upload Finished upload operation
      */
-    private void notifyUploadResult(
+    private synchronized void notifyUploadResult(
             RemoteOperationResult uploadResult, UploadFileOperation upload) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
-        // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        // / cancelled operation or success -> silent removal of progress notification,
+        // unless other uploads are still in progress
+        if (mCurrentUploads.isEmpty()) {
+            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            mNotificationBuilder = null;
+        }
 
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled()) {
+            // separate builder, the one for progress may still be in use by other uploads
+            NotificationCompat.Builder builder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            builder.setSmallIcon(R.drawable.notification_icon);
+
             int tickerId = (uploadResult.isSuccess()) ? R.string.uploader_upload_succeeded_ticker :
                     R.string.uploader_upload_failed_ticker;
 
@@ -853,7 +1458,7 @@ public class FileUploader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            builder
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -877,17 +1482,15 @@ public class FileUploader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                builder.setContentIntent(PendingIntent.getActivity(
                         this,
                         (int) System.currentTimeMillis(),
                         updateAccountCredentials,
                         PendingIntent.FLAG_ONE_SHOT
                 ));
 
-                mUploadClient = null;
-                // grant that future retries on the same account will get the fresh credentials
             } else {
-                mNotificationBuilder.setContentText(content);
+                builder.setContentText(content);
 
                 if (upload.isInstant()) {
                     DbHandler db = null;
@@ -917,13 +1520,13 @@ public class FileUploader extends Service
                 }
             }
 
-            mNotificationBuilder.setContentText(content);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            builder.setContentText(content);
+            mNotificationManager.notify(tickerId, builder.build());
 
             if (uploadResult.isSuccess()) {
 
                 DbHandler db = new DbHandler(this.getBaseContext());
-                db.removeIUPendingFile(mCurrentUpload.getOriginalStoragePath());
+                db.removeIUPendingFile(upload.getOriginalStoragePath());
                 db.close();
 
                 // remove success notification, with a delay of 2 seconds
@@ -978,6 +1581,8 @@ public class FileUploader extends Service
      * @param accountName       Name of an OC account
      */
     private void cancelUploadForAccount(String accountName){
+        mUploadQueue.removeManifest(accountName);
+        mJournal.remove(accountName, null);
         // this can be slow if there are many uploads :(
         Iterator<String> it = mPendingUploads.keySet().iterator();
         Log_OC.d(TAG, "Number of pending updloads= "  + mPendingUploads.size());
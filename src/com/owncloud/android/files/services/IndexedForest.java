@@ -39,6 +39,8 @@ import java.util.concurrent.ConcurrentMap;
  *  A map provides the indexation based in hashing.
  *
  *  A tree is created per account.
+ *
+ *  Access is synchronized, since transfers run in parallel in several threads.
  */
 public class IndexedForest<V> {
 
@@ -98,7 +100,7 @@ public class IndexedForest<V> {
     }
 
 
-    public /* synchronized */ Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
+    public synchronized Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
         String targetKey = buildKey(account, remotePath);
         Node<V> valuedNode = new Node(targetKey, value);
         mMap.putIfAbsent(
@@ -136,7 +138,7 @@ public class IndexedForest<V> {
     };
 
 
-    public Pair<V, String> removePayload(Account account, String remotePath) {
+    public synchronized Pair<V, String> removePayload(Account account, String remotePath) {
         String targetKey = buildKey(account, remotePath);
         Node<V> target = mMap.get(targetKey);
         if (target != null) {
@@ -149,7 +151,7 @@ public class IndexedForest<V> {
     }
 
 
-    public /* synchronized */ Pair<V, String> remove(Account account, String remotePath) {
+    public synchronized Pair<V, String> remove(Account account, String remotePath) {
         String targetKey = buildKey(account, remotePath);
         Node<V> firstRemoved = mMap.remove(targetKey);
         String unlinkedFrom = null;
@@ -192,12 +194,12 @@ public class IndexedForest<V> {
         }
     }
 
-    public boolean contains(Account account, String remotePath) {
+    public synchronized boolean contains(Account account, String remotePath) {
         String targetKey = buildKey(account, remotePath);
         return mMap.containsKey(targetKey);
     }
 
-    public /* synchronized */ V get(String key) {
+    public synchronized V get(String key) {
         Node<V> node = mMap.get(key);
         if (node != null) {
             return node.getPayload();
@@ -216,7 +218,7 @@ public class IndexedForest<V> {
      * Remove the elements that contains account as a part of its key
      * @param account
      */
-    public void remove(Account account){
+    public synchronized void remove(Account account){
         Iterator<String> it = mMap.keySet().iterator();
         while (it.hasNext()) {
             String key = it.next();
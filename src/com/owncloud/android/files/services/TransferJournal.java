@@ -0,0 +1,358 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Durable journal of the transfers of {@link FileUploader} or {@link FileDownloader}, kept in
+ * {@link DbHandler}, so that the transfers queued when the process is killed are performed when
+ * the service starts again.
+ *
+ * Transfers are identified by account and remote path, as in the queues of the services.
+ *
+ * All the writes are performed in order by a single background thread, so that neither the
+ * main thread nor the workers wait for the disk. Transfers admitted together are saved in a
+ * single transaction, and so are the consecutive admissions that arrive while the background
+ * thread is busy. Reads wait in the calling thread for the writes requested before them.
+ *
+ * There is a single journal per type of transfer in the process, never closed, so that the
+ * writes pending when a service is destroyed are still done in order before the reads of the
+ * next instance of the service.
+ *
+ * Transfers started {@link #MAX_ATTEMPTS} times without finishing, as when the process is
+ * killed while performing them once and again, are given up as failed when loaded.
+ */
+class TransferJournal {
+
+    private static final String TAG = TransferJournal.class.getSimpleName();
+
+    /** Times a transfer is started before giving it up */
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final Map<Integer, TransferJournal> sJournals =
+            new HashMap<Integer, TransferJournal>();
+
+    private final int mType;
+    private final DbHandler mDb;
+    private final ExecutorService mWriter;
+
+    /** Transfers admitted and not handed to the background thread yet */
+    private final List<ContentValues> mAdmitted = new ArrayList<ContentValues>();
+
+    /** Transfers handed to the background thread and not saved yet; guarded by mAdmitted */
+    private final List<ContentValues> mReady = new ArrayList<ContentValues>();
+
+
+    /**
+     * @param context       Android context.
+     * @param type          Type of the transfers in the journal; one of
+     *                      {@link DbHandler#TRANSFER_TYPE_UPLOAD} and
+     *                      {@link DbHandler#TRANSFER_TYPE_DOWNLOAD}.
+     * @return              Journal of the transfers of the given type, shared by the process.
+     */
+    static synchronized TransferJournal getInstance(Context context, int type) {
+        TransferJournal journal = sJournals.get(type);
+        if (journal == null) {
+            journal = new TransferJournal(context.getApplicationContext(), type);
+            sJournals.put(type, journal);
+        }
+        return journal;
+    }
+
+    private TransferJournal(Context context, int type) {
+        mType = type;
+        mDb = DbHandler.getInstance(context);
+        mWriter = Executors.newSingleThreadExecutor();
+    }
+
+
+    /**
+     * Removes the finished transfers from the journal, and returns the ones left unfinished by
+     * a previous run of the service. Transfers left running are considered queued.
+     *
+     * Blocks the calling thread until the pending writes are done and the transfers read.
+     *
+     * @return      Row id, account name, local path, remote path, MIME type, force overwrite,
+     *              instant and local behaviour of every unfinished transfer, in the order they
+     *              were admitted.
+     */
+    List<ContentValues> load() {
+        return read(new Callable<List<ContentValues>>() {
+            @Override
+            public List<ContentValues> call() {
+                mDb.removeFinishedTransfers(mType);
+                giveUpExhaustedTransfers();
+                List<ContentValues> transfers =
+                        readTransfers(mDb.getUnfinishedTransfers(mType));
+                Log_OC.d(TAG, "Loaded " + transfers.size() + " unfinished transfers of type " +
+                        mType);
+                return transfers;
+            }
+        });
+    }
+
+
+    /**
+     * Removes the finished transfers from the journal, and sets back as queued the ones left
+     * running by a previous run of the service, without loading them.
+     *
+     * Blocks the calling thread until the pending writes are done and the accounts read.
+     *
+     * @return      Row id of the last queued transfer of every account with queued transfers,
+     *              to read them later with {@link #readQueued(String, long, long, int)}.
+     */
+    Map<String, Long> loadQueuedAccounts() {
+        return read(new Callable<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> call() {
+                mDb.removeFinishedTransfers(mType);
+                giveUpExhaustedTransfers();
+                mDb.resetRunningTransfers(mType);
+                Map<String, Long> accounts = new LinkedHashMap<String, Long>();
+                Cursor c = mDb.getQueuedTransferAccounts(mType);
+                try {
+                    while (c.moveToNext()) {
+                        accounts.put(c.getString(0), c.getLong(1));
+                    }
+                } finally {
+                    c.close();
+                }
+                return accounts;
+            }
+        });
+    }
+
+
+    /**
+     * Reads a page of the queued transfers of an account.
+     *
+     * Blocks the calling thread until the pending writes are done and the transfers read.
+     *
+     * @param afterId       Only transfers with a row id greater than this are read.
+     * @param lastId        Only transfers with a row id up to this are read.
+     * @param limit         Maximum number of transfers read.
+     * @return              Same values as {@link #load()}.
+     */
+    List<ContentValues> readQueued(final String accountName, final long afterId,
+                                   final long lastId, final int limit) {
+        return read(new Callable<List<ContentValues>>() {
+            @Override
+            public List<ContentValues> call() {
+                return readTransfers(mDb.getQueuedTransfers(mType, accountName, afterId,
+                        lastId, limit));
+            }
+        });
+    }
+
+
+    private void giveUpExhaustedTransfers() {
+        int failed = mDb.failExhaustedTransfers(mType, MAX_ATTEMPTS);
+        if (failed > 0) {
+            Log_OC.w(TAG, "Given up " + failed + " transfers of type " + mType + " after " +
+                    MAX_ATTEMPTS + " attempts");
+        }
+    }
+
+
+    private static List<ContentValues> readTransfers(Cursor c) {
+        List<ContentValues> transfers = new ArrayList<ContentValues>();
+        try {
+            int idIndex = c.getColumnIndex(DbHandler.TRANSFER_ID);
+            int accountIndex = c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT);
+            int localPathIndex = c.getColumnIndex(DbHandler.TRANSFER_LOCAL_PATH);
+            int remotePathIndex = c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH);
+            int mimeTypeIndex = c.getColumnIndex(DbHandler.TRANSFER_MIME_TYPE);
+            int forceOverwriteIndex = c.getColumnIndex(DbHandler.TRANSFER_FORCE_OVERWRITE);
+            int instantIndex = c.getColumnIndex(DbHandler.TRANSFER_INSTANT);
+            int localBehaviourIndex = c.getColumnIndex(DbHandler.TRANSFER_LOCAL_BEHAVIOUR);
+            while (c.moveToNext()) {
+                ContentValues cv = new ContentValues();
+                cv.put(DbHandler.TRANSFER_ID, c.getLong(idIndex));
+                cv.put(DbHandler.TRANSFER_ACCOUNT, c.getString(accountIndex));
+                cv.put(DbHandler.TRANSFER_LOCAL_PATH, c.getString(localPathIndex));
+                cv.put(DbHandler.TRANSFER_REMOTE_PATH, c.getString(remotePathIndex));
+                cv.put(DbHandler.TRANSFER_MIME_TYPE, c.getString(mimeTypeIndex));
+                cv.put(DbHandler.TRANSFER_FORCE_OVERWRITE, c.getInt(forceOverwriteIndex));
+                cv.put(DbHandler.TRANSFER_INSTANT, c.getInt(instantIndex));
+                cv.put(DbHandler.TRANSFER_LOCAL_BEHAVIOUR, c.getInt(localBehaviourIndex));
+                transfers.add(cv);
+            }
+        } finally {
+            c.close();
+        }
+        return transfers;
+    }
+
+
+    /**
+     * Admits a transfer in the journal as queued.
+     *
+     * The transfer is not saved until {@link #saveAdmitted()} is called.
+     */
+    void admit(String accountName, String localPath, String remotePath, String mimeType,
+               long bytesTotal, boolean forceOverwrite, boolean isInstant, int localBehaviour) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_TYPE, mType);
+        cv.put(DbHandler.TRANSFER_ACCOUNT, accountName);
+        cv.put(DbHandler.TRANSFER_LOCAL_PATH, localPath);
+        cv.put(DbHandler.TRANSFER_REMOTE_PATH, remotePath);
+        cv.put(DbHandler.TRANSFER_MIME_TYPE, mimeType);
+        cv.put(DbHandler.TRANSFER_STATE, DbHandler.TRANSFER_STATE_QUEUED);
+        cv.put(DbHandler.TRANSFER_BYTES_TOTAL, bytesTotal);
+        cv.put(DbHandler.TRANSFER_FORCE_OVERWRITE, forceOverwrite ? 1 : 0);
+        cv.put(DbHandler.TRANSFER_INSTANT, isInstant ? 1 : 0);
+        cv.put(DbHandler.TRANSFER_LOCAL_BEHAVIOUR, localBehaviour);
+        synchronized (mAdmitted) {
+            mAdmitted.add(cv);
+        }
+    }
+
+
+    /**
+     * Saves the transfers admitted since the last call, all of them in a single transaction.
+     */
+    void saveAdmitted() {
+        boolean saveScheduled;
+        synchronized (mAdmitted) {
+            if (mAdmitted.isEmpty()) {
+                return;
+            }
+            saveScheduled = !mReady.isEmpty();
+            mReady.addAll(mAdmitted);
+            mAdmitted.clear();
+        }
+        if (!saveScheduled) {
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    List<ContentValues> ready;
+                    synchronized (mAdmitted) {
+                        ready = new ArrayList<ContentValues>(mReady);
+                        mReady.clear();
+                    }
+                    mDb.putTransfers(ready);
+                }
+            });
+        }
+    }
+
+
+    void setRunning(final String accountName, final String remotePath) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                mDb.startTransfer(mType, accountName, remotePath);
+            }
+        });
+    }
+
+
+    void setProgress(String accountName, String remotePath, long bytesDone, long bytesTotal) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_BYTES_DONE, bytesDone);
+        cv.put(DbHandler.TRANSFER_BYTES_TOTAL, bytesTotal);
+        update(accountName, remotePath, cv);
+    }
+
+
+    void setFinished(String accountName, String remotePath, boolean success) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_STATE,
+                success ? DbHandler.TRANSFER_STATE_DONE : DbHandler.TRANSFER_STATE_FAILED);
+        update(accountName, remotePath, cv);
+    }
+
+
+    /**
+     * Sets as failed a transfer that can't be performed, as when its row is not valid.
+     *
+     * @param id        Row id of the transfer.
+     */
+    void setFailed(final long id) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                mDb.failTransfer(id);
+            }
+        });
+    }
+
+
+    /**
+     * Removes a transfer from the journal, as when it's cancelled.
+     *
+     * @param remotePath    Remote path of the transfer; if null, all the transfers of the
+     *                      account are removed; if a folder, the transfers of all its
+     *                      descendants.
+     */
+    void remove(final String accountName, final String remotePath) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                mDb.removeTransfers(mType, accountName, remotePath);
+            }
+        });
+    }
+
+
+    private void update(final String accountName, final String remotePath,
+                        final ContentValues cv) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                mDb.updateTransfer(mType, accountName, remotePath, cv);
+            }
+        });
+    }
+
+
+    private void write(Runnable write) {
+        mWriter.execute(write);
+    }
+
+
+    private <T> T read(Callable<T> read) {
+        try {
+            return mWriter.submit(read).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the journal", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Journal could not be read", e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.owncloud.android.utils.DisplayUtils;
+
+/**
+ * Collects the progress of the transfers performed in parallel by {@link FileUploader} or
+ * {@link FileDownloader}, and publishes it at a fixed cadence.
+ *
+ * Workers only update counters when the transferred bytes progress. Every
+ * {@link #SAMPLE_INTERVAL_MS} the counters are sampled in the thread of a {@link Handler}, and
+ * the {@link Publisher} receives a single {@link Sample} for the status notification, and the
+ * progress of every transfer that moved since the previous sample, for the bound listeners.
+ *
+ * Sampling stops while there are no transfers in progress; the totals of the batch are reset
+ * when, besides, the service has no transfers left.
+ *
+ * @param <T>   Type of the transfer operations.
+ */
+class TransferProgressAggregator<T> implements Runnable {
+
+    /** Time between samples; 4 per second */
+    static final long SAMPLE_INTERVAL_MS = 250;
+
+    private static final String UNKNOWN_TIME_LEFT = "--:--";
+
+    /** Weight of the last sample in the transfer speed */
+    private static final double SPEED_SMOOTHING = 0.3;
+
+
+    /**
+     * Receives the sampled progress, always in the thread of the {@link Handler}.
+     */
+    interface Publisher<T> {
+
+        /**
+         * @return      Number of transfers queued or in progress in the service.
+         */
+        int getUnfinishedTransfers();
+
+        void publishProgress(Sample sample);
+
+        void publishTransferProgress(T transfer, long progressRate, long bytesDone,
+                                     long bytesTotal, String fileName);
+    }
+
+
+    /**
+     * Aggregated progress of the batch of transfers in course.
+     */
+    static class Sample {
+
+        /** Transfers finished in the batch */
+        int mFilesDone;
+
+        /** Transfers in the batch; finished, in progress or queued */
+        int mFilesTotal;
+
+        /** Bytes transferred, of the files finished or in progress */
+        long mBytesDone;
+
+        /** Size of the files finished or in progress */
+        long mBytesTotal;
+
+        /** 'true' if the size of some file in progress is unknown */
+        boolean mIndeterminate;
+
+        long mBytesPerSecond;
+
+        /** Estimated time to finish the files in progress, or -1 if unknown */
+        long mSecondsLeft;
+
+        /** Name or path of the file that progressed most since the previous sample */
+        String mFileName;
+
+        int getPercent() {
+            return (mBytesTotal > 0) ? (int) (100 * mBytesDone / mBytesTotal) : 0;
+        }
+
+        /**
+         * @param singleTextId  String with the percent and the name of the file, for a single
+         *                      transfer.
+         * @param batchTextId   String with the files done and total, bytes done and total,
+         *                      speed and time left, for several transfers.
+         * @return              Text describing the sample for the status notification.
+         */
+        String getText(Resources res, int singleTextId, int batchTextId) {
+            if (mFilesTotal <= 1) {
+                String fileName = mFileName.substring(mFileName.lastIndexOf('/') + 1);
+                return String.format(res.getString(singleTextId), getPercent(), fileName);
+            }
+            return String.format(res.getString(batchTextId), mFilesDone, mFilesTotal,
+                    DisplayUtils.bytesToHumanReadable(mBytesDone),
+                    DisplayUtils.bytesToHumanReadable(mBytesTotal),
+                    DisplayUtils.bytesToHumanReadable(mBytesPerSecond),
+                    (mSecondsLeft >= 0) ? DateUtils.formatElapsedTime(mSecondsLeft) :
+                            UNKNOWN_TIME_LEFT);
+        }
+    }
+
+
+    private static class Progress {
+
+        volatile String mFileName;
+        volatile long mBytesDone = 0;
+        volatile long mBytesTotal = -1;
+
+        /** Bytes done in the last sample, or -1 before the first progress */
+        final AtomicLong mSampledBytes = new AtomicLong(-1);
+
+        /** Bytes done the last time the progress was published; only for the sampling thread */
+        long mPublishedBytes = -1;
+
+        Progress(String fileName, long bytesTotal) {
+            mFileName = fileName;
+            mBytesTotal = bytesTotal;
+        }
+    }
+
+
+    private final Handler mHandler;
+    private final Publisher<T> mPublisher;
+
+    private final ConcurrentMap<T, Progress> mInProgress = new ConcurrentHashMap<T, Progress>();
+    private final AtomicInteger mFilesDone = new AtomicInteger(0);
+    private final AtomicLong mBytesOfFilesDone = new AtomicLong(0);
+
+    /** Bytes transferred by the finished transfers since they were last sampled */
+    private final AtomicLong mUnsampledBytes = new AtomicLong(0);
+
+    private final AtomicBoolean mSampling = new AtomicBoolean(false);
+
+    /** Only for the sampling thread */
+    private long mLastSampleTime;
+    private double mBytesPerSecond = -1;
+
+
+    /**
+     * @param handler       Handler of the thread where the progress is sampled and published.
+     * @param publisher     Receiver of the sampled progress.
+     */
+    TransferProgressAggregator(Handler handler, Publisher<T> publisher) {
+        mHandler = handler;
+        mPublisher = publisher;
+    }
+
+
+    /**
+     * Called by a worker when a transfer starts.
+     */
+    void started(T transfer, String fileName, long bytesTotal) {
+        mInProgress.put(transfer, new Progress(fileName, bytesTotal));
+        startSampling();
+    }
+
+
+    /**
+     * Called by a worker when a transfer progresses. Only updates counters.
+     */
+    void progress(T transfer, long progressRate, long bytesDone, long bytesTotal,
+                  String fileName) {
+        Progress progress = mInProgress.get(transfer);
+        if (progress != null) {
+            progress.mFileName = fileName;
+            progress.mBytesTotal = bytesTotal;
+            progress.mBytesDone = bytesDone;
+            // bytes before the first progress, as in resumed transfers, are not speed
+            progress.mSampledBytes.compareAndSet(-1, bytesDone - progressRate);
+        }
+    }
+
+
+    /**
+     * Called by a worker when a transfer finishes, successfully or not.
+     */
+    void finished(T transfer) {
+        Progress progress = mInProgress.remove(transfer);
+        if (progress != null) {
+            long sampled = progress.mSampledBytes.getAndSet(progress.mBytesDone);
+            if (sampled >= 0) {
+                mUnsampledBytes.addAndGet(progress.mBytesDone - sampled);
+            }
+            mBytesOfFilesDone.addAndGet(Math.max(progress.mBytesDone, progress.mBytesTotal));
+            mFilesDone.incrementAndGet();
+        }
+    }
+
+
+    private void startSampling() {
+        if (mSampling.compareAndSet(false, true)) {
+            mLastSampleTime = SystemClock.elapsedRealtime();
+            mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    }
+
+
+    /**
+     * Samples the counters; run in the thread of the {@link Handler}.
+     */
+    @Override
+    public void run() {
+        Sample sample = new Sample();
+        long delta = mUnsampledBytes.getAndSet(0);
+        long maxDelta = -1;
+        sample.mFilesDone = mFilesDone.get();
+        sample.mBytesDone = sample.mBytesTotal = mBytesOfFilesDone.get();
+
+        for (Map.Entry<T, Progress> entry : mInProgress.entrySet()) {
+            Progress progress = entry.getValue();
+            long bytesDone = progress.mBytesDone;
+            long bytesTotal = progress.mBytesTotal;
+            long sampled = progress.mSampledBytes.get();
+            if (sampled >= 0 && progress.mSampledBytes.compareAndSet(sampled, bytesDone)) {
+                long progressDelta = bytesDone - sampled;
+                delta += progressDelta;
+                if (progressDelta > maxDelta) {
+                    maxDelta = progressDelta;
+                    sample.mFileName = progress.mFileName;
+                }
+            }
+            sample.mBytesDone += bytesDone;
+            sample.mBytesTotal += Math.max(bytesDone, bytesTotal);
+            sample.mIndeterminate |= (bytesTotal < 0);
+
+            if (bytesDone != progress.mPublishedBytes) {
+                long progressRate = bytesDone - Math.max(progress.mPublishedBytes, 0);
+                progress.mPublishedBytes = bytesDone;
+                mPublisher.publishTransferProgress(entry.getKey(), progressRate, bytesDone,
+                        bytesTotal, progress.mFileName);
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now > mLastSampleTime) {
+            double speed = delta * 1000.0 / (now - mLastSampleTime);
+            mBytesPerSecond = (mBytesPerSecond < 0) ? speed :
+                    SPEED_SMOOTHING * speed + (1 - SPEED_SMOOTHING) * mBytesPerSecond;
+        }
+        mLastSampleTime = now;
+
+        int unfinished = mPublisher.getUnfinishedTransfers();
+        if (mInProgress.isEmpty()) {
+            if (unfinished == 0) {
+                // batch over
+                mFilesDone.set(0);
+                mBytesOfFilesDone.set(0);
+                mBytesPerSecond = -1;
+            }
+            mSampling.set(false);
+            if (!mInProgress.isEmpty()) {
+                // started while stopping
+                startSampling();
+            }
+            return;
+        }
+
+        sample.mFilesTotal = sample.mFilesDone + Math.max(unfinished, mInProgress.size());
+        sample.mBytesPerSecond = (long) Math.max(mBytesPerSecond, 0);
+        sample.mSecondsLeft = (sample.mBytesPerSecond > 0 && !sample.mIndeterminate) ?
+                (sample.mBytesTotal - sample.mBytesDone) / sample.mBytesPerSecond : -1;
+        if (sample.mFileName == null) {
+            Iterator<Progress> it = mInProgress.values().iterator();
+            sample.mFileName = it.hasNext() ? it.next().mFileName : "";
+        }
+        mPublisher.publishProgress(sample);
+
+        mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+    }
+
+
+    /**
+     * Stops sampling; the pending progress is not published.
+     */
+    void stop() {
+        mHandler.removeCallbacks(this);
+    }
+
+}
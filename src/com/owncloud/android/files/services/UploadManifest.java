@@ -0,0 +1,160 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.accounts.Account;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Set of files to upload to an account with {@link FileUploader}, for batches too large to
+ * pass in an {@link Intent}.
+ *
+ * {@link #submit(Context)} saves the files in the journal of uploads from a background thread,
+ * and sends to {@link FileUploader} only the range of rows saved. The service reads them a page
+ * at a time and creates the upload operations when its workers are about to get free, so the
+ * memory used doesn't grow with the size of the batch.
+ */
+public class UploadManifest {
+
+    private static final String TAG = UploadManifest.class.getSimpleName();
+
+    /** Number of uploads saved in every transaction */
+    private static final int SAVE_PAGE_SIZE = 500;
+
+    private final Account mAccount;
+    private final List<String> mLocalPaths = new ArrayList<String>();
+    private final List<String> mRemotePaths = new ArrayList<String>();
+    private final List<String> mMimeTypes = new ArrayList<String>();
+    private boolean mForceOverwrite = false;
+    private int mLocalBehaviour = FileUploader.LOCAL_BEHAVIOUR_COPY;
+
+
+    /**
+     * @param account       ownCloud account where the files will be uploaded.
+     */
+    public UploadManifest(Account account) {
+        mAccount = account;
+    }
+
+
+    public void setForceOverwrite(boolean forceOverwrite) {
+        mForceOverwrite = forceOverwrite;
+    }
+
+    /**
+     * @param localBehaviour    One of {@link FileUploader#LOCAL_BEHAVIOUR_COPY},
+     *                          {@link FileUploader#LOCAL_BEHAVIOUR_MOVE} and
+     *                          {@link FileUploader#LOCAL_BEHAVIOUR_FORGET}.
+     */
+    public void setLocalBehaviour(int localBehaviour) {
+        mLocalBehaviour = localBehaviour;
+    }
+
+
+    /**
+     * Adds a file to upload.
+     *
+     * @param localPath     Full path to the file in the local file system.
+     * @param remotePath    Remote path where the file will be uploaded.
+     * @param mimeType      MIME type of the file; if null, found out from the extension.
+     */
+    public void add(String localPath, String remotePath, String mimeType) {
+        mLocalPaths.add(localPath);
+        mRemotePaths.add(remotePath);
+        mMimeTypes.add(mimeType);
+    }
+
+    public int size() {
+        return mLocalPaths.size();
+    }
+
+
+    /**
+     * Saves the files in the journal of uploads and starts {@link FileUploader} to upload them.
+     *
+     * Returns immediately; the files are saved in a background thread.
+     */
+    public void submit(Context context) {
+        if (mLocalPaths.isEmpty()) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                save(appContext);
+            }
+        }, TAG).start();
+    }
+
+
+    private void save(Context context) {
+        long firstId = -1, lastId = -1;
+        DbHandler db = DbHandler.getInstance(context);
+        List<ContentValues> page = new ArrayList<ContentValues>(SAVE_PAGE_SIZE);
+        for (int i = 0; i < mLocalPaths.size(); i++) {
+            page.add(newTransfer(i));
+            if (page.size() == SAVE_PAGE_SIZE || i == mLocalPaths.size() - 1) {
+                long[] ids = db.putTransfers(page);
+                if (firstId < 0) {
+                    firstId = ids[0];
+                }
+                lastId = ids[ids.length - 1];
+                page.clear();
+            }
+        }
+        Log_OC.d(TAG, "Saved " + mLocalPaths.size() + " uploads for " + mAccount.name);
+
+        Intent intent = new Intent(context, FileUploader.class);
+        intent.putExtra(FileUploader.KEY_ACCOUNT, mAccount);
+        intent.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MANIFEST);
+        intent.putExtra(FileUploader.KEY_MANIFEST_AFTER_ID, firstId - 1);
+        intent.putExtra(FileUploader.KEY_MANIFEST_LAST_ID, lastId);
+        context.startService(intent);
+    }
+
+
+    private ContentValues newTransfer(int i) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_TYPE, DbHandler.TRANSFER_TYPE_UPLOAD);
+        cv.put(DbHandler.TRANSFER_ACCOUNT, mAccount.name);
+        cv.put(DbHandler.TRANSFER_LOCAL_PATH, mLocalPaths.get(i));
+        cv.put(DbHandler.TRANSFER_REMOTE_PATH, mRemotePaths.get(i));
+        cv.put(DbHandler.TRANSFER_MIME_TYPE, mMimeTypes.get(i));
+        cv.put(DbHandler.TRANSFER_STATE, DbHandler.TRANSFER_STATE_QUEUED);
+        cv.put(DbHandler.TRANSFER_BYTES_TOTAL, new File(mLocalPaths.get(i)).length());
+        cv.put(DbHandler.TRANSFER_FORCE_OVERWRITE, mForceOverwrite ? 1 : 0);
+        cv.put(DbHandler.TRANSFER_INSTANT, 0);
+        cv.put(DbHandler.TRANSFER_LOCAL_BEHAVIOUR, mLocalBehaviour);
+        return cv;
+    }
+
+}
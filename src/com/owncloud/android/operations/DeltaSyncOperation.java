@@ -0,0 +1,452 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+
+/**
+ * Remote operation synchronizing the whole tree of files of an account with a single request,
+ * a WebDAV 'sync-collection' report (RFC 6578) on the root folder.
+ *
+ * Without sync token, the server reports every file in the account; with the token saved in
+ * the previous synchronization, only the files changed or removed since then. The changes are
+ * merged and saved in chunks while the report is read, every chunk in a single transaction, so
+ * the first synchronization of a big account doesn't hold all its files in memory.
+ *
+ * Servers not supporting the report are detected with {@link #isSupported()}; the caller
+ * should synchronize folder by folder then.
+ */
+public class DeltaSyncOperation extends RemoteOperation {
+
+    private static final String TAG = DeltaSyncOperation.class.getSimpleName();
+
+    private static final String REPORT_BODY_START =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<d:sync-collection " + MultiStatusReader.NAMESPACES + "><d:sync-token>";
+
+    private static final String REPORT_BODY_END =
+            "</d:sync-token><d:sync-level>infinite</d:sync-level>" +
+            MultiStatusReader.PROPERTIES +
+            "</d:sync-collection>";
+
+    /** Precondition failed by a sync token the server does not accept anymore */
+    private static final String INVALID_TOKEN_ERROR = "valid-sync-token";
+
+    /** Maximum number of reports requested when the server splits the changes */
+    private static final int MAX_REPORTS = 20;
+
+    /** Number of changes merged with the local data and saved together */
+    private static final int MERGE_CHUNK_SIZE = 200;
+
+    private static final Comparator<OCFile> BY_PATH = new Comparator<OCFile>() {
+        @Override
+        public int compare(OCFile lhs, OCFile rhs) {
+            return lhs.getRemotePath().compareTo(rhs.getRemotePath());
+        }
+    };
+
+
+    /** Sync token of the last synchronization; updated after every report applied */
+    private String mSyncToken;
+
+    private final FileDataStorageManager mStorageManager;
+    private final Account mAccount;
+    private final Context mContext;
+
+    /** Changes read and not saved yet */
+    private final List<OCFile> mChangedFiles = new ArrayList<OCFile>(MERGE_CHUNK_SIZE);
+    private final List<String> mRemovedPaths = new ArrayList<String>(MERGE_CHUNK_SIZE);
+
+    /** Files reported before their parent folder, saved again at the end of the report */
+    private final List<OCFile> mDeferredFiles = new ArrayList<OCFile>();
+
+    private final List<SynchronizeFileOperation> mFilesToSyncContents =
+            new ArrayList<SynchronizeFileOperation>();
+
+    /**
+     * Map of remote and local paths to files that where locally stored in a location
+     * out of the ownCloud folder and couldn't be copied automatically into it
+     */
+    private final Map<String, String> mForgottenLocalFiles = new HashMap<String, String>();
+
+    /** Adds the local state to the files read from the server */
+    private final LocalStateMerger mMerger;
+
+    private boolean mTruncated;
+
+    /** Folders whose contents changed */
+    private final Set<String> mChangedFolders = new HashSet<String>();
+
+    private boolean mSupported = true;
+    private int mChanges = 0;
+    private int mSkippedFiles = 0;
+    private int mConflictsFound = 0;
+    private int mFailsInFavouritesFound = 0;
+
+
+    /**
+     * @param syncToken         Sync token saved in the last synchronization of the account, or
+     *                          null to read every file.
+     * @param currentSyncTime   Time stamp for the synchronization process in progress.
+     * @param storageManager    Interface with the local database.
+     * @param account           ownCloud account to synchronize.
+     * @param context           Application context.
+     */
+    public DeltaSyncOperation(String syncToken, long currentSyncTime,
+                              FileDataStorageManager storageManager, Account account,
+                              Context context) {
+        mSyncToken = syncToken;
+        mStorageManager = storageManager;
+        mAccount = account;
+        mContext = context;
+        mMerger = new LocalStateMerger(account, currentSyncTime, mForgottenLocalFiles);
+    }
+
+
+    /**
+     * @return      Sync token to save for the next synchronization of the account.
+     */
+    public String getSyncToken() {
+        return mSyncToken;
+    }
+
+    /**
+     * @return      'false' if the server does not support reports of changes.
+     */
+    public boolean isSupported() {
+        return mSupported;
+    }
+
+    /**
+     * @return      Number of files changed or removed in the server.
+     */
+    public int getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * @return      Number of files reported by the server and not saved because their parent
+     *              folder is not known; the folders containing them must be walked.
+     */
+    public int getSkippedFiles() {
+        return mSkippedFiles;
+    }
+
+    /**
+     * @return      Remote paths of the folders whose contents changed.
+     */
+    public Set<String> getChangedFolders() {
+        return mChangedFolders;
+    }
+
+    public int getConflictsFound() {
+        return mConflictsFound;
+    }
+
+    public int getFailsInFavouritesFound() {
+        return mFailsInFavouritesFound;
+    }
+
+    public Map<String, String> getForgottenLocalFiles() {
+        return mForgottenLocalFiles;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result;
+        int reports = 0;
+        mChanges = 0;
+        mSkippedFiles = 0;
+        mChangedFolders.clear();
+        mForgottenLocalFiles.clear();
+        do {
+            result = readChanges(client, true);
+            if (!result.isSuccess()) {
+                break;
+            }
+            syncContents();
+            reports++;
+        } while (mTruncated && reports < MAX_REPORTS);
+
+        if (result.isSuccess()) {
+            Log_OC.i(TAG, "Synchronized " + mAccount.name + " with " + mChanges + " changes in " +
+                    reports + " reports");
+            if (mConflictsFound > 0 || mFailsInFavouritesFound > 0) {
+                result = new RemoteOperationResult(ResultCode.SYNC_CONFLICT);
+                    // should be a different result code, but will do the job
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Requests the changes since the current sync token, and saves them while they are read.
+     *
+     * @param retryInvalidToken     When 'true', a token not accepted by the server is dropped,
+     *                              and every file is requested.
+     */
+    private RemoteOperationResult readChanges(OwnCloudClient client, boolean retryInvalidToken) {
+        RemoteOperationResult result;
+        MultiStatusReader.Method report = null;
+        mChangedFiles.clear();
+        mRemovedPaths.clear();
+        mDeferredFiles.clear();
+        mFilesToSyncContents.clear();
+        mTruncated = false;
+        try {
+            String token = (mSyncToken != null) ? TextUtils.htmlEncode(mSyncToken) : "";
+            report = new MultiStatusReader.Method("REPORT", client.getWebdavUri() +
+                    OCFile.ROOT_PATH, "0", REPORT_BODY_START + token + REPORT_BODY_END);
+            int status = client.executeMethod(report);
+
+            if (status == HttpStatus.SC_MULTI_STATUS) {
+                MultiStatusReader reader = new MultiStatusReader(
+                        client.getWebdavUri().getPath(), new MultiStatusReader.Listener() {
+                            @Override
+                            public void onEntry(OCFile file) {
+                                if (!OCFile.ROOT_PATH.equals(file.getRemotePath())) {
+                                    mChangedFiles.add(file);
+                                    mergeChunkIfFull();
+                                }
+                            }
+
+                            @Override
+                            public void onRemoved(String remotePath) {
+                                mRemovedPaths.add(remotePath);
+                                mergeChunkIfFull();
+                            }
+                        });
+                reader.read(report.getResponseBodyAsStream());
+                mergeChunk();
+                mergeDeferredFiles();
+                mTruncated = reader.isTruncated();
+                if (reader.getSyncToken() != null) {
+                    mSyncToken = reader.getSyncToken();
+                }
+                result = new RemoteOperationResult(true, status, report.getResponseHeaders());
+
+            } else {
+                String body = report.getResponseBodyAsString();
+                if (mSyncToken != null && retryInvalidToken && body != null &&
+                        body.contains(INVALID_TOKEN_ERROR)) {
+                    Log_OC.w(TAG, "Sync token of " + mAccount.name + " not valid anymore, " +
+                            "reading every file");
+                    report.releaseConnection();
+                    report = null;
+                    mSyncToken = null;
+                    return readChanges(client, false);
+                }
+                mSupported = !isNotSupported(status);
+                result = new RemoteOperationResult(false, status, report.getResponseHeaders());
+            }
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+
+        } finally {
+            if (report != null) {
+                report.releaseConnection();
+            }
+        }
+
+        if (!result.isSuccess()) {
+            if (!mSupported) {
+                Log_OC.i(TAG, "Reports of changes not supported in " + mAccount.name);
+            } else if (result.isException()) {
+                Log_OC.e(TAG, "Reading changes in " + mAccount.name + ": " +
+                        result.getLogMessage(), result.getException());
+            } else {
+                Log_OC.e(TAG, "Reading changes in " + mAccount.name + ": " +
+                        result.getLogMessage());
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return      'true' if the status of a failed report means that the server does not
+     *              support it.
+     */
+    private static boolean isNotSupported(int status) {
+        return (status == HttpStatus.SC_BAD_REQUEST ||
+                status == HttpStatus.SC_FORBIDDEN ||
+                status == HttpStatus.SC_METHOD_NOT_ALLOWED ||
+                status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE ||
+                status == HttpStatus.SC_NOT_IMPLEMENTED);
+    }
+
+
+    private void mergeChunkIfFull() {
+        if (mChangedFiles.size() + mRemovedPaths.size() >= MERGE_CHUNK_SIZE) {
+            mergeChunk();
+        }
+    }
+
+
+    /**
+     * Merges the changes read since the last chunk with their local state and saves them in a
+     * single transaction. Files whose parent folder is not known yet are kept for
+     * {@link #mergeDeferredFiles()}.
+     */
+    private void mergeChunk() {
+        if (mChangedFiles.isEmpty() && mRemovedPaths.isEmpty()) {
+            return;
+        }
+        // parents first
+        Collections.sort(mChangedFiles, BY_PATH);
+
+        List<String> paths = new ArrayList<String>(mChangedFiles.size());
+        for (OCFile file : mChangedFiles) {
+            paths.add(file.getRemotePath());
+        }
+        Map<String, OCFile> localFiles = mStorageManager.getFilesByPath(paths);
+        for (OCFile remoteFile : mChangedFiles) {
+            OCFile localFile = localFiles.get(remoteFile.getRemotePath());
+            // folders are reported with their full contents, so their ETag is updated
+            mMerger.mergeFile(remoteFile, localFile, true);
+            if (remoteFile.keepInSync()) {
+                mFilesToSyncContents.add(new SynchronizeFileOperation(
+                        localFile, remoteFile, mAccount, true, mContext));
+            }
+            mChangedFolders.add(getParentPath(remoteFile.getRemotePath()));
+        }
+        for (String path : mRemovedPaths) {
+            mChangedFolders.add(getParentPath(path));
+        }
+
+        List<OCFile> skippedFiles = mStorageManager.saveTree(mChangedFiles, mRemovedPaths);
+        mDeferredFiles.addAll(skippedFiles);
+        mChanges += mChangedFiles.size() - skippedFiles.size() + mRemovedPaths.size();
+        mChangedFiles.clear();
+        mRemovedPaths.clear();
+    }
+
+
+    /**
+     * Saves the files of the report that came before their parent folder, once every chunk
+     * was saved. Files whose parent is still unknown are dropped, and the ETags of the known
+     * folders above them are forgotten, so that the next walk of the folders finds them.
+     */
+    private void mergeDeferredFiles() {
+        if (mDeferredFiles.isEmpty()) {
+            return;
+        }
+        Collections.sort(mDeferredFiles, BY_PATH);
+        Set<String> skippedParents = new HashSet<String>();
+        for (int start = 0; start < mDeferredFiles.size(); start += FileDao.MAX_PATHS) {
+            List<OCFile> chunk = mDeferredFiles.subList(start,
+                    Math.min(start + FileDao.MAX_PATHS, mDeferredFiles.size()));
+            List<OCFile> skippedFiles =
+                    mStorageManager.saveTree(chunk, Collections.<String>emptyList());
+            mChanges += chunk.size() - skippedFiles.size();
+            mSkippedFiles += skippedFiles.size();
+            for (OCFile file : skippedFiles) {
+                Log_OC.w(TAG, "Parent folder of " + file.getRemotePath() + " not found in " +
+                        mAccount.name + ", skipping it");
+                skippedParents.add(getParentPath(file.getRemotePath()));
+            }
+        }
+        mDeferredFiles.clear();
+        if (!skippedParents.isEmpty()) {
+            forgetEtags(skippedParents);
+        }
+    }
+
+
+    /**
+     * Clears the ETag of the known folders containing the given ones, up to the root folder,
+     * so that a walk of the folders skipping the unchanged ones fetches them again.
+     *
+     * @param folderPaths   Remote paths of folders not known locally.
+     */
+    private void forgetEtags(Set<String> folderPaths) {
+        Set<String> ancestorPaths = new HashSet<String>();
+        for (String path : folderPaths) {
+            while (ancestorPaths.add(path) && !OCFile.ROOT_PATH.equals(path)) {
+                path = getParentPath(path);
+            }
+        }
+        List<String> paths = new ArrayList<String>(ancestorPaths);
+        for (int start = 0; start < paths.size(); start += FileDao.MAX_PATHS) {
+            Map<String, OCFile> folders = mStorageManager.getFilesByPath(paths.subList(start,
+                    Math.min(start + FileDao.MAX_PATHS, paths.size())));
+            for (OCFile folder : folders.values()) {
+                if (folder.isFolder() && !TextUtils.isEmpty(folder.getEtag())) {
+                    folder.setEtag("");
+                    mStorageManager.saveFile(folder);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Requests the synchronization of the contents of the kept-in-sync files in the last
+     * report, AFTER saving their current remote properties.
+     */
+    private void syncContents() {
+        for (SynchronizeFileOperation op : mFilesToSyncContents) {
+            RemoteOperationResult contentsResult = op.execute(mStorageManager, mContext);
+            if (!contentsResult.isSuccess()) {
+                if (contentsResult.getCode() == ResultCode.SYNC_CONFLICT) {
+                    mConflictsFound++;
+                } else {
+                    mFailsInFavouritesFound++;
+                    Log_OC.e(TAG, "Error while synchronizing favourites : " +
+                            contentsResult.getLogMessage(), contentsResult.getException());
+                }
+            }   // won't let these fails break the synchronization process
+        }
+        mFilesToSyncContents.clear();
+    }
+
+
+    private static String getParentPath(String path) {
+        int end = path.endsWith(OCFile.PATH_SEPARATOR) ? path.length() - 1 : path.length();
+        return path.substring(0, path.lastIndexOf(OCFile.PATH_SEPARATOR, end - 1) + 1);
+    }
+
+}
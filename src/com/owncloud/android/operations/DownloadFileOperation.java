@@ -35,7 +35,6 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -54,7 +53,8 @@ public class DownloadFileOperation extends RemoteOperation {
     private long mModificationTimestamp = 0;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadOperation mDownloadOperation;
+    private final TransferMetrics.Record mMetrics;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -67,7 +67,9 @@ public class DownloadFileOperation extends RemoteOperation {
         
         mAccount = account;
         mFile = file;
-        
+        mMetrics = new TransferMetrics.Record(TransferMetrics.TYPE_DOWNLOAD, account.name,
+                file.getRemotePath());
+        mDataTransferListeners.add(mMetrics);
     }
 
 
@@ -122,6 +124,13 @@ public class DownloadFileOperation extends RemoteOperation {
         return mFile.getFileLength();
     }
     
+    /**
+     * @return      Timings of the download, filled while it's performed.
+     */
+    public TransferMetrics.Record getMetrics() {
+        return mMetrics;
+    }
+
     public long getModificationTimestamp() {
         return (mModificationTimestamp > 0) ? mModificationTimestamp :
                 mFile.getModificationTimestamp();
@@ -136,8 +145,6 @@ public class DownloadFileOperation extends RemoteOperation {
         /// download will be performed to a temporal file, then moved to the final location
         File tmpFile = new File(getTmpPath());
         
-        String tmpFolder =  getTmpFolder();
-        
         /// perform the download
         synchronized(mCancellationRequested) {
             if (mCancellationRequested.get()) {
@@ -145,7 +152,11 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
+        // an interrupted download of the same file resumes over the partial temporal file
+        mDownloadOperation = new ResumableDownloadOperation(mAccount, mFile.getRemotePath(),
+                tmpFile.getAbsolutePath(), MainApp.getAppContext());
+        mDownloadOperation.setMetrics(mMetrics);
+        mDownloadOperation.setExpectedLength(mFile.getFileLength(), mFile.getEtagInServer());
         Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
         while (listener.hasNext()) {
             mDownloadOperation.addDatatransferProgressListener(listener.next());
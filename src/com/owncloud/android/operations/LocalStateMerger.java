@@ -0,0 +1,209 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import android.accounts.Account;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.FileStorageUtils;
+
+
+/**
+ * Updates the data of files read from the server with their local state, the same way for
+ * every operation synchronizing lists of files: {@link RefreshFolderOperation} folder by
+ * folder, and {@link DeltaSyncOperation} for the whole account.
+ */
+class LocalStateMerger {
+
+    private static final String TAG = LocalStateMerger.class.getSimpleName();
+
+    /** Account where the merged files belong */
+    private final Account mAccount;
+
+    /** Time stamp for the synchronization process in progress */
+    private final long mCurrentSyncTime;
+
+    /**
+     * Map of remote and local paths to files that where locally stored in a location
+     * out of the ownCloud folder and couldn't be copied automatically into it
+     */
+    private final Map<String, String> mForgottenLocalFiles;
+
+
+    /**
+     * @param account               ownCloud account where the merged files belong.
+     * @param currentSyncTime       Time stamp for the synchronization process in progress.
+     * @param forgottenLocalFiles   Map where the files whose local copy is forgotten are added.
+     */
+    LocalStateMerger(Account account, long currentSyncTime,
+                     Map<String, String> forgottenLocalFiles) {
+        mAccount = account;
+        mCurrentSyncTime = currentSyncTime;
+        mForgottenLocalFiles = forgottenLocalFiles;
+    }
+
+
+    /**
+     * Updates the data of a file read from the server with the local state of the file.
+     *
+     * @param remoteFile        File with the data read from the server.
+     * @param localFile         Current local data of the same file, or null if it's new.
+     * @param keepFolderEtag    'True' to keep the ETag read from the server in folders, when
+     *                          their full contents are saved in the same synchronization.
+     */
+    void mergeFile(OCFile remoteFile, OCFile localFile, boolean keepFolderEtag) {
+        boolean keepEtag = keepFolderEtag && remoteFile.isFolder();
+
+        /// keep the ETag just read from the server before replacing it with the local one
+        remoteFile.setEtagInServer(remoteFile.getEtag());
+
+        /// add to the remoteFile (the new one) data about LOCAL STATE (not existing in server)
+        remoteFile.setLastSyncDateForProperties(mCurrentSyncTime);
+        if (localFile != null) {
+            // some properties of local state are kept unmodified
+            remoteFile.setFileId(localFile.getFileId());
+            remoteFile.setKeepInSync(localFile.keepInSync());
+            remoteFile.setLastSyncDateForData(localFile.getLastSyncDateForData());
+            remoteFile.setModificationTimestampAtLastSyncForData(
+                    localFile.getModificationTimestampAtLastSyncForData()
+            );
+            remoteFile.setStoragePath(localFile.getStoragePath());
+            // eTag will not be updated unless contents are synchronized
+            //  (Synchronize[File|Folder]Operation with remoteFile as parameter)
+            if (!keepEtag) {
+                remoteFile.setEtag(localFile.getEtag());
+            }
+            // size of folders not reported by the server is kept by the database
+            if (!remoteFile.isFolder() && remoteFile.isImage() &&
+                    remoteFile.getModificationTimestamp() !=
+                            localFile.getModificationTimestamp()) {
+                remoteFile.setNeedsUpdateThumbnail(true);
+                Log_OC.d(TAG, "Image " + remoteFile.getFileName() + " updated on the server");
+            }
+            remoteFile.setPublicLink(localFile.getPublicLink());
+            remoteFile.setShareByLink(localFile.isShareByLink());
+        } else if (!keepEtag) {
+            // remote eTag will not be updated unless contents are synchronized
+            //  (Synchronize[File|Folder]Operation with remoteFile as parameter)
+            remoteFile.setEtag("");
+        }
+
+        /// check and fix, if needed, local storage path
+        checkAndFixForeignStoragePath(remoteFile);      // policy - local files are COPIED
+                                                        // into the ownCloud local folder;
+        searchForLocalFileInDefaultPath(remoteFile);    // legacy
+    }
+
+
+    /**
+     * Checks the storage path of the OCFile received as parameter.
+     * If it's out of the local ownCloud folder, tries to copy the file inside it.
+     *
+     * If the copy fails, the link to the local file is nullified. The account of forgotten
+     * files is kept in {@link #mForgottenLocalFiles}
+     *
+     * @param file      File to check and fix.
+     */
+    private void checkAndFixForeignStoragePath(OCFile file) {
+        String storagePath = file.getStoragePath();
+        String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, file);
+        if (storagePath != null && !storagePath.equals(expectedPath)) {
+            /// fix storagePaths out of the local ownCloud folder
+            File originalFile = new File(storagePath);
+            if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
+                mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
+                file.setStoragePath(null);
+
+            } else {
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    File expectedFile = new File(expectedPath);
+                    File expectedParent = expectedFile.getParentFile();
+                    expectedParent.mkdirs();
+                    if (!expectedParent.isDirectory()) {
+                        throw new IOException(
+                                "Unexpected error: parent directory could not be created"
+                        );
+                    }
+                    expectedFile.createNewFile();
+                    if (!expectedFile.isFile()) {
+                        throw new IOException("Unexpected error: target file could not be created");
+                    }
+                    in = new FileInputStream(originalFile);
+                    out = new FileOutputStream(expectedFile);
+                    byte[] buf = new byte[1024];
+                    int len;
+                    while ((len = in.read(buf)) > 0){
+                        out.write(buf, 0, len);
+                    }
+                    file.setStoragePath(expectedPath);
+
+                } catch (Exception e) {
+                    Log_OC.e(TAG, "Exception while copying foreign file " + expectedPath, e);
+                    mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
+                    file.setStoragePath(null);
+
+                } finally {
+                    try {
+                        if (in != null) in.close();
+                    } catch (Exception e) {
+                        Log_OC.d(TAG, "Weird exception while closing input stream for "
+                                + storagePath + " (ignoring)", e);
+                    }
+                    try {
+                        if (out != null) out.close();
+                    } catch (Exception e) {
+                        Log_OC.d(TAG, "Weird exception while closing output stream for "
+                                + expectedPath + " (ignoring)", e);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Scans the default location for saving local copies of files searching for
+     * a 'lost' file with the same full name as the {@link OCFile} received as
+     * parameter.
+     *
+     * @param file      File to associate a possible 'lost' local file.
+     */
+    private void searchForLocalFileInDefaultPath(OCFile file) {
+        if (file.getStoragePath() == null && !file.isFolder()) {
+            File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
+            if (f.exists()) {
+                file.setStoragePath(f.getAbsolutePath());
+                file.setLastSyncDateForData(f.lastModified());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.net.Uri;
+import android.util.Xml;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+
+/**
+ * Reads a WebDAV multistatus response from a stream with a pull parser, handing every
+ * 'response' element to a {@link Listener} as soon as it ends, so that the memory used does not
+ * depend on the size of the response.
+ */
+class MultiStatusReader {
+
+    /** Properties of files read from the server, to include in the body of requests */
+    static final String PROPERTIES =
+            "<d:prop>" +
+            "<d:resourcetype/><d:getcontenttype/><d:getcontentlength/><d:getlastmodified/>" +
+            "<d:creationdate/><d:getetag/><oc:permissions/><oc:id/><oc:size/>" +
+            "</d:prop>";
+
+    /** Namespaces used in {@link #PROPERTIES}, to declare in the root element of requests */
+    static final String NAMESPACES = "xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\"";
+
+    private static final String NS_DAV = "DAV:";
+    private static final String NS_OC = "http://owncloud.org/ns";
+
+    private static final String FOLDER_MIMETYPE = "DIR";
+
+
+    /**
+     * Receives the entries of the response, in the thread reading it, in the order sent by the
+     * server.
+     */
+    interface Listener {
+
+        /**
+         * Called for every resource whose properties were read.
+         */
+        void onEntry(OCFile file);
+
+        /**
+         * Called for every resource reported as not found; only sent in reports of changes.
+         *
+         * @param remotePath    Remote path of the resource; folders may lack the trailing
+         *                      separator.
+         */
+        void onRemoved(String remotePath);
+    }
+
+
+    /**
+     * WebDAV request whose response is a multistatus; the response body is left for
+     * {@link MultiStatusReader} to read.
+     */
+    static class Method extends EntityEnclosingMethod {
+
+        private static final String DEPTH_HEADER = "Depth";
+
+        private final String mName;
+
+        /**
+         * @param name      Name of the method; PROPFIND, REPORT...
+         * @param uri       Full URI of the resource.
+         * @param depth     Value of the 'Depth' header.
+         * @param body      XML body of the request.
+         */
+        Method(String name, String uri, String depth, String body)
+                throws UnsupportedEncodingException {
+            super(uri);
+            mName = name;
+            setRequestHeader(DEPTH_HEADER, depth);
+            setRequestEntity(new StringRequestEntity(body, "application/xml", "UTF-8"));
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+
+
+    /**
+     * Properties found in a 'propstat' element.
+     */
+    private static class Entry {
+        boolean mIsFolder = false;
+        String mContentType;
+        long mLength = 0;
+        long mSize = -1;
+        long mModified = 0;
+        long mCreation = 0;
+        String mEtag = "";
+        String mPermissions;
+        String mRemoteId;
+    }
+
+
+    private final String mWebdavPath;
+    private final Listener mListener;
+
+    private String mSyncToken = null;
+    private boolean mTruncated = false;
+
+
+    /**
+     * @param webdavPath    Path of the WebDAV endpoint in the server, to remove from the hrefs.
+     * @param listener      Receiver of the entries read.
+     */
+    MultiStatusReader(String webdavPath, Listener listener) {
+        mWebdavPath = webdavPath;
+        mListener = listener;
+    }
+
+
+    /**
+     * @return      Sync token sent in the response, or null if none was.
+     */
+    String getSyncToken() {
+        return mSyncToken;
+    }
+
+    /**
+     * @return      'true' if the server did not report every change in the response, and more
+     *              should be requested with the new sync token.
+     */
+    boolean isTruncated() {
+        return mTruncated;
+    }
+
+
+    void read(InputStream in) throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(in, null);
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                if (isDav(parser, "response")) {
+                    readResponse(parser);
+                } else if (isDav(parser, "sync-token")) {
+                    mSyncToken = parser.nextText().trim();
+                }
+            }
+            event = parser.next();
+        }
+    }
+
+
+    /**
+     * Reads a 'response' element; the parser is left at its end tag.
+     */
+    private void readResponse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String href = null;
+        String status = null;
+        Entry entry = null;
+        int depth = parser.getDepth();
+        int event = parser.next();
+        while (!(event == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+            if (event == XmlPullParser.START_TAG) {
+                if (isDav(parser, "href")) {
+                    href = parser.nextText();
+                } else if (isDav(parser, "status")) {
+                    status = parser.nextText();
+                } else if (isDav(parser, "propstat")) {
+                    Entry propstat = readPropstat(parser);
+                    if (propstat != null) {
+                        entry = propstat;
+                    }
+                }
+            }
+            event = parser.next();
+        }
+        if (href == null) {
+            return;
+        }
+
+        String path = toRemotePath(href);
+        if (entry != null) {
+            if (entry.mIsFolder && !path.endsWith("/")) {
+                path = path + "/";
+            }
+            OCFile file = new OCFile(path);
+            file.setMimetype(entry.mIsFolder ? FOLDER_MIMETYPE : entry.mContentType);
+            // size of the whole folder, or -1 if not reported
+            file.setFileLength(entry.mIsFolder ? entry.mSize : entry.mLength);
+            file.setModificationTimestamp(entry.mModified);
+            file.setCreationTimestamp(entry.mCreation);
+            file.setEtag(entry.mEtag);
+            file.setPermissions(entry.mPermissions);
+            file.setRemoteId(entry.mRemoteId);
+            mListener.onEntry(file);
+
+        } else if (status != null && status.contains(" 404")) {
+            mListener.onRemoved(path);
+
+        } else if (status != null && status.contains(" 507")) {
+            mTruncated = true;
+        }
+    }
+
+
+    /**
+     * Reads a 'propstat' element; the parser is left at its end tag.
+     *
+     * @return      Properties in the element, or null if their status is not successful.
+     */
+    private Entry readPropstat(XmlPullParser parser) throws XmlPullParserException, IOException {
+        Entry entry = new Entry();
+        boolean success = false;
+        int depth = parser.getDepth();
+        int event = parser.next();
+        while (!(event == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+            if (event == XmlPullParser.START_TAG) {
+                if (isDav(parser, "status")) {
+                    success = parser.nextText().contains(" 200");
+                } else if (isDav(parser, "collection")) {
+                    entry.mIsFolder = true;
+                } else if (isDav(parser, "getcontenttype")) {
+                    entry.mContentType = parser.nextText();
+                } else if (isDav(parser, "getcontentlength")) {
+                    entry.mLength = parseLong(parser.nextText());
+                } else if (isDav(parser, "getlastmodified")) {
+                    entry.mModified = parseDate(parser.nextText());
+                } else if (isDav(parser, "creationdate")) {
+                    entry.mCreation = parseDate(parser.nextText());
+                } else if (isDav(parser, "getetag")) {
+                    entry.mEtag = parser.nextText().replace("\"", "");
+                } else if (NS_OC.equals(parser.getNamespace())) {
+                    if ("permissions".equals(parser.getName())) {
+                        entry.mPermissions = parser.nextText();
+                    } else if ("id".equals(parser.getName())) {
+                        entry.mRemoteId = parser.nextText();
+                    } else if ("size".equals(parser.getName())) {
+                        String size = parser.nextText();
+                        entry.mSize = (size.trim().length() > 0) ? parseLong(size) : -1;
+                    }
+                }
+            }
+            event = parser.next();
+        }
+        return success ? entry : null;
+    }
+
+
+    private String toRemotePath(String href) {
+        String path = Uri.decode(href);
+        int start = path.indexOf(mWebdavPath);
+        if (start >= 0) {
+            path = path.substring(start + mWebdavPath.length());
+        }
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        return path;
+    }
+
+    private static boolean isDav(XmlPullParser parser, String name) {
+        return NS_DAV.equals(parser.getNamespace()) && name.equals(parser.getName());
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseDate(String value) {
+        Date date = WebdavUtils.parseResponseDate(value);
+        return (date != null) ? date.getTime() : 0;
+    }
+
+}
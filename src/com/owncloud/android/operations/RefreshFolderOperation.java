@@ -20,13 +20,8 @@
 
 package com.owncloud.android.operations;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,7 +31,6 @@ import org.apache.http.HttpStatus;
 import android.accounts.Account;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 //import android.support.v4.content.LocalBroadcastManager;
 
 import com.owncloud.android.MainApp;
@@ -52,7 +46,6 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.shares.GetRemoteSharesForFileOperation;
 import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
-import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 
 import com.owncloud.android.syncadapter.FileSyncAdapter;
@@ -78,6 +71,9 @@ public class RefreshFolderOperation extends RemoteOperation {
     public static final String EVENT_SINGLE_FOLDER_SHARES_SYNCED    = 
             RefreshFolderOperation.class.getName() + ".EVENT_SINGLE_FOLDER_SHARES_SYNCED";
     
+    /** Number of children merged with the local data and saved together */
+    private static final int MERGE_CHUNK_SIZE = 200;
+
     /** Time stamp for the synchronization process in progress */
     private long mCurrentSyncTime;
     
@@ -96,6 +92,9 @@ public class RefreshFolderOperation extends RemoteOperation {
     /** Files and folders contained in the synchronized folder after a successful operation */
     private List<OCFile> mChildren;
 
+    /** Folders contained in the synchronized folder, when its contents were fetched */
+    private List<OCFile> mChildFolders;
+
     /** Counter of conflicts found between local and remote files */
     private int mConflictsFound;
 
@@ -108,6 +107,9 @@ public class RefreshFolderOperation extends RemoteOperation {
      **/
     private Map<String, String> mForgottenLocalFiles;
 
+    /** Adds the local state to the files read from the server */
+    private LocalStateMerger mMerger;
+
     /** 'True' means that this operation is part of a full account synchronization */ 
     private boolean mSyncFullAccount;
 
@@ -120,6 +122,9 @@ public class RefreshFolderOperation extends RemoteOperation {
     /** 'True' means that Etag will be ignored */
     private boolean mIgnoreETag;
 
+    /** 'True' means that the ETag in server saved for the folder can be trusted */
+    private boolean mTrustEtagInServer;
+
     
     /**
      * Creates a new instance of {@link RefreshFolderOperation}.
@@ -152,8 +157,24 @@ public class RefreshFolderOperation extends RemoteOperation {
         mAccount = account;
         mContext = context;
         mForgottenLocalFiles = new HashMap<String, String>();
+        mMerger = new LocalStateMerger(account, currentSyncTime, mForgottenLocalFiles);
         mRemoteFolderChanged = false;
         mIgnoreETag = ignoreETag;
+        mTrustEtagInServer = false;
+    }
+    
+    
+    /**
+     * Allows to skip the request checking if the remote folder changed when the ETag in the
+     * server of the local folder is known; see {@link OCFile#getEtagInServer()}.
+     * 
+     * Only safe when the parent folder was synchronized in the same process, so that the 
+     * ETag in server is fresh; for instance, in a full synchronization of the account. 
+     * 
+     * @param trustEtagInServer     'True' to trust the ETag in server of the local folder.
+     */
+    public void setTrustEtagInServer(boolean trustEtagInServer) {
+        mTrustEtagInServer = trustEtagInServer;
     }
     
     
@@ -173,12 +194,39 @@ public class RefreshFolderOperation extends RemoteOperation {
      * Returns the list of files and folders contained in the synchronized folder, 
      * if called after synchronization is complete.
      * 
+     * When the contents of the folder were fetched, they are read from the database in the
+     * first call.
+     * 
      * @return  List of files and folders contained in the synchronized folder.
      */
     public List<OCFile> getChildren() {
+        if (mChildren == null && mChildFolders != null) {
+            mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
+        }
         return mChildren;
     }
     
+    /**
+     * Returns the list of folders contained in the synchronized folder, if called after
+     * synchronization is complete.
+     * 
+     * Unlike {@link #getChildren()}, doesn't need to keep or read all the children of huge 
+     * folders.
+     * 
+     * @return  List of folders contained in the synchronized folder.
+     */
+    public List<OCFile> getChildFolders() {
+        if (mChildFolders == null && mChildren != null) {
+            mChildFolders = new ArrayList<OCFile>();
+            for (OCFile child : mChildren) {
+                if (child.isFolder()) {
+                    mChildFolders.add(child);
+                }
+            }
+        }
+        return mChildFolders;
+    }
+    
     /**
      * Performs the synchronization.
      * 
@@ -190,12 +238,21 @@ public class RefreshFolderOperation extends RemoteOperation {
         mFailsInFavouritesFound = 0;
         mConflictsFound = 0;
         mForgottenLocalFiles.clear();
+        mChildren = null;
+        mChildFolders = null;
         
         if (FileUtils.PATH_SEPARATOR.equals(mLocalFolder.getRemotePath()) && !mSyncFullAccount) {
             updateOCVersion(client);
         }
         
-        result = checkForChanges(client);
+        if (mTrustEtagInServer && !mIgnoreETag && mLocalFolder.getEtagInServer() != null) {
+            // ETag in server was read when the parent folder was fetched; no request needed
+            mRemoteFolderChanged = !mLocalFolder.isEtagInSyncWithServer();
+            result = new RemoteOperationResult(ResultCode.OK);
+            
+        } else {
+            result = checkForChanges(client);
+        }
         
         if (result.isSuccess()) {
             if (mRemoteFolderChanged) {
@@ -281,12 +338,14 @@ public class RefreshFolderOperation extends RemoteOperation {
 
     private RemoteOperationResult fetchAndSyncRemoteFolder(OwnCloudClient client) {
         String remotePath = mLocalFolder.getRemotePath();
-        ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(remotePath);
-        RemoteOperationResult result = operation.execute(client);
+        FolderMerger merger = new FolderMerger();
+        StreamRemoteFolderOperation operation =
+                new StreamRemoteFolderOperation(remotePath, merger);
         Log_OC.d(TAG, "Synchronizing " + mAccount.name + remotePath);
+        RemoteOperationResult result = operation.execute(client);
         
         if (result.isSuccess()) {
-            synchronizeData(result.getData(), client);
+            merger.finish(client);
             if (mConflictsFound > 0  || mFailsInFavouritesFound > 0) { 
                 result = new RemoteOperationResult(ResultCode.SYNC_CONFLICT);   
                     // should be a different result code, but will do the job
@@ -316,108 +375,101 @@ public class RefreshFolderOperation extends RemoteOperation {
 
     /**
      *  Synchronizes the data retrieved from the server about the contents of the target folder 
-     *  with the current data in the local database.
-     *  
-     *  Grants that mChildren is updated with fresh data after execution.
+     *  with the current data in the local database, while the data are read.
      *  
-     *  @param folderAndFiles   Remote folder and children files in Folder 
-     *  
-     *  @param client           Client instance to the remote server where the data were 
-     *                          retrieved.  
-     *  @return                 'True' when any change was made in the local data, 'false' otherwise
+     *  Children are merged and saved in chunks of {@link #MERGE_CHUNK_SIZE}, every chunk in a 
+     *  single transaction, looking up only the local data of the files in the chunk. Local 
+     *  children not found in the server are removed when the folder was fully read, as the 
+     *  children not saved during the current synchronization; the metadata of the folder are
+     *  saved the last, so that its ETag is not updated if the synchronization is interrupted.
      */
-    private void synchronizeData(ArrayList<Object> folderAndFiles, OwnCloudClient client) {
-        // get 'fresh data' from the database
-        mLocalFolder = mStorageManager.getFileByPath(mLocalFolder.getRemotePath());
-
-        // parse data from remote folder 
-        OCFile remoteFolder = fillOCFile((RemoteFile)folderAndFiles.get(0));
-        remoteFolder.setParentId(mLocalFolder.getParentId());
-        remoteFolder.setFileId(mLocalFolder.getFileId());
+    private class FolderMerger implements StreamRemoteFolderOperation.EntryHandler {
         
-        Log_OC.d(TAG, "Remote folder " + mLocalFolder.getRemotePath() 
-                + " changed - starting update of local data ");
+        private OCFile mRemoteFolder = null;
         
-        List<OCFile> updatedFiles = new Vector<OCFile>(folderAndFiles.size() - 1);
-        List<SynchronizeFileOperation> filesToSyncContents = new Vector<SynchronizeFileOperation>();
-
-        // get current data about local contents of the folder to synchronize
-        // TODO Enable when "On Device" is recovered ?
-        List<OCFile> localFiles = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
-        Map<String, OCFile> localFilesMap = new HashMap<String, OCFile>(localFiles.size());
-        for (OCFile file : localFiles) {
-            localFilesMap.put(file.getRemotePath(), file);
-        }
+        private final List<OCFile> mChunk = new ArrayList<OCFile>(MERGE_CHUNK_SIZE);
         
-        // loop to update every child
-        OCFile remoteFile = null, localFile = null;
-        for (int i=1; i<folderAndFiles.size(); i++) {
-            /// new OCFile instance with the data from the server
-            remoteFile = fillOCFile((RemoteFile)folderAndFiles.get(i));
-            remoteFile.setParentId(mLocalFolder.getFileId());
-
-            /// retrieve local data for the read file 
-            //  localFile = mStorageManager.getFileByPath(remoteFile.getRemotePath());
-            localFile = localFilesMap.remove(remoteFile.getRemotePath());
+        private final List<SynchronizeFileOperation> mFilesToSyncContents = 
+                new Vector<SynchronizeFileOperation>();
+
+        @Override
+        public void onFolder(OCFile folder) {
+            // get 'fresh data' from the database
+            mLocalFolder = mStorageManager.getFileByPath(mLocalFolder.getRemotePath());
+            folder.setParentId(mLocalFolder.getParentId());
+            folder.setFileId(mLocalFolder.getFileId());
+            mRemoteFolder = folder;
+            mChildFolders = new ArrayList<OCFile>();
             
-            /// add to the remoteFile (the new one) data about LOCAL STATE (not existing in server)
-            remoteFile.setLastSyncDateForProperties(mCurrentSyncTime);
-            if (localFile != null) {
-                // some properties of local state are kept unmodified
-                remoteFile.setFileId(localFile.getFileId());
-                remoteFile.setKeepInSync(localFile.keepInSync());
-                remoteFile.setLastSyncDateForData(localFile.getLastSyncDateForData());
-                remoteFile.setModificationTimestampAtLastSyncForData(
-                        localFile.getModificationTimestampAtLastSyncForData()
-                );
-                remoteFile.setStoragePath(localFile.getStoragePath());
-                // eTag will not be updated unless contents are synchronized 
-                //  (Synchronize[File|Folder]Operation with remoteFile as parameter)
-                remoteFile.setEtag(localFile.getEtag());    
-                if (remoteFile.isFolder()) {
-                    remoteFile.setFileLength(localFile.getFileLength()); 
-                        // TODO move operations about size of folders to FileContentProvider
-                } else if (mRemoteFolderChanged && remoteFile.isImage() &&
-                        remoteFile.getModificationTimestamp() !=
-                                localFile.getModificationTimestamp()) {
-                    remoteFile.setNeedsUpdateThumbnail(true);
-                    Log.d(TAG, "Image " + remoteFile.getFileName() + " updated on the server");
-                }
-                remoteFile.setPublicLink(localFile.getPublicLink());
-                remoteFile.setShareByLink(localFile.isShareByLink());
-            } else {
-                // remote eTag will not be updated unless contents are synchronized 
-                //  (Synchronize[File|Folder]Operation with remoteFile as parameter)
-                remoteFile.setEtag(""); 
+            Log_OC.d(TAG, "Remote folder " + mLocalFolder.getRemotePath() 
+                    + " changed - starting update of local data ");
+        }
+
+        @Override
+        public void onChild(OCFile child) {
+            mChunk.add(child);
+            if (mChunk.size() == MERGE_CHUNK_SIZE) {
+                mergeChunk();
             }
+        }
 
-            /// check and fix, if needed, local storage path
-            checkAndFixForeignStoragePath(remoteFile);      // policy - local files are COPIED 
-                                                            // into the ownCloud local folder;
-            searchForLocalFileInDefaultPath(remoteFile);    // legacy   
-
-            /// prepare content synchronization for kept-in-sync files
-            if (remoteFile.keepInSync()) {
-                SynchronizeFileOperation operation = new SynchronizeFileOperation(  localFile,        
-                                                                                    remoteFile, 
-                                                                                    mAccount, 
-                                                                                    true, 
-                                                                                    mContext
-                                                                                    );
+        /**
+         * Saves the last chunk, removes the children not in the server anymore, saves the 
+         * folder and then requests the synchronization of the contents of kept-in-sync files.
+         */
+        void finish(OwnCloudClient client) {
+            mergeChunk();
+            int removed = mStorageManager.removeFolderChildrenSyncedBefore(
+                    mLocalFolder, mCurrentSyncTime);
+            Log_OC.d(TAG, "Removed " + removed + " files not in " + mLocalFolder.getRemotePath() 
+                    + " anymore");
+            mStorageManager.saveFolder(mRemoteFolder, Collections.<OCFile>emptyList(), 
+                    Collections.<OCFile>emptyList());
+            
+            // request for the synchronization of file contents AFTER saving current remote 
+            // properties
+            startContentSynchronizations(mFilesToSyncContents, client);
+        }
+        
+        private void mergeChunk() {
+            if (mChunk.isEmpty()) {
+                return;
+            }
+            List<String> paths = new ArrayList<String>(mChunk.size());
+            for (OCFile file : mChunk) {
+                paths.add(file.getRemotePath());
+            }
+            Map<String, OCFile> localFiles = mStorageManager.getFolderChildren(mLocalFolder, paths);
+            for (OCFile remoteFile : mChunk) {
+                OCFile localFile = localFiles.get(remoteFile.getRemotePath());
+                mergeFile(remoteFile, localFile);
                 
-                filesToSyncContents.add(operation);
+                /// prepare content synchronization for kept-in-sync files
+                if (remoteFile.keepInSync()) {
+                    mFilesToSyncContents.add(new SynchronizeFileOperation(
+                            localFile, remoteFile, mAccount, true, mContext));
+                }
+                if (remoteFile.isFolder()) {
+                    mChildFolders.add(remoteFile);
+                }
             }
             
-            updatedFiles.add(remoteFile);
+            // save updated contents in local database
+            mStorageManager.saveFolderChildren(mLocalFolder, mChunk);
+            mChunk.clear();
         }
-
-        // save updated contents in local database
-        mStorageManager.saveFolder(remoteFolder, updatedFiles, localFilesMap.values());
-
-        // request for the synchronization of file contents AFTER saving current remote properties
-        startContentSynchronizations(filesToSyncContents, client);
-
-        mChildren = updatedFiles;
+    }
+    
+    
+    /**
+     * Updates the data of a file read from the server with the local state of the file.
+     * 
+     * @param remoteFile    File with the data read from the server.
+     * @param localFile     Current local data of the same file, or null if it's new.
+     */
+    private void mergeFile(OCFile remoteFile, OCFile localFile) {
+        remoteFile.setParentId(mLocalFolder.getFileId());
+        mMerger.mergeFile(remoteFile, localFile, false);
     }
 
     /**
@@ -458,93 +510,6 @@ public class RefreshFolderOperation extends RemoteOperation {
         return (status == HttpStatus.SC_MULTI_STATUS); 
     }
 
-    /**
-     * Creates and populates a new {@link OCFile} object with the data read from the server.
-     * 
-     * @param remote    remote file read from the server (remote file or folder).
-     * @return          New OCFile instance representing the remote resource described by we.
-     */
-    private OCFile fillOCFile(RemoteFile remote) {
-        OCFile file = new OCFile(remote.getRemotePath());
-        file.setCreationTimestamp(remote.getCreationTimestamp());
-        file.setFileLength(remote.getLength());
-        file.setMimetype(remote.getMimeType());
-        file.setModificationTimestamp(remote.getModifiedTimestamp());
-        file.setEtag(remote.getEtag());
-        file.setPermissions(remote.getPermissions());
-        file.setRemoteId(remote.getRemoteId());
-        return file;
-    }
-    
-
-    /**
-     * Checks the storage path of the OCFile received as parameter. 
-     * If it's out of the local ownCloud folder, tries to copy the file inside it. 
-     * 
-     * If the copy fails, the link to the local file is nullified. The account of forgotten 
-     * files is kept in {@link #mForgottenLocalFiles}
-     *) 
-     * @param file      File to check and fix.
-     */
-    private void checkAndFixForeignStoragePath(OCFile file) {
-        String storagePath = file.getStoragePath();
-        String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, file);
-        if (storagePath != null && !storagePath.equals(expectedPath)) {
-            /// fix storagePaths out of the local ownCloud folder
-            File originalFile = new File(storagePath);
-            if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
-                mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
-                file.setStoragePath(null);
-                    
-            } else {
-                InputStream in = null;
-                OutputStream out = null;
-                try {
-                    File expectedFile = new File(expectedPath);
-                    File expectedParent = expectedFile.getParentFile();
-                    expectedParent.mkdirs();
-                    if (!expectedParent.isDirectory()) {
-                        throw new IOException(
-                                "Unexpected error: parent directory could not be created"
-                        );
-                    }
-                    expectedFile.createNewFile();
-                    if (!expectedFile.isFile()) {
-                        throw new IOException("Unexpected error: target file could not be created");
-                    }                    
-                    in = new FileInputStream(originalFile);
-                    out = new FileOutputStream(expectedFile);
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0){
-                        out.write(buf, 0, len);
-                    }
-                    file.setStoragePath(expectedPath);
-                    
-                } catch (Exception e) {
-                    Log_OC.e(TAG, "Exception while copying foreign file " + expectedPath, e);
-                    mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
-                    file.setStoragePath(null);
-                    
-                } finally {
-                    try {
-                        if (in != null) in.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing input stream for " 
-                                + storagePath + " (ignoring)", e);
-                    }
-                    try {
-                        if (out != null) out.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing output stream for " 
-                                + expectedPath + " (ignoring)", e);
-                    }
-                }
-            }
-        }
-    }
-    
-    
     private RemoteOperationResult refreshSharesForFolder(OwnCloudClient client) {
         RemoteOperationResult result = null;
         
@@ -566,24 +531,6 @@ public class RefreshFolderOperation extends RemoteOperation {
     }
     
 
-    /**
-     * Scans the default location for saving local copies of files searching for
-     * a 'lost' file with the same full name as the {@link OCFile} received as 
-     * parameter.
-     *  
-     * @param file      File to associate a possible 'lost' local file.
-     */
-    private void searchForLocalFileInDefaultPath(OCFile file) {
-        if (file.getStoragePath() == null && !file.isFolder()) {
-            File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
-            if (f.exists()) {
-                file.setStoragePath(f.getAbsolutePath());
-                file.setLastSyncDateForData(f.lastModified());
-            }
-        }
-    }
-
-    
     /**
      * Sends a message to any application component interested in the progress 
      * of the synchronization.
@@ -0,0 +1,396 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+
+
+/**
+ * Remote operation uploading a file in chunks that, when interrupted, resumes from the first
+ * chunk not confirmed by the server.
+ *
+ * The transfer id, chunk size, number of chunks confirmed and the size and modification date of
+ * the local file are saved in {@link DbHandler}, keyed by account, local path and requested
+ * remote path, so that a later operation for the same upload, even after a restart of the app,
+ * can continue it. The saved state is discarded when the local file changed since, when the
+ * upload finishes, and when it is cancelled.
+ */
+public class ResumableChunkedUploadOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableChunkedUploadOperation.class.getSimpleName();
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String ETAG_HEADER = "ETag";
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final Account mAccount;
+    private final String mLocalPath;
+    private final String mOriginalLocalPath;
+    private final String mRequestedRemotePath;
+    private final String mRemotePath;
+    private final String mMimeType;
+    private final Context mContext;
+
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private volatile PutMethod mPutMethod = null;
+    private TransferMetrics.Record mMetrics = null;
+
+
+    /**
+     * @param account               ownCloud account the file is uploaded to.
+     * @param localPath             Full path to the local file whose contents are sent; may be a
+     *                              temporal copy of 'originalLocalPath'.
+     * @param originalLocalPath     Full path to the local file requested for upload; its size and
+     *                              modification date tell if an interrupted upload can resume.
+     * @param requestedRemotePath   Remote path requested for the upload.
+     * @param remotePath            Remote path the file is uploaded to, after avoiding
+     *                              overwrites.
+     * @param mimeType              MIME type of the file.
+     * @param context               Android context.
+     */
+    public ResumableChunkedUploadOperation(Account account, String localPath,
+                                           String originalLocalPath, String requestedRemotePath,
+                                           String remotePath, String mimeType, Context context) {
+        mAccount = account;
+        mLocalPath = localPath;
+        mOriginalLocalPath = originalLocalPath;
+        mRequestedRemotePath = requestedRemotePath;
+        mRemotePath = remotePath;
+        mMimeType = mimeType;
+        mContext = context;
+    }
+
+
+    /**
+     * Returns the remote path chosen for an interrupted upload that can be resumed.
+     *
+     * The state of the upload is discarded if the local file changed since it was interrupted.
+     *
+     * @return      Remote path of the interrupted upload, or null if there is none to resume.
+     */
+    public static String getPendingRemotePath(Context context, Account account, String localPath,
+                                              String requestedRemotePath) {
+        String remotePath = null;
+        DbHandler db = DbHandler.getInstance(context);
+        Cursor c = db.getChunkedUpload(account.name, localPath, requestedRemotePath);
+        try {
+            if (c.moveToFirst()) {
+                if (isUnchanged(c, new File(localPath))) {
+                    remotePath = c.getString(
+                            c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_TARGET_REMOTE_PATH));
+                } else {
+                    Log_OC.d(TAG, localPath + " changed since its upload was interrupted");
+                    db.removeChunkedUpload(
+                            c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_ID)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return remotePath;
+    }
+
+
+    private static boolean isUnchanged(Cursor c, File localFile) {
+        return localFile.isFile() &&
+                localFile.length() ==
+                        c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_LOCAL_SIZE)) &&
+                localFile.lastModified() ==
+                        c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_LOCAL_MODIFIED));
+    }
+
+
+    /**
+     * @param metrics   Record where the timings of the chunks, and the restarts and
+     *                  resumptions of the upload are saved.
+     */
+    public void setMetrics(TransferMetrics.Record metrics) {
+        mMetrics = metrics;
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+
+    public void cancel() {
+        mCancellationRequested.set(true);
+        PutMethod putMethod = mPutMethod;
+        if (putMethod != null) {
+            putMethod.abort();
+        }
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        DbHandler db = DbHandler.getInstance(mContext);
+        RandomAccessFile raf = null;
+        try {
+            File file = new File(mLocalPath);
+            raf = new RandomAccessFile(file, "r");
+            result = upload(client, db, raf.getChannel(), file.length(), true);
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + mLocalPath + " (ignoring)",
+                            e);
+                }
+            }
+            if (mCancellationRequested.get()) {
+                Cursor c = db.getChunkedUpload(mAccount.name, mOriginalLocalPath,
+                        mRequestedRemotePath);
+                if (c.moveToFirst()) {
+                    db.removeChunkedUpload(
+                            c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_ID)));
+                }
+                c.close();
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Sends the chunks not confirmed yet, saving every confirmation.
+     *
+     * @param mayRestart    When true and the resumed upload is not completed by the server
+     *                      (e.g. because it expired the chunks sent before), the upload
+     *                      restarts from the first chunk.
+     */
+    private RemoteOperationResult upload(OwnCloudClient client, DbHandler db, FileChannel channel,
+                                         long totalLength, boolean mayRestart)
+            throws IOException, OperationCancelledException {
+
+        long id = -1;
+        String transferId = null;
+        long chunkSize = 0;
+        long firstChunk = 0;
+
+        Cursor c = db.getChunkedUpload(mAccount.name, mOriginalLocalPath, mRequestedRemotePath);
+        try {
+            if (c.moveToFirst()) {
+                id = c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_ID));
+                if (isUnchanged(c, new File(mOriginalLocalPath)) &&
+                        mRemotePath.equals(c.getString(
+                                c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_TARGET_REMOTE_PATH)))) {
+                    transferId = c.getString(
+                            c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_TRANSFER_ID));
+                    chunkSize = c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_CHUNK_SIZE));
+                    firstChunk = c.getLong(
+                            c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_CHUNKS_CONFIRMED));
+                } else {
+                    db.removeChunkedUpload(id);
+                    id = -1;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (id < 0) {
+            File originalFile = new File(mOriginalLocalPath);
+            transferId = String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
+            chunkSize = ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+            id = db.putChunkedUpload(mAccount.name, mOriginalLocalPath, mRequestedRemotePath,
+                    mRemotePath, transferId, chunkSize, originalFile.length(),
+                    originalFile.lastModified());
+        } else {
+            Log_OC.i(TAG, "Resuming upload of " + mOriginalLocalPath + " to " + mRemotePath +
+                    " from chunk " + firstChunk);
+            if (mMetrics != null) {
+                mMetrics.retried();
+            }
+        }
+
+        long chunkCount = (totalLength + chunkSize - 1) / chunkSize;
+        String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath) +
+                "-chunking-" + transferId + "-" + chunkCount + "-";
+        boolean assembled = false;
+        int status = -1;
+
+        for (long chunkIndex = firstChunk; chunkIndex < chunkCount; chunkIndex++) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            long offset = chunkIndex * chunkSize;
+            PutMethod putMethod = new PutMethod(uriPrefix + chunkIndex);
+            mPutMethod = putMethod;
+            long chunkStart = SystemClock.elapsedRealtime();
+            try {
+                putMethod.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+                putMethod.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(totalLength));
+                putMethod.setRequestEntity(new ChunkEntity(channel, offset,
+                        Math.min(chunkSize, totalLength - offset), totalLength));
+                status = client.executeMethod(putMethod);
+                if (!isSuccess(status)) {
+                    return new RemoteOperationResult(false, status,
+                            putMethod.getResponseHeaders());
+                }
+                if (chunkIndex == chunkCount - 1) {
+                    assembled = putMethod.getResponseHeader(ETAG_HEADER) != null;
+                }
+                client.exhaustResponse(putMethod.getResponseBodyAsStream());
+            } finally {
+                putMethod.releaseConnection();
+            }
+            if (mMetrics != null) {
+                mMetrics.chunkSent(SystemClock.elapsedRealtime() - chunkStart);
+            }
+            if (id >= 0) {
+                db.updateChunksConfirmed(id, chunkIndex + 1);
+            }
+        }
+
+        if (firstChunk > 0 && !assembled && mayRestart) {
+            // the server may have expired the chunks sent before the interruption
+            Log_OC.w(TAG, "Resumed upload of " + mOriginalLocalPath + " not completed by the " +
+                    "server; restarting it");
+            db.removeChunkedUpload(id);
+            if (mMetrics != null) {
+                mMetrics.retried();
+            }
+            return upload(client, db, channel, totalLength, false);
+        }
+
+        db.removeChunkedUpload(id);
+        return new RemoteOperationResult(true, status, mPutMethod.getResponseHeaders());
+    }
+
+
+    private static boolean isSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED ||
+                status == HttpStatus.SC_NO_CONTENT);
+    }
+
+
+    /**
+     * Sends a range of a file, reporting progress over the length of the full file.
+     */
+    private class ChunkEntity implements RequestEntity {
+
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+        private final long mTotalLength;
+
+        ChunkEntity(FileChannel channel, long offset, long length, long totalLength) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+            mTotalLength = totalLength;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return mMimeType;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = mOffset;
+            long end = mOffset + mLength;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < BUFFER_SIZE) {
+                    buffer.limit((int) (end - position));
+                }
+                int read = mChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + mLocalPath);
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it =
+                            mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(read, position, mTotalLength, mLocalPath);
+                    }
+                }
+            }
+        }
+    }
+
+}
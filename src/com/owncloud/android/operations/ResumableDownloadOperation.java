@@ -0,0 +1,344 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import android.accounts.Account;
+import android.content.Context;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+
+/**
+ * Remote operation downloading a file to a local path that, when interrupted, resumes from the
+ * last byte saved.
+ *
+ * The partially downloaded file is kept in place, and the ETag of the remote file it belongs to
+ * is saved in {@link DbHandler}. A later download of the same file requests only the missing
+ * bytes with a 'Range' header, conditioned with 'If-Range' to that ETag; if the remote file
+ * changed, the server replies with the full new contents, and the partial file is replaced.
+ */
+public class ResumableDownloadOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadOperation.class.getSimpleName();
+
+    private static final String ETAG_HEADER = "ETag";
+    private static final String RANGE_HEADER = "Range";
+    private static final String IF_RANGE_HEADER = "If-Range";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final Account mAccount;
+    private final String mRemotePath;
+    private final String mLocalPath;
+    private final Context mContext;
+
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private volatile GetMethod mGet = null;
+
+    private long mExpectedLength = -1;
+    private String mExpectedEtag = null;
+
+    private long mModificationTimestamp = 0;
+    private String mEtag = null;
+    private TransferMetrics.Record mMetrics = null;
+
+
+    /**
+     * @param account       ownCloud account the file is downloaded from.
+     * @param remotePath    Remote path of the file to download.
+     * @param localPath     Full path to the local file the contents are written to.
+     * @param context       Android context.
+     */
+    public ResumableDownloadOperation(Account account, String remotePath, String localPath,
+                                      Context context) {
+        mAccount = account;
+        mRemotePath = remotePath;
+        mLocalPath = localPath;
+        mContext = context;
+    }
+
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * Size of the remote file, checked when the server replies without 'Content-Length'; a
+     * connection dropped then looks like the end of the contents.
+     *
+     * @param length    Size of the remote file, as last read from the server.
+     * @param etag      ETag of the remote file when its size was read, or null if unknown.
+     */
+    public void setExpectedLength(long length, String etag) {
+        mExpectedLength = length;
+        mExpectedEtag = etag;
+    }
+
+    /**
+     * @param metrics   Record where the restarts and resumptions of the download are counted.
+     */
+    public void setMetrics(TransferMetrics.Record metrics) {
+        mMetrics = metrics;
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+
+    public void cancel() {
+        mCancellationRequested.set(true);
+        GetMethod get = mGet;
+        if (get != null) {
+            get.abort();
+        }
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        File localFile = new File(mLocalPath);
+        DbHandler db = DbHandler.getInstance(mContext);
+        try {
+            result = download(client, db, localFile, true);
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (mCancellationRequested.get()) {
+                localFile.delete();
+                db.removePartialDownload(mAccount.name, mRemotePath);
+            }
+        }
+        Log_OC.i(TAG, "Download of " + mRemotePath + " to " + mLocalPath + ": " +
+                result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * @param mayRestart    When true and the server refuses the range requested, the partial
+     *                      file is discarded and the download restarts from the first byte.
+     */
+    private RemoteOperationResult download(OwnCloudClient client, DbHandler db, File localFile,
+                                           boolean mayRestart)
+            throws IOException, OperationCancelledException {
+
+        long offset = 0;
+        String savedEtag = db.getPartialDownloadEtag(mAccount.name, mRemotePath);
+        if (localFile.isFile() && localFile.length() > 0 && savedEtag != null) {
+            offset = localFile.length();
+        } else {
+            localFile.delete();
+            localFile.getParentFile().mkdirs();
+        }
+
+        GetMethod get = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        mGet = get;
+        if (mCancellationRequested.get()) {
+            throw new OperationCancelledException();
+        }
+        FileOutputStream fos = null;
+        BufferedInputStream bis = null;
+        try {
+            if (offset > 0) {
+                get.addRequestHeader(RANGE_HEADER, "bytes=" + offset + "-");
+                get.addRequestHeader(IF_RANGE_HEADER, savedEtag);
+            }
+            int status = client.executeMethod(get);
+
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && mayRestart) {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                get.releaseConnection();
+                Log_OC.w(TAG, "Range not satisfiable for " + mRemotePath + "; restarting");
+                localFile.delete();
+                db.removePartialDownload(mAccount.name, mRemotePath);
+                if (mMetrics != null) {
+                    mMetrics.retried();
+                }
+                return download(client, db, localFile, false);
+            }
+
+            boolean resumed = (status == HttpStatus.SC_PARTIAL_CONTENT);
+            if (resumed && getRangeStart(get) != offset) {
+                throw new IOException("Unexpected range in response for " + mRemotePath);
+            }
+            if (status != HttpStatus.SC_OK && !resumed) {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                return new RemoteOperationResult(false, status, get.getResponseHeaders());
+            }
+
+            Header etag = get.getResponseHeader(ETAG_HEADER);
+            mEtag = (etag != null) ? etag.getValue() : null;
+            if (resumed) {
+                Log_OC.i(TAG, "Resuming download of " + mRemotePath + " from byte " + offset);
+                if (mMetrics != null) {
+                    mMetrics.retried();
+                }
+            } else {
+                // full contents; the partial file, if any, belonged to an older version
+                offset = 0;
+            }
+            if (mEtag != null && !mEtag.startsWith("W/")) {
+                db.putPartialDownload(mAccount.name, mRemotePath, mEtag);
+            } else {
+                db.removePartialDownload(mAccount.name, mRemotePath);
+            }
+
+            long contentLength = get.getResponseContentLength();
+            boolean lengthKnown = (contentLength >= 0);
+            long totalToTransfer = offset + (lengthKnown ? contentLength : 0);
+
+            bis = new BufferedInputStream(get.getResponseBodyAsStream());
+            fos = new FileOutputStream(localFile, resumed);
+            long transferred = offset;
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int readResult;
+            while ((readResult = bis.read(bytes)) != -1) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                fos.write(bytes, 0, readResult);
+                transferred += readResult;
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it =
+                            mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(readResult, transferred, totalToTransfer,
+                                localFile.getName());
+                    }
+                }
+            }
+            if (lengthKnown && transferred < totalToTransfer) {
+                throw new IOException("Connection closed after " + transferred + " of " +
+                        totalToTransfer + " bytes of " + mRemotePath);
+            }
+            if (!lengthKnown && transferred < mExpectedLength && isExpectedVersion()) {
+                // the partial file is kept, and resumed by the next download
+                throw new IOException("Connection closed after " + transferred + " of " +
+                        mExpectedLength + " expected bytes of " + mRemotePath);
+            }
+
+            Header modificationTime = get.getResponseHeader(LAST_MODIFIED_HEADER);
+            if (modificationTime != null) {
+                Date d = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                mModificationTimestamp = (d != null) ? d.getTime() : 0;
+            }
+            db.removePartialDownload(mAccount.name, mRemotePath);
+            return new RemoteOperationResult(true, status, get.getResponseHeaders());
+
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+            if (bis != null) {
+                bis.close();
+            }
+            get.releaseConnection();
+        }
+    }
+
+
+    /**
+     * @return  'true' if the remote file downloaded is the one whose size is expected, or the
+     *          ETag of any of them is unknown.
+     */
+    private boolean isExpectedVersion() {
+        if (mEtag == null || mExpectedEtag == null) {
+            return true;
+        }
+        return unquote(mEtag).equals(unquote(mExpectedEtag));
+    }
+
+
+    private static String unquote(String etag) {
+        if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            return etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
+
+    /**
+     * @return  First byte of the range in the 'Content-Range' header of a 206 response, or -1
+     *          if missing or malformed.
+     */
+    private static long getRangeStart(GetMethod get) {
+        Header contentRange = get.getResponseHeader(CONTENT_RANGE_HEADER);
+        if (contentRange != null) {
+            String value = contentRange.getValue().trim();
+            int start = value.indexOf(' ');
+            int end = value.indexOf('-');
+            if (start >= 0 && end > start) {
+                try {
+                    return Long.parseLong(value.substring(start + 1, end).trim());
+                } catch (NumberFormatException e) {
+                    Log_OC.w(TAG, "Malformed Content-Range: " + value);
+                }
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+
+/**
+ * Remote operation reading the properties of a folder and its children, handing every entry
+ * to an {@link EntryHandler} as soon as it's parsed.
+ *
+ * The multistatus response of the PROPFIND request is parsed from the network stream by
+ * {@link MultiStatusReader}; neither the response nor the list of entries are kept in memory,
+ * so the memory used does not depend on the number of children of the folder.
+ */
+public class StreamRemoteFolderOperation extends RemoteOperation {
+
+    private static final String TAG = StreamRemoteFolderOperation.class.getSimpleName();
+
+    private static final String PROPFIND_BODY =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<d:propfind " + MultiStatusReader.NAMESPACES + ">" +
+            MultiStatusReader.PROPERTIES +
+            "</d:propfind>";
+
+
+    /**
+     * Receives the entries of the folder, in the thread running the operation, in the order
+     * sent by the server.
+     */
+    public interface EntryHandler {
+
+        /**
+         * Called once, with the folder itself, before any child.
+         */
+        void onFolder(OCFile folder);
+
+        void onChild(OCFile child);
+    }
+
+
+    private final String mRemotePath;
+    private final EntryHandler mHandler;
+
+    private boolean mFolderFound = false;
+    private int mChildren = 0;
+
+
+    /**
+     * @param remotePath    Remote path of the folder to read.
+     * @param handler       Receiver of the entries read.
+     */
+    public StreamRemoteFolderOperation(String remotePath, EntryHandler handler) {
+        mRemotePath = remotePath;
+        mHandler = handler;
+    }
+
+
+    /**
+     * @return      Number of children of the folder handed to the {@link EntryHandler}.
+     */
+    public int getChildren() {
+        return mChildren;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result;
+        MultiStatusReader.Method propfind = null;
+        mFolderFound = false;
+        mChildren = 0;
+        try {
+            propfind = new MultiStatusReader.Method("PROPFIND",
+                    client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath), "1",
+                    PROPFIND_BODY);
+            int status = client.executeMethod(propfind);
+
+            if (status == HttpStatus.SC_MULTI_STATUS) {
+                MultiStatusReader reader = new MultiStatusReader(
+                        client.getWebdavUri().getPath(), new MultiStatusReader.Listener() {
+                            @Override
+                            public void onEntry(OCFile file) {
+                                if (!mFolderFound) {
+                                    mFolderFound = true;
+                                    mHandler.onFolder(file);
+                                } else {
+                                    mChildren++;
+                                    mHandler.onChild(file);
+                                }
+                            }
+
+                            @Override
+                            public void onRemoved(String remotePath) {
+                                // not sent for PROPFIND
+                            }
+                        });
+                reader.read(propfind.getResponseBodyAsStream());
+                if (!mFolderFound) {
+                    throw new IOException("No entry for " + mRemotePath + " in the response");
+                }
+                result = new RemoteOperationResult(true, status, propfind.getResponseHeaders());
+
+            } else {
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
+                result = new RemoteOperationResult(false, status, propfind.getResponseHeaders());
+            }
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+
+        } finally {
+            if (propfind != null) {
+                propfind.releaseConnection();
+            }
+        }
+
+        if (result.isSuccess()) {
+            Log_OC.i(TAG, "Read folder " + mRemotePath + " with " + mChildren + " children");
+        } else if (result.isException()) {
+            Log_OC.e(TAG, "Read folder " + mRemotePath + ": " + result.getLogMessage(),
+                    result.getException());
+        } else {
+            Log_OC.e(TAG, "Read folder " + mRemotePath + ": " + result.getLogMessage());
+        }
+        return result;
+    }
+
+}
@@ -316,6 +316,9 @@ public class SynchronizeFolderOperation extends SyncOperation {
             //  localFile = mStorageManager.getFileByPath(remoteFile.getRemotePath());
             localFile = localFilesMap.remove(remoteFile.getRemotePath());
 
+            /// keep the ETag just read from the server before replacing it with the local one
+            remoteFile.setEtagInServer(remoteFile.getEtag());
+
             /// add to the remoteFile (the new one) data about LOCAL STATE (not existing in server)
             remoteFile.setLastSyncDateForProperties(mCurrentSyncTime);
             if (localFile != null) {
@@ -490,6 +493,9 @@ public class SynchronizeFolderOperation extends SyncOperation {
         file.setCreationTimestamp(remote.getCreationTimestamp());
         file.setFileLength(remote.getLength());
         file.setMimetype(remote.getMimeType());
+        if (file.isFolder() && remote.getLength() == 0) {
+            file.setFileLength(OCFile.UNKNOWN_LENGTH);
+        }
         file.setModificationTimestamp(remote.getModifiedTimestamp());
         file.setEtag(remote.getEtag());
         file.setPermissions(remote.getPermissions());
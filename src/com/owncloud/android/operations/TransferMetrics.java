@@ -0,0 +1,358 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+/**
+ * Timings of the last transfers performed by the app, kept in memory to compare networks and
+ * server configurations.
+ *
+ * Every {@link DownloadFileOperation} and {@link UploadFileOperation} carries a {@link Record},
+ * created when the transfer is queued and filled while it's performed. Finished records are
+ * kept in a ring buffer of the last {@link #CAPACITY} transfers.
+ */
+public class TransferMetrics {
+
+    public static final int TYPE_UPLOAD = 0;
+    public static final int TYPE_DOWNLOAD = 1;
+
+    /** Number of transfers kept */
+    public static final int CAPACITY = 500;
+
+    private static final String CSV_HEADER = "finished_at,type,account,remote_path,result," +
+            "bytes,queue_wait_ms,time_to_first_byte_ms,duration_ms,bytes_per_second,retries," +
+            "chunks,chunk_min_ms,chunk_avg_ms,chunk_max_ms\n";
+
+    private static final Record[] sRecords = new Record[CAPACITY];
+    private static int sNext = 0;
+    private static int sCount = 0;
+
+
+    /**
+     * Metrics of a single transfer.
+     *
+     * Filled by the worker performing the transfer; read only after it's added to the ring
+     * buffer.
+     */
+    public static class Record implements OnDatatransferProgressListener {
+
+        private final int mType;
+        private final String mAccountName;
+        private final String mRemotePath;
+
+        private final long mQueuedAt;
+        private long mStartedAt = 0;
+        private long mFirstByteAt = 0;
+        private long mFinishedAt = 0;
+        private long mFinishedAtWallClock = 0;
+
+        private long mBytes = 0;
+        private int mRetries = 0;
+        private String mResult;
+        private boolean mSuccess;
+
+        private int mChunks = 0;
+        private long mChunkMillisMin = 0;
+        private long mChunkMillisMax = 0;
+        private long mChunkMillisTotal = 0;
+
+
+        /**
+         * Creates the record of a transfer being queued.
+         */
+        public Record(int type, String accountName, String remotePath) {
+            mType = type;
+            mAccountName = accountName;
+            mRemotePath = remotePath;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Called when a worker starts the transfer.
+         */
+        public void started() {
+            mStartedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Called when the transfer has to restart or resume an earlier attempt.
+         */
+        public void retried() {
+            mRetries++;
+        }
+
+        /**
+         * Called when a chunk of a chunked upload was confirmed by the server.
+         *
+         * @param millis    Time since the chunk started to be sent.
+         */
+        public void chunkSent(long millis) {
+            mChunkMillisMin = (mChunks == 0) ? millis : Math.min(mChunkMillisMin, millis);
+            mChunkMillisMax = Math.max(mChunkMillisMax, millis);
+            mChunkMillisTotal += millis;
+            mChunks++;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            if (mFirstByteAt == 0) {
+                mFirstByteAt = SystemClock.elapsedRealtime();
+            }
+            mBytes += progressRate;
+        }
+
+        /**
+         * Called when the transfer finishes; adds the record to the ring buffer.
+         */
+        public void finished(RemoteOperationResult result) {
+            mFinishedAt = SystemClock.elapsedRealtime();
+            mFinishedAtWallClock = System.currentTimeMillis();
+            mResult = (result != null) ? result.getCode().name() : "UNKNOWN";
+            mSuccess = (result != null && result.isSuccess());
+            add(this);
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getAccountName() {
+            return mAccountName;
+        }
+
+        public String getRemotePath() {
+            return mRemotePath;
+        }
+
+        /**
+         * @return  Time when the transfer finished, in milliseconds since the epoch.
+         */
+        public long getFinishedAt() {
+            return mFinishedAtWallClock;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        public String getResult() {
+            return mResult;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public int getRetries() {
+            return mRetries;
+        }
+
+        public long getQueueWaitMillis() {
+            return (mStartedAt > 0) ? mStartedAt - mQueuedAt : -1;
+        }
+
+        /**
+         * @return  Time since the transfer started until the first byte was sent or received,
+         *          or -1 if none was.
+         */
+        public long getTimeToFirstByteMillis() {
+            return (mStartedAt > 0 && mFirstByteAt > 0) ? mFirstByteAt - mStartedAt : -1;
+        }
+
+        public long getDurationMillis() {
+            return (mStartedAt > 0) ? mFinishedAt - mStartedAt : -1;
+        }
+
+        /**
+         * @return  Bytes transferred per second since the first byte, or -1 if unknown.
+         */
+        public long getBytesPerSecond() {
+            long millis = mFinishedAt - mFirstByteAt;
+            return (mFirstByteAt > 0 && millis > 0) ? mBytes * 1000 / millis : -1;
+        }
+
+        public int getChunks() {
+            return mChunks;
+        }
+
+        private void writeCsv(Writer writer) throws IOException {
+            writer.write(mFinishedAtWallClock + "," + mType + "," + quote(mAccountName) + "," +
+                    quote(mRemotePath) + "," + mResult + "," + mBytes + "," +
+                    getQueueWaitMillis() + "," + getTimeToFirstByteMillis() + "," +
+                    getDurationMillis() + "," + getBytesPerSecond() + "," + mRetries + "," +
+                    mChunks + "," + mChunkMillisMin + "," +
+                    ((mChunks > 0) ? mChunkMillisTotal / mChunks : 0) + "," + mChunkMillisMax +
+                    "\n");
+        }
+
+        private static String quote(String value) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+    }
+
+
+    /**
+     * Aggregated metrics of the transfers of an account in a direction.
+     */
+    public static class Summary {
+
+        private final int mType;
+        private final String mAccountName;
+        private int mTransfers = 0;
+        private int mFailures = 0;
+        private int mRetries = 0;
+        private long mBytes = 0;
+        private long mTransferMillis = 0;
+        private long mFirstByteMillis = 0;
+        private int mFirstBytes = 0;
+        private long mQueueWaitMillis = 0;
+
+        Summary(int type, String accountName) {
+            mType = type;
+            mAccountName = accountName;
+        }
+
+        private void add(Record record) {
+            mTransfers++;
+            if (!record.mSuccess) {
+                mFailures++;
+            }
+            mRetries += record.mRetries;
+            if (record.getBytesPerSecond() >= 0) {
+                mBytes += record.mBytes;
+                mTransferMillis += record.mFinishedAt - record.mFirstByteAt;
+            }
+            if (record.getTimeToFirstByteMillis() >= 0) {
+                mFirstByteMillis += record.getTimeToFirstByteMillis();
+                mFirstBytes++;
+            }
+            mQueueWaitMillis += Math.max(record.getQueueWaitMillis(), 0);
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getAccountName() {
+            return mAccountName;
+        }
+
+        public int getTransfers() {
+            return mTransfers;
+        }
+
+        public int getFailures() {
+            return mFailures;
+        }
+
+        public int getRetries() {
+            return mRetries;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return  Bytes per second while transferring, or -1 if unknown.
+         */
+        public long getBytesPerSecond() {
+            return (mTransferMillis > 0) ? mBytes * 1000 / mTransferMillis : -1;
+        }
+
+        public long getAverageTimeToFirstByteMillis() {
+            return (mFirstBytes > 0) ? mFirstByteMillis / mFirstBytes : -1;
+        }
+
+        public long getAverageQueueWaitMillis() {
+            return (mTransfers > 0) ? mQueueWaitMillis / mTransfers : -1;
+        }
+    }
+
+
+    private static synchronized void add(Record record) {
+        sRecords[sNext] = record;
+        sNext = (sNext + 1) % CAPACITY;
+        sCount = Math.min(sCount + 1, CAPACITY);
+    }
+
+
+    /**
+     * @return      Records of the last transfers, the oldest first.
+     */
+    public static synchronized List<Record> getRecords() {
+        List<Record> records = new ArrayList<Record>(sCount);
+        for (int i = 0; i < sCount; i++) {
+            records.add(sRecords[(sNext - sCount + i + CAPACITY) % CAPACITY]);
+        }
+        return records;
+    }
+
+
+    /**
+     * @return      Aggregated metrics of the last transfers, per account and direction.
+     */
+    public static List<Summary> getSummaries() {
+        Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+        for (Record record : getRecords()) {
+            String key = record.mType + record.mAccountName;
+            Summary summary = summaries.get(key);
+            if (summary == null) {
+                summary = new Summary(record.mType, record.mAccountName);
+                summaries.put(key, summary);
+            }
+            summary.add(record);
+        }
+        return new ArrayList<Summary>(summaries.values());
+    }
+
+
+    public static synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sRecords[i] = null;
+        }
+        sNext = 0;
+        sCount = 0;
+    }
+
+
+    /**
+     * Writes the records of the last transfers as CSV, the oldest first.
+     */
+    public static void writeCsv(Writer writer) throws IOException {
+        writer.write(CSV_HEADER);
+        for (Record record : getRecords()) {
+            record.writeCsv(writer);
+        }
+    }
+
+}
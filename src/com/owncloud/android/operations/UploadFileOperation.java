@@ -21,11 +21,8 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -75,12 +72,15 @@ public class UploadFileOperation extends RemoteOperation {
     private boolean mWasRenamed = false;
     private String mOriginalFileName = null;
     private String mOriginalStoragePath = null;
+    private String mJournalRemotePath = null;
     PutMethod mPutMethod = null;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
-    private AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private Context mContext;
     
     private UploadRemoteFileOperation mUploadOperation;
+    private ResumableChunkedUploadOperation mResumableUploadOperation;
+    private final TransferMetrics.Record mMetrics;
 
     protected RequestEntity mEntity = null;
 
@@ -113,6 +113,9 @@ public class UploadFileOperation extends RemoteOperation {
         mOriginalStoragePath = mFile.getStoragePath();
         mOriginalFileName = mFile.getFileName();
         mContext = context;
+        mMetrics = new TransferMetrics.Record(TransferMetrics.TYPE_UPLOAD, account.name,
+                mRemotePath);
+        mDataTransferListeners.add(mMetrics);
     }
 
     public Account getAccount() {
@@ -167,6 +170,26 @@ public class UploadFileOperation extends RemoteOperation {
         return mWasRenamed;
     }
 
+    /**
+     * @return      Remote path the upload is saved with in the journal of {@link FileUploader},
+     *              as requested; the remote path of the file may be changed from it when the
+     *              upload is created.
+     */
+    public String getJournalRemotePath() {
+        return (mJournalRemotePath != null) ? mJournalRemotePath : mRemotePath;
+    }
+
+    public void setJournalRemotePath(String journalRemotePath) {
+        mJournalRemotePath = journalRemotePath;
+    }
+
+    /**
+     * @return      Timings of the upload, filled while it's performed.
+     */
+    public TransferMetrics.Record getMetrics() {
+        return mMetrics;
+    }
+
     public Set<OnDatatransferProgressListener> getDataTransferListeners() {
         return mDataTransferListeners;
     }
@@ -195,8 +218,22 @@ public class UploadFileOperation extends RemoteOperation {
         boolean localCopyPassed = false, nameCheckPassed = false;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
         try {
+            boolean resumable = mChunked &&
+                    !mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME);
+            String pendingRemotePath = null;
+            if (resumable) {
+                pendingRemotePath = ResumableChunkedUploadOperation.getPendingRemotePath(
+                        mContext, mAccount, mOriginalStoragePath, mRemotePath);
+            }
+
             // / rename the file to upload, if necessary
-            if (!mForceOverwrite) {
+            if (pendingRemotePath != null) {
+                // resuming an interrupted upload; keep the remote path chosen then
+                mWasRenamed = !pendingRemotePath.equals(mRemotePath);
+                if (mWasRenamed) {
+                    createNewOCFile(pendingRemotePath);
+                }
+            } else if (!mForceOverwrite) {
                 String remotePath = getAvailableRemotePath(client, mRemotePath);
                 mWasRenamed = !remotePath.equals(mRemotePath);
                 if (mWasRenamed) {
@@ -212,8 +249,10 @@ public class UploadFileOperation extends RemoteOperation {
                                                                                                 // !!!
             expectedFile = new File(expectedPath);
 
-            // check location of local file; if not the expected, copy to a
-            // temporal file before upload (if COPY is the expected behaviour)
+            // check location of local file; if not the expected, and COPY is the expected
+            // behaviour, a copy will be needed there
+            boolean copyAfterUpload = false;
+            long originalLength = 0, originalModified = 0;
             if (!mOriginalStoragePath.equals(expectedPath) &&
                     mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
 
@@ -222,67 +261,21 @@ public class UploadFileOperation extends RemoteOperation {
                     return result; // error condition when the file should be
                                    // copied
 
-                } else {
-
-                    String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) +
-                            mFile.getRemotePath();
-                    mFile.setStoragePath(temporalPath);
-                    temporalFile = new File(temporalPath);
-
-                    File temporalParent = temporalFile.getParentFile();
-                    temporalParent.mkdirs();
-                    if (!temporalParent.isDirectory()) {
-                        throw new IOException("Unexpected error: parent directory could not be created");
-                    }
-                    temporalFile.createNewFile();
-                    if (!temporalFile.isFile()) {
-                        throw new IOException("Unexpected error: target file could not be created");
-                    }
+                } else if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+                    // contents from document providers are copied to a temporal file before
+                    // upload
+                    temporalFile = createTemporalFile();
+                    mFile.setStoragePath(temporalFile.getAbsolutePath());
 
                     InputStream in = null;
-                    OutputStream out = null;
-
                     try {
-
-                        // In case document provider schema as 'content://'
-                        if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
-
-                            Uri uri = Uri.parse(mOriginalStoragePath);
-
-                            in = MainApp.getAppContext().getContentResolver().openInputStream(uri);
-                            out = new FileOutputStream(temporalFile);
-
-                            int nRead;
-                            byte[] data = new byte[16384];
-
-                            while (!mCancellationRequested.get() &&
-                                    (nRead = in.read(data, 0, data.length)) != -1) {
-                                out.write(data, 0, nRead);
-                            }
-                            out.flush();
-
-                        } else {
-                            if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
-                                                                          // weird
-                                                                          // but
-                                                                          // possible
-                                                                          // situation
-
-                                in = new FileInputStream(originalFile);
-                                out = new FileOutputStream(temporalFile);
-                                byte[] buf = new byte[1024];
-                                int len;
-                                while (!mCancellationRequested.get() && (len = in.read(buf)) > 0) {
-                                    out.write(buf, 0, len);
-                                }
-                            }
-                        }
-
-                        if (mCancellationRequested.get()) {
+                        Uri uri = Uri.parse(mOriginalStoragePath);
+                        in = MainApp.getAppContext().getContentResolver().openInputStream(uri);
+                        if (!FileStorageUtils.copyStream(in, temporalFile,
+                                mCancellationRequested)) {
                             result = new RemoteOperationResult(new OperationCancelledException());
                         }
 
-
                     } catch (Exception e) {
                         result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
                         return result;
@@ -295,22 +288,28 @@ public class UploadFileOperation extends RemoteOperation {
                             Log_OC.d(TAG, "Weird exception while closing input stream for " +
                                     mOriginalStoragePath + " (ignoring)", e);
                         }
-                        try {
-                            if (out != null)
-                                out.close();
-                        } catch (Exception e) {
-                            Log_OC.d(TAG, "Weird exception while closing output stream for " +
-                                    expectedPath + " (ignoring)", e);
-                        }
                     }
+
+                } else {
+                    // local files are uploaded from their original location, and copied to the
+                    // expected one only when the upload succeeded
+                    copyAfterUpload = true;
+                    originalLength = originalFile.length();
+                    originalModified = originalFile.lastModified();
                 }
             }
             localCopyPassed = (result == null);
 
             /// perform the upload
-            if ( mChunked &&
+            boolean chunked = mChunked &&
                     (new File(mFile.getStoragePath())).length() >
-                            ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
+                            ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+            if (chunked && resumable) {
+                mResumableUploadOperation = new ResumableChunkedUploadOperation(mAccount,
+                        mFile.getStoragePath(), mOriginalStoragePath, mRemotePath,
+                        mFile.getRemotePath(), mFile.getMimetype(), mContext);
+                mResumableUploadOperation.setMetrics(mMetrics);
+            } else if (chunked) {
                 mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(),
                         mFile.getRemotePath(), mFile.getMimetype());
             } else {
@@ -319,10 +318,18 @@ public class UploadFileOperation extends RemoteOperation {
             }
             Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
             while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
+                if (mResumableUploadOperation != null) {
+                    mResumableUploadOperation.addDatatransferProgressListener(listener.next());
+                } else {
+                    mUploadOperation.addDatatransferProgressListener(listener.next());
+                }
             }
             if (!mCancellationRequested.get()) {
-                result = mUploadOperation.execute(client);
+                if (mResumableUploadOperation != null) {
+                    result = mResumableUploadOperation.execute(client);
+                } else {
+                    result = mUploadOperation.execute(client);
+                }
 
                 /// move local temporal file or original file to its corresponding
                 // location in the ownCloud local folder
@@ -333,14 +340,20 @@ public class UploadFileOperation extends RemoteOperation {
                     } else {
                         mFile.setStoragePath(expectedPath);
                         File fileToMove = null;
-                        if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
+                        if (copyAfterUpload) { // FileUploader.LOCAL_BEHAVIOUR_COPY
+                            temporalFile = copyUploadedFile(originalFile, originalLength,
+                                    originalModified);
+                            fileToMove = temporalFile;
+                        } else if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
                             // ; see where temporalFile was
                             // set
                             fileToMove = temporalFile;
                         } else { // FileUploader.LOCAL_BEHAVIOUR_MOVE
                             fileToMove = originalFile;
                         }
-                        if (!expectedFile.equals(fileToMove)) {
+                        if (fileToMove == null) {
+                            mFile.setStoragePath(null); // forget the local file; see below
+                        } else if (!expectedFile.equals(fileToMove)) {
                             File expectedFolder = expectedFile.getParentFile();
                             expectedFolder.mkdirs();
                             if (!expectedFolder.isDirectory() || !fileToMove.renameTo(expectedFile)) {
@@ -397,6 +410,52 @@ public class UploadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Creates an empty file in the temporal folder of the account, in the remote path of the
+     * file to upload.
+     */
+    private File createTemporalFile() throws IOException {
+        File temporalFile = new File(FileStorageUtils.getTemporalPath(mAccount.name) +
+                mFile.getRemotePath());
+        File temporalParent = temporalFile.getParentFile();
+        temporalParent.mkdirs();
+        if (!temporalParent.isDirectory()) {
+            throw new IOException("Unexpected error: parent directory could not be created");
+        }
+        temporalFile.createNewFile();
+        if (!temporalFile.isFile()) {
+            throw new IOException("Unexpected error: target file could not be created");
+        }
+        return temporalFile;
+    }
+
+    /**
+     * Copies the uploaded file to the temporal folder, to be moved later to the ownCloud folder.
+     *
+     * @return      Copy of the file, or null if it could not be copied, or changed since the
+     *              upload started, so that the uploaded contents are not the local ones.
+     */
+    private File copyUploadedFile(File originalFile, long originalLength, long originalModified) {
+        File copy = null;
+        try {
+            copy = createTemporalFile();
+            if (FileStorageUtils.copyFile(originalFile, copy, mCancellationRequested) &&
+                    originalFile.length() == originalLength &&
+                    originalFile.lastModified() == originalModified) {
+                return copy;
+            }
+            Log_OC.w(TAG, mOriginalStoragePath + " changed during the upload or copy was " +
+                    "cancelled; not kept in the local folder");
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error copying " + mOriginalStoragePath + " after upload", e);
+        }
+        if (copy != null) {
+            copy.delete();
+        }
+        return null;
+    }
+
     private void createNewOCFile(String newRemotePath) {
         // a new OCFile instance must be created for a new remote path
         OCFile newFile = new OCFile(newRemotePath);
@@ -464,9 +523,12 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mCancellationRequested = new AtomicBoolean(true);
+        mCancellationRequested.set(true);
         if (mUploadOperation != null) {
             mUploadOperation.cancel();
         }
+        if (mResumableUploadOperation != null) {
+            mResumableUploadOperation.cancel();
+        }
     }
 }
@@ -26,9 +26,12 @@ import java.io.File;
 import java.security.Provider;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.FileSortKeys;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.ProviderMeta;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
@@ -52,7 +55,9 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 
 /**
@@ -95,6 +100,8 @@ public class FileContentProvider extends ContentProvider {
                 ProviderTableMeta.FILE_ACCOUNT_OWNER);
         mFileProjectionMap.put(ProviderTableMeta.FILE_ETAG,
                 ProviderTableMeta.FILE_ETAG);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_ETAG_IN_SERVER,
+                ProviderTableMeta.FILE_ETAG_IN_SERVER);
         mFileProjectionMap.put(ProviderTableMeta.FILE_SHARE_BY_LINK,
                 ProviderTableMeta.FILE_SHARE_BY_LINK);
         mFileProjectionMap.put(ProviderTableMeta.FILE_PUBLIC_LINK,
@@ -107,6 +114,12 @@ public class FileContentProvider extends ContentProvider {
                 ProviderTableMeta.FILE_UPDATE_THUMBNAIL);
         mFileProjectionMap.put(ProviderTableMeta.FILE_IS_DOWNLOADING,
                 ProviderTableMeta.FILE_IS_DOWNLOADING);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_SORT_NAME,
+                ProviderTableMeta.FILE_SORT_NAME);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_IS_FOLDER,
+                ProviderTableMeta.FILE_IS_FOLDER);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_DESCENDANT_COUNT,
+                ProviderTableMeta.FILE_DESCENDANT_COUNT);
     }
 
     private static final int SINGLE_FILE = 1;
@@ -195,57 +208,7 @@ public class FileContentProvider extends ContentProvider {
             break;
         case DIRECTORY:
             // deletion of folder is recursive
-            /*
-            Uri folderUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, Long.parseLong(uri.getPathSegments().get(1)));
-            Cursor folder = query(db, folderUri, null, null, null, null);
-            String folderName = "(unknown)";
-            if (folder != null && folder.moveToFirst()) {
-                folderName = folder.getString(folder.getColumnIndex(ProviderTableMeta.FILE_PATH));
-            }
-            */
-            Cursor children = query(uri, null, null, null, null);
-            if (children != null && children.moveToFirst())  {
-                long childId;
-                boolean isDir;
-                while (!children.isAfterLast()) {
-                    childId = children.getLong(children.getColumnIndex(ProviderTableMeta._ID));
-                    isDir = "DIR".equals(children.getString(
-                            children.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE)
-                    ));
-                    //remotePath = children.getString(children.getColumnIndex(ProviderTableMeta.FILE_PATH));
-                    if (isDir) {
-                        count += delete(
-                            db,
-                            ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_DIR, childId),
-                            null,
-                            null
-                        );
-                    } else {
-                        count += delete(
-                            db,
-                            ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, childId),
-                            null,
-                            null
-                        );
-                    }
-                    children.moveToNext();
-                }
-                children.close();
-            } /*else {
-                Log_OC.d(TAG, "No child to remove in DIRECTORY " + folderName);
-            }
-            Log_OC.d(TAG, "Removing DIRECTORY " + folderName + " (or maybe not) ");
-            */
-            count += db.delete(ProviderTableMeta.FILE_TABLE_NAME,
-                    ProviderTableMeta._ID
-                    + "="
-                    + uri.getPathSegments().get(1)
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where
-                            + ")" : ""), whereArgs);
-            /* Just for log
-             if (folder != null) {
-                folder.close();
-            }*/
+            count = deleteTree(db, uri.getPathSegments().get(1), where, whereArgs);
             break;
         case ROOT_DIRECTORY:
             //Log_OC.d(TAG, "Removing ROOT!");
@@ -261,6 +224,43 @@ public class FileContentProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Deletes a folder matching 'where', and all its descendants with a single statement over
+     * the range of their paths in the index by account and path; see
+     * {@link FileDao#getTreeEnd(String)}.
+     *
+     * @return      Number of rows deleted.
+     */
+    private int deleteTree(SQLiteDatabase db, String folderId, String where,
+                           String[] whereArgs) {
+        String accountName, path;
+        Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME,
+                new String[] {
+                        ProviderTableMeta.FILE_ACCOUNT_OWNER, ProviderTableMeta.FILE_PATH
+                },
+                ProviderTableMeta._ID + "=" + folderId +
+                        (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : ""),
+                whereArgs, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            accountName = c.getString(0);
+            path = c.getString(1);
+        } finally {
+            c.close();
+        }
+        if (!path.endsWith(OCFile.PATH_SEPARATOR)) {
+            return db.delete(ProviderTableMeta.FILE_TABLE_NAME,
+                    ProviderTableMeta._ID + "=" + folderId, null);
+        }
+        return db.delete(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " +
+                        ProviderTableMeta.FILE_PATH + ">=? AND " +
+                        ProviderTableMeta.FILE_PATH + "<?",
+                new String[] { accountName, path, FileDao.getTreeEnd(path) });
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (mUriMatcher.match(uri)) {
@@ -306,6 +306,7 @@ public class FileContentProvider extends ContentProvider {
             // ugly patch; serious refactorization is needed to reduce work in
             // FileDataStorageManager and bring it to FileContentProvider
             if (doubleCheck == null || !doubleCheck.moveToFirst()) {
+                FileSortKeys.putSortKeys(values);
                 long rowId = db.insert(ProviderTableMeta.FILE_TABLE_NAME, null, values);
                 if (rowId > 0) {
                     Uri insertedFileUri =
@@ -390,7 +391,7 @@ public class FileContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new DataBaseHelper(getContext());
+        mDbHelper = DataBaseHelper.getInstance(getContext());
 
         String authority = getContext().getResources().getString(R.string.authority);
         mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -513,71 +514,19 @@ public class FileContentProvider extends ContentProvider {
         ) {
         switch (mUriMatcher.match(uri)) {
             case DIRECTORY:
-                return  0; //updateFolderSize(db, selectionArgs[0]);
+                return  0;  // sizes of folders are kept by FileDao
             case SHARES:
                 return db.update(
                         ProviderTableMeta.OCSHARES_TABLE_NAME, values, selection, selectionArgs
                 );
             default:
+                FileSortKeys.putSortKeys(values);
                 return db.update(
                         ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs
                 );
         }
     }
 
- /*
-    private int updateFolderSize(SQLiteDatabase db, String folderId) {
-        int count = 0;
-        String [] whereArgs = new String[] { folderId };
-
-        // read current size saved for the folder
-        long folderSize = 0;
-        long folderParentId = -1;
-        Uri selectFolderUri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_FILE, folderId);
-        String[] folderProjection = new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH,  ProviderTableMeta.FILE_PARENT};
-        String folderWhere = ProviderTableMeta._ID + "=?";
-        Cursor folderCursor = query(db, selectFolderUri, folderProjection, folderWhere, whereArgs, null);
-        if (folderCursor != null && folderCursor.moveToFirst()) {
-            folderSize = folderCursor.getLong(folderCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH));;
-            folderParentId = folderCursor.getLong(folderCursor.getColumnIndex(ProviderTableMeta.FILE_PARENT));;
-        }
-        folderCursor.close();
-
-        // read and sum sizes of children
-        long childrenSize = 0;
-        Uri selectChildrenUri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, folderId);
-        String[] childrenProjection = new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH,  ProviderTableMeta.FILE_PARENT};
-        String childrenWhere = ProviderTableMeta.FILE_PARENT + "=?";
-        Cursor childrenCursor = query(db, selectChildrenUri, childrenProjection, childrenWhere, whereArgs, null);
-        if (childrenCursor != null && childrenCursor.moveToFirst()) {
-            while (!childrenCursor.isAfterLast()) {
-                childrenSize += childrenCursor.getLong(childrenCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH));
-                childrenCursor.moveToNext();
-            }
-        }
-        childrenCursor.close();
-
-        // update if needed
-        if (folderSize != childrenSize) {
-            Log_OC.d("FileContentProvider", "Updating " + folderSize + " to " + childrenSize);
-            ContentValues cv = new ContentValues();
-            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, childrenSize);
-            count = db.update(ProviderTableMeta.FILE_TABLE_NAME, cv, folderWhere, whereArgs);
-
-            // propagate update until root
-            if (folderParentId > FileDataStorageManager.ROOT_PARENT_ID) {
-                Log_OC.d("FileContentProvider", "Propagating update to " + folderParentId);
-                updateFolderSize(db, String.valueOf(folderParentId));
-            } else {
-                Log_OC.d("FileContentProvider", "NOT propagating to " + folderParentId);
-            }
-        } else {
-            Log_OC.d("FileContentProvider", "NOT updating, sizes are " + folderSize + " and " + childrenSize);
-        }
-        return count;
-    }
-*/
-
     @Override
     public ContentProviderResult[] applyBatch (ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
@@ -602,11 +551,71 @@ public class FileContentProvider extends ContentProvider {
     }
 
 
-    class DataBaseHelper extends SQLiteOpenHelper {
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderTableMeta.METHOD_SAVE_FOLDER.equals(method)) {
+            return saveFolder(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
 
-        public DataBaseHelper(Context context) {
-            super(context, ProviderMeta.DB_NAME, null, ProviderMeta.DB_VERSION);
+    /**
+     * Inserts or updates the list of files contained in a folder, removes the files that are not
+     * in the folder anymore and updates the metadata of the folder itself, all of it in a single
+     * transaction.
+     *
+     * Kept for callers out of the process; the work is done by
+     * {@link FileDao#saveFolder(String, long, ContentValues, List, long[], long[])}.
+     *
+     * @param extras        {@link ProviderTableMeta#EXTRA_ACCOUNT_NAME},
+     *                      {@link ProviderTableMeta#EXTRA_FOLDER_ID},
+     *                      {@link ProviderTableMeta#EXTRA_FOLDER_VALUES},
+     *                      {@link ProviderTableMeta#EXTRA_FILES_VALUES},
+     *                      {@link ProviderTableMeta#EXTRA_REMOVED_FILE_IDS} and
+     *                      {@link ProviderTableMeta#EXTRA_REMOVED_FOLDER_IDS}.
+     * @return              Bundle with the ids of the saved files in
+     *                      {@link ProviderTableMeta#EXTRA_FILE_IDS}, in the same order as the
+     *                      received values.
+     */
+    private Bundle saveFolder(Bundle extras) {
+        long[] fileIds = FileDao.getInstance(getContext()).saveFolder(
+                extras.getString(ProviderTableMeta.EXTRA_ACCOUNT_NAME),
+                extras.getLong(ProviderTableMeta.EXTRA_FOLDER_ID),
+                (ContentValues) extras.getParcelable(ProviderTableMeta.EXTRA_FOLDER_VALUES),
+                extras.<ContentValues>getParcelableArrayList(
+                        ProviderTableMeta.EXTRA_FILES_VALUES),
+                extras.getLongArray(ProviderTableMeta.EXTRA_REMOVED_FILE_IDS),
+                extras.getLongArray(ProviderTableMeta.EXTRA_REMOVED_FOLDER_IDS)
+        );
+        Bundle result = new Bundle();
+        result.putLongArray(ProviderTableMeta.EXTRA_FILE_IDS, fileIds);
+        return result;
+    }
+
+
+    /**
+     * Helper to open the database of files and shares.
+     *
+     * A single instance is shared by the provider and {@link FileDao} in the process, so both
+     * use the same connections and their transactions are serialized by SQLite.
+     */
+    public static class DataBaseHelper extends SQLiteOpenHelper {
+
+        private static DataBaseHelper sInstance = null;
+
+        private final Context mContext;
+
+        public static synchronized DataBaseHelper getInstance(Context context) {
+            if (sInstance == null) {
+                sInstance = new DataBaseHelper(context.getApplicationContext());
+            }
+            return sInstance;
+        }
 
+        private DataBaseHelper(Context context) {
+            super(context, ProviderMeta.DB_NAME, null, ProviderMeta.DB_VERSION);
+            mContext = context;
         }
 
         @Override
@@ -634,7 +643,11 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.FILE_PERMISSIONS  + " TEXT null,"
                     + ProviderTableMeta.FILE_REMOTE_ID  + " TEXT null,"
                     + ProviderTableMeta.FILE_UPDATE_THUMBNAIL  + " INTEGER," //boolean
-                    + ProviderTableMeta.FILE_IS_DOWNLOADING  + " INTEGER);" //boolean
+                    + ProviderTableMeta.FILE_IS_DOWNLOADING  + " INTEGER," //boolean
+                    + ProviderTableMeta.FILE_ETAG_IN_SERVER  + " TEXT null,"
+                    + ProviderTableMeta.FILE_SORT_NAME  + " TEXT,"
+                    + ProviderTableMeta.FILE_IS_FOLDER  + " INTEGER," //boolean
+                    + ProviderTableMeta.FILE_DESCENDANT_COUNT  + " INTEGER DEFAULT 0);"
                     );
 
             // Create table ocshares
@@ -654,6 +667,9 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.OCSHARES_USER_ID + " INTEGER, "
                     + ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + " INTEGER,"
                     + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + " TEXT );" );
+
+            createIndexes(db);
+            createSortIndexes(db);
         }
 
         @Override
@@ -828,13 +844,204 @@ public class FileContentProvider extends ContentProvider {
 
             if (oldVersion < 10 && newVersion >= 10) {
                 Log_OC.i("SQL", "Entering in the #10 ADD in onUpgrade");
-                updateAccountName(db);
+                updateAccountName(mContext, db);
                 upgraded = true;
             }
              if (!upgraded)
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
                         ", newVersion == " + newVersion);
+
+            if (oldVersion < 11 && newVersion >= 11) {
+                Log_OC.i("SQL", "Entering in the #11 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // NULL means 'unknown'; the next full synchronization will fill it
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_ETAG_IN_SERVER + " TEXT " +
+                            " DEFAULT NULL");
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+
+            if (oldVersion < 12 && newVersion >= 12) {
+                Log_OC.i("SQL", "Entering in the #12 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    createIndexes(db);
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+
+            if (oldVersion < 13 && newVersion >= 13) {
+                Log_OC.i("SQL", "Entering in the #13 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_SORT_NAME + " TEXT ");
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_IS_FOLDER + " INTEGER " +
+                            " DEFAULT 0");
+                    db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " SET " + ProviderTableMeta.FILE_IS_FOLDER + "=1 WHERE " +
+                            ProviderTableMeta.FILE_CONTENT_TYPE + "='DIR'");
+                    fillSortNames(db);
+                    createSortIndexes(db);
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+
+            if (oldVersion < 14 && newVersion >= 14) {
+                Log_OC.i("SQL", "Entering in the #14 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_DESCENDANT_COUNT +
+                            " INTEGER DEFAULT 0");
+                    fillFolderAggregates(db);
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+        }
+
+        /**
+         * Computes the descendant count of every folder from its children, deepest folders
+         * first; from then on, FileDao keeps it up to date.
+         *
+         * Sizes of folders are kept as they are; they were reported by the server, while the
+         * children of a folder not visited yet are not known, and would sum less.
+         */
+        private void fillFolderAggregates(SQLiteDatabase db) {
+            String children = " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " AS c WHERE c." +
+                    ProviderTableMeta.FILE_PARENT + "=?";
+            SQLiteStatement update = db.compileStatement("UPDATE " +
+                    ProviderTableMeta.FILE_TABLE_NAME + " SET " +
+                    ProviderTableMeta.FILE_DESCENDANT_COUNT + "=(SELECT COUNT(*)+IFNULL(SUM(" +
+                    ProviderTableMeta.FILE_DESCENDANT_COUNT + "),0)" + children + ") WHERE " +
+                    ProviderTableMeta._ID + "=?");
+            Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME,
+                    new String[] { ProviderTableMeta._ID },
+                    ProviderTableMeta.FILE_CONTENT_TYPE + "='DIR'", null, null, null,
+                    "LENGTH(" + ProviderTableMeta.FILE_PATH + ") DESC");
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    update.bindLong(1, id);
+                    update.bindLong(2, id);
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                c.close();
+                update.close();
+            }
         }
+
+        /**
+         * Computes the sort keys of the names of all the files; SQLite can't.
+         */
+        private void fillSortNames(SQLiteDatabase db) {
+            SQLiteStatement update = db.compileStatement("UPDATE " +
+                    ProviderTableMeta.FILE_TABLE_NAME + " SET " +
+                    ProviderTableMeta.FILE_SORT_NAME + "=? WHERE " + ProviderTableMeta._ID + "=?");
+            Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME,
+                    new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_NAME },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    update.bindString(1, FileSortKeys.forName(c.getString(1)));
+                    update.bindLong(2, c.getLong(0));
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                c.close();
+                update.close();
+            }
+        }
+    }
+
+
+    /**
+     * Creates the indexes supporting the most frequent queries on the tables of files and
+     * shares: access to a single file by path or by local path, access to the contents of
+     * a folder, access to the kept-in-sync files, and access to descendants of a folder as a
+     * range of paths of an account (see {@link FileDao#getTreeEnd(String)}).
+     *
+     * Public to share the same indexes with the tests.
+     *
+     * @param db        Database where the tables of files and shares are included.
+     */
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_ACCOUNT_PATH_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_PARENT_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_PARENT + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " +
+                ProviderTableMeta.FILE_ACCOUNT_STORAGE_PATH_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " +
+                ProviderTableMeta.FILE_STORAGE_PATH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_KEEP_IN_SYNC_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_KEEP_IN_SYNC + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.OCSHARES_ACCOUNT_PATH_INDEX +
+                " ON " + ProviderTableMeta.OCSHARES_TABLE_NAME + "(" +
+                ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ", " +
+                ProviderTableMeta.OCSHARES_PATH + ");");
+    }
+
+
+    /**
+     * Creates the indexes listing the content of a folder in every sort order, folders first.
+     * Ascending orders are read from them without sorting; descending ones are sorted only
+     * inside every group of folders or files. See
+     * {@link FileDao#readFolderContent(String, long, boolean, int, boolean, FileDao.FileHandler)}.
+     *
+     * @param db        Database where table of files is included, with the sort columns.
+     */
+    public static void createSortIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_PARENT_NAME_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_IS_FOLDER +
+                " DESC, " + ProviderTableMeta.FILE_SORT_NAME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_PARENT_MODIFIED_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_IS_FOLDER +
+                " DESC, " + ProviderTableMeta.FILE_MODIFIED + ", " +
+                ProviderTableMeta.FILE_SORT_NAME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_PARENT_SIZE_INDEX +
+                " ON " + ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_IS_FOLDER +
+                " DESC, " + ProviderTableMeta.FILE_CONTENT_LENGTH + ", " +
+                ProviderTableMeta.FILE_SORT_NAME + ");");
     }
 
 
@@ -847,14 +1054,14 @@ public class FileContentProvider extends ContentProvider {
      *
      * @param db        Database where table of files is included.
      */
-    private void updateAccountName(SQLiteDatabase db){
+    private static void updateAccountName(Context context, SQLiteDatabase db){
         Log_OC.d("SQL", "THREAD:  "+ Thread.currentThread().getName());
-        AccountManager ama = AccountManager.get(getContext());
+        AccountManager ama = AccountManager.get(context);
         try {
             // get accounts from AccountManager ;  we can't be sure if accounts in it are updated or not although
             // we know the update was previously done in {link @FileActivity#onCreate} because the changes through
             // AccountManager are not synchronous
-            Account[] accounts = AccountManager.get(getContext()).getAccountsByType(
+            Account[] accounts = AccountManager.get(context).getAccountsByType(
                     MainApp.getAccountType());
             String serverUrl, username, oldAccountName, newAccountName;
 			for (Account account : accounts) {
@@ -902,7 +1109,7 @@ public class FileContentProvider extends ContentProvider {
      * @param newAccountName        New name for the target OC account.
      * @param oldAccountName        Old name of the target OC account.
      */
-    private void updateDownloadedFiles(SQLiteDatabase db, String newAccountName,
+    private static void updateDownloadedFiles(SQLiteDatabase db, String newAccountName,
                                        String oldAccountName) {
 
         String whereClause = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " +
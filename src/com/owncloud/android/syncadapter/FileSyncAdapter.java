@@ -23,10 +23,18 @@
 package com.owncloud.android.syncadapter;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.jackrabbit.webdav.DavException;
 
@@ -35,7 +43,9 @@ import com.owncloud.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.accounts.AccountUtils.Constants;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.DeltaSyncOperation;
 import com.owncloud.android.operations.RefreshFolderOperation;
 import com.owncloud.android.operations.UpdateOCVersionOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
@@ -52,6 +62,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
+import android.content.res.Resources;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
 
@@ -70,15 +81,22 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      * the synchronization operation */
     private static final int MAX_FAILED_RESULTS = 3; 
     
+    /** Number of folders synchronized at the same time when no other value is configured */
+    private static final int DEFAULT_MAX_PARALLEL_FOLDERS = 4;
+    
+    /** Key in the account user data for the time stamp of the last deep synchronization */
+    private static final String KEY_LAST_DEEP_SYNC = "oc_last_deep_sync";
+    
+    /** Key in the account user data for the sync token of the last delta synchronization */
+    private static final String KEY_SYNC_TOKEN = "oc_sync_token";
+    
+    /** Key in the account user data for the server version found not to support delta 
+     *  synchronizations */
+    private static final String KEY_DELTA_UNSUPPORTED_VERSION = "oc_delta_unsupported_version";
+    
+    /** Milliseconds in an hour */
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
     
-    public static final String EVENT_FULL_SYNC_START = FileSyncAdapter.class.getName() +
-            ".EVENT_FULL_SYNC_START";
-    public static final String EVENT_FULL_SYNC_END = FileSyncAdapter.class.getName() +
-            ".EVENT_FULL_SYNC_END";
-    public static final String EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED =
-            FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED";
-    //public static final String EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED =
-    // FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED";
     
     public static final String EXTRA_ACCOUNT_NAME = FileSyncAdapter.class.getName() +
             ".EXTRA_ACCOUNT_NAME";
@@ -91,7 +109,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     private long mCurrentSyncTime;
     
     /** Flag made 'true' when a request to cancel the synchronization is received */
-    private boolean mCancellation;
+    private volatile boolean mCancellation;
     
     /** When 'true' the process was requested by the user through the user interface;
      *  when 'false', it was requested automatically by the system */
@@ -119,6 +137,16 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /** 'True' means that the server supports the share API */
     private boolean mIsShareSupported;
     
+    /** Maximum number of folders whose contents are fetched from the server at the same time */
+    private int mMaxParallelFolders;
+    
+    /** Counter of folders visited in the synchronization process, with or without success */
+    private int mSynchronizedFolders;
+    
+    /** When 'true', every folder in the account is visited; when 'false', folders whose
+     *  ETag did not change since their last synchronization are skipped with their subtrees */
+    private boolean mIsDeepSync;
+    
     
     /**
      * Creates a {@link FileSyncAdapter}
@@ -155,6 +183,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         mConflictsFound = 0;
         mFailsInFavouritesFound = 0;
         mForgottenLocalFiles = new HashMap<String, String>();
+        mSynchronizedFolders = 0;
+        mMaxParallelFolders = readMaxParallelFolders();
+        mIsDeepSync = false;
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = 60*60*24; // avoid too many automatic synchronizations
@@ -180,14 +211,24 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         }
         
         Log_OC.d(TAG, "Synchronization of ownCloud account " + account.name + " starting");
-        sendLocalBroadcast(EVENT_FULL_SYNC_START, null, null);  // message to signal the start
-                                                                // of the synchronization to the UI
+        // message to signal the start of the synchronization to the UI
+        SyncEventBus.getInstance().postSyncStart(account.name);
         
         try {
             updateOCVersion();
             mCurrentSyncTime = System.currentTimeMillis();
+            mIsDeepSync = isDeepSyncRequired();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                boolean completed = (!mIsDeepSync && synchronizeAccountDelta());
+                if (!completed) {
+                    completed = synchronizeAccount(
+                            getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                }
+                if (completed && mIsDeepSync) {
+                    getAccountManager().setUserData(
+                            account, KEY_LAST_DEEP_SYNC, String.valueOf(mCurrentSyncTime)
+                    );
+                }
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder " +
@@ -214,8 +255,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (mForgottenLocalFiles.size() > 0) {
                 notifyForgottenLocalFiles();
             }
-            sendLocalBroadcast(EVENT_FULL_SYNC_END, null, mLastFailedResult);   // message to signal
-                                                                                // the end to the UI
+            // message to signal the end to the UI
+            SyncEventBus.getInstance().postSyncEnd(getAccount().name, mLastFailedResult);
         }
         
     }
@@ -228,7 +269,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      * locally saved. 
      * 
      * See {@link #onPerformSync(Account, Bundle, String, ContentProviderClient, SyncResult)}
-     * and {@link #synchronizeFolder(OCFile)}.
+     * and {@link #synchronizeAccount(OCFile)}.
      */
     @Override
     public void onSyncCanceled() {
@@ -253,46 +294,236 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     
     
     /**
-     *  Synchronizes the list of files contained in a folder identified with its remote path.
+     * Reads the maximum number of folders to synchronize in parallel from the app setup.
+     * 
+     * @return      Number of folders that can be fetched from the server at the same time;
+     *              always greater than 0.
+     */
+    private int readMaxParallelFolders() {
+        int maxParallelFolders = DEFAULT_MAX_PARALLEL_FOLDERS;
+        try {
+            maxParallelFolders = 
+                    getContext().getResources().getInteger(R.integer.sync_max_parallel_folders);
+        } catch (Resources.NotFoundException e) {
+            Log_OC.w(TAG, "No setup for parallel synchronization of folders, using default");
+        }
+        return Math.max(1, maxParallelFolders);
+    }
+    
+    
+    /**
+     * Decides if the current synchronization must visit every folder in the account, 
+     * or if it can skip the subtrees whose ETag in the server did not change. 
+     * 
+     * Skipping relies on the propagation of ETags to the parent folders done by the ownCloud 
+     * server. A deep synchronization is periodically done as a safety net.
+     * 
+     * @return      'True' if every folder in the account must be visited.
+     */
+    private boolean isDeepSyncRequired() {
+        Resources res = getContext().getResources();
+        if (!res.getBoolean(R.bool.sync_prune_unchanged_folders)) {
+            return true;
+        }
+        long deepSyncInterval = 
+                res.getInteger(R.integer.sync_deep_verify_interval_hours) * HOUR_IN_MILLIS;
+        
+        long lastDeepSync = 0;
+        String lastDeepSyncValue = getAccountManager().getUserData(getAccount(), 
+                KEY_LAST_DEEP_SYNC);
+        if (lastDeepSyncValue != null) {
+            try {
+                lastDeepSync = Long.parseLong(lastDeepSyncValue);
+            } catch (NumberFormatException e) {
+                Log_OC.w(TAG, "Wrong time stamp of last deep synchronization, ignoring it");
+            }
+        }
+        boolean deepSyncRequired = (mCurrentSyncTime - lastDeepSync > deepSyncInterval);
+        Log_OC.d(TAG, "Synchronization of " + getAccount().name + " will be " + 
+                (deepSyncRequired ? "deep" : "pruned by ETag"));
+        return deepSyncRequired;
+    }
+    
+    
+    /**
+     * Synchronizes the full account with a single report of the changes in the server since 
+     * the last synchronization, if enabled in the app setup.
+     * 
+     * The sync token received is saved in the account for the next synchronization. Deep 
+     * synchronizations don't use reports, so that every folder is periodically visited.
+     * 
+     * Servers not supporting the report are remembered with their version, and not asked again
+     * until the version changes.
+     * 
+     * @return      'True' if the account was synchronized; 'false' if the server does not 
+     *              support reports of changes, the report failed or some files in it
+     *              could not be saved, so that the tree of folders must be walked.
+     */
+    private boolean synchronizeAccountDelta() {
+        if (!getContext().getResources().getBoolean(R.bool.sync_delta_enabled)) {
+            return false;
+        }
+        String serverVersion = getAccountManager().getUserData(getAccount(), 
+                Constants.KEY_OC_VERSION);
+        if (serverVersion == null) {
+            serverVersion = "";
+        }
+        String unsupportedVersion = getAccountManager().getUserData(getAccount(), 
+                KEY_DELTA_UNSUPPORTED_VERSION);
+        if (unsupportedVersion != null && unsupportedVersion.equals(serverVersion)) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        String syncToken = getAccountManager().getUserData(getAccount(), KEY_SYNC_TOKEN);
+        DeltaSyncOperation operation = new DeltaSyncOperation(syncToken, mCurrentSyncTime, 
+                getStorageManager(), getAccount(), getContext());
+        RemoteOperationResult result = operation.execute(getClient());
+        
+        if (!operation.isSupported()) {
+            getAccountManager().setUserData(getAccount(), KEY_DELTA_UNSUPPORTED_VERSION, 
+                    serverVersion);
+        }
+        if (!result.isSuccess() && result.getCode() != ResultCode.SYNC_CONFLICT) {
+            Log_OC.d(TAG, "Synchronization of " + getAccount().name + " will walk the folders");
+            return false;
+        }
+        
+        getAccountManager().setUserData(getAccount(), KEY_SYNC_TOKEN, operation.getSyncToken());
+        mConflictsFound += operation.getConflictsFound();
+        mFailsInFavouritesFound += operation.getFailsInFavouritesFound();
+        mForgottenLocalFiles.putAll(operation.getForgottenLocalFiles());
+        mSyncResult.stats.numEntries += operation.getChanges();
+        for (String folderPath : operation.getChangedFolders()) {
+            SyncEventBus.getInstance().postFolderSynced(getAccount().name, folderPath, result);
+        }
+        Log_OC.i(TAG, "Synchronized " + operation.getChanges() + " changes in " + 
+                getAccount().name + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (operation.getSkippedFiles() > 0) {
+            // only the folders above the skipped files were left with changes to fetch
+            Log_OC.d(TAG, operation.getSkippedFiles() + " files not saved in " +
+                    getAccount().name + ", walking the folders to find them");
+            return false;
+        }
+        return true;
+    }
+    
+    
+    /**
+     *  Synchronizes the full tree of folders below the given one.
      *  
-     *  Fetches the list and properties of the files contained in the given folder, including their 
-     *  properties, and updates the local database with them.
+     *  Folders waiting to be synchronized are kept in a work queue; up to 
+     *  {@link #mMaxParallelFolders} of them are fetched from the server at the same time, 
+     *  since most of the time of a full synchronization is spent waiting for network 
+     *  round-trips.
      *  
-     *  Enters in the child folders to synchronize their contents also, following a recursive
-     *  depth first strategy. 
+     *  Results are processed one by one in the thread of the synchronization, so the counters
+     *  of the process are only touched here. New folders are not started after a cancellation
+     *  request or when too many failures were found, but the folders already in flight are 
+     *  allowed to finish.
+     *  
+     *  Out of deep synchronizations, child folders are only visited if their contents were
+     *  not synchronized for the last ETag seen in the server.  
      * 
-     *  @param folder                   Folder to synchronize.
+     *  @param root                     Folder where the synchronization starts.
+     *  @return                         'True' if every folder to synchronize was 
+     *                                  successfully visited.
      */
-    private void synchronizeFolder(OCFile folder) {
+    private boolean synchronizeAccount(OCFile root) {
+        long startTime = System.currentTimeMillis();
         
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
-            return;
+        ExecutorService executor = Executors.newFixedThreadPool(mMaxParallelFolders);
+        CompletionService<FolderSyncTask> completionService = 
+                new ExecutorCompletionService<FolderSyncTask>(executor);
+        Deque<OCFile> pendingFolders = new ArrayDeque<OCFile>();
+        pendingFolders.push(root);
+        int inFlight = 0;
+        
+        try {
+            while (!pendingFolders.isEmpty() || inFlight > 0) {
+                while (inFlight < mMaxParallelFolders && !pendingFolders.isEmpty() && 
+                        canStartNewFolder()) {
+                    completionService.submit(new FolderSyncTask(pendingFolders.pop()));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;  // nothing else is allowed to start
+                }
+                
+                FolderSyncTask finishedTask = completionService.take().get();
+                inFlight--;
+                List<OCFile> childFolders = processFolderResult(finishedTask);
+                
+                // children are pushed in reverse order to keep the traversal depth first
+                for (int i = childFolders.size() - 1; i >= 0; i--) {
+                    pendingFolders.push(childFolders.get(i));
+                }
+            }
+            
+        } catch (InterruptedException e) {
+            Log_OC.w(TAG, "Synchronization of " + getAccount().name + " interrupted");
+            Thread.currentThread().interrupt();
+            
+        } catch (ExecutionException e) {
+            // unexpected crash in a folder synchronization; can't trust the rest of the process
+            Throwable cause = e.getCause();
+            Log_OC.e(TAG, "Unexpected error while synchronizing " + getAccount().name, cause);
+            mFailedResultsCounter++;
+            mLastFailedResult = new RemoteOperationResult(
+                    (cause instanceof Exception) ? (Exception) cause : e
+            );
+            
+        } finally {
+            executor.shutdownNow();
+        }
         
-        /*
-        OCFile folder, 
-        long currentSyncTime, 
-        boolean updateFolderProperties,
-        boolean syncFullAccount,
-        DataStorageManager dataStorageManager, 
-        Account account, 
-        Context context ) {
+        if (mCancellation && !pendingFolders.isEmpty()) {
+            Log_OC.d(TAG, "Leaving synchronization before synchronizing " + 
+                    pendingFolders.peek().getRemotePath() + " due to cancelation request");
         }
-        */
-        // folder synchronization
-        RefreshFolderOperation synchFolderOp = new RefreshFolderOperation( folder,
-                                                                                   mCurrentSyncTime,
-                                                                                   true,
-                                                                                   mIsShareSupported,
-                                                                                   false,
-                                                                                   getStorageManager(),
-                                                                                   getAccount(),
-                                                                                   getContext()
-                                                                                  );
-        RemoteOperationResult result = synchFolderOp.execute(getClient());
         
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        mSyncResult.stats.numEntries += mSynchronizedFolders;
+        mSyncResult.stats.numSkippedEntries += pendingFolders.size();
+        Log_OC.i(TAG, "Synchronized " + mSynchronizedFolders + " folders of " + 
+                getAccount().name + " in " + elapsed + " ms (" + 
+                (mSynchronizedFolders * 1000f / elapsed) + " folders/s, " + 
+                mMaxParallelFolders + " in parallel, " + (mIsDeepSync ? "deep" : "pruned") + ")");
+        
+        return (pendingFolders.isEmpty() && inFlight == 0 && mFailedResultsCounter == 0);
+    }
+    
+    
+    /**
+     * Checks if the synchronization of a new folder can be started, according to the 
+     * cancellation requests and the failures found until now.
+     * 
+     * @return      'True' if a new folder can be synchronized.
+     */
+    private boolean canStartNewFolder() {
+        return (!mCancellation && 
+                mFailedResultsCounter <= MAX_FAILED_RESULTS && 
+                !isFinisher(mLastFailedResult));
+    }
+    
+    
+    /**
+     *  Processes the result of the synchronization of the list of files contained in a 
+     *  folder, updating the global counters of the synchronization process and notifying 
+     *  the UI.
+     * 
+     *  @param task             Finished synchronization of a folder.
+     *  @return                 Child folders that should be synchronized after this one.
+     */
+    private List<OCFile> processFolderResult(FolderSyncTask task) {
+        List<OCFile> childFolders = new ArrayList<OCFile>();
+        OCFile folder = task.getFolder();
+        RefreshFolderOperation synchFolderOp = task.getOperation();
+        RemoteOperationResult result = task.getResult();
+        mSynchronizedFolders++;
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
-        sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
+        SyncEventBus.getInstance().postFolderSynced(getAccount().name, folder.getRemotePath(),
+                result);
         
         // check the result of synchronizing the folder
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
@@ -305,10 +536,14 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
                 mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
             }
             if (result.isSuccess()) {
-                // synchronize children folders 
-                List<OCFile> children = synchFolderOp.getChildren();
-                // beware of the 'hidden' recursion here!
-                fetchChildren(folder, children, synchFolderOp.getRemoteFolderChanged());
+                // synchronize children folders; unchanged subtrees are skipped if allowed
+                for (OCFile child : synchFolderOp.getChildFolders()) {
+                    if (mIsDeepSync || !child.isEtagInSyncWithServer()) {
+                        childFolders.add(child);
+                    } else {
+                        mSyncResult.stats.numSkippedEntries++;
+                    }
+                }
             }
             
         } else {
@@ -327,7 +562,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             mFailedResultsCounter++;
             mLastFailedResult = result;
         }
-            
+        
+        return childFolders;
     }
 
     /**
@@ -349,61 +585,6 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         return false;
     }
 
-    /**
-     * Triggers the synchronization of any folder contained in the list of received files.
-     * 
-     * @param files         Files to recursively synchronize.
-     */
-    private void fetchChildren(OCFile parent, List<OCFile> files, boolean parentEtagChanged) {
-        int i;
-        OCFile newFile = null;
-        //String etag = null;
-        //boolean syncDown = false;
-        for (i=0; i < files.size() && !mCancellation; i++) {
-            newFile = files.get(i);
-            if (newFile.isFolder()) {
-                /*
-                etag = newFile.getEtag();
-                syncDown = (parentEtagChanged || etag == null || etag.length() == 0);
-                if(syncDown) { */
-                    synchronizeFolder(newFile);
-                    //sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED, parent.getRemotePath(),
-                    // null);
-                //}
-            }
-        }
-       
-        if (mCancellation && i <files.size()) Log_OC.d(TAG,
-                "Leaving synchronization before synchronizing " + files.get(i).getRemotePath() +
-                        " due to cancelation request");
-    }
-
-    
-    /**
-     * Sends a message to any application component interested in the progress of the
-     * synchronization.
-     * 
-     * @param event             Event in the process of synchronization to be notified.   
-     * @param dirRemotePath     Remote path of the folder target of the event occurred.
-     * @param result            Result of an individual {@ SynchronizeFolderOperation},
-     *                          if completed; may be null.
-     */
-    private void sendLocalBroadcast(String event, String dirRemotePath,
-                                    RemoteOperationResult result) {
-        Log_OC.d(TAG, "Send broadcast " + event);
-        Intent intent = new Intent(event);
-        intent.putExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME, getAccount().name);
-        if (dirRemotePath != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_FOLDER_PATH, dirRemotePath);
-        }
-        if (result != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
-        }
-        getContext().sendStickyBroadcast(intent);
-        //LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
-    }
-
-    
     
     /**
      * Notifies the user about a failed synchronization through the status notification bar 
@@ -549,4 +730,54 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     private String i18n(int key, Object... args) {
         return getContext().getString(key, args);
     }
+    
+    
+    /**
+     * Synchronization of the list of files contained in a single folder, run in one of 
+     * the threads of the pool of {@link #synchronizeAccount(OCFile)}.
+     * 
+     * Every task uses its own {@link FileDataStorageManager}, bound to the thread-safe 
+     * {@link ContentResolver}.
+     */
+    private class FolderSyncTask implements Callable<FolderSyncTask> {
+        
+        private final OCFile mFolder;
+        private RefreshFolderOperation mOperation;
+        private RemoteOperationResult mResult;
+        
+        public FolderSyncTask(OCFile folder) {
+            mFolder = folder;
+        }
+        
+        @Override
+        public FolderSyncTask call() {
+            FileDataStorageManager storageManager = new FileDataStorageManager(
+                    getAccount(), getContext().getContentResolver()
+            );
+            mOperation = new RefreshFolderOperation( mFolder,
+                                                     mCurrentSyncTime,
+                                                     true,
+                                                     mIsShareSupported,
+                                                     false,
+                                                     storageManager,
+                                                     getAccount(),
+                                                     getContext()
+                                                    );
+            mOperation.setTrustEtagInServer(!mIsDeepSync);
+            mResult = mOperation.execute(getClient());
+            return this;
+        }
+        
+        public OCFile getFolder() {
+            return mFolder;
+        }
+        
+        public RefreshFolderOperation getOperation() {
+            return mOperation;
+        }
+        
+        public RemoteOperationResult getResult() {
+            return mResult;
+        }
+    }
 }
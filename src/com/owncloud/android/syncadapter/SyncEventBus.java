@@ -0,0 +1,329 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.syncadapter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+
+/**
+ * Delivers the progress of the synchronizations of accounts to the screens of the app, in the
+ * same process and without broadcasts.
+ *
+ * Events posted by {@link FileSyncAdapter} from any thread are merged, and delivered at most
+ * once per frame in the main thread. Of all the folders synchronized in that time, a
+ * {@link Listener} only learns whether the folder it shows, or one of its ancestors, was one of
+ * them; listeners not affected by a batch don't receive it.
+ *
+ * Results of the synchronization of every folder are summarized in {@link Events}; they are
+ * not copied.
+ */
+public class SyncEventBus {
+
+    /** Time events are merged before being delivered, in ms; about a frame */
+    private static final long FRAME_MS = 16;
+
+    private static SyncEventBus sInstance = null;
+
+    /**
+     * Receives the progress of the synchronization of an account, in the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @return      Remote path of the folder shown to the user, or null.
+         */
+        String getFolderOnScreen();
+
+        void onSyncEvents(Events events);
+    }
+
+    private final Handler mHandler;
+
+    /** Events waiting to be delivered, by account name; guarded by 'this' */
+    private Map<String, Events> mPending = new HashMap<String, Events>();
+
+    /** Names of the accounts being synchronized; guarded by 'this' */
+    private final Set<String> mAccountsInSync = new HashSet<String>();
+
+    /** 'True' when a delivery is waiting in mHandler; guarded by 'this' */
+    private boolean mScheduled = false;
+
+    /** Account of every registered listener; only accessed from the main thread */
+    private final Map<Listener, String> mListeners = new HashMap<Listener, String>();
+
+    private final Runnable mDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+
+    public static synchronized SyncEventBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncEventBus();
+        }
+        return sInstance;
+    }
+
+
+    private SyncEventBus() {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    /**
+     * Starts delivering the events of an account to a listener. Must be called from the main
+     * thread.
+     */
+    public void register(Listener listener, String accountName) {
+        mListeners.put(listener, accountName);
+    }
+
+
+    /**
+     * Must be called from the main thread.
+     */
+    public void unregister(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+
+    /**
+     * @return      'True' if the account is being synchronized; the start of the
+     *              synchronization may have been delivered before the listener was registered.
+     */
+    public synchronized boolean isSyncInProgress(String accountName) {
+        return mAccountsInSync.contains(accountName);
+    }
+
+
+    /**
+     * Methods posting events may be called from any thread.
+     */
+    public synchronized void postSyncStart(String accountName) {
+        mAccountsInSync.add(accountName);
+        getPending(accountName).mStarted = true;
+    }
+
+
+    public synchronized void postFolderSynced(String accountName, String folderPath,
+                                              RemoteOperationResult result) {
+        Events events = getPending(accountName);
+        events.mFolders.add(folderPath);
+        events.mFoldersSynced++;
+        events.addResult(result);
+    }
+
+
+    public synchronized void postSyncEnd(String accountName,
+                                         RemoteOperationResult lastFailedResult) {
+        mAccountsInSync.remove(accountName);
+        Events events = getPending(accountName);
+        events.mFinished = true;
+        if (lastFailedResult != null) {
+            events.addResult(lastFailedResult);
+        }
+    }
+
+
+    /**
+     * @return      Events of an account waiting to be delivered; a delivery is scheduled if
+     *              none was.
+     */
+    private Events getPending(String accountName) {
+        Events events = mPending.get(accountName);
+        if (events == null) {
+            events = new Events(accountName);
+            mPending.put(accountName, events);
+        }
+        if (!mScheduled) {
+            mHandler.postDelayed(mDelivery, FRAME_MS);
+            mScheduled = true;
+        }
+        return events;
+    }
+
+
+    private void deliver() {
+        Map<String, Events> pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new HashMap<String, Events>();
+            mScheduled = false;
+            for (Events events : pending.values()) {
+                events.mInProgress = mAccountsInSync.contains(events.mAccountName);
+            }
+        }
+        // copy; listeners may unregister while called
+        Map<Listener, String> listeners = new HashMap<Listener, String>(mListeners);
+        for (Map.Entry<Listener, String> entry : listeners.entrySet()) {
+            Events events = pending.get(entry.getValue());
+            if (events != null && mListeners.containsKey(entry.getKey())) {
+                Events forListener = events.forFolder(entry.getKey().getFolderOnScreen());
+                if (forListener != null) {
+                    entry.getKey().onSyncEvents(forListener);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Summary of the events of the synchronization of an account posted during a frame.
+     */
+    public static final class Events {
+
+        private final String mAccountName;
+        private boolean mStarted = false;
+        private boolean mFinished = false;
+        private boolean mInProgress = false;
+        private int mFoldersSynced = 0;
+        private int mFailures = 0;
+        private ResultCode mLastFailureCode = null;
+        private RemoteOperationResult mUntrustedServerResult = null;
+
+        /** Remote paths of the synchronized folders; not delivered */
+        private final Set<String> mFolders;
+
+        private boolean mFolderOnScreenSynced = false;
+
+        private Events(String accountName) {
+            mAccountName = accountName;
+            mFolders = new HashSet<String>();
+        }
+
+        private Events(Events source) {
+            mAccountName = source.mAccountName;
+            mStarted = source.mStarted;
+            mFinished = source.mFinished;
+            mInProgress = source.mInProgress;
+            mFoldersSynced = source.mFoldersSynced;
+            mFailures = source.mFailures;
+            mLastFailureCode = source.mLastFailureCode;
+            mUntrustedServerResult = source.mUntrustedServerResult;
+            mFolders = null;
+        }
+
+        private void addResult(RemoteOperationResult result) {
+            if (result != null && !result.isSuccess()) {
+                mFailures++;
+                mLastFailureCode = result.getCode();
+                if (result.getCode() == ResultCode.SSL_RECOVERABLE_PEER_UNVERIFIED) {
+                    // kept to ask the user about the certificate
+                    mUntrustedServerResult = result;
+                }
+            }
+        }
+
+        /**
+         * @return      Events as seen by a listener showing a folder, or null if they don't
+         *              affect the listener.
+         */
+        private Events forFolder(String folderOnScreen) {
+            boolean folderSynced = false;
+            if (folderOnScreen != null) {
+                for (String folder : mFolders) {
+                    if (folderOnScreen.startsWith(folder)) {
+                        folderSynced = true;
+                        break;
+                    }
+                }
+            }
+            if (!folderSynced && !mStarted && !mFinished && mUntrustedServerResult == null) {
+                return null;
+            }
+            Events events = new Events(this);
+            events.mFolderOnScreenSynced = folderSynced;
+            return events;
+        }
+
+        public String getAccountName() {
+            return mAccountName;
+        }
+
+        /**
+         * @return      'True' if the synchronization started in this batch.
+         */
+        public boolean isStarted() {
+            return mStarted;
+        }
+
+        /**
+         * @return      'True' if the synchronization finished in this batch.
+         */
+        public boolean isFinished() {
+            return mFinished;
+        }
+
+        /**
+         * @return      'True' if the synchronization is still running after this batch.
+         */
+        public boolean isInProgress() {
+            return mInProgress;
+        }
+
+        /**
+         * @return      'True' if the folder on screen, or one of its ancestors, was
+         *              synchronized; its content may have changed, or it may have been removed.
+         */
+        public boolean isFolderOnScreenSynced() {
+            return mFolderOnScreenSynced;
+        }
+
+        /**
+         * @return      Number of folders synchronized in this batch, visible or not.
+         */
+        public int getFoldersSynced() {
+            return mFoldersSynced;
+        }
+
+        /**
+         * @return      Number of failed results in this batch.
+         */
+        public int getFailures() {
+            return mFailures;
+        }
+
+        /**
+         * @return      Code of the last failed result in this batch, or null if none failed.
+         */
+        public ResultCode getLastFailureCode() {
+            return mLastFailureCode;
+        }
+
+        /**
+         * @return      Last result failed because the certificate of the server is not trusted
+         *              yet, or null.
+         */
+        public RemoteOperationResult getUntrustedServerResult() {
+            return mUntrustedServerResult;
+        }
+    }
+
+}
@@ -356,6 +356,9 @@ public class FileActivity extends ActionBarActivity
         if (BuildConfig.DEBUG) {
             mDrawerItems.add(new NavigationDrawerItem(mDrawerTitles[2],
                     mDrawerContentDescriptions[2]));
+            // Transfer metrics
+            mDrawerItems.add(new NavigationDrawerItem(mDrawerTitles[3],
+                    mDrawerContentDescriptions[3]));
         }
 
         // setting the nav drawer list adapter
@@ -907,6 +910,13 @@ public class FileActivity extends ActionBarActivity
                     startActivity(loggerIntent);
                     mDrawerLayout.closeDrawers();
                     break;
+
+                case 3: // Transfer metrics
+                    Intent metricsIntent = new Intent(getApplicationContext(),
+                            TransferMetricsActivity.class);
+                    startActivity(metricsIntent);
+                    mDrawerLayout.closeDrawers();
+                    break;
             }
         }
     }
@@ -64,6 +64,7 @@ import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
+import com.owncloud.android.files.services.UploadManifest;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
@@ -84,6 +85,7 @@ import com.owncloud.android.operations.SynchronizeFileOperation;
 import com.owncloud.android.operations.UnshareLinkOperation;
 import com.owncloud.android.services.observer.FileObserverService;
 import com.owncloud.android.syncadapter.FileSyncAdapter;
+import com.owncloud.android.syncadapter.SyncEventBus;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.CreateFolderDialogFragment;
 import com.owncloud.android.ui.dialog.SslUntrustedCertDialog;
@@ -112,6 +114,7 @@ public class FileDisplayActivity extends HookActivity
         implements FileFragment.ContainerActivity,
         OnSslUntrustedCertListener, OnEnforceableRefreshListener {
 
+    private SyncEventsListener mSyncEventsListener;
     private SyncBroadcastReceiver mSyncBroadcastReceiver;
     private UploadFinishReceiver mUploadFinishReceiver;
     private DownloadFinishReceiver mDownloadFinishReceiver;
@@ -620,20 +623,15 @@ public class FileDisplayActivity extends HookActivity
     private void requestMultipleUpload(Intent data, int resultCode) {
         String[] filePaths = data.getStringArrayExtra(UploadFilesActivity.EXTRA_CHOSEN_FILES);
         if (filePaths != null) {
-            String[] remotePaths = new String[filePaths.length];
+            UploadManifest manifest = new UploadManifest(getAccount());
             String remotePathBase = getCurrentDir().getRemotePath();
-            for (int j = 0; j< remotePaths.length; j++) {
-                remotePaths[j] = remotePathBase + (new File(filePaths[j])).getName();
+            for (int j = 0; j < filePaths.length; j++) {
+                manifest.add(filePaths[j], remotePathBase + (new File(filePaths[j])).getName(),
+                        null);
             }
-
-            Intent i = new Intent(this, FileUploader.class);
-            i.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
-            i.putExtra(FileUploader.KEY_LOCAL_FILE, filePaths);
-            i.putExtra(FileUploader.KEY_REMOTE_FILE, remotePaths);
-            i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
             if (resultCode == UploadFilesActivity.RESULT_OK_AND_MOVE)
-                i.putExtra(FileUploader.KEY_LOCAL_BEHAVIOUR, FileUploader.LOCAL_BEHAVIOUR_MOVE);
-            startService(i);
+                manifest.setLocalBehaviour(FileUploader.LOCAL_BEHAVIOUR_MOVE);
+            manifest.submit(this);
 
         } else {
             Log_OC.d(TAG, "User clicked on 'Update' with no selection");
@@ -776,10 +774,14 @@ public class FileDisplayActivity extends HookActivity
         refreshListOfFilesFragment();
 
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(FileSyncAdapter.EVENT_FULL_SYNC_START);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_END);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
+        if (getAccount() != null) {
+            mSyncEventsListener = new SyncEventsListener();
+            SyncEventBus.getInstance().register(mSyncEventsListener, getAccount().name);
+            mSyncInProgress = SyncEventBus.getInstance().isSyncInProgress(getAccount().name);
+            setSupportProgressBarIndeterminateVisibility(mSyncInProgress);
+        }
+        IntentFilter syncIntentFilter = new IntentFilter(
+                RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
         syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
         mSyncBroadcastReceiver = new SyncBroadcastReceiver();
         registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
@@ -805,6 +807,10 @@ public class FileDisplayActivity extends HookActivity
     @Override
     protected void onPause() {
         Log_OC.v(TAG, "onPause() start");
+        if (mSyncEventsListener != null) {
+            SyncEventBus.getInstance().unregister(mSyncEventsListener);
+            mSyncEventsListener = null;
+        }
         if (mSyncBroadcastReceiver != null) {
             unregisterReceiver(mSyncBroadcastReceiver);
             //LocalBroadcastManager.getInstance(this).unregisterReceiver(mSyncBroadcastReceiver);
@@ -824,6 +830,86 @@ public class FileDisplayActivity extends HookActivity
     }
 
 
+    /**
+     * Checks that the current folder and file still exist after a synchronization, browsing to
+     * the root folder if the current folder was removed.
+     *
+     * @param listFolder        When 'true', the content of the current folder is listed again.
+     * @param removedFolder     Name of the folder shown to the user if the current one was
+     *                          removed.
+     */
+    private void refreshCurrentFolder(boolean listFolder, String removedFolder) {
+        OCFile currentFile = (getFile() == null) ? null :
+                getStorageManager().getFileByPath(getFile().getRemotePath());
+        OCFile currentDir = (getCurrentDir() == null) ? null :
+                getStorageManager().getFileByPath(getCurrentDir().getRemotePath());
+
+        if (currentDir == null) {
+            // current folder was removed from the server 
+            Toast.makeText( FileDisplayActivity.this, 
+                            String.format(
+                                    getString(R.string.
+                                            sync_current_folder_was_removed),
+                                    removedFolder),
+                            Toast.LENGTH_LONG)
+                .show();
+            browseToRoot();
+            
+        } else {
+            if (currentFile == null && !getFile().isFolder()) {
+                // currently selected file was removed in the server, and now we
+                // know it
+                cleanSecondFragment();
+                currentFile = currentDir;
+            }
+
+            if (listFolder) {
+                OCFileListFragment fileListFragment = getListOfFilesFragment();
+                if (fileListFragment != null) {
+                    fileListFragment.listDirectory();
+                    // TODO Enable when "On Device" is recovered ?
+                    // fileListFragment.listDirectory(currentDir,
+                    // MainApp.getOnlyOnDevice());
+                }
+            }
+            setFile(currentFile);
+        }
+    }
+
+
+    /**
+     * Receives the progress of the synchronizations of the current account, only when it
+     * affects the folder on screen.
+     */
+    private class SyncEventsListener implements SyncEventBus.Listener {
+
+        @Override
+        public String getFolderOnScreen() {
+            return (getCurrentDir() == null) ? null : getCurrentDir().getRemotePath();
+        }
+
+        @Override
+        public void onSyncEvents(SyncEventBus.Events events) {
+            Log_OC.d(TAG, "Received " + events.getFoldersSynced() + " synchronized folders");
+            if (getAccount() == null || !events.getAccountName().equals(getAccount().name) ||
+                    getStorageManager() == null) {
+                return;
+            }
+            if (events.isFolderOnScreenSynced() || events.isFinished()) {
+                refreshCurrentFolder(events.isFolderOnScreenSynced(), getFolderOnScreen());
+            }
+            mSyncInProgress = events.isInProgress();
+            Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
+            setSupportProgressBarIndeterminateVisibility(mSyncInProgress);
+            setBackgroundText();
+
+            if (events.getUntrustedServerResult() != null) {
+                mLastSslUntrustedServerResult = events.getUntrustedServerResult();
+            }
+        }
+    }
+
+
     private class SyncBroadcastReceiver extends BroadcastReceiver {
 
         /**
@@ -845,89 +931,52 @@ public class FileDisplayActivity extends HookActivity
     
                 if (sameAccount) {
                     
-                    if (FileSyncAdapter.EVENT_FULL_SYNC_START.equals(event)) {
-                        mSyncInProgress = true;
-                        
-                    } else {
-                        OCFile currentFile = (getFile() == null) ? null :
-                                getStorageManager().getFileByPath(getFile().getRemotePath());
-                        OCFile currentDir = (getCurrentDir() == null) ? null :
-                                getStorageManager().getFileByPath(getCurrentDir().getRemotePath());
-    
-                        if (currentDir == null) {
-                            // current folder was removed from the server 
-                            Toast.makeText( FileDisplayActivity.this, 
-                                            String.format(
-                                                    getString(R.string.
-                                                            sync_current_folder_was_removed),
-                                                   synchFolderRemotePath),
-                                            Toast.LENGTH_LONG)
-                                .show();
-                            browseToRoot();
+                    refreshCurrentFolder(synchFolderRemotePath != null &&
+                            getCurrentDir() != null && getCurrentDir().getRemotePath().
+                                    equals(synchFolderRemotePath),
+                            synchFolderRemotePath);
+                    
+                    mSyncInProgress = (!RefreshFolderOperation.
+                            EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event) ||
+                            SyncEventBus.getInstance().isSyncInProgress(accountName));
                             
-                        } else {
-                            if (currentFile == null && !getFile().isFolder()) {
-                                // currently selected file was removed in the server, and now we
-                                // know it
-                                cleanSecondFragment();
-                                currentFile = currentDir;
-                            }
-
-                            if (synchFolderRemotePath != null &&
-                                    currentDir.getRemotePath().equals(synchFolderRemotePath)) {
-                                OCFileListFragment fileListFragment = getListOfFilesFragment();
-                                if (fileListFragment != null) {
-                                    fileListFragment.listDirectory();
-                                    // TODO Enable when "On Device" is recovered ?
-                                    // fileListFragment.listDirectory(currentDir,
-                                    // MainApp.getOnlyOnDevice());
-                                }
-                            }
-                            setFile(currentFile);
-                        }
-                        
-                        mSyncInProgress = (!FileSyncAdapter.EVENT_FULL_SYNC_END.equals(event) &&
-                                !RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED
-                                        .equals(event));
-                                
-                        if (RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
-                                    equals(event) &&
-                                /// TODO refactor and make common
-                                synchResult != null && !synchResult.isSuccess() &&  
-                                (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
-                                    synchResult.isIdPRedirection()                  ||
-                                    (synchResult.isException() && synchResult.getException() 
-                                            instanceof AuthenticatorException))) {
-
-
-                            try {
-                                OwnCloudClient client;
-                                OwnCloudAccount ocAccount =
-                                        new OwnCloudAccount(getAccount(), context);
-                                client = (OwnCloudClientManagerFactory.getDefaultSingleton().
-                                        removeClientFor(ocAccount));
-
-                                if (client != null) {
-                                    OwnCloudCredentials cred = client.getCredentials();
-                                    if (cred != null) {
-                                        AccountManager am = AccountManager.get(context);
-                                        if (cred.authTokenExpires()) {
-                                            am.invalidateAuthToken(
-                                                    getAccount().type,
-                                                    cred.getAuthToken()
-                                            );
-                                        } else {
-                                            am.clearPassword(getAccount());
-                                        }
+                    if (RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
+                                equals(event) &&
+                            /// TODO refactor and make common
+                            synchResult != null && !synchResult.isSuccess() &&  
+                            (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
+                                synchResult.isIdPRedirection()                  ||
+                                (synchResult.isException() && synchResult.getException() 
+                                        instanceof AuthenticatorException))) {
+
+
+                        try {
+                            OwnCloudClient client;
+                            OwnCloudAccount ocAccount =
+                                    new OwnCloudAccount(getAccount(), context);
+                            client = (OwnCloudClientManagerFactory.getDefaultSingleton().
+                                    removeClientFor(ocAccount));
+
+                            if (client != null) {
+                                OwnCloudCredentials cred = client.getCredentials();
+                                if (cred != null) {
+                                    AccountManager am = AccountManager.get(context);
+                                    if (cred.authTokenExpires()) {
+                                        am.invalidateAuthToken(
+                                                getAccount().type,
+                                                cred.getAuthToken()
+                                        );
+                                    } else {
+                                        am.clearPassword(getAccount());
                                     }
                                 }
-                                requestCredentialsUpdate();
-
-                            } catch (AccountNotFoundException e) {
-                                Log_OC.e(TAG, "Account " + getAccount() + " was removed!", e);
                             }
+                            requestCredentialsUpdate();
 
+                        } catch (AccountNotFoundException e) {
+                            Log_OC.e(TAG, "Account " + getAccount() + " was removed!", e);
                         }
+
                     }
                     removeStickyBroadcast(intent);
                     Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
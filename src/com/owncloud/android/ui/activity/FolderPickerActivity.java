@@ -56,6 +56,7 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.operations.CreateFolderOperation;
 import com.owncloud.android.operations.RefreshFolderOperation;
 import com.owncloud.android.syncadapter.FileSyncAdapter;
+import com.owncloud.android.syncadapter.SyncEventBus;
 import com.owncloud.android.ui.dialog.CreateFolderDialogFragment;
 import com.owncloud.android.ui.fragment.FileFragment;
 import com.owncloud.android.ui.fragment.OCFileListFragment;
@@ -71,6 +72,7 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
                                                             + ".EXTRA_FILE";
     //TODO: Think something better
 
+    private SyncEventsListener mSyncEventsListener;
     private SyncBroadcastReceiver mSyncBroadcastReceiver;
 
     private static final String TAG = FolderPickerActivity.class.getSimpleName();
@@ -232,10 +234,14 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
         refreshListOfFilesFragment();
 
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(FileSyncAdapter.EVENT_FULL_SYNC_START);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_END);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
+        if (getAccount() != null) {
+            mSyncEventsListener = new SyncEventsListener();
+            SyncEventBus.getInstance().register(mSyncEventsListener, getAccount().name);
+            mSyncInProgress = SyncEventBus.getInstance().isSyncInProgress(getAccount().name);
+            setSupportProgressBarIndeterminateVisibility(mSyncInProgress);
+        }
+        IntentFilter syncIntentFilter = new IntentFilter(
+                RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
         syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
         mSyncBroadcastReceiver = new SyncBroadcastReceiver();
         registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
@@ -246,6 +252,10 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
     @Override
     protected void onPause() {
         Log_OC.e(TAG, "onPause() start");
+        if (mSyncEventsListener != null) {
+            SyncEventBus.getInstance().unregister(mSyncEventsListener);
+            mSyncEventsListener = null;
+        }
         if (mSyncBroadcastReceiver != null) {
             unregisterReceiver(mSyncBroadcastReceiver);
             //LocalBroadcastManager.getInstance(this).unregisterReceiver(mSyncBroadcastReceiver);
@@ -423,6 +433,76 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
     
     
     
+    /**
+     * Checks that the current folder and file still exist after a synchronization, browsing to
+     * the root folder if the current folder was removed.
+     *
+     * @param listFolder        When 'true', the content of the current folder is listed again.
+     */
+    private void refreshCurrentFolder(boolean listFolder) {
+        OCFile currentFile = (getFile() == null) ? null : 
+            getStorageManager().getFileByPath(getFile().getRemotePath());
+        OCFile currentDir = (getCurrentFolder() == null) ? null : 
+            getStorageManager().getFileByPath(getCurrentFolder().getRemotePath());
+
+        if (currentDir == null) {
+            // current folder was removed from the server 
+            Toast.makeText( FolderPickerActivity.this, 
+                            String.format(
+                                    getString(R.string.sync_current_folder_was_removed), 
+                                    getCurrentFolder().getFileName()), 
+                            Toast.LENGTH_LONG)
+                .show();
+            browseToRoot();
+            
+        } else {
+            if (currentFile == null && !getFile().isFolder()) {
+                // currently selected file was removed in the server, and now we know it
+                currentFile = currentDir;
+            }
+
+            if (listFolder) {
+                OCFileListFragment fileListFragment = getListOfFilesFragment();
+                if (fileListFragment != null) {
+                    fileListFragment.listDirectory(currentDir);
+                    // TODO Enable when "On Device" is recovered ?
+                    // fileListFragment.listDirectory(currentDir, false);
+                }
+            }
+            setFile(currentFile);
+        }
+    }
+
+
+    /**
+     * Receives the progress of the synchronizations of the current account, only when it
+     * affects the folder on screen.
+     */
+    private class SyncEventsListener implements SyncEventBus.Listener {
+
+        @Override
+        public String getFolderOnScreen() {
+            return (getCurrentFolder() == null) ? null : getCurrentFolder().getRemotePath();
+        }
+
+        @Override
+        public void onSyncEvents(SyncEventBus.Events events) {
+            Log_OC.d(TAG, "Received " + events.getFoldersSynced() + " synchronized folders");
+            if (getAccount() == null || !events.getAccountName().equals(getAccount().name) ||
+                    getStorageManager() == null) {
+                return;
+            }
+            if (events.isFolderOnScreenSynced() || events.isFinished()) {
+                refreshCurrentFolder(events.isFolderOnScreenSynced());
+            }
+            mSyncInProgress = events.isInProgress();
+            Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
+            setSupportProgressBarIndeterminateVisibility(mSyncInProgress);
+            setBackgroundText();
+        }
+    }
+
+
     private class SyncBroadcastReceiver extends BroadcastReceiver {
 
         /**
@@ -442,83 +522,50 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
     
                 if (sameAccount) {
                     
-                    if (FileSyncAdapter.EVENT_FULL_SYNC_START.equals(event)) {
-                        mSyncInProgress = true;
-                        
-                    } else {
-                        OCFile currentFile = (getFile() == null) ? null : 
-                            getStorageManager().getFileByPath(getFile().getRemotePath());
-                        OCFile currentDir = (getCurrentFolder() == null) ? null : 
-                            getStorageManager().getFileByPath(getCurrentFolder().getRemotePath());
-    
-                        if (currentDir == null) {
-                            // current folder was removed from the server 
-                            Toast.makeText( FolderPickerActivity.this, 
-                                            String.format(
-                                                    getString(R.string.sync_current_folder_was_removed), 
-                                                    getCurrentFolder().getFileName()), 
-                                            Toast.LENGTH_LONG)
-                                .show();
-                            browseToRoot();
+                    refreshCurrentFolder(synchFolderRemotePath != null &&
+                            getCurrentFolder() != null && getCurrentFolder().getRemotePath().
+                                    equals(synchFolderRemotePath));
+                    
+                    mSyncInProgress = (!RefreshFolderOperation.
+                            EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event) ||
+                            SyncEventBus.getInstance().isSyncInProgress(accountName));
                             
-                        } else {
-                            if (currentFile == null && !getFile().isFolder()) {
-                                // currently selected file was removed in the server, and now we know it
-                                currentFile = currentDir;
-                            }
-
-                            if (synchFolderRemotePath != null && currentDir.getRemotePath().
-                                    equals(synchFolderRemotePath)) {
-                                OCFileListFragment fileListFragment = getListOfFilesFragment();
-                                if (fileListFragment != null) {
-                                    fileListFragment.listDirectory(currentDir);
-                                    // TODO Enable when "On Device" is recovered ?
-                                    // fileListFragment.listDirectory(currentDir, false);
-                                }
-                            }
-                            setFile(currentFile);
-                        }
-                        
-                        mSyncInProgress = (!FileSyncAdapter.EVENT_FULL_SYNC_END.equals(event) && 
-                                !RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event));
-                                
-                        if (RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
-                                    equals(event) &&
-                                /// TODO refactor and make common
-                                synchResult != null && !synchResult.isSuccess() &&  
-                                (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
-                                    synchResult.isIdPRedirection()                  ||
-                                    (synchResult.isException() && synchResult.getException() 
-                                            instanceof AuthenticatorException))) {
-
-                            try {
-                                OwnCloudClient client;
-                                OwnCloudAccount ocAccount =
-                                        new OwnCloudAccount(getAccount(), context);
-                                client = (OwnCloudClientManagerFactory.getDefaultSingleton().
-                                        removeClientFor(ocAccount));
-
-                                if (client != null) {
-                                    OwnCloudCredentials cred = client.getCredentials();
-                                    if (cred != null) {
-                                        AccountManager am = AccountManager.get(context);
-                                        if (cred.authTokenExpires()) {
-                                            am.invalidateAuthToken(
-                                                    getAccount().type,
-                                                    cred.getAuthToken()
-                                            );
-                                        } else {
-                                            am.clearPassword(getAccount());
-                                        }
+                    if (RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
+                                equals(event) &&
+                            /// TODO refactor and make common
+                            synchResult != null && !synchResult.isSuccess() &&  
+                            (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
+                                synchResult.isIdPRedirection()                  ||
+                                (synchResult.isException() && synchResult.getException() 
+                                        instanceof AuthenticatorException))) {
+
+                        try {
+                            OwnCloudClient client;
+                            OwnCloudAccount ocAccount =
+                                    new OwnCloudAccount(getAccount(), context);
+                            client = (OwnCloudClientManagerFactory.getDefaultSingleton().
+                                    removeClientFor(ocAccount));
+
+                            if (client != null) {
+                                OwnCloudCredentials cred = client.getCredentials();
+                                if (cred != null) {
+                                    AccountManager am = AccountManager.get(context);
+                                    if (cred.authTokenExpires()) {
+                                        am.invalidateAuthToken(
+                                                getAccount().type,
+                                                cred.getAuthToken()
+                                        );
+                                    } else {
+                                        am.clearPassword(getAccount());
                                     }
                                 }
-                                requestCredentialsUpdate();
-
-                            } catch (AccountNotFoundException e) {
-                                Log_OC.e(TAG, "Account " + getAccount() + " was removed!", e);
                             }
+                            requestCredentialsUpdate();
 
+                        } catch (AccountNotFoundException e) {
+                            Log_OC.e(TAG, "Account " + getAccount() + " was removed!", e);
                         }
+
                     }
                     removeStickyBroadcast(intent);
                     Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
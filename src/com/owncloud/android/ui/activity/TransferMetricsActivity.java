@@ -0,0 +1,217 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.ui.activity;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.ActionBarActivity;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.owncloud.android.R;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.operations.TransferMetrics;
+import com.owncloud.android.utils.DisplayUtils;
+import com.owncloud.android.utils.FileStorageUtils;
+
+/**
+ * Debug screen showing the {@link TransferMetrics} of the last transfers, per account, and
+ * exporting them as CSV.
+ */
+public class TransferMetricsActivity extends ActionBarActivity {
+
+    private static final String TAG = TransferMetricsActivity.class.getSimpleName();
+
+    private static final String CSV_TYPE = "text/csv";
+    private static final String CSV_FILE_NAME = "transfer_metrics.csv";
+
+    /** Number of single transfers shown below the summaries */
+    private static final int SHOWN_RECORDS = 50;
+
+    private TextView mMetricsTV;
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.transfer_metrics);
+        setTitle(getText(R.string.actionbar_transfer_metrics));
+        ActionBar actionBar = getSupportActionBar();
+        actionBar.setIcon(DisplayUtils.getSeasonalIconId());
+        actionBar.setDisplayHomeAsUpEnabled(true);
+        mMetricsTV = (TextView) findViewById(R.id.transferMetricsTV);
+        Button clearButton = (Button) findViewById(R.id.clearTransferMetricsButton);
+        Button exportButton = (Button) findViewById(R.id.exportTransferMetricsButton);
+
+        clearButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                TransferMetrics.clear();
+                showMetrics();
+            }
+        });
+
+        exportButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportCsv();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        super.onOptionsItemSelected(item);
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+
+    private void showMetrics() {
+        List<TransferMetrics.Summary> summaries = TransferMetrics.getSummaries();
+        if (summaries.isEmpty()) {
+            mMetricsTV.setText(R.string.transfer_metrics_empty);
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (TransferMetrics.Summary summary : summaries) {
+            text.append(typeName(summary.getType())).append(' ')
+                    .append(summary.getAccountName()).append('\n');
+            text.append("  ").append(getString(R.string.transfer_metrics_counts,
+                    summary.getTransfers(), summary.getFailures(), summary.getRetries()))
+                    .append('\n');
+            text.append("  ").append(amount(summary.getBytes(), summary.getBytesPerSecond()))
+                    .append('\n');
+            text.append("  ").append(getString(R.string.transfer_metrics_average_times,
+                    millis(summary.getAverageTimeToFirstByteMillis()),
+                    millis(summary.getAverageQueueWaitMillis()))).append("\n\n");
+        }
+
+        List<TransferMetrics.Record> records = TransferMetrics.getRecords();
+        for (int i = records.size() - 1; i >= Math.max(records.size() - SHOWN_RECORDS, 0); i--) {
+            TransferMetrics.Record record = records.get(i);
+            text.append(DisplayUtils.unixTimeToHumanReadable(record.getFinishedAt()))
+                    .append(' ').append(typeName(record.getType())).append(' ')
+                    .append(record.getResult()).append('\n');
+            text.append("  ").append(record.getAccountName()).append(record.getRemotePath())
+                    .append('\n');
+            text.append("  ").append(amount(record.getBytes(), record.getBytesPerSecond()))
+                    .append(", ").append(getString(R.string.transfer_metrics_times,
+                            millis(record.getTimeToFirstByteMillis()),
+                            millis(record.getQueueWaitMillis()), record.getRetries()));
+            if (record.getChunks() > 0) {
+                text.append(", ")
+                        .append(getString(R.string.transfer_metrics_chunks, record.getChunks()));
+            }
+            text.append("\n\n");
+        }
+        mMetricsTV.setText(text);
+    }
+
+
+    /**
+     * Writes the metrics to a CSV file in the log folder and offers it to other apps.
+     */
+    private void exportCsv() {
+        String logPath = FileStorageUtils.getLogPath();
+        File csvFile = new File(logPath, CSV_FILE_NAME);
+        Writer writer = null;
+        try {
+            new File(logPath).mkdirs();
+            writer = new FileWriter(csvFile);
+            TransferMetrics.writeCsv(writer);
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error exporting transfer metrics to " + csvFile, e);
+            Toast.makeText(this, R.string.transfer_metrics_export_failed, Toast.LENGTH_LONG)
+                    .show();
+            return;
+
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(CSV_TYPE);
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.actionbar_transfer_metrics));
+        intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(csvFile));
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, getString(R.string.log_send_no_mail_app), Toast.LENGTH_LONG)
+                    .show();
+            Log_OC.i(TAG, "Could not find app for sending transfer metrics.");
+        }
+    }
+
+
+    private String typeName(int type) {
+        return getString((type == TransferMetrics.TYPE_UPLOAD) ?
+                R.string.transfer_metrics_upload : R.string.transfer_metrics_download);
+    }
+
+    private String amount(long bytes, long bytesPerSecond) {
+        String speed = (bytesPerSecond >= 0) ?
+                getString(R.string.transfer_metrics_speed,
+                        DisplayUtils.bytesToHumanReadable(bytesPerSecond)) :
+                getString(R.string.transfer_metrics_unknown);
+        return getString(R.string.transfer_metrics_amount,
+                DisplayUtils.bytesToHumanReadable(bytes), speed);
+    }
+
+    private String millis(long millis) {
+        return (millis >= 0) ? getString(R.string.transfer_metrics_millis, millis) :
+                getString(R.string.transfer_metrics_unknown);
+    }
+
+}
@@ -23,13 +23,15 @@
 package com.owncloud.android.ui.adapter;
 
 
-import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 import android.accounts.Account;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.format.DateUtils;
@@ -41,12 +43,15 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.FileDao;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailLoader;
 import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
@@ -59,16 +64,36 @@ import com.owncloud.android.utils.FileStorageUtils;
 /**
  * This Adapter populates a ListView with all files and folders in an ownCloud
  * instance.
+ *
+ * The content of folders is read sorted from the database in a background thread. A new
+ * folder is shown progressively, in pages of {@link #PAGE_SIZE} files; when the folder shown is
+ * listed again, only the rows that changed are bound again, if none was added, removed or
+ * moved.
  */
 public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     private final static String PERMISSION_SHARED_WITH_ME = "S";
 
+    /** Files added to the list at once while a new folder is read */
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * Notified in the main thread when the content of the folder is fully listed.
+     */
+    public interface OnListingFinishedListener {
+        void onListingFinished();
+    }
+
     private Context mContext;
     private OCFile mFile = null;
     private Vector<OCFile> mFiles = null;
-    private Vector<OCFile> mFilesOrig = new Vector<OCFile>();
     private boolean mJustFolders;
 
+    private ListingTask mListingTask = null;
+    private OnListingFinishedListener mListingListener = null;
+
+    /** List last bound to the adapter, to bind changed rows again */
+    private WeakReference<AbsListView> mListView = null;
+
     private FileDataStorageManager mStorageManager;
     private Account mAccount;
     private ComponentsGetter mTransferServiceGetter;
@@ -139,6 +164,10 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
+        if (parent instanceof AbsListView && (mListView == null || mListView.get() != parent)) {
+            mListView = new WeakReference<AbsListView>((AbsListView) parent);
+        }
+
         View view = convertView;
         OCFile file = null;
         LayoutInflater inflator = (LayoutInflater) mContext
@@ -200,6 +229,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
                     checkBoxV.setVisibility(View.GONE);
 
+                    // size of folders is the size of all their content, kept in the database
                     fileSizeV.setVisibility(View.VISIBLE);
                     fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
 
@@ -219,9 +249,6 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
                                 checkBoxV.setVisibility(View.VISIBLE);
                             }
                         }
-
-                    } else { //Folder
-                        fileSizeV.setVisibility(View.INVISIBLE);
                     }
 
                 case GRID_ITEM:
@@ -295,39 +322,16 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             // No Folder
             if (!file.isFolder()) {
                 if (file.isImage() && file.getRemoteId() != null){
-                    // Thumbnail in Cache?
-                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
-                            String.valueOf(file.getRemoteId())
-                            );
-                    if (thumbnail != null && !file.needsUpdateThumbnail()){
-                        fileIcon.setImageBitmap(thumbnail);
-                    } else {
-                        // generate new Thumbnail
-                        if (ThumbnailsCacheManager.cancelPotentialWork(file, fileIcon)) {
-                            final ThumbnailsCacheManager.ThumbnailGenerationTask task =
-                                    new ThumbnailsCacheManager.ThumbnailGenerationTask(
-                                            fileIcon, mStorageManager, mAccount
-                                            );
-                            if (thumbnail == null) {
-                                thumbnail = ThumbnailsCacheManager.mDefaultImg;
-                            }
-                            final ThumbnailsCacheManager.AsyncDrawable asyncDrawable =
-                                    new ThumbnailsCacheManager.AsyncDrawable(
-                                    mContext.getResources(), 
-                                    thumbnail, 
-                                    task
-                                    );
-                            fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file);
-                        }
-                    }
+                    ThumbnailLoader.getInstance().load(file, fileIcon, mStorageManager, mAccount);
                 } else {
+                    ThumbnailLoader.getInstance().cancel(fileIcon);
                     fileIcon.setImageResource(DisplayUtils.getFileTypeIconId(file.getMimetype(),
                             file.getFileName()));
                 }
 
             } else {
                 // Folder
+                ThumbnailLoader.getInstance().cancel(fileIcon);
                 if (checkIfFileIsSharedWithMe(file)) {
                     fileIcon.setImageResource(R.drawable.shared_with_me_folder);
                 } else if (file.isShareByLink()) {
@@ -345,46 +349,6 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         return view;
     }
 
-    /**
-     * Local Folder size in human readable format
-     * 
-     * @param path
-     *            String
-     * @return Size in human readable format
-     */
-    private String getFolderSizeHuman(String path) {
-
-        File dir = new File(path);
-
-        if (dir.exists()) {
-            long bytes = FileStorageUtils.getFolderSize(dir);
-            return DisplayUtils.bytesToHumanReadable(bytes);
-        }
-
-        return "0 B";
-    }
-
-    /**
-     * Local Folder size
-     * @param dir File
-     * @return Size in bytes
-     */
-    private long getFolderSize(File dir) {
-        if (dir.exists()) {
-            long result = 0;
-            File[] fileList = dir.listFiles();
-            for(int i = 0; i < fileList.length; i++) {
-                if(fileList[i].isDirectory()) {
-                    result += getFolderSize(fileList[i]);
-                } else {
-                    result += fileList[i].length();
-                }
-            }
-            return result;
-        }
-        return 0;
-    } 
-
     @Override
     public int getViewTypeCount() {
         return 1;
@@ -402,6 +366,11 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
     /**
      * Change the adapted directory for a new one
+     *
+     * The content is read in background; the listener set with
+     * {@link #setOnListingFinishedListener(OnListingFinishedListener)} is notified when it's
+     * fully listed.
+     *
      * @param directory                 New file to adapt. Can be NULL, meaning 
      *                                  "no content to adapt".
      * @param updatedStorageManager     Optional updated storage manager; used to replace 
@@ -409,44 +378,193 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
      */
     public void swapDirectory(OCFile directory, FileDataStorageManager updatedStorageManager
             /*, boolean onlyOnDevice*/) {
+        boolean sameDirectory = (mFiles != null && mFile != null && directory != null &&
+                mFile.getFileId() == directory.getFileId());
         mFile = directory;
         if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
             mStorageManager = updatedStorageManager;
             mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
+            sameDirectory = false;
         }
-        if (mStorageManager != null) {
-            // TODO Enable when "On Device" is recovered ?
-            mFiles = mStorageManager.getFolderContent(mFile/*, onlyOnDevice*/);
-            mFilesOrig.clear();
-            mFilesOrig.addAll(mFiles);
-            
-            if (mJustFolders) {
-                mFiles = getFolders(mFiles);
+        if (mListingTask != null) {
+            mListingTask.cancel(false);
+            mListingTask = null;
+        }
+        if (mStorageManager != null && mFile != null) {
+            if (!sameDirectory) {
+                // rows of the previous folder must not stay while the new one is read
+                mFiles = new Vector<OCFile>();
+                notifyDataSetChanged();
             }
+            // TODO Enable when "On Device" is recovered ?
+            mListingTask = new ListingTask(mStorageManager, mFile, !sameDirectory);
+            mListingTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         } else {
             mFiles = null;
+            notifyDataSetChanged();
+            if (mListingListener != null) {
+                mListingListener.onListingFinished();
+            }
         }
+    }
 
-        mFiles = FileStorageUtils.sortFolder(mFiles);
-        notifyDataSetChanged();
+    public void setOnListingFinishedListener(OnListingFinishedListener listener) {
+        mListingListener = listener;
     }
-    
+
 
     /**
-     * Filter for getting only the folders
-     * @param files
-     * @return Vector<OCFile>
+     * Replaces the files listed with a new listing of the same folder. The list is only
+     * refreshed if files were added, removed or moved; otherwise, only the visible rows of
+     * files that changed are bound again.
      */
-    public Vector<OCFile> getFolders(Vector<OCFile> files) {
-        Vector<OCFile> ret = new Vector<OCFile>(); 
-        OCFile current = null; 
-        for (int i=0; i<files.size(); i++) {
-            current = files.get(i);
-            if (current.isFolder()) {
-                ret.add(current);
+    private void applyListing(Vector<OCFile> files) {
+        List<Integer> changed = new ArrayList<Integer>();
+        boolean sameRows = (mFiles != null && mFiles.size() == files.size());
+        for (int i = 0; sameRows && i < files.size(); i++) {
+            OCFile current = mFiles.get(i);
+            OCFile file = files.get(i);
+            if (current.getFileId() != file.getFileId()) {
+                sameRows = false;
+            } else if (!isSameRow(current, file)) {
+                changed.add(i);
+            }
+        }
+        mFiles = files;
+        if (!sameRows || !bindAgain(changed)) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Binds again the visible rows in the given positions.
+     *
+     * @return      'false' if the rows could not be reused, and the list must be refreshed.
+     */
+    private boolean bindAgain(List<Integer> positions) {
+        if (positions.isEmpty()) {
+            return true;
+        }
+        AbsListView list = (mListView != null) ? mListView.get() : null;
+        if (list == null || list.getAdapter() == null) {
+            return false;
+        }
+        int headers = (list instanceof ListView) ? ((ListView) list).getHeaderViewsCount() : 0;
+        int first = list.getFirstVisiblePosition();
+        for (int position : positions) {
+            int index = position + headers - first;
+            if (index >= 0 && index < list.getChildCount()) {
+                View row = list.getChildAt(index);
+                if (getView(position, row, list) != row) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return      'true' if both versions of a file are shown in the same way.
+     */
+    private static boolean isSameRow(OCFile a, OCFile b) {
+        return equal(a.getRemotePath(), b.getRemotePath()) &&
+                equal(a.getMimetype(), b.getMimetype()) &&
+                a.getFileLength() == b.getFileLength() &&
+                a.getModificationTimestamp() == b.getModificationTimestamp() &&
+                equal(a.getEtag(), b.getEtag()) &&
+                equal(a.getStoragePath(), b.getStoragePath()) &&
+                a.keepInSync() == b.keepInSync() &&
+                a.isDownloading() == b.isDownloading() &&
+                a.isShareByLink() == b.isShareByLink() &&
+                equal(a.getPermissions(), b.getPermissions()) &&
+                equal(a.getRemoteId(), b.getRemoteId()) &&
+                a.needsUpdateThumbnail() == b.needsUpdateThumbnail();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+
+    /**
+     * Reads the content of a folder, sorted by the database, in a background thread.
+     */
+    private class ListingTask extends AsyncTask<Void, List<OCFile>, Vector<OCFile>> {
+
+        private final FileDataStorageManager mTaskStorageManager;
+        private final OCFile mFolder;
+        private final boolean mProgressive;
+        private final boolean mOnlyFolders;
+        private final int mSortOrder;
+        private final boolean mAscending;
+
+        /**
+         * @param progressive   When 'true', files are shown while read; otherwise, the new
+         *                      listing replaces the current one when complete.
+         */
+        ListingTask(FileDataStorageManager storageManager, OCFile folder, boolean progressive) {
+            mTaskStorageManager = storageManager;
+            mFolder = folder;
+            mProgressive = progressive;
+            mOnlyFolders = mJustFolders;
+            mSortOrder = FileStorageUtils.mSortOrder;
+            mAscending = FileStorageUtils.mSortAscending;
+        }
+
+        @Override
+        protected Vector<OCFile> doInBackground(Void... params) {
+            final Vector<OCFile> files = new Vector<OCFile>();
+            mTaskStorageManager.readFolderContent(mFolder, mOnlyFolders, mSortOrder, mAscending,
+                    new FileDao.FileHandler() {
+                        private List<OCFile> mPage = new ArrayList<OCFile>(PAGE_SIZE);
+
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public boolean onFile(OCFile file) {
+                            if (isCancelled()) {
+                                return false;
+                            }
+                            files.add(file);
+                            if (mProgressive) {
+                                mPage.add(file);
+                                if (mPage.size() == PAGE_SIZE) {
+                                    publishProgress(mPage);
+                                    mPage = new ArrayList<OCFile>(PAGE_SIZE);
+                                }
+                            }
+                            return true;
+                        }
+                    });
+            return files;
+        }
+
+        @Override
+        protected void onProgressUpdate(List<OCFile>... pages) {
+            if (mListingTask != this) {
+                return;
+            }
+            for (List<OCFile> page : pages) {
+                mFiles.addAll(page);
+            }
+            notifyDataSetChanged();
+        }
+
+        @Override
+        protected void onPostExecute(Vector<OCFile> files) {
+            if (mListingTask != this) {
+                return;
+            }
+            mListingTask = null;
+            if (mProgressive) {
+                mFiles = files;
+                notifyDataSetChanged();
+            } else {
+                applyListing(files);
+            }
+            if (mListingListener != null) {
+                mListingListener.onListingFinished();
             }
         }
-        return ret;
     }
     
     
@@ -472,11 +590,8 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         
         FileStorageUtils.mSortOrder = order;
         FileStorageUtils.mSortAscending = ascending;
-        
-
-        mFiles = FileStorageUtils.sortFolder(mFiles);
-        notifyDataSetChanged();
 
+        swapDirectory(mFile, null);
     }
     
     private CharSequence showRelativeTimestamp(OCFile file){
@@ -25,7 +25,6 @@ import java.util.Arrays;
 import java.util.Comparator;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,7 +35,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.owncloud.android.R;
-import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+import com.owncloud.android.datamodel.ThumbnailLoader;
 import com.owncloud.android.utils.BitmapUtils;
 import com.owncloud.android.utils.DisplayUtils;
 
@@ -133,32 +132,9 @@ public class LocalFileListAdapter extends BaseAdapter implements ListAdapter {
                 
              // get Thumbnail if file is image
                 if (BitmapUtils.isImage(file)){
-                // Thumbnail in Cache?
-                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
-                            String.valueOf(file.hashCode())
-                    );
-                    if (thumbnail != null){
-                        fileIcon.setImageBitmap(thumbnail);
-                    } else {
-
-                        // generate new Thumbnail
-                        if (ThumbnailsCacheManager.cancelPotentialWork(file, fileIcon)) {
-                            final ThumbnailsCacheManager.ThumbnailGenerationTask task =
-                                    new ThumbnailsCacheManager.ThumbnailGenerationTask(fileIcon);
-                            if (thumbnail == null) {
-                                thumbnail = ThumbnailsCacheManager.mDefaultImg;
-                            }
-                            final ThumbnailsCacheManager.AsyncDrawable asyncDrawable =
-                        		new ThumbnailsCacheManager.AsyncDrawable(
-                                    mContext.getResources(), 
-                                    thumbnail, 
-                                    task
-                		        );
-                            fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file);
-                        }
-                    }
+                    ThumbnailLoader.getInstance().load(file, fileIcon);
                 } else {
+                    ThumbnailLoader.getInstance().cancel(fileIcon);
                     fileIcon.setImageResource(DisplayUtils.getFileTypeIconId(null, file.getName()));
                 }  
 
@@ -25,7 +25,7 @@ package com.owncloud.android.ui.dialog;
  * 
  *  Triggers the removal according to the user response.
  */
-import java.util.Vector;
+import java.util.List;
 
 import android.app.Dialog;
 import android.os.Bundle;
@@ -113,7 +113,7 @@ implements ConfirmationDialogFragmentListener {
         boolean containsKeepInSync = false;
         if (mTargetFile.isFolder()) {
             // TODO Enable when "On Device" is recovered ?
-            Vector<OCFile> files = storageManager.getFolderContent(mTargetFile/*, false*/);
+            List<OCFile> files = storageManager.getFolderContent(mTargetFile/*, false*/);
             for(OCFile file: files) {
                 containsKeepInSync = file.keepInSync() || containsKeepInSync;
 
@@ -137,6 +137,14 @@ public class OCFileListFragment extends ExtendedListFragment {
                 getActivity(),
                 mContainerActivity
                 );
+        mAdapter.setOnListingFinishedListener(new FileListListAdapter.OnListingFinishedListener() {
+            @Override
+            public void onListingFinished() {
+                if (isAdded()) {
+                    updateLayout();
+                }
+            }
+        });
         setListAdapter(mAdapter);
 
         registerForContextMenu();
@@ -405,8 +413,6 @@ public class OCFileListFragment extends ExtendedListFragment {
             }
             mFile = directory;
 
-            updateLayout();
-
         }
     }
 
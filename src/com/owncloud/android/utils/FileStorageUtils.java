@@ -21,11 +21,15 @@
 package com.owncloud.android.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Vector;
-
-import third_parties.daveKoeller.AlphanumComparator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
@@ -51,6 +55,12 @@ public class FileStorageUtils {
     public static final Integer SORT_NAME = 0;
     public static final Integer SORT_DATE = 1;
     public static final Integer SORT_SIZE = 2;
+
+    /** Bytes moved per call to {@link FileChannel#transferTo}; cancellations are checked between calls */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** Size of the buffer used to copy streams not backed by a file */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
   
     
     //private static final String LOG_TAG = "FileStorageUtils";
@@ -127,6 +137,9 @@ public class FileStorageUtils {
         file.setCreationTimestamp(remote.getCreationTimestamp());
         file.setFileLength(remote.getLength());
         file.setMimetype(remote.getMimeType());
+        if (file.isFolder() && remote.getLength() == 0) {
+            file.setFileLength(OCFile.UNKNOWN_LENGTH);
+        }
         file.setModificationTimestamp(remote.getModifiedTimestamp());
         file.setEtag(remote.getEtag());
         file.setPermissions(remote.getPermissions());
@@ -164,7 +177,7 @@ public class FileStorageUtils {
             files = FileStorageUtils.sortByDate(files);
             break;
         case 2: 
-           // mFiles = FileStorageUtils.sortBySize(mSortAscending);
+            files = FileStorageUtils.sortBySize(files);
             break;
         }
        
@@ -205,40 +218,6 @@ public class FileStorageUtils {
         return files;
     }
 
-//    /**
-//     * Sorts list by Size
-//     * @param sortAscending true: ascending, false: descending
-//     */
-//    public static Vector<OCFile> sortBySize(Vector<OCFile> files){
-//        final Integer val;
-//        if (mSortAscending){
-//            val = 1;
-//        } else {
-//            val = -1;
-//        }
-//        
-//        Collections.sort(files, new Comparator<OCFile>() {
-//            public int compare(OCFile o1, OCFile o2) {
-//                if (o1.isFolder() && o2.isFolder()) {
-//                    Long obj1 = getFolderSize(new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, o1)));
-//                    return val * obj1.compareTo(getFolderSize(new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, o2))));
-//                }
-//                else if (o1.isFolder()) {
-//                    return -1;
-//                } else if (o2.isFolder()) {
-//                    return 1;
-//                } else if (o1.getFileLength() == 0 || o2.getFileLength() == 0){
-//                    return 0;
-//                } else {
-//                    Long obj1 = o1.getFileLength();
-//                    return val * obj1.compareTo(o2.getFileLength());
-//                }
-//            }
-//        });
-//        
-//        return files;
-//    }
-
     /**
      * Sorts list by Name
      * @param files     files to sort
@@ -253,19 +232,39 @@ public class FileStorageUtils {
 
         Collections.sort(files, new Comparator<OCFile>() {
             public int compare(OCFile o1, OCFile o2) {
-                if (o1.isFolder() && o2.isFolder()) {
-                    return val * o1.getRemotePath().toLowerCase().compareTo(o2.getRemotePath().toLowerCase());
-                } else if (o1.isFolder()) {
-                    return -1;
-                } else if (o2.isFolder()) {
-                    return 1;
+                if (o1.isFolder() != o2.isFolder()) {
+                    return o1.isFolder() ? -1 : 1;
                 }
-                return val * new AlphanumComparator().compare(o1, o2);
+                return val * o1.getSortName().compareTo(o2.getSortName());
             }
         });
         
         return files;
     }
+
+    /**
+     * Sorts list by Size, with the same order read from the database; folders go first.
+     * @param files     files to sort
+     */
+    public static Vector<OCFile> sortBySize(Vector<OCFile> files){
+        final int val = mSortAscending ? 1 : -1;
+
+        Collections.sort(files, new Comparator<OCFile>() {
+            public int compare(OCFile o1, OCFile o2) {
+                if (o1.isFolder() != o2.isFolder()) {
+                    return o1.isFolder() ? -1 : 1;
+                }
+                long length1 = o1.getFileLength();
+                long length2 = o2.getFileLength();
+                if (length1 != length2) {
+                    return val * (length1 < length2 ? -1 : 1);
+                }
+                return o1.getSortName().compareTo(o2.getSortName());
+            }
+        });
+
+        return files;
+    }
     
     /**
      * Local Folder size
@@ -288,6 +287,93 @@ public class FileStorageUtils {
         return 0;
     }
 
+    /**
+     * Copies the contents of a file to another, with {@link FileChannel#transferTo} so that the
+     * bytes are not moved through the Java heap.
+     *
+     * @param source        File to copy.
+     * @param target        File to write; created or truncated.
+     * @param cancel        Copy stops when set to true; may be null.
+     * @return              'true' if the copy was completed, 'false' if cancelled.
+     */
+    public static boolean copyFile(File source, File target, AtomicBoolean cancel)
+            throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return copyStream(in, target, cancel);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the contents of a stream to a file, with {@link FileChannel#transferTo} when the
+     * stream is backed by a regular file with contents (as those got from a content:// URI
+     * usually are), and through a buffer otherwise. Streams backed by a pipe, as those of some
+     * document providers, report no size and are read through the buffer until their end.
+     *
+     * The stream is not closed.
+     *
+     * @param in            Stream to copy.
+     * @param target        File to write; created or truncated.
+     * @param cancel        Copy stops when set to true; may be null.
+     * @return              'true' if the copy was completed, 'false' if cancelled.
+     * @throws IOException  If the copy could not be completed, as when the source is truncated
+     *                      while copying or the target doesn't get all the bytes read.
+     */
+    public static boolean copyStream(InputStream in, File target, AtomicBoolean cancel)
+            throws IOException {
+        long copied = 0;
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            FileChannel inChannel = null;
+            long position = 0, size = 0;
+            if (in instanceof FileInputStream) {
+                inChannel = ((FileInputStream) in).getChannel();
+                try {
+                    position = inChannel.position();
+                    size = inChannel.size();
+                } catch (IOException e) {
+                    size = 0;   // not seekable, as a pipe
+                }
+            }
+            if (size > 0) {
+                FileChannel outChannel = out.getChannel();
+                long start = position;
+                while (position < size) {
+                    if (cancel != null && cancel.get()) {
+                        return false;
+                    }
+                    long transferred = inChannel.transferTo(
+                            position, Math.min(TRANSFER_CHUNK_SIZE, size - position), outChannel);
+                    if (transferred <= 0) {
+                        throw new IOException("Source truncated after " + position + " of " +
+                                size + " bytes");
+                    }
+                    position += transferred;
+                }
+                copied = position - start;
+            } else {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (cancel != null && cancel.get()) {
+                        return false;
+                    }
+                    out.write(buffer, 0, read);
+                    copied += read;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (target.length() != copied) {
+            throw new IOException(copied + " bytes copied, but " + target.length() +
+                    " written to " + target);
+        }
+        return true;
+    }
+
     /**
      * Mimetype String of a file
      * @param path
@@ -0,0 +1,42 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Base of the benchmarks, which measure an operation as done before and as done now.
+ *
+ * Results are written to the log with the simple name of the class of the benchmark as tag.
+ */
+public abstract class BenchmarkTestCase extends AndroidTestCase {
+
+    protected final String TAG = getClass().getSimpleName();
+
+
+    protected static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    protected static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.DeltaSyncOperation;
+import com.owncloud.android.operations.RefreshFolderOperation;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Measures the time to synchronize a tree of 50k files from a local WebDAV stand-in walking
+ * the folders with {@link RefreshFolderOperation}, as done by FileSyncAdapter when reports of
+ * changes are not supported, and with a single {@link DeltaSyncOperation}.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class DeltaSyncBenchmark extends BenchmarkTestCase {
+
+    private static final String WEBDAV_PATH = "/remote.php/webdav";
+
+    /** 10 folders with 10 subfolders with 500 files: 50k files */
+    private static final int FOLDERS = 10;
+    private static final int SUBFOLDERS = 10;
+    private static final int FILES = 500;
+
+    private StandInServer mServer;
+    private OwnCloudClient mClient;
+    private Account mAccount;
+    private FileDataStorageManager mStorageManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StandInServer();
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse("http://127.0.0.1:" + mServer.getPort()), getContext(), false);
+        mAccount = new Account("benchmark@127.0.0.1", MainApp.getAccountType());
+        mStorageManager = new FileDataStorageManager(mAccount, getContext().getContentResolver());
+        resetRoot();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        removeRoot();
+        super.tearDown();
+    }
+
+    public void testWalkAndDeltaSync50k() {
+        long start = System.nanoTime();
+        int folders = walk();
+        long walkTime = System.nanoTime() - start;
+        assertEquals(1 + FOLDERS + FOLDERS * SUBFOLDERS, folders);
+        assertTreeSaved();
+
+        resetRoot();
+        start = System.nanoTime();
+        DeltaSyncOperation delta = new DeltaSyncOperation(null, System.currentTimeMillis(),
+                mStorageManager, mAccount, getContext());
+        RemoteOperationResult result = delta.execute(mClient);
+        long deltaTime = System.nanoTime() - start;
+        assertTrue("Delta sync failed: " + result.getLogMessage(), result.isSuccess());
+        assertEquals(FOLDERS + FOLDERS * SUBFOLDERS * (1 + FILES), delta.getChanges());
+        assertTreeSaved();
+
+        start = System.nanoTime();
+        DeltaSyncOperation noChanges = new DeltaSyncOperation(delta.getSyncToken(),
+                System.currentTimeMillis(), mStorageManager, mAccount, getContext());
+        result = noChanges.execute(mClient);
+        long noChangesTime = System.nanoTime() - start;
+        assertTrue(result.isSuccess());
+        assertEquals(0, noChanges.getChanges());
+
+        Log.i(TAG, (FOLDERS * SUBFOLDERS * FILES) + " files: walk through " + folders +
+                " folders " + millis(walkTime) + " ms, first delta sync " +
+                millis(deltaTime) + " ms, delta sync without changes " +
+                millis(noChangesTime) + " ms");
+    }
+
+
+    /**
+     * Synchronizes every folder, one after the other.
+     *
+     * @return      Number of folders synchronized.
+     */
+    private int walk() {
+        long syncTime = System.currentTimeMillis();
+        int folders = 0;
+        Deque<OCFile> pending = new ArrayDeque<OCFile>();
+        pending.push(mStorageManager.getFileByPath(OCFile.ROOT_PATH));
+        while (!pending.isEmpty()) {
+            RefreshFolderOperation operation = new RefreshFolderOperation(pending.pop(),
+                    syncTime, true, false, true, mStorageManager, mAccount, getContext());
+            RemoteOperationResult result = operation.execute(mClient);
+            assertTrue("Walk failed: " + result.getLogMessage(), result.isSuccess());
+            folders++;
+            for (OCFile child : operation.getChildFolders()) {
+                pending.push(child);
+            }
+        }
+        return folders;
+    }
+
+    private void assertTreeSaved() {
+        OCFile folder = mStorageManager.getFileByPath("/folder0/subfolder0/");
+        assertNotNull(folder);
+        assertEquals(FILES, mStorageManager.getFolderContent(folder).size());
+        assertNotNull(mStorageManager.getFileByPath("/folder" + (FOLDERS - 1) + "/subfolder" +
+                (SUBFOLDERS - 1) + "/file" + (FILES - 1) + ".txt"));
+    }
+
+    private void resetRoot() {
+        removeRoot();
+        OCFile root = new OCFile(OCFile.ROOT_PATH);
+        root.setMimetype("DIR");
+        root.setParentId(FileDataStorageManager.ROOT_PARENT_ID);
+        mStorageManager.saveFile(root);
+    }
+
+    private void removeRoot() {
+        OCFile root = mStorageManager.getFileByPath(OCFile.ROOT_PATH);
+        if (root != null) {
+            mStorageManager.removeFolder(root, true, false);
+        }
+    }
+
+
+    /**
+     * Minimal WebDAV server answering PROPFIND requests with depth 0 and 1, and
+     * 'sync-collection' reports, for a fixed tree of folders and files.
+     *
+     * Reports with the sync token of the tree get no changes.
+     */
+    private static class StandInServer extends Thread {
+
+        private static final String SYNC_TOKEN = "http://127.0.0.1/ns/sync/1";
+        private static final String DATE = "Mon, 05 Oct 2015 10:00:00 GMT";
+
+        private final ServerSocket mServerSocket;
+
+        StandInServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        handle(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed, or the client went away
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            List<String> headers = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                headers.add(line);
+            }
+            String contentLength = getHeader(headers, "Content-Length");
+            char[] body = new char[(contentLength != null) ? Integer.parseInt(contentLength) : 0];
+            int read = 0;
+            while (read < body.length) {
+                int count = reader.read(body, read, body.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+
+            String[] request = requestLine.split(" ");
+            String path = Uri.decode(request[1]).substring(WEBDAV_PATH.length());
+            if (path.length() == 0) {
+                path = "/";
+            }
+
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), 65536);
+            out.write("HTTP/1.1 207 Multi-Status\r\n" +
+                    "Content-Type: application/xml; charset=utf-8\r\n" +
+                    "Connection: close\r\n\r\n");
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                    "<d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">");
+            if ("REPORT".equals(request[0])) {
+                if (!new String(body).contains(SYNC_TOKEN)) {
+                    writeTree(out);
+                }
+                out.write("<d:sync-token>" + SYNC_TOKEN + "</d:sync-token>");
+            } else {
+                writeFolder(out, path, !"0".equals(getHeader(headers, "Depth")));
+            }
+            out.write("</d:multistatus>");
+            out.flush();
+        }
+
+        private static void writeTree(Writer out) throws IOException {
+            for (int i = 0; i < FOLDERS; i++) {
+                writeEntry(out, "/folder" + i + "/", true);
+                for (int j = 0; j < SUBFOLDERS; j++) {
+                    String subfolder = "/folder" + i + "/subfolder" + j + "/";
+                    writeEntry(out, subfolder, true);
+                    for (int k = 0; k < FILES; k++) {
+                        writeEntry(out, subfolder + "file" + k + ".txt", false);
+                    }
+                }
+            }
+        }
+
+        private static void writeFolder(Writer out, String path, boolean children)
+                throws IOException {
+            writeEntry(out, path, true);
+            if (!children) {
+                return;
+            }
+            int level = path.split("/").length - 1;
+            if (level == 0) {
+                for (int i = 0; i < FOLDERS; i++) {
+                    writeEntry(out, "/folder" + i + "/", true);
+                }
+            } else if (level == 1) {
+                for (int j = 0; j < SUBFOLDERS; j++) {
+                    writeEntry(out, path + "subfolder" + j + "/", true);
+                }
+            } else {
+                for (int k = 0; k < FILES; k++) {
+                    writeEntry(out, path + "file" + k + ".txt", false);
+                }
+            }
+        }
+
+        private static void writeEntry(Writer out, String path, boolean folder)
+                throws IOException {
+            out.write("<d:response><d:href>" + WEBDAV_PATH + Uri.encode(path, "/") +
+                    "</d:href><d:propstat><d:prop>");
+            if (folder) {
+                out.write("<d:resourcetype><d:collection/></d:resourcetype>");
+            } else {
+                out.write("<d:resourcetype/><d:getcontenttype>text/plain</d:getcontenttype>" +
+                        "<d:getcontentlength>" + path.length() + "</d:getcontentlength>");
+            }
+            out.write("<d:getlastmodified>" + DATE + "</d:getlastmodified>" +
+                    "<d:getetag>\"" + Integer.toHexString(path.hashCode()) + "\"</d:getetag>" +
+                    "<oc:id>" + Integer.toHexString(path.hashCode()) + "</oc:id>" +
+                    "<oc:permissions>RDNVW</oc:permissions>" +
+                    "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+        }
+
+        private static String getHeader(List<String> headers, String name) {
+            for (String header : headers) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+}
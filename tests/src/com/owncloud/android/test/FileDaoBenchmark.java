@@ -0,0 +1,119 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import com.owncloud.android.datamodel.FileCursorMapper;
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Measures the time to read the content of a folder with 10k children through
+ * {@link FileContentProvider}, as done before by FileDataStorageManager, and through
+ * {@link FileDao}.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class FileDaoBenchmark extends BenchmarkTestCase {
+
+    private static final String FOLDER_PATH = "/benchmark/";
+    private static final int CHILDREN = 10000;
+    private static final int ROUNDS = 5;
+
+    private FileDao mDao;
+    private long mFolderId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDao = FileDao.getInstance(getContext());
+
+        mFolderId = mDao.saveFile(TestFiles.folderValues(FOLDER_PATH, 0), -1);
+
+        List<ContentValues> children = new ArrayList<ContentValues>(CHILDREN);
+        for (int i = 0; i < CHILDREN; i++) {
+            String path = FOLDER_PATH + "file" + i + ".jpg";
+            ContentValues cv = TestFiles.fileValues(path, mFolderId, i);
+            cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, "image/jpeg");
+            cv.put(ProviderTableMeta.FILE_STORAGE_PATH, TestFiles.STORAGE_PATH + path);
+            cv.put(ProviderTableMeta.FILE_ETAG, Integer.toHexString(i));
+            cv.put(ProviderTableMeta.FILE_REMOTE_ID, String.valueOf(i));
+            children.add(cv);
+        }
+        mDao.saveFolder(TestFiles.ACCOUNT, mFolderId, null, children, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDao.removeFolder(TestFiles.ACCOUNT, mFolderId);
+        super.tearDown();
+    }
+
+    public void testGetFolderContent10k() {
+        long providerTime = 0, daoTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            List<OCFile> viaProvider = getFolderContentViaProvider();
+            providerTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Vector<OCFile> viaDao = mDao.getFolderContent(TestFiles.ACCOUNT, mFolderId);
+            daoTime += System.nanoTime() - start;
+
+            assertEquals(CHILDREN, viaProvider.size());
+            assertEquals(CHILDREN, viaDao.size());
+        }
+        Log.i(TAG, CHILDREN + " children: provider " + millis(providerTime / ROUNDS) +
+                " ms, DAO " + millis(daoTime / ROUNDS) + " ms");
+    }
+
+
+    /**
+     * Read as done before by FileDataStorageManager; rows are mapped as {@link FileDao} does,
+     * so that only the access to the database differs.
+     */
+    private List<OCFile> getFolderContentViaProvider() {
+        List<OCFile> files = new ArrayList<OCFile>();
+        Uri uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR,
+                String.valueOf(mFolderId));
+        Cursor c = getContext().getContentResolver().query(uri, null,
+                ProviderTableMeta.FILE_PARENT + "=?",
+                new String[] { String.valueOf(mFolderId) }, null);
+        FileCursorMapper mapper = FileCursorMapper.forCursor(c);
+        if (c.moveToFirst()) {
+            do {
+                files.add(mapper.map(c));
+            } while (c.moveToNext());
+        }
+        c.close();
+        return files;
+    }
+
+}
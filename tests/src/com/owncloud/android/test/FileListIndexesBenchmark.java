@@ -0,0 +1,209 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Measures the latency of the most frequent lookups in the table of files, before and after
+ * creating the indexes in {@link FileContentProvider#createIndexes(SQLiteDatabase)}.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class FileListIndexesBenchmark extends BenchmarkTestCase {
+
+    private static final String ACCOUNT = "user@server.example.com";
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int LOOKUPS = 50;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE " + ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderTableMeta._ID + " INTEGER PRIMARY KEY, "
+                + ProviderTableMeta.FILE_NAME + " TEXT, "
+                + ProviderTableMeta.FILE_PATH + " TEXT, "
+                + ProviderTableMeta.FILE_PARENT + " INTEGER, "
+                + ProviderTableMeta.FILE_STORAGE_PATH + " TEXT, "
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + " TEXT, "
+                + ProviderTableMeta.FILE_KEEP_IN_SYNC + " INTEGER);");
+        mDb.execSQL("CREATE TABLE " + ProviderTableMeta.OCSHARES_TABLE_NAME + "("
+                + ProviderTableMeta._ID + " INTEGER PRIMARY KEY, "
+                + ProviderTableMeta.OCSHARES_PATH + " TEXT, "
+                + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + " TEXT);");
+        mDb.execSQL("PRAGMA case_sensitive_like = true");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testLookups10k() {
+        runBenchmark(10000);
+    }
+
+    public void testLookups100k() {
+        runBenchmark(100000);
+    }
+
+    public void testLookups500k() {
+        runBenchmark(500000);
+    }
+
+    public void testQueryPlansUseIndexes() {
+        FileContentProvider.createIndexes(mDb);
+        assertUsesIndex(ProviderTableMeta.FILE_ACCOUNT_PATH_INDEX,
+                ProviderTableMeta.FILE_PATH + "=? AND " +
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", "/a", ACCOUNT);
+        assertUsesIndex(ProviderTableMeta.FILE_PARENT_INDEX,
+                ProviderTableMeta.FILE_PARENT + "=?", "1");
+        assertUsesIndex(ProviderTableMeta.FILE_ACCOUNT_STORAGE_PATH_INDEX,
+                ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " +
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", "/sdcard/a", ACCOUNT);
+        assertUsesIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC_INDEX,
+                ProviderTableMeta.FILE_KEEP_IN_SYNC + "=?", "1");
+        assertTableUsesIndex(ProviderTableMeta.OCSHARES_TABLE_NAME,
+                ProviderTableMeta.OCSHARES_ACCOUNT_PATH_INDEX,
+                ProviderTableMeta.OCSHARES_PATH + "=? AND " +
+                ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?", "/a", ACCOUNT);
+
+        // the owner alone would match the same index; the path must bound the search too
+        String plan = assertUsesIndex(ProviderTableMeta.FILE_ACCOUNT_PATH_INDEX,
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " +
+                ProviderTableMeta.FILE_PATH + " LIKE ?", ACCOUNT, "/a/%");
+        assertTrue("Path not searched in the index: " + plan,
+                plan.contains(ProviderTableMeta.FILE_PATH + ">?") &&
+                plan.contains(ProviderTableMeta.FILE_PATH + "<?"));
+    }
+
+
+    private void runBenchmark(int rows) {
+        populate(rows);
+        int folders = rows / FILES_PER_FOLDER;
+
+        long[] before = measureLookups(folders);
+        FileContentProvider.createIndexes(mDb);
+        long[] after = measureLookups(folders);
+
+        String[] names = { "by path", "by parent", "by local path", "descendants" };
+        for (int i = 0; i < names.length; i++) {
+            Log.i(TAG, rows + " rows, lookup " + names[i] + ": " +
+                    (before[i] / LOOKUPS) + " us before, " + (after[i] / LOOKUPS) + " us after");
+        }
+    }
+
+    private void populate(int rows) {
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO " +
+                ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                ProviderTableMeta.FILE_NAME + ", " +
+                ProviderTableMeta.FILE_PATH + ", " +
+                ProviderTableMeta.FILE_PARENT + ", " +
+                ProviderTableMeta.FILE_STORAGE_PATH + ", " +
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " +
+                ProviderTableMeta.FILE_KEEP_IN_SYNC + ") VALUES (?, ?, ?, ?, ?, 0)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                int folder = i / FILES_PER_FOLDER;
+                String name = "file" + i;
+                String path = "/folder" + folder + "/" + name;
+                insert.bindString(1, name);
+                insert.bindString(2, path);
+                insert.bindLong(3, folder);
+                insert.bindString(4, "/sdcard/owncloud" + path);
+                insert.bindString(5, ACCOUNT);
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        insert.close();
+    }
+
+    /**
+     * @return      Time in microseconds spent in {@link #LOOKUPS} queries for each kind of
+     *              lookup.
+     */
+    private long[] measureLookups(int folders) {
+        long[] times = new long[4];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int folder = (i * 7919) % folders;
+            int file = folder * FILES_PER_FOLDER + (i % FILES_PER_FOLDER);
+            String path = "/folder" + folder + "/file" + file;
+
+            times[0] += timeQuery(ProviderTableMeta.FILE_PATH + "=? AND " +
+                    ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", path, ACCOUNT);
+            times[1] += timeQuery(ProviderTableMeta.FILE_PARENT + "=?",
+                    String.valueOf(folder));
+            times[2] += timeQuery(ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " +
+                    ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", "/sdcard/owncloud" + path,
+                    ACCOUNT);
+            times[3] += timeQuery(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " +
+                    ProviderTableMeta.FILE_PATH + " LIKE ?", ACCOUNT, "/folder" + folder + "/%");
+        }
+        return times;
+    }
+
+    private long timeQuery(String selection, String... args) {
+        long start = System.nanoTime();
+        Cursor c = mDb.query(ProviderTableMeta.FILE_TABLE_NAME, null, selection, args,
+                null, null, null);
+        c.moveToFirst();
+        int count = c.getCount();
+        c.close();
+        assertTrue(count > 0);
+        return micros(System.nanoTime() - start);
+    }
+
+    private String assertUsesIndex(String index, String selection, String... args) {
+        return assertTableUsesIndex(ProviderTableMeta.FILE_TABLE_NAME, index, selection, args);
+    }
+
+    /**
+     * @return      Query plan of the selection, searching the table with the given index.
+     */
+    private String assertTableUsesIndex(String table, String index, String selection,
+                                        String... args) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + table + " WHERE " +
+                selection, args);
+        StringBuilder plan = new StringBuilder();
+        while (c.moveToNext()) {
+            plan.append(c.getString(c.getColumnIndex("detail")));
+        }
+        c.close();
+        String detail = plan.toString();
+        assertTrue("Index " + index + " not used for " + selection + ": " + detail,
+                detail.startsWith("SEARCH") && detail.contains("USING INDEX " + index + " "));
+        return detail;
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+/**
+ * Measures moving, listing and removing a tree of about 100k files through {@link FileDao},
+ * with single statements over the range of paths of the tree; before, moves rewrote every
+ * descendant with its own operation, and removals went through the tree level by level.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class FileTreeBenchmark extends BenchmarkTestCase {
+
+    private static final String TOP_PATH = "/tree/";
+    private static final String MOVED_PATH = "/tree moved/";
+    private static final int FOLDERS = 100;
+    private static final int SUBFOLDERS = 10;
+    private static final int FILES_PER_FOLDER = 100;
+
+    /** One of every this number of files has a local copy */
+    private static final int DOWNLOADED_EVERY = 100;
+
+    private static final int FILES = FOLDERS * SUBFOLDERS * FILES_PER_FOLDER;
+    private static final int NODES = 1 + FOLDERS + FOLDERS * SUBFOLDERS + FILES;
+
+    private FileDao mDao;
+    private long mTopId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDao = FileDao.getInstance(getContext());
+        mTopId = mDao.saveFile(TestFiles.values(TOP_PATH, 0), -1);
+
+        List<ContentValues> folders = new ArrayList<ContentValues>(FOLDERS);
+        for (int i = 0; i < FOLDERS; i++) {
+            folders.add(TestFiles.values(TOP_PATH + "folder" + i + "/", mTopId));
+        }
+        long[] folderIds = mDao.saveFolder(TestFiles.ACCOUNT, mTopId, null, folders, null, null);
+
+        for (int i = 0; i < FOLDERS; i++) {
+            String folderPath = TOP_PATH + "folder" + i + "/";
+            List<ContentValues> subfolders = new ArrayList<ContentValues>(SUBFOLDERS);
+            for (int j = 0; j < SUBFOLDERS; j++) {
+                subfolders.add(TestFiles.values(folderPath + "sub" + j + "/", folderIds[i]));
+            }
+            long[] subfolderIds = mDao.saveFolder(TestFiles.ACCOUNT, folderIds[i], null, subfolders,
+                    null, null);
+
+            for (int j = 0; j < SUBFOLDERS; j++) {
+                String subfolderPath = folderPath + "sub" + j + "/";
+                List<ContentValues> files = new ArrayList<ContentValues>(FILES_PER_FOLDER);
+                for (int k = 0; k < FILES_PER_FOLDER; k++) {
+                    ContentValues cv = TestFiles.values(subfolderPath + "file" + k + ".txt",
+                            subfolderIds[j]);
+                    if (k % DOWNLOADED_EVERY == 0) {
+                        cv.put(ProviderTableMeta.FILE_STORAGE_PATH,
+                                TestFiles.STORAGE_PATH + subfolderPath + "file" + k + ".txt");
+                    }
+                    files.add(cv);
+                }
+                mDao.saveFolder(TestFiles.ACCOUNT, subfolderIds[j], null, files, null, null);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDao.removeFolder(TestFiles.ACCOUNT, mTopId);
+        super.tearDown();
+    }
+
+    public void testMoveTree100k() {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_PATH, MOVED_PATH);
+        cv.put(ProviderTableMeta.FILE_NAME, new OCFile(MOVED_PATH).getFileName());
+        cv.put(ProviderTableMeta.FILE_PARENT, 0);
+
+        long start = System.nanoTime();
+        mDao.moveTree(TestFiles.ACCOUNT, mTopId, TOP_PATH, cv, TestFiles.STORAGE_PATH + TOP_PATH,
+                TestFiles.STORAGE_PATH + MOVED_PATH);
+        long time = System.nanoTime() - start;
+
+        String deepPath = "folder99/sub9/file0.txt";
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, TOP_PATH + deepPath));
+        OCFile moved = mDao.getFileByPath(TestFiles.ACCOUNT, MOVED_PATH + deepPath);
+        assertNotNull(moved);
+        assertEquals(TestFiles.STORAGE_PATH + MOVED_PATH + deepPath, moved.getStoragePath());
+        assertEquals(NODES - 1, mDao.getFileById(TestFiles.ACCOUNT, mTopId).getDescendantCount());
+
+        Log.i(TAG, "Tree of " + NODES + " files moved in " + millis(time) + " ms");
+    }
+
+    public void testDownloadedFilesInTree100k() {
+        long start = System.nanoTime();
+        List<OCFile> downloaded = mDao.getDownloadedFilesInTree(TestFiles.ACCOUNT, TOP_PATH);
+        long time = System.nanoTime() - start;
+
+        assertEquals(FILES / DOWNLOADED_EVERY, downloaded.size());
+        Log.i(TAG, downloaded.size() + " downloaded files found in a tree of " + NODES +
+                " files in " + millis(time) + " ms");
+    }
+
+    public void testRemoveTree100k() {
+        long start = System.nanoTime();
+        assertTrue(mDao.removeFolder(TestFiles.ACCOUNT, mTopId));
+        long time = System.nanoTime() - start;
+
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, TOP_PATH + "folder0/sub0/file0.txt"));
+        Log.i(TAG, "Tree of " + NODES + " files removed in " + millis(time) + " ms");
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the paths, local paths, sizes and descendant counts left by the operations of
+ * {@link FileDao} over ranges of paths, next to a sibling folder whose name starts with the name
+ * of the changed one:
+ *
+ *  /tree-test/a/b/f1           10 bytes
+ *  /tree-test/a/b/sub/f2       20 bytes
+ *  /tree-test/a/b0/f3          30 bytes
+ *  /tree-test/a/b.txt           5 bytes
+ */
+public class FileTreeTest extends AndroidTestCase {
+
+    private static final String TOP_PATH = "/tree-test/";
+    private static final String A_PATH = TOP_PATH + "a/";
+    private static final String B_PATH = A_PATH + "b/";
+    private static final String B0_PATH = A_PATH + "b0/";
+
+    private FileDao mDao;
+    private long mTopId;
+    private long mAId;
+    private long mBId;
+    private long mSubId;
+    private long mB0Id;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDao = FileDao.getInstance(getContext());
+        OCFile old = mDao.getFileByPath(TestFiles.ACCOUNT, TOP_PATH);
+        if (old != null) {
+            mDao.removeFolder(TestFiles.ACCOUNT, old.getFileId());
+        }
+        mTopId = mDao.saveFile(TestFiles.folderValues(TOP_PATH, 0), -1);
+        mAId = saveChildren(mTopId, TestFiles.folderValues(A_PATH, mTopId))[0];
+
+        long[] ids = saveChildren(mAId,
+                TestFiles.folderValues(B_PATH, mAId),
+                TestFiles.folderValues(B0_PATH, mAId),
+                downloaded(TestFiles.fileValues(A_PATH + "b.txt", mAId, 5)));
+        mBId = ids[0];
+        mB0Id = ids[1];
+
+        mSubId = saveChildren(mBId,
+                downloaded(TestFiles.fileValues(B_PATH + "f1", mBId, 10)),
+                TestFiles.folderValues(B_PATH + "sub/", mBId))[1];
+        saveChildren(mSubId, downloaded(TestFiles.fileValues(B_PATH + "sub/f2", mSubId, 20)));
+        saveChildren(mB0Id, downloaded(TestFiles.fileValues(B0_PATH + "f3", mB0Id, 30)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDao.removeFolder(TestFiles.ACCOUNT, mTopId);
+        super.tearDown();
+    }
+
+    public void testAggregates() {
+        assertAggregates(B_PATH, 30, 3);
+        assertAggregates(B0_PATH, 30, 1);
+        assertAggregates(A_PATH, 65, 7);
+        assertAggregates(TOP_PATH, 65, 8);
+    }
+
+    public void testMoveTreeKeepsSiblingWithSamePrefix() {
+        String newPath = TOP_PATH + "c/";
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_PATH, newPath);
+        cv.put(ProviderTableMeta.FILE_NAME, "c");
+        cv.put(ProviderTableMeta.FILE_PARENT, mTopId);
+        mDao.moveTree(TestFiles.ACCOUNT, mBId, B_PATH, cv, TestFiles.STORAGE_PATH + B_PATH,
+                TestFiles.STORAGE_PATH + newPath);
+
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B_PATH));
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B_PATH + "sub/f2"));
+        OCFile f2 = mDao.getFileByPath(TestFiles.ACCOUNT, newPath + "sub/f2");
+        assertNotNull(f2);
+        assertEquals(mSubId, f2.getParentId());
+        assertEquals(TestFiles.STORAGE_PATH + newPath + "sub/f2", f2.getStoragePath());
+        assertEquals(mBId, mDao.getFileByPath(TestFiles.ACCOUNT, newPath).getFileId());
+
+        OCFile f3 = mDao.getFileByPath(TestFiles.ACCOUNT, B0_PATH + "f3");
+        assertNotNull(f3);
+        assertEquals(TestFiles.STORAGE_PATH + B0_PATH + "f3", f3.getStoragePath());
+        assertEquals(TestFiles.STORAGE_PATH + A_PATH + "b.txt",
+                mDao.getFileByPath(TestFiles.ACCOUNT, A_PATH + "b.txt").getStoragePath());
+
+        assertAggregates(newPath, 30, 3);
+        assertAggregates(B0_PATH, 30, 1);
+        assertAggregates(A_PATH, 35, 3);
+        assertAggregates(TOP_PATH, 65, 8);
+    }
+
+    public void testRemoveTreeKeepsSiblingWithSamePrefix() {
+        assertTrue(mDao.removeFolder(TestFiles.ACCOUNT, mBId));
+
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B_PATH + "f1"));
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B_PATH + "sub/f2"));
+        assertNotNull(mDao.getFileByPath(TestFiles.ACCOUNT, B0_PATH + "f3"));
+        assertEquals(new TreeSet<String>(Arrays.asList("b.txt", "b0")), getNames(mAId));
+
+        assertAggregates(B0_PATH, 30, 1);
+        assertAggregates(A_PATH, 35, 3);
+        assertAggregates(TOP_PATH, 35, 4);
+    }
+
+    public void testSaveTreeKeepsSiblingWithSamePrefix() {
+        // the removed folder comes without trailing separator, as in a delta of the server
+        long[] ids = mDao.saveTree(TestFiles.ACCOUNT, Arrays.asList(
+                TestFiles.fileValues(B_PATH + "f1", 0, 15),
+                TestFiles.fileValues(B_PATH + "sub/f4", 0, 7),
+                TestFiles.fileValues(TOP_PATH + "unknown/f5", 0, 100)),
+                Collections.singletonList(A_PATH + "b0"));
+
+        assertEquals(-1, ids[2]);
+        assertEquals(mSubId, mDao.getFileById(TestFiles.ACCOUNT, ids[1]).getParentId());
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B0_PATH));
+        assertNull(mDao.getFileByPath(TestFiles.ACCOUNT, B0_PATH + "f3"));
+        assertNotNull(mDao.getFileByPath(TestFiles.ACCOUNT, B_PATH + "sub/f2"));
+
+        assertAggregates(B_PATH + "sub/", 27, 2);
+        assertAggregates(B_PATH, 42, 4);
+        assertAggregates(A_PATH, 47, 6);
+        assertAggregates(TOP_PATH, 47, 7);
+    }
+
+    public void testDownloadedFilesInTreeExcludeSiblingWithSamePrefix() {
+        Set<String> paths = new TreeSet<String>();
+        for (OCFile file : mDao.getDownloadedFilesInTree(TestFiles.ACCOUNT, B_PATH)) {
+            paths.add(file.getRemotePath());
+        }
+        assertEquals(new TreeSet<String>(Arrays.asList(B_PATH + "f1", B_PATH + "sub/f2")),
+                paths);
+    }
+
+
+    private long[] saveChildren(long folderId, ContentValues... children) {
+        return mDao.saveFolder(TestFiles.ACCOUNT, folderId, null,
+                new ArrayList<ContentValues>(Arrays.asList(children)), null, null);
+    }
+
+    private static ContentValues downloaded(ContentValues cv) {
+        cv.put(ProviderTableMeta.FILE_STORAGE_PATH,
+                TestFiles.STORAGE_PATH + cv.getAsString(ProviderTableMeta.FILE_PATH));
+        return cv;
+    }
+
+    private Set<String> getNames(long folderId) {
+        Set<String> names = new TreeSet<String>();
+        for (OCFile file : mDao.getFolderContent(TestFiles.ACCOUNT, folderId)) {
+            names.add(file.getFileName());
+        }
+        return names;
+    }
+
+    private void assertAggregates(String folderPath, long size, long descendants) {
+        OCFile folder = mDao.getFileByPath(TestFiles.ACCOUNT, folderPath);
+        assertNotNull(folderPath + " not found", folder);
+        assertEquals("Size of " + folderPath, size, folder.getFileLength());
+        assertEquals("Descendants of " + folderPath, descendants, folder.getDescendantCount());
+    }
+
+}
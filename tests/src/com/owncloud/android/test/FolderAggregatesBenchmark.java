@@ -0,0 +1,111 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+/**
+ * Measures saving the content of 100 folders of 100 files each through {@link FileDao}, which
+ * adds the changes to the size and descendant count of all their ancestors in the same
+ * transaction, and checks the aggregates read from the top folder afterwards.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class FolderAggregatesBenchmark extends BenchmarkTestCase {
+
+    private static final String TOP_PATH = "/aggregates/";
+    private static final int FOLDERS = 100;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int FILE_SIZE = 1000;
+
+    private FileDao mDao;
+    private long mTopId;
+    private long[] mFolderIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDao = FileDao.getInstance(getContext());
+        mTopId = mDao.saveFile(TestFiles.folderValues(TOP_PATH, 0), -1);
+
+        List<ContentValues> folders = new ArrayList<ContentValues>(FOLDERS);
+        for (int i = 0; i < FOLDERS; i++) {
+            folders.add(TestFiles.folderValues(TOP_PATH + "folder" + i + "/", mTopId));
+        }
+        mFolderIds = mDao.saveFolder(TestFiles.ACCOUNT, mTopId, null, folders, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDao.removeFolder(TestFiles.ACCOUNT, mTopId);
+        super.tearDown();
+    }
+
+    public void testSaveFolders() {
+        long start = System.nanoTime();
+        for (int i = 0; i < FOLDERS; i++) {
+            String folderPath = TOP_PATH + "folder" + i + "/";
+            List<ContentValues> files = new ArrayList<ContentValues>(FILES_PER_FOLDER);
+            for (int j = 0; j < FILES_PER_FOLDER; j++) {
+                files.add(TestFiles.fileValues(folderPath + "file" + j + ".txt",
+                        mFolderIds[i], FILE_SIZE));
+            }
+            mDao.saveFolder(TestFiles.ACCOUNT, mFolderIds[i], null, files, null, null);
+        }
+        long saving = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        OCFile top = mDao.getFileById(TestFiles.ACCOUNT, mTopId);
+        long reading = System.nanoTime() - start;
+
+        int files = FOLDERS * FILES_PER_FOLDER;
+        assertEquals((long) files * FILE_SIZE, top.getFileLength());
+        assertEquals(FOLDERS + files, top.getDescendantCount());
+
+        // removing a folder takes its content out of the top folder
+        mDao.removeFolder(TestFiles.ACCOUNT, mFolderIds[0]);
+        top = mDao.getFileById(TestFiles.ACCOUNT, mTopId);
+        assertEquals((long) (files - FILES_PER_FOLDER) * FILE_SIZE, top.getFileLength());
+        assertEquals(FOLDERS - 1 + files - FILES_PER_FOLDER, top.getDescendantCount());
+
+        Log.i(TAG, files + " files saved in " + FOLDERS + " folders: " + millis(saving) +
+                " ms; size of the top folder read in " + micros(reading) + " us");
+    }
+
+    public void testSizeReportedByServer() {
+        ContentValues folder = TestFiles.folderValues(TOP_PATH + "folder1/", mTopId);
+        folder.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 12345);
+        mDao.saveFolder(TestFiles.ACCOUNT, mFolderIds[1], folder,
+                Collections.<ContentValues>emptyList(), null, null);
+
+        assertEquals(12345, mDao.getFileById(TestFiles.ACCOUNT, mTopId).getFileLength());
+        assertEquals(FOLDERS, mDao.getFileById(TestFiles.ACCOUNT, mTopId).getDescendantCount());
+    }
+
+}
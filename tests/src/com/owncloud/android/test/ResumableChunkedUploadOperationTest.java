@@ -0,0 +1,353 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.operations.ResumableChunkedUploadOperation;
+
+import android.accounts.Account;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests {@link ResumableChunkedUploadOperation} against a local HTTP server that rejects one of
+ * the chunks of the first upload, checking the chunks and offsets sent when it's resumed.
+ */
+public class ResumableChunkedUploadOperationTest extends AndroidTestCase {
+
+    private static final String REQUESTED_REMOTE_PATH = "/resumable/file.bin";
+
+    /** Where the upload is sent after avoiding to overwrite an existing file */
+    private static final String REMOTE_PATH = "/resumable/file (2).bin";
+
+    private static final int CHUNK_SIZE = (int) ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+    private static final int CHUNKS = 4;
+    private static final int FILE_SIZE = (CHUNKS - 1) * CHUNK_SIZE + CHUNK_SIZE / 3;
+
+    private Account mAccount;
+    private File mLocalFile;
+    private byte[] mContents;
+    private StandInServer mServer;
+    private OwnCloudClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StandInServer();
+        mServer.start();
+        mAccount = new Account("test@127.0.0.1", MainApp.getAccountType());
+        mLocalFile = new File(getContext().getCacheDir(), "resumable_upload.bin");
+        mContents = createContents(FILE_SIZE, 1);
+        writeLocalFile(mContents);
+        removeChunkedUpload();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse("http://127.0.0.1:" + mServer.getPort()), getContext(), false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        removeChunkedUpload();
+        mLocalFile.delete();
+        super.tearDown();
+    }
+
+    public void testResumesFromFirstChunkNotConfirmed() throws Exception {
+        mServer.reset(2, true);
+        assertFalse("First upload should fail when a chunk is rejected",
+                newOperation().execute(mClient).isSuccess());
+        assertEquals(2, getChunksConfirmed());
+        assertEquals(REMOTE_PATH, ResumableChunkedUploadOperation.getPendingRemotePath(
+                getContext(), mAccount, mLocalFile.getAbsolutePath(), REQUESTED_REMOTE_PATH));
+
+        String transferId = mServer.getTransferIds().get(0);
+        mServer.reset(-1, true);
+        RemoteOperationResult result = newOperation().execute(mClient);
+        assertTrue("Resumed upload failed: " + result.getLogMessage(), result.isSuccess());
+
+        assertEquals(Arrays.asList(2, 3), mServer.getChunks());
+        assertEquals(Arrays.asList(transferId, transferId), mServer.getTransferIds());
+        assertChunksSent(2, 3);
+        assertEquals(-1, getChunksConfirmed());
+    }
+
+    public void testRestartsWhenLocalFileChanged() throws Exception {
+        mServer.reset(1, true);
+        assertFalse(newOperation().execute(mClient).isSuccess());
+        String oldTransferId = mServer.getTransferIds().get(0);
+
+        mContents = createContents(FILE_SIZE + 1, 2);
+        writeLocalFile(mContents);
+        assertNull(ResumableChunkedUploadOperation.getPendingRemotePath(getContext(), mAccount,
+                mLocalFile.getAbsolutePath(), REQUESTED_REMOTE_PATH));
+
+        mServer.reset(-1, true);
+        assertTrue(newOperation().execute(mClient).isSuccess());
+        assertEquals(Arrays.asList(0, 1, 2, 3), mServer.getChunks());
+        assertFalse(oldTransferId.equals(mServer.getTransferIds().get(0)));
+        assertChunksSent(0, 1, 2, 3);
+    }
+
+    public void testRestartsWhenServerDoesNotAssemble() throws Exception {
+        mServer.reset(3, true);
+        assertFalse(newOperation().execute(mClient).isSuccess());
+        assertEquals(3, getChunksConfirmed());
+
+        // the server expired the chunks sent before, and answers the last one without ETag
+        mServer.reset(-1, false);
+        assertTrue(newOperation().execute(mClient).isSuccess());
+        assertEquals(Arrays.asList(3, 0, 1, 2, 3), mServer.getChunks());
+        assertChunksSent(3, 0, 1, 2, 3);
+        assertEquals(-1, getChunksConfirmed());
+    }
+
+
+    private ResumableChunkedUploadOperation newOperation() {
+        return new ResumableChunkedUploadOperation(mAccount, mLocalFile.getAbsolutePath(),
+                mLocalFile.getAbsolutePath(), REQUESTED_REMOTE_PATH, REMOTE_PATH,
+                "application/octet-stream", getContext());
+    }
+
+    /**
+     * Checks the contents of every chunk received match the range of the file at its offset.
+     */
+    private void assertChunksSent(int... chunks) {
+        List<byte[]> bodies = mServer.getBodies();
+        assertEquals(chunks.length, bodies.size());
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = chunks[i] * CHUNK_SIZE;
+            byte[] expected = Arrays.copyOfRange(mContents, offset,
+                    Math.min(offset + CHUNK_SIZE, mContents.length));
+            assertTrue("Wrong contents in chunk " + chunks[i],
+                    Arrays.equals(expected, bodies.get(i)));
+        }
+    }
+
+    /**
+     * @return      Number of chunks confirmed in the saved state of the upload, or -1 if there
+     *              is none.
+     */
+    private long getChunksConfirmed() {
+        Cursor c = DbHandler.getInstance(getContext()).getChunkedUpload(mAccount.name,
+                mLocalFile.getAbsolutePath(), REQUESTED_REMOTE_PATH);
+        try {
+            return c.moveToFirst() ?
+                    c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_CHUNKS_CONFIRMED)) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void removeChunkedUpload() {
+        DbHandler db = DbHandler.getInstance(getContext());
+        Cursor c = db.getChunkedUpload(mAccount.name, mLocalFile.getAbsolutePath(),
+                REQUESTED_REMOTE_PATH);
+        try {
+            while (c.moveToNext()) {
+                db.removeChunkedUpload(c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_ID)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static byte[] createContents(int size, int seed) {
+        byte[] contents = new byte[size];
+        for (int i = 0; i < size; i++) {
+            contents[i] = (byte) (i * 31 + seed);
+        }
+        return contents;
+    }
+
+    private void writeLocalFile(byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(mLocalFile);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Minimal HTTP server receiving the chunks of uploads, which rejects a given chunk when
+     * requested, and answers the last chunk with an ETag when the file is assembled.
+     */
+    private static class StandInServer extends Thread {
+
+        private static final String CHUNKING = "-chunking-";
+
+        private final ServerSocket mServerSocket;
+
+        private int mRejectedChunk = -1;
+        private boolean mAssemble = true;
+        private final List<Integer> mChunks = new ArrayList<Integer>();
+        private final List<String> mTransferIds = new ArrayList<String>();
+        private final List<byte[]> mBodies = new ArrayList<byte[]>();
+
+        StandInServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        /**
+         * Forgets the chunks received.
+         *
+         * @param rejectedChunk     Index of the chunk answered with an error, or -1 for none.
+         * @param assemble          When false, the last chunk is answered without ETag.
+         */
+        synchronized void reset(int rejectedChunk, boolean assemble) {
+            mRejectedChunk = rejectedChunk;
+            mAssemble = assemble;
+            mChunks.clear();
+            mTransferIds.clear();
+            mBodies.clear();
+        }
+
+        /**
+         * @return      Indexes of the chunks received and accepted, in order.
+         */
+        synchronized List<Integer> getChunks() {
+            return new ArrayList<Integer>(mChunks);
+        }
+
+        synchronized List<String> getTransferIds() {
+            return new ArrayList<String>(mTransferIds);
+        }
+
+        synchronized List<byte[]> getBodies() {
+            return new ArrayList<byte[]>(mBodies);
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        handle(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed, or the client went away
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String requestLine = readLine(in);
+            List<String> headers = new ArrayList<String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                headers.add(line);
+            }
+            if ("100-continue".equalsIgnoreCase(getHeader(headers, "Expect"))) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+                out.flush();
+            }
+            String length = getHeader(headers, "Content-Length");
+            byte[] body = new byte[(length != null) ? Integer.parseInt(length) : 0];
+            int read = 0;
+            while (read < body.length) {
+                int count = in.read(body, read, body.length - read);
+                if (count < 0) {
+                    throw new IOException("Request body interrupted");
+                }
+                read += count;
+            }
+
+            // ".../file (2).bin-chunking-<transfer id>-<chunk count>-<chunk index> HTTP/1.1"
+            String uri = URLDecoder.decode(requestLine.split(" ")[1], "UTF-8");
+            String[] chunking = uri.substring(uri.lastIndexOf(CHUNKING) + CHUNKING.length())
+                    .split("-");
+            int count = Integer.parseInt(chunking[1]);
+            int chunk = Integer.parseInt(chunking[2]);
+
+            String response;
+            synchronized (this) {
+                if (chunk == mRejectedChunk) {
+                    response = "HTTP/1.1 500 Internal Server Error\r\n";
+                } else {
+                    mChunks.add(chunk);
+                    mTransferIds.add(chunking[0]);
+                    mBodies.add(body);
+                    response = "HTTP/1.1 201 Created\r\n";
+                    if (chunk == count - 1 && mAssemble) {
+                        response += "ETag: \"assembled\"\r\n";
+                    }
+                }
+            }
+            response += "Content-Length: 0\r\nConnection: close\r\n\r\n";
+            out.write(response.getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return (b < 0 && line.size() == 0) ? null : line.toString("ISO-8859-1");
+        }
+
+        private static String getHeader(List<String> headers, String name) {
+            for (String header : headers) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.ResumableDownloadOperation;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests {@link ResumableDownloadOperation} against a local HTTP server that closes the
+ * connection in the middle of the first response.
+ */
+public class ResumableDownloadOperationTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/resumable/file.bin";
+    private static final int FILE_SIZE = 256 * 1024;
+
+    private Account mAccount;
+    private File mLocalFile;
+    private StandInServer mServer;
+    private OwnCloudClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StandInServer();
+        mServer.start();
+        mAccount = new Account("test@127.0.0.1", MainApp.getAccountType());
+        mLocalFile = new File(getContext().getCacheDir(), "resumable_download.bin");
+        mLocalFile.delete();
+        DbHandler.getInstance(getContext()).removePartialDownload(mAccount.name, REMOTE_PATH);
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse("http://127.0.0.1:" + mServer.getPort()), getContext(), false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mLocalFile.delete();
+        super.tearDown();
+    }
+
+    public void testResumesFromPartialFile() throws Exception {
+        byte[] contents = createContents(1);
+        mServer.serve(contents, "\"etag1\"", FILE_SIZE / 3);
+
+        RemoteOperationResult result = newOperation().execute(mClient);
+        assertFalse("First download should fail when the connection drops", result.isSuccess());
+        assertEquals("Partial file should be kept", FILE_SIZE / 3, mLocalFile.length());
+
+        mServer.serve(contents, "\"etag1\"", -1);
+        result = newOperation().execute(mClient);
+        assertTrue("Resumed download failed: " + result.getLogMessage(), result.isSuccess());
+
+        assertEquals("bytes=" + (FILE_SIZE / 3) + "-", mServer.getLastRange());
+        assertEquals("\"etag1\"", mServer.getLastIfRange());
+        assertTrue(Arrays.equals(contents, readLocalFile()));
+    }
+
+    public void testDiscardsPartialFileWhenEtagChanged() throws Exception {
+        mServer.serve(createContents(1), "\"etag1\"", FILE_SIZE / 2);
+        assertFalse(newOperation().execute(mClient).isSuccess());
+
+        byte[] newContents = createContents(2);
+        mServer.serve(newContents, "\"etag2\"", -1);
+        RemoteOperationResult result = newOperation().execute(mClient);
+        assertTrue("Download failed: " + result.getLogMessage(), result.isSuccess());
+
+        assertEquals("\"etag1\"", mServer.getLastIfRange());
+        assertTrue(Arrays.equals(newContents, readLocalFile()));
+    }
+
+    public void testResumesAfterSeveralDrops() throws Exception {
+        byte[] contents = createContents(3);
+        for (int drop = 1; drop <= 3; drop++) {
+            mServer.serve(contents, "\"etag3\"", drop * FILE_SIZE / 4);
+            assertFalse(newOperation().execute(mClient).isSuccess());
+            assertEquals(drop * FILE_SIZE / 4, mLocalFile.length());
+        }
+        mServer.serve(contents, "\"etag3\"", -1);
+        assertTrue(newOperation().execute(mClient).isSuccess());
+        assertTrue(Arrays.equals(contents, readLocalFile()));
+    }
+
+
+    private ResumableDownloadOperation newOperation() {
+        return new ResumableDownloadOperation(mAccount, REMOTE_PATH,
+                mLocalFile.getAbsolutePath(), getContext());
+    }
+
+    private static byte[] createContents(int seed) {
+        byte[] contents = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++) {
+            contents[i] = (byte) (i * 31 + seed);
+        }
+        return contents;
+    }
+
+    private byte[] readLocalFile() throws IOException {
+        byte[] bytes = new byte[(int) mLocalFile.length()];
+        FileInputStream in = new FileInputStream(mLocalFile);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Minimal HTTP server answering GET requests with the configured contents, honouring
+     * 'Range' and 'If-Range', and closing the connection after a given position of the file
+     * when requested.
+     */
+    private static class StandInServer extends Thread {
+
+        private final ServerSocket mServerSocket;
+
+        private byte[] mContents;
+        private String mEtag;
+        private int mDropAt;
+        private String mLastRange;
+        private String mLastIfRange;
+
+        StandInServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        /**
+         * @param dropAt    Position of the file after which the connection is closed, or -1 to
+         *                  send the response complete.
+         */
+        synchronized void serve(byte[] contents, String etag, int dropAt) {
+            mContents = contents;
+            mEtag = etag;
+            mDropAt = dropAt;
+        }
+
+        synchronized String getLastRange() {
+            return mLastRange;
+        }
+
+        synchronized String getLastIfRange() {
+            return mLastIfRange;
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        handle(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed, or the client went away
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            List<String> headers = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                headers.add(line);
+            }
+            String range = getHeader(headers, "Range");
+            String ifRange = getHeader(headers, "If-Range");
+
+            byte[] contents;
+            String etag;
+            int dropAt;
+            synchronized (this) {
+                mLastRange = range;
+                mLastIfRange = ifRange;
+                contents = mContents;
+                etag = mEtag;
+                dropAt = mDropAt;
+            }
+
+            int start = 0;
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                start = Integer.parseInt(range.substring(range.indexOf('=') + 1,
+                        range.indexOf('-')));
+            }
+            StringBuilder response = new StringBuilder();
+            if (start > 0) {
+                response.append("HTTP/1.1 206 Partial Content\r\n");
+                response.append("Content-Range: bytes ").append(start).append("-")
+                        .append(contents.length - 1).append("/").append(contents.length)
+                        .append("\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            response.append("ETag: ").append(etag).append("\r\n");
+            response.append("Content-Length: ").append(contents.length - start).append("\r\n");
+            response.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("ISO-8859-1"));
+            int end = (dropAt >= 0) ? dropAt : contents.length;
+            out.write(contents, start, end - start);
+            out.flush();
+        }
+
+        private static String getHeader(List<String> headers, String name) {
+            for (String header : headers) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Vector;
+
+import third_parties.daveKoeller.AlphanumComparator;
+
+import com.owncloud.android.datamodel.FileSortKeys;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.utils.FileStorageUtils;
+
+import android.util.Log;
+
+/**
+ * Measures sorting a folder of 50k files by name with the comparator used before, which
+ * lowercases and splits both names in every comparison, and with the sort keys cached in every
+ * {@link OCFile}, computed once or read from the database.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class SortKeysBenchmark extends BenchmarkTestCase {
+
+    private static final int FILES = 50000;
+
+    /** Comparator of FileStorageUtils.sortByName() before the sort keys */
+    private static final Comparator<OCFile> OLD_COMPARATOR = new Comparator<OCFile>() {
+        private final AlphanumComparator mAlphanum = new AlphanumComparator();
+
+        public int compare(OCFile o1, OCFile o2) {
+            if (o1.isFolder() && o2.isFolder()) {
+                return o1.getRemotePath().toLowerCase().compareTo(
+                        o2.getRemotePath().toLowerCase());
+            } else if (o1.isFolder()) {
+                return -1;
+            } else if (o2.isFolder()) {
+                return 1;
+            }
+            return mAlphanum.compare(o1, o2);
+        }
+    };
+
+    private Vector<OCFile> mFiles;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(FILES);
+        mFiles = new Vector<OCFile>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            boolean folder = (i % 20 == 0);
+            String name = (random.nextBoolean() ? "Photo " : "document_") +
+                    random.nextInt(FILES) + (folder ? "/" : ".jpg");
+            OCFile file = new OCFile("/Benchmark/" + name);
+            file.setMimetype(folder ? "DIR" : "image/jpeg");
+            file.setFileLength(random.nextInt(1024 * 1024));
+            mFiles.add(file);
+        }
+        FileStorageUtils.mSortAscending = true;
+    }
+
+    public void testSortByName50k() {
+        Vector<OCFile> files = new Vector<OCFile>(mFiles);
+        Collections.shuffle(files, new Random(1));
+        long start = System.nanoTime();
+        Collections.sort(files, OLD_COMPARATOR);
+        long old = System.nanoTime() - start;
+
+        // keys computed in the first sort, as done for files not read from the database
+        files = copy(mFiles);
+        start = System.nanoTime();
+        FileStorageUtils.sortByName(files);
+        long firstSort = System.nanoTime() - start;
+
+        Collections.shuffle(files, new Random(1));
+        start = System.nanoTime();
+        FileStorageUtils.sortByName(files);
+        long cached = System.nanoTime() - start;
+
+        for (int i = 1; i < files.size(); i++) {
+            assertTrue(files.get(i - 1).compareTo(files.get(i)) <= 0);
+        }
+        Log.i(TAG, FILES + " files sorted by name: comparator " + millis(old) +
+                " ms; keys computed " + millis(firstSort) + " ms; keys cached " +
+                millis(cached) + " ms");
+    }
+
+    public void testSortBySize50k() {
+        Vector<OCFile> files = copy(mFiles);
+        long start = System.nanoTime();
+        FileStorageUtils.sortBySize(files);
+        long time = System.nanoTime() - start;
+        Log.i(TAG, FILES + " files sorted by size: " + millis(time) + " ms");
+    }
+
+    public void testNaturalOrder() {
+        assertTrue(FileSortKeys.forName("file2").compareTo(FileSortKeys.forName("file10")) < 0);
+        assertTrue(FileSortKeys.forName("Álbum").compareTo(FileSortKeys.forName("alzar")) < 0);
+        assertEquals(FileSortKeys.forName("File.TXT"), FileSortKeys.forName("file.txt"));
+    }
+
+
+    /**
+     * @return      Shuffled copies of the files, without sort keys computed.
+     */
+    private static Vector<OCFile> copy(Vector<OCFile> files) {
+        Vector<OCFile> copies = new Vector<OCFile>(files.size());
+        for (OCFile file : files) {
+            OCFile copy = new OCFile(file.getRemotePath());
+            copy.setMimetype(file.getMimetype());
+            copy.setFileLength(file.getFileLength());
+            copies.add(copy);
+        }
+        Collections.shuffle(copies, new Random(1));
+        return copies;
+    }
+
+}
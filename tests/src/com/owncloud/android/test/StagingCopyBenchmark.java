@@ -0,0 +1,144 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.owncloud.android.utils.FileStorageUtils;
+
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Measures the throughput of the local copy made when uploading files with
+ * LOCAL_BEHAVIOUR_COPY: the former copy loop through a 1 KB buffer against
+ * {@link FileStorageUtils#copyFile(File, File, java.util.concurrent.atomic.AtomicBoolean)}.
+ *
+ * Files are created in the external storage, where the ownCloud folder lives. Sizes that don't
+ * fit twice in the available space are skipped.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class StagingCopyBenchmark extends BenchmarkTestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private File mFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolder = new File(Environment.getExternalStorageDirectory(), TAG);
+        mFolder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFolder.delete();
+        super.tearDown();
+    }
+
+    public void testCopy10MB() throws IOException {
+        runBenchmark(10 * MB);
+    }
+
+    public void testCopy500MB() throws IOException {
+        runBenchmark(500 * MB);
+    }
+
+    public void testCopy4GB() throws IOException {
+        runBenchmark(4096 * MB);
+    }
+
+
+    private void runBenchmark(long size) throws IOException {
+        if (mFolder.getUsableSpace() < 2 * size + 100 * MB) {
+            Log.w(TAG, "Not enough space for " + (size / MB) + " MB; skipped");
+            return;
+        }
+        File source = new File(mFolder, "source");
+        File target = new File(mFolder, "target");
+        createFile(source, size);
+
+        long start = System.nanoTime();
+        copyWithLoop(source, target);
+        long loopTime = millis(System.nanoTime() - start);
+        assertEquals(size, target.length());
+        target.delete();
+
+        start = System.nanoTime();
+        assertTrue(FileStorageUtils.copyFile(source, target, null));
+        long channelTime = millis(System.nanoTime() - start);
+        assertEquals(size, target.length());
+
+        Log.i(TAG, (size / MB) + " MB: 1 KB loop " + loopTime + " ms (" +
+                throughput(size, loopTime) + " MB/s), transferTo " + channelTime + " ms (" +
+                throughput(size, channelTime) + " MB/s)");
+    }
+
+    private static long throughput(long size, long millis) {
+        return (millis > 0) ? (size / MB) * 1000 / millis : 0;
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        byte[] block = new byte[(int) MB];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) i;
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copy as done before in UploadFileOperation.
+     */
+    private static void copyWithLoop(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+}
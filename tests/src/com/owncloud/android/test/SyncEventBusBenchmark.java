@@ -0,0 +1,139 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.syncadapter.SyncEventBus;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Measures the events delivered to a screen in the main thread while a synchronization of 40k
+ * folders is posted to {@link SyncEventBus}, as done by the sync adapter; before, every folder
+ * was a sticky broadcast handled in the main thread.
+ *
+ * Results are written to the log with the tag of this class.
+ */
+public class SyncEventBusBenchmark extends BenchmarkTestCase {
+
+    private static final String ACCOUNT_NAME = "benchmark@localhost";
+    private static final int FOLDERS = 40000;
+
+    /** Folders posted between pauses of the posting thread, to span many frames */
+    private static final int FOLDERS_PER_MS = 20;
+
+    private static final String FOLDER_ON_SCREEN = "/folder1/folder10/";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private int mDeliveries = 0;
+    private int mFolderOnScreenSynced = 0;
+    private int mFoldersSynced = 0;
+    private long mMainThreadTime = 0;
+
+    private final SyncEventBus.Listener mListener = new SyncEventBus.Listener() {
+        @Override
+        public String getFolderOnScreen() {
+            return FOLDER_ON_SCREEN;
+        }
+
+        @Override
+        public void onSyncEvents(SyncEventBus.Events events) {
+            long start = System.nanoTime();
+            mDeliveries++;
+            mFoldersSynced += events.getFoldersSynced();
+            if (events.isFolderOnScreenSynced()) {
+                mFolderOnScreenSynced++;
+            }
+            if (events.isFinished()) {
+                mFinished.countDown();
+            }
+            mMainThreadTime += System.nanoTime() - start;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runInMainThread(new Runnable() {
+            @Override
+            public void run() {
+                SyncEventBus.getInstance().register(mListener, ACCOUNT_NAME);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runInMainThread(new Runnable() {
+            @Override
+            public void run() {
+                SyncEventBus.getInstance().unregister(mListener);
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testSync40kFolders() throws Exception {
+        SyncEventBus bus = SyncEventBus.getInstance();
+        RemoteOperationResult result = new RemoteOperationResult(ResultCode.OK);
+        long start = System.currentTimeMillis();
+        bus.postSyncStart(ACCOUNT_NAME);
+        for (int i = 0; i < FOLDERS; i++) {
+            String path = (i == FOLDERS / 2) ? FOLDER_ON_SCREEN :
+                    "/folder" + (i % 100) + "/folder" + i + "/";
+            bus.postFolderSynced(ACCOUNT_NAME, path, result);
+            if (i % FOLDERS_PER_MS == 0) {
+                Thread.sleep(1);
+            }
+        }
+        bus.postSyncEnd(ACCOUNT_NAME, null);
+        long posting = System.currentTimeMillis() - start;
+
+        assertTrue(mFinished.await(10, TimeUnit.SECONDS));
+        // the folder on screen and its parent, maybe in the same batch
+        assertTrue(mFolderOnScreenSynced >= 1);
+        Log.i(TAG, FOLDERS + " folders posted in " + posting + " ms: " + mDeliveries +
+                " deliveries to the screen, " + mFolderOnScreenSynced +
+                " refreshing its folder, " + mFoldersSynced + " folders summarized; " +
+                micros(mMainThreadTime) + " us in the main thread");
+    }
+
+
+    private void runInMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.datamodel.FileDao;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import android.content.ContentValues;
+
+/**
+ * Values of files to save with {@link FileDao} in the tests, all of them in {@link #ACCOUNT}.
+ */
+final class TestFiles {
+
+    static final String ACCOUNT = "benchmark@server.example.com";
+
+    /** Local folder of {@link #ACCOUNT}, where the local copies of its files are saved */
+    static final String STORAGE_PATH = "/sdcard/owncloud/" + ACCOUNT;
+
+    private TestFiles() {
+    }
+
+
+    /**
+     * @param path          Remote path of the folder, ended in '/'.
+     * @param parentId      Id of the parent folder, or 0 for the root folder.
+     * @return              Values of a folder without size; it's added up from the children.
+     */
+    static ContentValues folderValues(String path, long parentId) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_NAME, new OCFile(path).getFileName());
+        cv.put(ProviderTableMeta.FILE_PATH, path);
+        cv.put(ProviderTableMeta.FILE_PARENT, parentId);
+        cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, "DIR");
+        cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, ACCOUNT);
+        return cv;
+    }
+
+    /**
+     * @param path          Remote path of the file.
+     * @param parentId      Id of the parent folder.
+     * @param size          Size of the file in bytes.
+     * @return              Values of a text file.
+     */
+    static ContentValues fileValues(String path, long parentId, long size) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_NAME, new OCFile(path).getFileName());
+        cv.put(ProviderTableMeta.FILE_PATH, path);
+        cv.put(ProviderTableMeta.FILE_PARENT, parentId);
+        cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, "text/plain");
+        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, size);
+        cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, ACCOUNT);
+        return cv;
+    }
+
+    /**
+     * @return      Values of a file or folder, depending on the path; files are 1 byte long.
+     */
+    static ContentValues values(String path, long parentId) {
+        return path.endsWith(OCFile.PATH_SEPARATOR) ? folderValues(path, parentId) :
+                fileValues(path, parentId, 1);
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.R;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+
+/**
+ * Measures the work done in the main thread to bind thumbnails while scrolling a grid of 2k
+ * images, reading them from the disk cache, as done before by FileListListAdapter, and from
+ * the memory cache.
+ *
+ * Every frame binds a row of the grid. Results are written to the log with the tag of this
+ * class; frames longer than 16 ms are dropped.
+ */
+public class ThumbnailsCacheBenchmark extends BenchmarkTestCase {
+
+    private static final String KEY_PREFIX = "benchmark-";
+    private static final int IMAGES = 2000;
+    private static final int COLUMNS = 4;
+    private static final long FRAME_NS = 16000000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int px = Math.round(getContext().getResources().getDimension(
+                R.dimen.file_icon_size_grid));
+        Bitmap thumbnail = Bitmap.createBitmap(px, px, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(thumbnail);
+        for (int i = 0; i < IMAGES; i++) {
+            canvas.drawColor(0xff000000 | (i * 0x9e3779));
+            ThumbnailsCacheManager.addBitmapToCache(KEY_PREFIX + i, thumbnail.copy(
+                    Bitmap.Config.ARGB_8888, false));
+        }
+    }
+
+    public void testScrollGrid2k() {
+        long[] disk = scroll(true);
+        long[] memory = scroll(false);
+        Log.i(TAG, IMAGES + " thumbnails, " + COLUMNS + " per frame: disk cache " +
+                describe(disk) + "; memory cache " + describe(memory));
+    }
+
+
+    /**
+     * @return      Average and maximum time binding a row, in ns, and number of rows taking
+     *              longer than a frame.
+     */
+    private long[] scroll(boolean fromDisk) {
+        long total = 0, max = 0, dropped = 0;
+        for (int row = 0; row < IMAGES / COLUMNS; row++) {
+            long start = System.nanoTime();
+            for (int column = 0; column < COLUMNS; column++) {
+                String key = KEY_PREFIX + (row * COLUMNS + column);
+                Bitmap bitmap = fromDisk ?
+                        ThumbnailsCacheManager.getBitmapFromDiskCache(key) :
+                        ThumbnailsCacheManager.getBitmapFromMemoryCache(key);
+                if (fromDisk) {
+                    assertNotNull(bitmap);
+                }
+            }
+            long time = System.nanoTime() - start;
+            total += time;
+            max = Math.max(max, time);
+            if (time > FRAME_NS) {
+                dropped++;
+            }
+        }
+        return new long[] { total / (IMAGES / COLUMNS), max, dropped };
+    }
+
+    private static String describe(long[] times) {
+        return "average " + micros(times[0]) + " us, max " + micros(times[1]) + " us, " +
+                times[2] + " frames dropped";
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.owncloud.android.db.DbHandler;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the journal of transfers kept in {@link DbHandler}, going through the same steps as the
+ * upload service when it starts again after the process was killed: the transfers left running
+ * are queued again, the ones started too many times are given up, and the queued ones are read
+ * in pages that always advance, even over a row that can't be resumed.
+ */
+public class TransferJournalTest extends AndroidTestCase {
+
+    private static final int TYPE = DbHandler.TRANSFER_TYPE_UPLOAD;
+    private static final String ACCOUNT = "journal@server.example.com";
+    private static final String OTHER_ACCOUNT = "other@server.example.com";
+
+    /** Same as the limit of attempts of the journal of the services */
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final int PAGE_SIZE = 50;
+
+    private DbHandler mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = DbHandler.getInstance(getContext());
+        mDb.removeTransfers(TYPE, ACCOUNT, null);
+        mDb.removeTransfers(TYPE, OTHER_ACCOUNT, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.removeTransfers(TYPE, ACCOUNT, null);
+        mDb.removeTransfers(TYPE, OTHER_ACCOUNT, null);
+        super.tearDown();
+    }
+
+    public void testRestoreAfterRestart() {
+        List<ContentValues> transfers = new ArrayList<ContentValues>();
+        for (int i = 0; i < 4; i++) {
+            transfers.add(transfer(ACCOUNT, "/restore/file" + i));
+        }
+        mDb.putTransfers(transfers);
+
+        // file0 finished, file1 was running when the process died, file2 died 5 times
+        mDb.startTransfer(TYPE, ACCOUNT, "/restore/file0");
+        mDb.updateTransfer(TYPE, ACCOUNT, "/restore/file0", state(DbHandler.TRANSFER_STATE_DONE));
+        mDb.startTransfer(TYPE, ACCOUNT, "/restore/file1");
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            mDb.startTransfer(TYPE, ACCOUNT, "/restore/file2");
+        }
+
+        restart();
+
+        assertEquals(Arrays.asList("/restore/file1", "/restore/file3"), readAll(ACCOUNT));
+        ContentValues resumed = readTransfer(ACCOUNT, "/restore/file1");
+        assertEquals(1, (int) resumed.getAsInteger(DbHandler.TRANSFER_ATTEMPTS));
+
+        // a transfer given up is not resumed by later restarts
+        restart();
+        assertNull(readTransfer(ACCOUNT, "/restore/file2"));
+        assertEquals(Arrays.asList("/restore/file1", "/restore/file3"), readAll(ACCOUNT));
+    }
+
+    public void testManifestPagesAdvance() {
+        List<ContentValues> transfers = new ArrayList<ContentValues>();
+        for (int i = 0; i < 3 * PAGE_SIZE + 7; i++) {
+            transfers.add(transfer(ACCOUNT, "/paging/file" + i));
+            if (i % 10 == 0) {
+                transfers.add(transfer(OTHER_ACCOUNT, "/paging/file" + i));
+            }
+        }
+        long[] ids = mDb.putTransfers(transfers);
+        long lastId = ids[ids.length - 1];
+
+        // admitted after the manifest was taken; read by the next one
+        mDb.putTransfers(Arrays.asList(transfer(ACCOUNT, "/paging/late")));
+
+        List<String> read = new ArrayList<String>();
+        long afterId = 0;
+        int pages = 0;
+        while (true) {
+            List<ContentValues> page = readPage(ACCOUNT, afterId, lastId);
+            pages++;
+            for (ContentValues cv : page) {
+                long id = cv.getAsLong(DbHandler.TRANSFER_ID);
+                assertTrue("Page went backwards", id > afterId);
+                afterId = id;
+                read.add(cv.getAsString(DbHandler.TRANSFER_REMOTE_PATH));
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        assertEquals(4, pages);
+        assertEquals(3 * PAGE_SIZE + 7, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals("/paging/file" + i, read.get(i));
+        }
+        assertEquals(Arrays.asList("/paging/late"),
+                toPaths(readPage(ACCOUNT, afterId, Long.MAX_VALUE)));
+    }
+
+    public void testBadRowIsGivenUp() {
+        long[] ids = mDb.putTransfers(Arrays.asList(
+                transfer(ACCOUNT, "/bad/file0"),
+                transfer(ACCOUNT, "not a remote path"),
+                transfer(ACCOUNT, "/bad/file2")));
+
+        // what the service does with a row it can't turn into an upload
+        List<ContentValues> page = readPage(ACCOUNT, 0, ids[2]);
+        assertEquals(3, page.size());
+        mDb.failTransfer(page.get(1).getAsLong(DbHandler.TRANSFER_ID));
+
+        assertEquals(Arrays.asList("/bad/file0", "/bad/file2"),
+                toPaths(readPage(ACCOUNT, 0, ids[2])));
+
+        restart();
+        assertEquals(Arrays.asList("/bad/file0", "/bad/file2"), readAll(ACCOUNT));
+    }
+
+    public void testRewrittenRemotePath() {
+        mDb.putTransfers(Arrays.asList(transfer(ACCOUNT, "/rewritten/document")));
+
+        // the upload is sent to "/rewritten/document.pdf", but the journal keeps the requested
+        // path, and is updated through it
+        mDb.startTransfer(TYPE, ACCOUNT, "/rewritten/document.pdf");
+        assertEquals(0, mDb.updateTransfer(TYPE, ACCOUNT, "/rewritten/document.pdf",
+                state(DbHandler.TRANSFER_STATE_DONE)));
+        assertEquals(DbHandler.TRANSFER_STATE_QUEUED, (int) readTransfer(ACCOUNT,
+                "/rewritten/document").getAsInteger(DbHandler.TRANSFER_STATE));
+
+        mDb.startTransfer(TYPE, ACCOUNT, "/rewritten/document");
+        assertEquals(1, mDb.updateTransfer(TYPE, ACCOUNT, "/rewritten/document",
+                state(DbHandler.TRANSFER_STATE_DONE)));
+
+        restart();
+        assertTrue(readAll(ACCOUNT).isEmpty());
+    }
+
+    public void testRemoveFolderKeepsSiblingsWithSamePrefix() {
+        mDb.putTransfers(Arrays.asList(
+                transfer(ACCOUNT, "/a/b/file"),
+                transfer(ACCOUNT, "/a/b0/file"),
+                transfer(ACCOUNT, "/a/b")));
+
+        assertEquals(1, mDb.removeTransfers(TYPE, ACCOUNT, "/a/b/"));
+        assertEquals(Arrays.asList("/a/b0/file", "/a/b"), readAll(ACCOUNT));
+    }
+
+
+    /**
+     * Repeats what the journal does when the service starts after the process was killed.
+     */
+    private void restart() {
+        mDb.removeFinishedTransfers(TYPE);
+        mDb.failExhaustedTransfers(TYPE, MAX_ATTEMPTS);
+        mDb.resetRunningTransfers(TYPE);
+    }
+
+    private List<String> readAll(String account) {
+        long lastId = -1;
+        Cursor c = mDb.getQueuedTransferAccounts(TYPE);
+        try {
+            while (c.moveToNext()) {
+                if (account.equals(c.getString(0))) {
+                    lastId = c.getLong(1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return toPaths(readPage(account, 0, lastId));
+    }
+
+    private List<ContentValues> readPage(String account, long afterId, long lastId) {
+        List<ContentValues> page = new ArrayList<ContentValues>();
+        Cursor c = mDb.getQueuedTransfers(TYPE, account, afterId, lastId, PAGE_SIZE);
+        try {
+            while (c.moveToNext()) {
+                ContentValues cv = new ContentValues();
+                cv.put(DbHandler.TRANSFER_ID,
+                        c.getLong(c.getColumnIndex(DbHandler.TRANSFER_ID)));
+                cv.put(DbHandler.TRANSFER_REMOTE_PATH,
+                        c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH)));
+                page.add(cv);
+            }
+        } finally {
+            c.close();
+        }
+        return page;
+    }
+
+    /**
+     * @return      State and attempts of a transfer, or null if it's not in the journal.
+     */
+    private ContentValues readTransfer(String account, String remotePath) {
+        Cursor c = mDb.getUnfinishedTransfers(TYPE);
+        try {
+            while (c.moveToNext()) {
+                if (account.equals(c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT))) &&
+                        remotePath.equals(c.getString(
+                                c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH)))) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(DbHandler.TRANSFER_STATE,
+                            c.getInt(c.getColumnIndex(DbHandler.TRANSFER_STATE)));
+                    cv.put(DbHandler.TRANSFER_ATTEMPTS,
+                            c.getInt(c.getColumnIndex(DbHandler.TRANSFER_ATTEMPTS)));
+                    return cv;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return null;
+    }
+
+    private static ContentValues transfer(String account, String remotePath) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_TYPE, TYPE);
+        cv.put(DbHandler.TRANSFER_ACCOUNT, account);
+        cv.put(DbHandler.TRANSFER_LOCAL_PATH, "/sdcard/journal" + remotePath);
+        cv.put(DbHandler.TRANSFER_REMOTE_PATH, remotePath);
+        cv.put(DbHandler.TRANSFER_MIME_TYPE, "text/plain");
+        cv.put(DbHandler.TRANSFER_STATE, DbHandler.TRANSFER_STATE_QUEUED);
+        return cv;
+    }
+
+    private static ContentValues state(int state) {
+        ContentValues cv = new ContentValues();
+        cv.put(DbHandler.TRANSFER_STATE, state);
+        return cv;
+    }
+
+    private static List<String> toPaths(List<ContentValues> transfers) {
+        List<String> paths = new ArrayList<String>();
+        for (ContentValues cv : transfers) {
+            paths.add(cv.getAsString(DbHandler.TRANSFER_REMOTE_PATH));
+        }
+        return paths;
+    }
+
+}